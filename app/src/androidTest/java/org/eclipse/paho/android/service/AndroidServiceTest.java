@@ -79,6 +79,37 @@ public class AndroidServiceTest extends AndroidTestCase
         }
     }
 
+    /**
+     * Times a new client from binding to the service to the CONNACK, written
+     * to the log. The first client may also be creating the service, and
+     * with it opening the message store.
+     *
+     * @throws Exception
+     */
+    public void testStartupTime() throws Exception
+    {
+        for (int i = 0; i < 3; i++)
+        {
+            long begin = System.nanoTime();
+            MqttAndroidClient mqttClient = new MqttAndroidClient(mContext, mqttServerURI, "testStartupTime");
+            try
+            {
+                IMqttToken connectToken = mqttClient.connect(null, null);
+                connectToken.waitForCompletion(waitForCompletionTime);
+                long elapsed = System.nanoTime() - begin;
+                assertTrue(mqttClient.isConnected());
+                Log.i(TAG, "bind to CONNACK, client " + i + ": " + (elapsed / 1000000) + "ms");
+
+                IMqttToken disconnectToken = mqttClient.disconnect(null, null);
+                disconnectToken.waitForCompletion(waitForCompletionTime);
+            }
+            finally
+            {
+                mqttClient.close();
+            }
+        }
+    }
+
     /**
      * Tests isConnected() returns false after a disconnect() call.
      * @throws Exception
@@ -0,0 +1,273 @@
+package org.eclipse.paho.android.service;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.ServiceConnection;
+import android.os.Debug;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
+import android.support.v4.content.LocalBroadcastManager;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.MqttCallback;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The rate at which arrived messages get from {@link MqttConnection} to the
+ * application's {@link MqttCallback}, and the time the main thread spends on
+ * them, written to the log. The messages are handed to the connection as if
+ * they had come from the server, so no server is needed.
+ */
+public class CallbackDispatchBenchmark extends AndroidTestCase
+{
+
+    private static final String TAG = "CallbackDispatchBenchmark";
+
+    private static final int MESSAGES = 5000;
+    private static final String SERVER_URI = "tcp://localhost:1883";
+    private static final String CLIENT_ID = "dispatchBenchmark";
+    private static final int OTHER_CLIENTS = 11;
+    private static final int BATCH_SIZE = 100;
+    private static final long BATCH_DELAY_MS = 50;
+
+    private final ServiceConnection serviceConnection = new ServiceConnection()
+    {
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder binder)
+        {
+            service = ((MqttServiceBinder) binder).getService();
+            bound.countDown();
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName name)
+        {
+        }
+    };
+    private final CountDownLatch bound = new CountDownLatch(1);
+    private volatile MqttService service;
+    private volatile CountDownLatch arrived;
+
+    private MqttAndroidClient client;
+    private String clientHandle;
+
+    @Override
+    public void setUp() throws Exception
+    {
+        super.setUp();
+        Intent intent = new Intent(getContext(), MqttService.class);
+        getContext().startService(intent);
+        getContext().bindService(intent, serviceConnection, Context.BIND_AUTO_CREATE);
+        assertTrue(bound.await(10, TimeUnit.SECONDS));
+
+        client = new MqttAndroidClient(getContext(), SERVER_URI, CLIENT_ID);
+        client.setMessageStoreProvider(MessageStoreProviders.noOp());
+        client.setCallback(new MqttCallbackBatch()
+        {
+            @Override
+            public void connectionLost(Throwable cause)
+            {
+            }
+
+            @Override
+            public void messageArrived(String topic, MqttMessage message)
+            {
+                arrived.countDown();
+            }
+
+            @Override
+            public void messagesArrived(List<ArrivedMessage> messages)
+            {
+                for (int i = 0; i < messages.size(); i++)
+                {
+                    arrived.countDown();
+                }
+            }
+
+            @Override
+            public void deliveryComplete(IMqttDeliveryToken token)
+            {
+            }
+        });
+        try
+        {
+            // the client is known to the service whether or not there is a
+            // server to connect to
+            client.connect().waitForCompletion(10000);
+        }
+        catch (MqttException e)
+        {
+            Log.i(TAG, "not connected: " + e);
+        }
+        clientHandle = SERVER_URI + ":" + CLIENT_ID + ":" + getContext().getApplicationInfo().packageName;
+    }
+
+    @Override
+    public void tearDown() throws Exception
+    {
+        client.unregisterResources();
+        getContext().unbindService(serviceConnection);
+        super.tearDown();
+    }
+
+    /**
+     * Compares messages passed to the client directly with messages
+     * broadcast through LocalBroadcastManager
+     *
+     * @throws Exception
+     */
+    public void testMessageArrived() throws Exception
+    {
+        double direct = messagesPerSecond("direct");
+
+        service.unregisterEventListener(clientHandle, client.getEventListener());
+        double broadcast = messagesPerSecond("broadcast");
+        service.registerEventListener(clientHandle, client.getEventListener());
+
+        Log.i(TAG, "direct dispatch speedup: " + (direct / broadcast));
+    }
+
+    /**
+     * Compares broadcasts with other clients in the process, each filtering
+     * every broadcast for its own client handle as they once did, against
+     * the same clients routed to by client handle
+     *
+     * @throws Exception
+     */
+    public void testManyClients() throws Exception
+    {
+        service.unregisterEventListener(clientHandle, client.getEventListener());
+        double alone = messagesPerSecond("alone");
+
+        LocalBroadcastManager broadcastManager = LocalBroadcastManager.getInstance(getContext());
+        MqttAndroidClient[] others = new MqttAndroidClient[OTHER_CLIENTS];
+        for (int i = 0; i < OTHER_CLIENTS; i++)
+        {
+            others[i] = new MqttAndroidClient(getContext(), SERVER_URI, CLIENT_ID + i);
+            broadcastManager.registerReceiver(others[i],
+                    new IntentFilter(MqttServiceConstants.CALLBACK_TO_ACTIVITY));
+        }
+        double filtered = messagesPerSecond("filtered by " + OTHER_CLIENTS + " others");
+        for (MqttAndroidClient other : others)
+        {
+            broadcastManager.unregisterReceiver(other);
+        }
+
+        CallbackRouter router = CallbackRouter.getInstance(getContext());
+        for (int i = 0; i < OTHER_CLIENTS; i++)
+        {
+            router.register(clientHandle + i, others[i].getEventListener());
+        }
+        double routed = messagesPerSecond("routed past " + OTHER_CLIENTS + " others");
+        for (int i = 0; i < OTHER_CLIENTS; i++)
+        {
+            router.unregister(clientHandle + i, others[i].getEventListener());
+        }
+        service.registerEventListener(clientHandle, client.getEventListener());
+
+        Log.i(TAG, "with " + OTHER_CLIENTS + " other clients: " + (filtered / alone) + " of the rate alone when "
+                + "filtered, " + (routed / alone) + " when routed");
+    }
+
+    /**
+     * Compares messages passed to the callback one at a time against batches
+     * of up to BATCH_SIZE messages
+     *
+     * @throws Exception
+     */
+    public void testBatching() throws Exception
+    {
+        double single = messagesPerSecond("one at a time");
+        double batched = messagesPerSecond("batched", BATCH_SIZE, BATCH_DELAY_MS);
+        Log.i(TAG, "batching speedup: " + (batched / single));
+    }
+
+    /**
+     * Compares the main thread's time for each message when callbacks are run
+     * on the main thread, as they were before they could be run elsewhere,
+     * against the client's own callback thread
+     *
+     * @throws Exception
+     */
+    public void testMainThreadTime() throws Exception
+    {
+        client.setCallbackLooper(Looper.getMainLooper());
+        long main = mainThreadNanosPerMessage("main looper");
+
+        client.setCallbackExecutor(null);
+        long own = mainThreadNanosPerMessage("callback thread");
+
+        Log.i(TAG, "main thread time per message: " + main + "ns on the main looper, " + own
+                + "ns with a callback thread");
+    }
+
+    private long mainThreadNanosPerMessage(String label) throws Exception
+    {
+        long begin = mainThreadCpuNanos();
+        messagesPerSecond(label);
+        return (mainThreadCpuNanos() - begin) / MESSAGES;
+    }
+
+    /**
+     * @return the CPU time used by the main thread so far
+     */
+    private static long mainThreadCpuNanos() throws InterruptedException
+    {
+        final AtomicLong nanos = new AtomicLong();
+        final CountDownLatch read = new CountDownLatch(1);
+        new Handler(Looper.getMainLooper()).post(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                nanos.set(Debug.threadCpuTimeNanos());
+                read.countDown();
+            }
+        });
+        assertTrue(read.await(10, TimeUnit.SECONDS));
+        return nanos.get();
+    }
+
+    /**
+     * @return the rate at which messages handed to a connection reached the
+     * callback
+     */
+    private double messagesPerSecond(String label) throws Exception
+    {
+        return messagesPerSecond(label, 0, 0);
+    }
+
+    private double messagesPerSecond(String label, int batchSize, long batchDelayMs) throws Exception
+    {
+        MqttConnection connection = new MqttConnection(service, SERVER_URI, CLIENT_ID, null, clientHandle,
+                MessageStoreProviders.noOp());
+        connection.setMessageBatching(batchSize, batchDelayMs);
+        MqttMessage message = new MqttMessage(new byte[128]);
+        arrived = new CountDownLatch(MESSAGES);
+        long begin = System.nanoTime();
+        for (int i = 0; i < MESSAGES; i++)
+        {
+            connection.messageArrived("benchmark/" + label, message);
+        }
+        assertTrue(arrived.await(60, TimeUnit.SECONDS));
+        long elapsed = System.nanoTime() - begin;
+        connection.setMessageBatching(0, 0);
+        connection.getMessageStore().close();
+
+        double rate = MESSAGES * 1000000000.0 / elapsed;
+        Log.i(TAG, label + ": " + MESSAGES + " messages in " + (elapsed / 1000000) + "ms, " + (long) rate
+                + " messages/s");
+        return rate;
+    }
+}
@@ -0,0 +1,150 @@
+package org.eclipse.paho.android.service;
+
+import android.content.Context;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import org.eclipse.paho.client.mqttv3.MqttClientPersistence;
+import org.eclipse.paho.client.mqttv3.MqttPersistable;
+import org.eclipse.paho.client.mqttv3.internal.MqttPersistentData;
+import org.eclipse.paho.client.mqttv3.persist.MqttDefaultFilePersistence;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The cost of {@link DatabaseClientPersistence} and
+ * {@link SegmentLogClientPersistence} against
+ * {@link MqttDefaultFilePersistence}, written to the log, and the keys kept
+ * across being closed and opened again.
+ */
+public class DatabaseClientPersistenceBenchmark extends AndroidTestCase
+{
+
+    private static final String TAG = "DatabaseClientPersistenceBenchmark";
+
+    private static final int IN_FLIGHT = 1000;
+    private static final String SERVER_URI = "tcp://localhost:1883";
+
+    @Override
+    public void tearDown() throws Exception
+    {
+        for (String name : getContext().databaseList())
+        {
+            if (name.startsWith(DatabaseClientPersistence.DATABASE_PREFIX) && name.endsWith(".db"))
+            {
+                getContext().deleteDatabase(name);
+            }
+        }
+        super.tearDown();
+    }
+
+    /**
+     * Puts IN_FLIGHT QoS 1 publishes, lists the keys as a reconnect does, then
+     * removes them as their PUBACKs arrive
+     *
+     * @throws Exception
+     */
+    public void testInFlightQos1() throws Exception
+    {
+        File directory = getContext().getDir("persistenceBenchmark", Context.MODE_PRIVATE);
+        long[] files = inFlight("file", new MqttDefaultFilePersistence(directory.getAbsolutePath()));
+        long[] database = inFlight("database", new DatabaseClientPersistence(getContext()));
+        long[] log = inFlight("segment log", new SegmentLogClientPersistence(
+                getContext().getDir("persistenceLog", Context.MODE_PRIVATE)));
+        Log.i(TAG, "database speedup: put " + ((double) files[0] / database[0]) + ", keys "
+                + ((double) files[1] / database[1]) + ", remove " + ((double) files[2] / database[2]));
+        Log.i(TAG, "segment log speedup: put " + ((double) files[0] / log[0]) + ", keys "
+                + ((double) files[1] / log[1]) + ", remove " + ((double) files[2] / log[2]));
+    }
+
+    /**
+     * Keys put and removed are as they were left after the persistence is
+     * closed and opened again, and files left by the default persistence are
+     * taken over
+     *
+     * @throws Exception
+     */
+    public void testReopen() throws Exception
+    {
+        File directory = getContext().getDir("persistenceLegacy", Context.MODE_PRIVATE);
+        MqttClientPersistence legacy = new MqttDefaultFilePersistence(directory.getAbsolutePath());
+        legacy.open("reopen", SERVER_URI);
+        legacy.put("s-99", publish(99));
+        legacy.close();
+
+        DatabaseClientPersistence persistence = new DatabaseClientPersistence(getContext(), directory);
+        persistence.open("reopen", SERVER_URI);
+        for (int i = 1; i <= 3; i++)
+        {
+            persistence.put("s-" + i, publish(i));
+        }
+        persistence.remove("s-2");
+        assertFalse(persistence.containsKey("s-2"));
+        persistence.close();
+
+        persistence.open("reopen", SERVER_URI);
+        List<String> keys = Collections.list(persistence.keys());
+        Collections.sort(keys);
+        assertEquals(Arrays.asList("s-1", "s-3", "s-99"), keys);
+        MqttPersistable stored = persistence.get("s-99");
+        assertTrue(Arrays.equals(publish(99).getHeaderBytes(), stored.getHeaderBytes()));
+        assertTrue(Arrays.equals(publish(99).getPayloadBytes(), stored.getPayloadBytes()));
+        assertNull(persistence.get("s-2"));
+        persistence.clear();
+        persistence.close();
+
+        legacy.open("reopen", SERVER_URI);
+        assertFalse(legacy.keys().hasMoreElements());
+        legacy.close();
+    }
+
+    /**
+     * @return the time taken to put, list and remove, in nanoseconds
+     */
+    private long[] inFlight(String label, MqttClientPersistence persistence) throws Exception
+    {
+        persistence.open("benchmark", SERVER_URI);
+        persistence.clear();
+        try
+        {
+            long begin = System.nanoTime();
+            for (int i = 1; i <= IN_FLIGHT; i++)
+            {
+                persistence.put("s-" + i, publish(i));
+            }
+            long put = System.nanoTime();
+            assertEquals(IN_FLIGHT, Collections.list(persistence.keys()).size());
+            long keys = System.nanoTime();
+            for (int i = 1; i <= IN_FLIGHT; i++)
+            {
+                persistence.remove("s-" + i);
+            }
+            long removed = System.nanoTime();
+            assertFalse(persistence.keys().hasMoreElements());
+
+            Log.i(TAG, label + ": put " + ((put - begin) / IN_FLIGHT / 1000) + "us, keys " + ((keys - put) / 1000)
+                    + "us, remove " + ((removed - keys) / IN_FLIGHT / 1000) + "us per message");
+            return new long[]{put - begin, keys - put, removed - keys};
+        }
+        finally
+        {
+            persistence.clear();
+            persistence.close();
+        }
+    }
+
+    /**
+     * @return something shaped like a persisted QoS 1 PUBLISH
+     */
+    private static MqttPersistentData publish(int id)
+    {
+        byte[] header = new byte[20];
+        Arrays.fill(header, (byte) id);
+        byte[] payload = new byte[128];
+        Arrays.fill(payload, (byte) 'p');
+        return new MqttPersistentData("s-" + id, header, 0, header.length, payload, 0, payload.length);
+    }
+}
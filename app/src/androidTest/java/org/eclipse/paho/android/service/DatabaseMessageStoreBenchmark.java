@@ -0,0 +1,463 @@
+package org.eclipse.paho.android.service;
+
+import android.os.Debug;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Throughput and latency figures for {@link DatabaseMessageStore}, written to the log.
+ */
+public class DatabaseMessageStoreBenchmark extends AndroidTestCase
+{
+
+    private static final String TAG = "DatabaseMessageStoreBenchmark";
+
+    private static final int WRITERS = 4;
+    private static final int MESSAGES_PER_WRITER = 1000;
+    private static final String RECLAIM_DATABASE = "reclaim-benchmark.db";
+
+    private DatabaseMessageStore store;
+
+    @Override
+    public void setUp() throws Exception
+    {
+        super.setUp();
+        store = new DatabaseMessageStore(new MqttService(), getContext());
+        store.clearArrivedMessages(null);
+    }
+
+    @Override
+    public void tearDown() throws Exception
+    {
+        store.clearArrivedMessages(null);
+        store.close();
+        super.tearDown();
+    }
+
+    /**
+     * Compares storeArrived with every insert committed on its own against
+     * inserts gathered into group commits, with several clients writing at once
+     *
+     * @throws Exception
+     */
+    public void testGroupCommit() throws Exception
+    {
+        long[] autoCommit = storeConcurrently("autocommit", WRITERS);
+
+        store.setGroupCommit(64, 2);
+        long[] grouped = storeConcurrently("groupcommit", WRITERS);
+
+        // every message must still be in the store
+        assertEquals(2 * WRITERS * MESSAGES_PER_WRITER, count());
+        assertEquals(2 * WRITERS * MESSAGES_PER_WRITER, store.getArrivedCount(null));
+        assertEquals(MESSAGES_PER_WRITER, store.getArrivedCount("groupcommit:0"));
+        Log.i(TAG, "group commit speedup: " + ((double) autoCommit[0] / grouped[0]));
+    }
+
+    /**
+     * Compares the same with one client storing a burst of messages, as one
+     * connection does on its own thread. A lone writer's inserts are not
+     * gathered, so group commit should neither help nor hold it up.
+     *
+     * @throws Exception
+     */
+    public void testGroupCommitOneWriter() throws Exception
+    {
+        long[] autoCommit = storeConcurrently("autocommit", 1);
+
+        store.setGroupCommit(64, 2);
+        long[] grouped = storeConcurrently("groupcommit", 1);
+
+        assertEquals(MESSAGES_PER_WRITER, store.getArrivedCount("groupcommit:0"));
+        Log.i(TAG, "group commit speedup with one writer: " + ((double) autoCommit[0] / grouped[0]));
+    }
+
+    /**
+     * Compares the store and acknowledge round trip made for every arrived
+     * message against the in-memory ring buffer store
+     *
+     * @throws Exception
+     */
+    public void testRoundTrip() throws Exception
+    {
+        RingBufferMessageStore ring = new RingBufferMessageStore(1024,
+                RingBufferMessageStore.OverflowPolicy.DROP_OLDEST, null);
+        long database = roundTrips("database", store);
+        long memory = roundTrips("ringbuffer", ring);
+        ring.close();
+
+        assertEquals(0, store.getArrivedCount(null));
+        Log.i(TAG, "ring buffer speedup: " + ((double) database / memory));
+    }
+
+    /**
+     * Compares acknowledging a window of messages one at a time against
+     * discarding the whole window in one batch
+     *
+     * @throws Exception
+     */
+    public void testBatchDiscard() throws Exception
+    {
+        MqttMessage message = new MqttMessage(new byte[128]);
+        List<Long> ids = new ArrayList<>();
+        for (int i = 0; i < MESSAGES_PER_WRITER; i++)
+        {
+            ids.add(store.storeArrived("single", "benchmark", message));
+        }
+        long begin = System.nanoTime();
+        for (long id : ids)
+        {
+            assertTrue(store.discardArrived("single", id));
+        }
+        long single = System.nanoTime() - begin;
+
+        ids.clear();
+        for (int i = 0; i < MESSAGES_PER_WRITER; i++)
+        {
+            ids.add(store.storeArrived("batch", "benchmark", message));
+        }
+        begin = System.nanoTime();
+        Map<Long, Boolean> results = store.discardArrived("batch", ids);
+        long batch = System.nanoTime() - begin;
+
+        assertEquals(MESSAGES_PER_WRITER, results.size());
+        assertFalse(results.containsValue(Boolean.FALSE));
+        assertEquals(0, store.getArrivedCount(null));
+
+        // an id which is not stored is reported without losing the others
+        ids.clear();
+        ids.add(store.storeArrived("batch", "benchmark", message));
+        ids.add(-1L);
+        ids.add(store.storeArrived("batch", "benchmark", message));
+        results = store.discardArrived("batch", ids);
+        assertFalse(results.remove(-1L));
+        assertFalse(results.containsValue(Boolean.FALSE));
+        assertEquals(0, store.getArrivedCount(null));
+        Log.i(TAG, "discard " + MESSAGES_PER_WRITER + " messages: " + (single / 1000000) + "ms one at a time, "
+                + (batch / 1000000) + "ms batched");
+    }
+
+    /**
+     * Counts the objects allocated per message when storing and when
+     * replaying the backlog, the two paths taken for every arrived message
+     *
+     * @throws Exception
+     */
+    @SuppressWarnings("deprecation")
+    public void testAllocations() throws Exception
+    {
+        MqttMessage message = new MqttMessage(new byte[128]);
+        message.setQos(1);
+        message.setRetained(true);
+        // compile the insert and load the client's count first
+        store.discardArrived("allocations", store.storeArrived("allocations", "benchmark", message));
+
+        Debug.resetThreadAllocCount();
+        Debug.startAllocCounting();
+        try
+        {
+            for (int i = 0; i < MESSAGES_PER_WRITER; i++)
+            {
+                store.storeArrived("allocations", "benchmark", message);
+            }
+            int inserts = Debug.getThreadAllocCount();
+
+            Debug.resetThreadAllocCount();
+            int replayed = 0;
+            MessageStore.StoredMessageCursor messages = store.openArrivedMessages("allocations", null, 0, 0);
+            try
+            {
+                while (messages.moveToNext())
+                {
+                    MessageStore.StoredMessage stored = messages.getMessage();
+                    assertTrue(stored.getMessage().isRetained());
+                    assertEquals(1, stored.getMessage().getQos());
+                    replayed++;
+                }
+            }
+            finally
+            {
+                messages.close();
+            }
+            int replays = Debug.getThreadAllocCount();
+
+            assertEquals(MESSAGES_PER_WRITER, replayed);
+            Log.i(TAG, "allocations per message: " + ((double) inserts / MESSAGES_PER_WRITER) + " to store, "
+                    + ((double) replays / MESSAGES_PER_WRITER) + " to replay");
+        }
+        finally
+        {
+            Debug.stopAllocCounting();
+        }
+    }
+
+    /**
+     * The large message scenario, against the store alone: multi-megabyte
+     * payloads are kept in files of their own, so they can be stored and read
+     * back beyond the size of a cursor window, and the rows can be paged
+     * through without loading them. Payloads below the window size are also
+     * timed kept in the table, for comparison.
+     *
+     * @throws Exception
+     */
+    public void testLargeMessage() throws Exception
+    {
+        int[] sizes = {512 * 1024, 2 * 1024 * 1024, 4 * 1024 * 1024, 8 * 1024 * 1024};
+        for (int size : sizes)
+        {
+            byte[] payload = new byte[size];
+            Arrays.fill(payload, (byte) 's');
+            if (size < 1024 * 1024)
+            {
+                store.setPayloadFileThreshold(0);
+                largeMessages("inline", payload);
+            }
+            store.setPayloadFileThreshold(64 * 1024);
+            largeMessages("file", payload);
+        }
+        assertEquals(0, store.getArrivedCount(null));
+
+        // files are reclaimed by clearArrivedMessages too
+        store.storeArrived("large", "benchmark", new MqttMessage(new byte[1024 * 1024]));
+        store.clearArrivedMessages("large");
+        assertEquals(0, count());
+        File payloads = new File(getContext().getDatabasePath("mqttAndroidService.db").getPath() + "-payloads");
+        String[] remaining = payloads.list();
+        assertTrue(remaining == null || remaining.length == 0);
+    }
+
+    /**
+     * A message whose payload file has been lost is skipped, with the message
+     * after it returned in its place, rather than passed on with an empty
+     * payload
+     *
+     * @throws Exception
+     */
+    public void testLostPayloadFileIsSkipped() throws Exception
+    {
+        store.setPayloadFileThreshold(64 * 1024);
+        MqttMessage message = new MqttMessage(new byte[128 * 1024]);
+        long first = store.storeArrived("lost", "benchmark", message);
+        long second = store.storeArrived("lost", "benchmark", message);
+        File payloads = new File(getContext().getDatabasePath("mqttAndroidService.db").getPath() + "-payloads");
+        File[] files = payloads.listFiles();
+        assertEquals(2, files.length);
+        for (File file : files)
+        {
+            assertTrue(file.delete());
+        }
+        store.storeArrived("lost", "benchmark", message);
+
+        assertEquals(1, count());
+        List<MessageStore.StoredMessage> page = store.getArrivedMessages("lost", null, 1);
+        assertEquals(1, page.size());
+        assertTrue(page.get(0).getMessageId() > Math.max(first, second));
+        assertEquals(message.getPayload().length, page.get(0).getMessage().getPayload().length);
+    }
+
+    /**
+     * Delivers a large backlog, then reclaims the free pages a budget at a
+     * time, timing each step and a scan of the messages left. A database of
+     * its own is created for this, as one left by an earlier version does not
+     * have incremental vacuum switched on.
+     *
+     * @throws Exception
+     */
+    public void testReclaimSpace() throws Exception
+    {
+        store.close();
+        getContext().deleteDatabase(RECLAIM_DATABASE);
+        store = new DatabaseMessageStore(new MqttService(), getContext(), RECLAIM_DATABASE);
+        // reclaimed by hand here, rather than in the background
+        store.setReclaimPageBudget(0);
+        MqttMessage message = new MqttMessage(new byte[1024]);
+        message.setQos(1);
+        List<Long> ids = new ArrayList<>();
+        for (int i = 0; i < 10 * MESSAGES_PER_WRITER; i++)
+        {
+            long id = store.storeArrived("reclaim", "benchmark", message);
+            // one message in ten is not delivered yet
+            if (i % 10 != 0)
+            {
+                ids.add(id);
+            }
+        }
+        File file = getContext().getDatabasePath(RECLAIM_DATABASE);
+        long full = file.length();
+        store.discardArrived("reclaim", ids);
+        long fragmented = file.length();
+        long scanBefore = scan();
+
+        long longest = 0;
+        int pages = 0;
+        while (true)
+        {
+            long begin = System.nanoTime();
+            int reclaimed = store.reclaimSpace(256);
+            longest = Math.max(longest, System.nanoTime() - begin);
+            if (reclaimed == 0)
+            {
+                break;
+            }
+            pages += reclaimed;
+        }
+        long reclaimedSize = file.length();
+        long scanAfter = scan();
+
+        assertTrue(pages > 0);
+        assertTrue(reclaimedSize < fragmented);
+        assertEquals(MESSAGES_PER_WRITER, store.getArrivedCount("reclaim"));
+        Log.i(TAG, "reclaim: " + (full / 1024) + "KB full, " + (fragmented / 1024) + "KB after delivery, "
+                + (reclaimedSize / 1024) + "KB after reclaiming " + pages + " pages, longest step "
+                + (longest / 1000) + "us; scan " + (scanBefore / 1000) + "us before, " + (scanAfter / 1000)
+                + "us after");
+    }
+
+    private long scan()
+    {
+        long begin = System.nanoTime();
+        assertEquals(MESSAGES_PER_WRITER, count());
+        return System.nanoTime() - begin;
+    }
+
+    /**
+     * Stores, pages through, reads back and discards a few copies of a payload
+     *
+     * @param label identifies the run in the log
+     * @param payload the payload to store
+     */
+    private void largeMessages(String label, byte[] payload)
+    {
+        int messages = 4;
+        MqttMessage message = new MqttMessage(payload);
+        message.setQos(1);
+        long begin = System.nanoTime();
+        for (int i = 0; i < messages; i++)
+        {
+            store.storeArrived("large", "benchmark", message);
+        }
+        long stored = System.nanoTime();
+        List<MessageStore.StoredMessage> page = store.getArrivedMessages("large", null, messages);
+        long paged = System.nanoTime();
+        assertEquals(messages, page.size());
+        List<Long> ids = new ArrayList<>();
+        for (MessageStore.StoredMessage storedMessage : page)
+        {
+            assertTrue(Arrays.equals(payload, storedMessage.getMessage().getPayload()));
+            ids.add(storedMessage.getMessageId());
+        }
+        long read = System.nanoTime();
+        assertFalse(store.discardArrived("large", ids).containsValue(Boolean.FALSE));
+        long discarded = System.nanoTime();
+        Log.i(TAG, label + " " + (payload.length / 1024) + "KB: store " + ((stored - begin) / messages / 1000)
+                + "us, page " + ((paged - stored) / 1000) + "us, read " + ((read - paged) / messages / 1000)
+                + "us, discard " + ((discarded - read) / messages / 1000) + "us per message");
+    }
+
+    /**
+     * Stores and then discards MESSAGES_PER_WRITER messages, one at a time
+     *
+     * @param label identifies the run in the log
+     * @param messageStore the store to use
+     * @return the elapsed time in nanoseconds
+     */
+    private long roundTrips(String label, MessageStore messageStore)
+    {
+        MqttMessage message = new MqttMessage(new byte[128]);
+        message.setQos(1);
+        long begin = System.nanoTime();
+        for (int i = 0; i < MESSAGES_PER_WRITER; i++)
+        {
+            long id = messageStore.storeArrived(label, "benchmark", message);
+            assertTrue(messageStore.discardArrived(label, id));
+        }
+        long elapsed = System.nanoTime() - begin;
+        Log.i(TAG, label + ": " + (elapsed / MESSAGES_PER_WRITER / 1000) + "us per store and discard");
+        return elapsed;
+    }
+
+    /**
+     * Runs writer threads, each storing MESSAGES_PER_WRITER messages
+     *
+     * @param label identifies the run in the log
+     * @param writers the number of threads
+     * @return the elapsed time and the 99th percentile latency, both in nanoseconds
+     * @throws InterruptedException
+     */
+    private long[] storeConcurrently(final String label, int writers) throws InterruptedException
+    {
+        final long[] latencies = new long[writers * MESSAGES_PER_WRITER];
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch finished = new CountDownLatch(writers);
+        for (int w = 0; w < writers; w++)
+        {
+            final int writer = w;
+            new Thread(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    String clientHandle = label + ":" + writer;
+                    MqttMessage message = new MqttMessage(new byte[128]);
+                    message.setQos(1);
+                    try
+                    {
+                        start.await();
+                        for (int i = 0; i < MESSAGES_PER_WRITER; i++)
+                        {
+                            long before = System.nanoTime();
+                            store.storeArrived(clientHandle, "benchmark/" + writer, message);
+                            latencies[writer * MESSAGES_PER_WRITER + i] = System.nanoTime() - before;
+                        }
+                    }
+                    catch (InterruptedException e)
+                    {
+                        Thread.currentThread().interrupt();
+                    }
+                    finally
+                    {
+                        finished.countDown();
+                    }
+                }
+            }).start();
+        }
+
+        long begin = System.nanoTime();
+        start.countDown();
+        finished.await();
+        long elapsed = System.nanoTime() - begin;
+
+        Arrays.sort(latencies);
+        long p99 = latencies[(int) (latencies.length * 0.99)];
+        Log.i(TAG, label + ": " + (latencies.length * 1000000000L / elapsed) + " msgs/sec, p99 insert latency "
+                + (p99 / 1000) + "us");
+        return new long[]{elapsed, p99};
+    }
+
+    private int count()
+    {
+        int count = 0;
+        MessageStore.StoredMessageCursor messages = store.openArrivedMessages(null, null, 0, 0);
+        try
+        {
+            while (messages.moveToNext())
+            {
+                count++;
+            }
+        }
+        finally
+        {
+            messages.close();
+        }
+        return count;
+    }
+}
@@ -0,0 +1,270 @@
+package org.eclipse.paho.android.service;
+
+import android.os.Bundle;
+import android.os.Parcelable;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+
+/**
+ * The cost of building and dispatching each type of {@link ServiceEvent},
+ * written to the log, against the string-keyed Bundle the service used to
+ * pass for every callback and which it still builds for a broadcast.
+ */
+public class ServiceEventDispatchBenchmark extends AndroidTestCase
+{
+
+    private static final String TAG = "ServiceEventDispatchBenchmark";
+
+    private static final int ITERATIONS = 20000;
+    private static final int BATCH_SIZE = 100;
+
+    private static final int[] ACTIONS = {ServiceEvent.MESSAGE_ARRIVED, ServiceEvent.MESSAGES_ARRIVED,
+            ServiceEvent.SEND, ServiceEvent.MESSAGE_DELIVERED, ServiceEvent.SUBSCRIBE, ServiceEvent.CONNECT_EXTENDED,
+            ServiceEvent.CONNECTION_LOST, ServiceEvent.TRACE, ServiceEvent.BACKLOG_REPLAY};
+
+    private final MqttMessage message = new MqttMessage(new byte[128]);
+
+    // read by the dispatchers, so that their work is not optimised away
+    private long sink;
+
+    /**
+     * Every field of each type of event survives being broadcast
+     */
+    public void testBroadcastRoundTrip()
+    {
+        for (int action : ACTIONS)
+        {
+            ServiceEvent event = event(action);
+            ServiceEvent copy = ServiceEvent.fromBundle(event.toBundle());
+            assertEquals(action, copy.action);
+            assertEquals(event.clientHandle, copy.clientHandle);
+            assertEquals(event.status, copy.status);
+            assertEquals(event.activityToken, copy.activityToken);
+            assertEquals(event.invocationContext, copy.invocationContext);
+            assertEquals(event.errorMessage, copy.errorMessage);
+            assertEquals(event.exceptionStack, copy.exceptionStack);
+            assertEquals(event.topic, copy.topic);
+            assertEquals(event.messageId, copy.messageId);
+            assertEquals(event.reconnect, copy.reconnect);
+            assertEquals(event.serverURI, copy.serverURI);
+            assertEquals(event.traceSeverity, copy.traceSeverity);
+            assertEquals(event.traceTag, copy.traceTag);
+            assertEquals(event.backlogDelivered, copy.backlogDelivered);
+            assertEquals(event.backlogTotal, copy.backlogTotal);
+            assertEquals(event.backlogComplete, copy.backlogComplete);
+            assertEquals(event.exception == null, copy.exception == null);
+            assertEquals(event.message == null, copy.message == null);
+            if (event.messages != null)
+            {
+                assertEquals(event.messages.length, copy.messages.length);
+                assertEquals(event.topics[BATCH_SIZE - 1], copy.topics[BATCH_SIZE - 1]);
+                assertEquals(event.messageIds[BATCH_SIZE - 1], copy.messageIds[BATCH_SIZE - 1]);
+            }
+        }
+        assertEquals(ServiceEvent.UNKNOWN, ServiceEvent.actionCode("unknown"));
+    }
+
+    /**
+     * Compares building and dispatching each type of event with the same
+     * callback built as a Bundle and dispatched on its action name
+     */
+    public void testDispatchCost()
+    {
+        for (int action : ACTIONS)
+        {
+            // warm up both paths before timing them
+            eventNanos(action, ITERATIONS / 10);
+            bundleNanos(action, ITERATIONS / 10);
+
+            long event = eventNanos(action, ITERATIONS);
+            long bundle = bundleNanos(action, ITERATIONS);
+            Log.i(TAG, ServiceEvent.actionName(action) + ": " + event + "ns per event, " + bundle
+                    + "ns per bundle, speedup " + ((double) bundle / event));
+        }
+        Log.d(TAG, "sink " + sink);
+    }
+
+    private long eventNanos(int action, int iterations)
+    {
+        long begin = System.nanoTime();
+        for (int i = 0; i < iterations; i++)
+        {
+            dispatch(event(action));
+        }
+        return (System.nanoTime() - begin) / iterations;
+    }
+
+    private long bundleNanos(int action, int iterations)
+    {
+        long begin = System.nanoTime();
+        for (int i = 0; i < iterations; i++)
+        {
+            dispatch(event(action).toBundle());
+        }
+        return (System.nanoTime() - begin) / iterations;
+    }
+
+    /**
+     * @return an event of the given type, with the fields the service fills in
+     */
+    private ServiceEvent event(int action)
+    {
+        ServiceEvent event = new ServiceEvent(action, "1", "context");
+        event.clientHandle = "tcp://localhost:1883:benchmark:org.eclipse.paho.android.service";
+        event.status = Status.OK;
+        switch (action)
+        {
+            case ServiceEvent.MESSAGE_ARRIVED:
+            case ServiceEvent.SEND:
+            case ServiceEvent.MESSAGE_DELIVERED:
+                event.topic = "benchmark/topic";
+                event.message = new ParcelableMqttMessage(message);
+                event.messageId = 42;
+                break;
+            case ServiceEvent.MESSAGES_ARRIVED:
+                event.topics = new String[BATCH_SIZE];
+                event.messages = new ParcelableMqttMessage[BATCH_SIZE];
+                event.messageIds = new long[BATCH_SIZE];
+                for (int i = 0; i < BATCH_SIZE; i++)
+                {
+                    event.topics[i] = "benchmark/topic";
+                    event.messages[i] = new ParcelableMqttMessage(message);
+                    event.messageIds[i] = i;
+                }
+                break;
+            case ServiceEvent.CONNECT_EXTENDED:
+                event.reconnect = true;
+                event.serverURI = "tcp://localhost:1883";
+                break;
+            case ServiceEvent.CONNECTION_LOST:
+                event.errorMessage = "lost";
+                event.exception = new MqttException(MqttException.REASON_CODE_CONNECTION_LOST);
+                event.exceptionStack = "stack";
+                break;
+            case ServiceEvent.TRACE:
+                event.traceSeverity = MqttServiceConstants.TRACE_DEBUG;
+                event.traceTag = TAG;
+                event.errorMessage = "trace";
+                break;
+            case ServiceEvent.BACKLOG_REPLAY:
+                event.backlogDelivered = 10;
+                event.backlogTotal = 100;
+                break;
+            default:
+                break;
+        }
+        return event;
+    }
+
+    /**
+     * Dispatch on the action code, reading the fields a client reads
+     */
+    private void dispatch(ServiceEvent event)
+    {
+        if (event.status != Status.OK)
+        {
+            return;
+        }
+        switch (event.action)
+        {
+            case ServiceEvent.MESSAGE_ARRIVED:
+                sink += event.messageId + event.topic.length() + event.message.getPayload().length;
+                break;
+            case ServiceEvent.MESSAGES_ARRIVED:
+                for (int i = 0; i < event.messageIds.length; i++)
+                {
+                    sink += event.messageIds[i] + event.topics[i].length() + event.messages[i].getPayload().length;
+                }
+                break;
+            case ServiceEvent.SEND:
+            case ServiceEvent.MESSAGE_DELIVERED:
+            case ServiceEvent.SUBSCRIBE:
+                sink += event.activityToken.length();
+                break;
+            case ServiceEvent.CONNECT_EXTENDED:
+                sink += event.reconnect ? event.serverURI.length() : 0;
+                break;
+            case ServiceEvent.CONNECTION_LOST:
+                sink += event.exception.hashCode();
+                break;
+            case ServiceEvent.TRACE:
+                sink += event.traceSeverity.length() + event.traceTag.length() + event.errorMessage.length();
+                break;
+            case ServiceEvent.BACKLOG_REPLAY:
+                sink += event.backlogDelivered + event.backlogTotal + (event.backlogComplete ? 1 : 0);
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Dispatch on the action name, reading the fields a client used to read
+     */
+    private void dispatch(Bundle data)
+    {
+        Status status = (Status) data.getSerializable(MqttServiceConstants.CALLBACK_STATUS);
+        if (status != Status.OK)
+        {
+            return;
+        }
+        String action = data.getString(MqttServiceConstants.CALLBACK_ACTION);
+        if (MqttServiceConstants.CONNECT_ACTION.equals(action))
+        {
+            sink += data.getString(MqttServiceConstants.CALLBACK_ACTIVITY_TOKEN).length();
+        }
+        else if (MqttServiceConstants.CONNECT_EXTENDED_ACTION.equals(action))
+        {
+            sink += data.getBoolean(MqttServiceConstants.CALLBACK_RECONNECT, false)
+                    ? data.getString(MqttServiceConstants.CALLBACK_SERVER_URI).length() : 0;
+        }
+        else if (MqttServiceConstants.MESSAGE_ARRIVED_ACTION.equals(action))
+        {
+            ParcelableMqttMessage message = data.getParcelable(MqttServiceConstants.CALLBACK_MESSAGE_PARCEL);
+            sink += data.getLong(MqttServiceConstants.CALLBACK_MESSAGE_ID)
+                    + data.getString(MqttServiceConstants.CALLBACK_DESTINATION_NAME).length()
+                    + message.getPayload().length;
+        }
+        else if (MqttServiceConstants.SUBSCRIBE_ACTION.equals(action)
+                || MqttServiceConstants.UNSUBSCRIBE_ACTION.equals(action)
+                || MqttServiceConstants.SEND_ACTION.equals(action)
+                || MqttServiceConstants.MESSAGE_DELIVERED_ACTION.equals(action))
+        {
+            sink += data.getString(MqttServiceConstants.CALLBACK_ACTIVITY_TOKEN).length();
+        }
+        else if (MqttServiceConstants.ON_CONNECTION_LOST_ACTION.equals(action))
+        {
+            sink += data.getSerializable(MqttServiceConstants.CALLBACK_EXCEPTION).hashCode();
+        }
+        else if (MqttServiceConstants.DISCONNECT_ACTION.equals(action))
+        {
+            sink += data.getString(MqttServiceConstants.CALLBACK_ACTIVITY_TOKEN).length();
+        }
+        else if (MqttServiceConstants.TRACE_ACTION.equals(action))
+        {
+            sink += data.getString(MqttServiceConstants.CALLBACK_TRACE_SEVERITY).length()
+                    + data.getString(MqttServiceConstants.CALLBACK_TRACE_TAG).length()
+                    + data.getString(MqttServiceConstants.CALLBACK_ERROR_MESSAGE).length();
+        }
+        else if (MqttServiceConstants.BACKLOG_REPLAY_ACTION.equals(action))
+        {
+            sink += data.getInt(MqttServiceConstants.CALLBACK_BACKLOG_DELIVERED)
+                    + data.getInt(MqttServiceConstants.CALLBACK_BACKLOG_TOTAL)
+                    + (data.getBoolean(MqttServiceConstants.CALLBACK_BACKLOG_COMPLETE) ? 1 : 0);
+        }
+        else if (MqttServiceConstants.MESSAGES_ARRIVED_ACTION.equals(action))
+        {
+            String[] topics = data.getStringArray(MqttServiceConstants.CALLBACK_DESTINATION_NAMES);
+            Parcelable[] parcels = data.getParcelableArray(MqttServiceConstants.CALLBACK_MESSAGE_PARCELS);
+            long[] messageIds = data.getLongArray(MqttServiceConstants.CALLBACK_MESSAGE_IDS);
+            for (int i = 0; i < messageIds.length; i++)
+            {
+                sink += messageIds[i] + topics[i].length()
+                        + ((ParcelableMqttMessage) parcels[i]).getPayload().length;
+            }
+        }
+    }
+}
@@ -0,0 +1,169 @@
+package org.eclipse.paho.android.service;
+
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Write throughput of {@link ShardedMessageStore} against the single shared
+ * {@link DatabaseMessageStore} as the number of clients grows, written to the log.
+ */
+public class ShardedMessageStoreBenchmark extends AndroidTestCase
+{
+
+    private static final String TAG = "ShardedMessageStoreBenchmark";
+
+    private static final int[] CLIENTS = {1, 2, 4, 8};
+    private static final int MESSAGES_PER_CLIENT = 500;
+
+    private MqttService service;
+
+    @Override
+    public void setUp() throws Exception
+    {
+        super.setUp();
+        service = new MqttService();
+        deleteShards();
+    }
+
+    @Override
+    public void tearDown() throws Exception
+    {
+        deleteShards();
+        super.tearDown();
+    }
+
+    /**
+     * Compares writes from 1, 2, 4 and 8 clients at once to the shared store
+     * and to a shard per client
+     *
+     * @throws Exception
+     */
+    public void testThroughputByClientCount() throws Exception
+    {
+        for (int clients : CLIENTS)
+        {
+            DatabaseMessageStore shared = new DatabaseMessageStore(service, getContext());
+            shared.clearArrivedMessages(null);
+            ShardedMessageStore sharded = new ShardedMessageStore(service, getContext(), 0,
+                    ShardedMessageStore.DEFAULT_IDLE_TIMEOUT_MS);
+            try
+            {
+                long sharedRate = storeConcurrently("shared", shared, clients);
+                long shardedRate = storeConcurrently("sharded", sharded, clients);
+                assertEquals(clients * MESSAGES_PER_CLIENT, shared.getArrivedCount(null));
+                assertEquals(clients * MESSAGES_PER_CLIENT, sharded.getArrivedCount(null));
+                assertEquals(clients, sharded.getOpenShardCount());
+                Log.i(TAG, clients + " clients: shared " + sharedRate + " msgs/sec, sharded " + shardedRate
+                        + " msgs/sec");
+            }
+            finally
+            {
+                shared.clearArrivedMessages(null);
+                shared.close();
+                sharded.clearArrivedMessages(null);
+                sharded.close();
+            }
+        }
+    }
+
+    /**
+     * Idle shards are closed, and their messages are still found when they are
+     * opened again, with or without a client handle
+     */
+    public void testIdleShardsReopen()
+    {
+        ShardedMessageStore store = new ShardedMessageStore(service, getContext(), 2,
+                ShardedMessageStore.DEFAULT_IDLE_TIMEOUT_MS);
+        try
+        {
+            MqttMessage message = new MqttMessage("idle".getBytes());
+            long id = store.storeArrived("client0", "topic", message);
+            for (int i = 1; i < 8; i++)
+            {
+                store.storeArrived("client" + i, "topic", message);
+            }
+            assertEquals(2, store.getOpenShardCount());
+
+            MessageStore.StoredMessageCursor cursor = store.openArrivedMessages(null, "topic", 0, 0);
+            assertTrue(cursor.moveToNext());
+            // a shard being read is not closed
+            assertEquals(1, store.closeIdleShards(0));
+            cursor.close();
+            assertEquals(1, store.closeIdleShards(0));
+            assertEquals(0, store.getOpenShardCount());
+
+            assertEquals(8, store.getArrivedCount(null));
+            assertEquals(1, store.getArrivedCount("client0"));
+            assertTrue(store.discardArrived("client0", id));
+            assertEquals(7, store.getArrivedCount(null));
+        }
+        finally
+        {
+            store.clearArrivedMessages(null);
+            store.close();
+        }
+    }
+
+    /**
+     * Runs a thread for each client, each storing MESSAGES_PER_CLIENT messages
+     *
+     * @return the messages stored per second
+     * @throws InterruptedException
+     */
+    private long storeConcurrently(final String label, final MessageStore store, int clients)
+            throws InterruptedException
+    {
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch finished = new CountDownLatch(clients);
+        for (int c = 0; c < clients; c++)
+        {
+            final String clientHandle = label + ":" + c;
+            new Thread(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    MqttMessage message = new MqttMessage(new byte[128]);
+                    message.setQos(1);
+                    try
+                    {
+                        start.await();
+                        for (int i = 0; i < MESSAGES_PER_CLIENT; i++)
+                        {
+                            store.storeArrived(clientHandle, "benchmark", message);
+                        }
+                    }
+                    catch (InterruptedException e)
+                    {
+                        Thread.currentThread().interrupt();
+                    }
+                    finally
+                    {
+                        finished.countDown();
+                    }
+                }
+            }).start();
+        }
+
+        long begin = System.nanoTime();
+        start.countDown();
+        finished.await();
+        long elapsed = System.nanoTime() - begin;
+        return clients * MESSAGES_PER_CLIENT * 1000000000L / elapsed;
+    }
+
+    private void deleteShards()
+    {
+        for (String name : getContext().databaseList())
+        {
+            if (name.startsWith(ShardedMessageStore.SHARD_PREFIX) && name.endsWith(".db"))
+            {
+                getContext().deleteDatabase(name);
+            }
+        }
+    }
+}
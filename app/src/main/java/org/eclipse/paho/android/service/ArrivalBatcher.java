@@ -0,0 +1,138 @@
+/*******************************************************************************
+ * Copyright (c) 1999, 2014 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ */
+package org.eclipse.paho.android.service;
+
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Gathers stored messages into batches, passing a batch on once it holds a
+ * number of messages, or once its first message has waited a given time.
+ * Batches are passed on in the order their messages arrived.
+ */
+class ArrivalBatcher {
+
+	// TAG used for indentify trace data etc.
+	private static final String TAG = "ArrivalBatcher";
+
+	/**
+	 * Passes a batch of messages on to the application
+	 */
+	interface Sink {
+		void deliver(List<ArrivedMessage> batch);
+	}
+
+	private final int maxMessages;
+	private final long maxDelayMs;
+	private final Sink sink;
+	private final MqttTraceHandler traceHandler;
+	private final ScheduledExecutorService timer;
+
+	// guarded by this
+	private List<ArrivedMessage> batch;
+	private ScheduledFuture<?> pendingFlush = null;
+	private boolean closed = false;
+
+	/**
+	 * @param name
+	 *            names the timer thread
+	 * @param maxMessages
+	 *            the most messages in a batch
+	 * @param maxDelayMs
+	 *            the longest a message waits for others to join its batch
+	 * @param sink
+	 *            passes on each batch
+	 * @param traceHandler
+	 *            a place to send trace data
+	 */
+	ArrivalBatcher(final String name, int maxMessages, long maxDelayMs,
+			Sink sink, MqttTraceHandler traceHandler) {
+		this.maxMessages = Math.max(1, maxMessages);
+		this.maxDelayMs = Math.max(0, maxDelayMs);
+		this.sink = sink;
+		this.traceHandler = traceHandler;
+		this.batch = new ArrayList<ArrivedMessage>(this.maxMessages);
+		this.timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, TAG + " " + name);
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Add a stored message to the current batch, passing the batch on if it
+	 * is full. Once closed, the message is passed on by itself.
+	 *
+	 * @param topic
+	 *            the topic the message arrived on
+	 * @param message
+	 *            the message
+	 * @param messageId
+	 *            the message's identifier in the store
+	 */
+	synchronized void add(String topic, MqttMessage message, long messageId) {
+		batch.add(new ArrivedMessage(topic, message, messageId));
+		if (closed || batch.size() >= maxMessages) {
+			flush();
+		} else if (pendingFlush == null) {
+			pendingFlush = timer.schedule(new Runnable() {
+				@Override
+				public void run() {
+					flush();
+				}
+			}, maxDelayMs, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Pass on the current batch, if it holds any messages
+	 */
+	synchronized void flush() {
+		if (pendingFlush != null) {
+			pendingFlush.cancel(false);
+			pendingFlush = null;
+		}
+		if (batch.isEmpty()) {
+			return;
+		}
+		List<ArrivedMessage> full = batch;
+		batch = new ArrayList<ArrivedMessage>(maxMessages);
+		try {
+			sink.deliver(full);
+		} catch (RuntimeException e) {
+			// the messages stay stored, and are delivered again from the
+			// backlog
+			traceHandler.traceException(TAG, "deliver", e);
+		}
+	}
+
+	/**
+	 * Pass on the current batch and stop the timer. Messages added after this
+	 * are passed on one at a time.
+	 */
+	synchronized void close() {
+		closed = true;
+		flush();
+		timer.shutdown();
+	}
+}
@@ -0,0 +1,55 @@
+/*******************************************************************************
+ * Copyright (c) 1999, 2014 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ */
+package org.eclipse.paho.android.service;
+
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+
+/**
+ * A message which arrived from the server, delivered as one of a batch
+ *
+ * @see MqttCallbackBatch#messagesArrived(java.util.List)
+ */
+public class ArrivedMessage {
+
+	private final String topic;
+	private final MqttMessage message;
+	private final long messageId;
+
+	ArrivedMessage(String topic, MqttMessage message, long messageId) {
+		this.topic = topic;
+		this.message = message;
+		this.messageId = messageId;
+	}
+
+	/**
+	 * @return the topic the message arrived on
+	 */
+	public String getTopic() {
+		return topic;
+	}
+
+	/**
+	 * @return the message
+	 */
+	public MqttMessage getMessage() {
+		return message;
+	}
+
+	/**
+	 * @return the identifier used to acknowledge the message with
+	 *         {@link MqttAndroidClient#acknowledgeMessages(java.util.Collection)}
+	 */
+	public long getMessageId() {
+		return messageId;
+	}
+}
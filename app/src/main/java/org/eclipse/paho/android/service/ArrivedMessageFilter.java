@@ -0,0 +1,113 @@
+/*******************************************************************************
+ * Copyright (c) 1999, 2014 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution. 
+ *
+ * The Eclipse Public License is available at 
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at 
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ */
+package org.eclipse.paho.android.service;
+
+import org.eclipse.paho.client.mqttv3.MqttTopic;
+
+/**
+ * The messages asked for by
+ * {@link MessageStore#openArrivedMessages(String, String, long, int)}: those
+ * whose topic matches a topic filter, stored at or after a given time, up to a
+ * limit.
+ */
+class ArrivedMessageFilter {
+
+	private final String topicFilter;
+	private final boolean wildcards;
+	private final long since;
+	private final int limit;
+
+	/**
+	 * @param topicFilter
+	 *            an MQTT topic filter, which may contain wildcards, or null for
+	 *            every topic
+	 * @param since
+	 *            the earliest time a message was stored, in milliseconds since
+	 *            the epoch, or zero or less for any time
+	 * @param limit
+	 *            the most messages, or zero or less for no limit
+	 * @throws IllegalArgumentException
+	 *             if the topic filter is not valid
+	 */
+	ArrivedMessageFilter(String topicFilter, long since, int limit) {
+		if (topicFilter != null) {
+			MqttTopic.validate(topicFilter, true);
+		}
+		this.topicFilter = topicFilter;
+		this.wildcards = topicFilter != null
+				&& (topicFilter.indexOf(MqttTopic.MULTI_LEVEL_WILDCARD) >= 0 || topicFilter
+						.indexOf(MqttTopic.SINGLE_LEVEL_WILDCARD) >= 0);
+		this.since = since;
+		this.limit = limit;
+	}
+
+	/**
+	 * @return the topic filter, or null for every topic
+	 */
+	String getTopicFilter() {
+		return topicFilter;
+	}
+
+	/**
+	 * @return true if the topic filter contains wildcards, so that it cannot
+	 *         be matched by comparing topics for equality
+	 */
+	boolean hasWildcards() {
+		return wildcards;
+	}
+
+	/**
+	 * @return the part of the topic filter before its first wildcard - every
+	 *         matching topic starts with this
+	 */
+	String getLiteralPrefix() {
+		if (topicFilter == null) {
+			return "";
+		}
+		int end = topicFilter.length();
+		int multi = topicFilter.indexOf(MqttTopic.MULTI_LEVEL_WILDCARD);
+		int single = topicFilter.indexOf(MqttTopic.SINGLE_LEVEL_WILDCARD);
+		if (multi >= 0) {
+			end = multi;
+		}
+		if (single >= 0 && single < end) {
+			end = single;
+		}
+		return topicFilter.substring(0, end);
+	}
+
+	long getSince() {
+		return since;
+	}
+
+	int getLimit() {
+		return limit;
+	}
+
+	/**
+	 * @param count
+	 *            the number of messages returned so far
+	 * @return true if no more messages should be returned
+	 */
+	boolean isLimitReached(int count) {
+		return limit > 0 && count >= limit;
+	}
+
+	boolean matchesTopic(String topic) {
+		return topicFilter == null || MqttTopic.isMatched(topicFilter, topic);
+	}
+
+	boolean matches(String topic, long timestamp) {
+		return timestamp >= since && matchesTopic(topic);
+	}
+}
@@ -0,0 +1,36 @@
+/*******************************************************************************
+ * Copyright (c) 1999, 2014 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution. 
+ *
+ * The Eclipse Public License is available at 
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at 
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ */
+package org.eclipse.paho.android.service;
+
+/**
+ * Receives progress reports from a paged replay of messages which arrived
+ * while the application was not there to acknowledge them.
+ * 
+ * @see MqttAndroidClient#setBacklogReplay(int, long)
+ */
+public interface BacklogReplayCallback {
+
+	/**
+	 * Called after each page of the backlog has been delivered, and once more
+	 * when the replay is complete
+	 * 
+	 * @param delivered
+	 *            the number of messages delivered so far
+	 * @param total
+	 *            the number of messages expected - this grows if messages
+	 *            arrive during the replay
+	 * @param complete
+	 *            true once the whole backlog has been delivered
+	 */
+	void backlogReplayProgress(int delivered, int total, boolean complete);
+}
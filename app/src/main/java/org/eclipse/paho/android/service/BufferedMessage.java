@@ -0,0 +1,72 @@
+/*******************************************************************************
+ * Copyright (c) 1999, 2014 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ */
+package org.eclipse.paho.android.service;
+
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * A message published while disconnected, waiting in the buffer to be sent
+ *
+ * @see MqttAndroidClient#getBufferedMessages(int, int)
+ */
+public class BufferedMessage {
+
+	private final String topic;
+	private final MqttMessage message;
+	private final long bufferedAt;
+
+	BufferedMessage(String topic, MqttMessage message, long bufferedAt) {
+		this.topic = topic;
+		this.message = message;
+		this.bufferedAt = bufferedAt;
+	}
+
+	/**
+	 * @return the topic the message is to be published to
+	 */
+	public String getTopic() {
+		return topic;
+	}
+
+	/**
+	 * @return the message
+	 */
+	public MqttMessage getMessage() {
+		return message;
+	}
+
+	/**
+	 * @return when the message was buffered, in milliseconds since the epoch,
+	 *         or zero if not known
+	 */
+	public long getBufferedAt() {
+		return bufferedAt;
+	}
+
+	/**
+	 * Write the message in the form described by
+	 * {@link MqttAndroidClient#exportBufferedMessages(java.io.OutputStream)}
+	 */
+	void writeTo(DataOutputStream out) throws IOException {
+		out.writeUTF(topic == null ? "" : topic);
+		out.writeLong(bufferedAt);
+		out.writeByte(message.getQos());
+		out.writeBoolean(message.isRetained());
+		byte[] payload = message.getPayload();
+		out.writeInt(payload.length);
+		out.write(payload);
+	}
+}
@@ -0,0 +1,71 @@
+/*******************************************************************************
+ * Copyright (c) 1999, 2014 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ */
+package org.eclipse.paho.android.service;
+
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.eclipse.paho.client.mqttv3.MqttTopic;
+
+/**
+ * The messages deleted by
+ * {@link MqttService#deleteBufferedMessages(String, String, long, int)}:
+ * those whose topic matches a topic filter, buffered before a given time, at a
+ * given quality of service.
+ */
+class BufferedMessageFilter {
+
+	private final String topicFilter;
+	private final long before;
+	private final int qos;
+
+	/**
+	 * @param topicFilter
+	 *            an MQTT topic filter, which may contain wildcards, or null for
+	 *            every topic
+	 * @param before
+	 *            match only messages buffered before this time, in
+	 *            milliseconds since the epoch, or zero or less for any time
+	 * @param qos
+	 *            match only messages of this quality of service, or -1 for
+	 *            any
+	 * @throws IllegalArgumentException
+	 *             if the topic filter or quality of service is not valid
+	 */
+	BufferedMessageFilter(String topicFilter, long before, int qos) {
+		if (topicFilter != null) {
+			MqttTopic.validate(topicFilter, true);
+		}
+		if (qos != -1) {
+			MqttMessage.validateQos(qos);
+		}
+		this.topicFilter = topicFilter;
+		this.before = before;
+		this.qos = qos;
+	}
+
+	/**
+	 * @param topic
+	 *            the topic the message is to be published to
+	 * @param message
+	 *            the message
+	 * @param bufferedAt
+	 *            when the message was buffered, in milliseconds since the
+	 *            epoch, or zero if not known
+	 * @return true if the message matches
+	 */
+	boolean matches(String topic, MqttMessage message, long bufferedAt) {
+		return (before <= 0 || (bufferedAt > 0 && bufferedAt < before))
+				&& (qos == -1 || message.getQos() == qos)
+				&& (topicFilter == null || (topic != null && MqttTopic
+						.isMatched(topicFilter, topic)));
+	}
+}
@@ -0,0 +1,92 @@
+/*******************************************************************************
+ * Copyright (c) 1999, 2014 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ */
+package org.eclipse.paho.android.service;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.Bundle;
+import android.support.v4.content.LocalBroadcastManager;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The one receiver in the process for the service's
+ * {@link MqttServiceConstants#CALLBACK_TO_ACTIVITY} broadcasts. Each is passed
+ * to the client it is for, found by its client handle, so the cost of a
+ * broadcast does not grow with the number of clients.
+ */
+class CallbackRouter extends BroadcastReceiver {
+
+	private static CallbackRouter instance = null;
+
+	private final ConcurrentHashMap<String/* clientHandle */, MqttServiceEventListener> clients = new ConcurrentHashMap<String, MqttServiceEventListener>();
+
+	/**
+	 * @param context
+	 *            any context of the application
+	 * @return the router, registered for broadcasts when first asked for
+	 */
+	static synchronized CallbackRouter getInstance(Context context) {
+		if (instance == null) {
+			instance = new CallbackRouter();
+			LocalBroadcastManager.getInstance(context).registerReceiver(
+					instance,
+					new IntentFilter(MqttServiceConstants.CALLBACK_TO_ACTIVITY));
+		}
+		return instance;
+	}
+
+	private CallbackRouter() {
+	}
+
+	/**
+	 * Pass broadcasts for a client to a listener
+	 *
+	 * @param clientHandle
+	 *            identifies the client
+	 * @param listener
+	 *            receives the client's broadcasts
+	 */
+	void register(String clientHandle, MqttServiceEventListener listener) {
+		clients.put(clientHandle, listener);
+	}
+
+	/**
+	 * Stop passing on broadcasts for a client
+	 *
+	 * @param clientHandle
+	 *            identifies the client
+	 * @param listener
+	 *            the listener registered for the client, which is left in
+	 *            place if another has replaced it since
+	 */
+	void unregister(String clientHandle, MqttServiceEventListener listener) {
+		clients.remove(clientHandle, listener);
+	}
+
+	@Override
+	public void onReceive(Context context, Intent intent) {
+		Bundle data = intent.getExtras();
+		String clientHandle = data == null ? null : data
+				.getString(MqttServiceConstants.CALLBACK_CLIENT_HANDLE);
+		if (clientHandle == null) {
+			return;
+		}
+		MqttServiceEventListener listener = clients.get(clientHandle);
+		if (listener != null) {
+			listener.onServiceEvent(ServiceEvent.fromBundle(data));
+		}
+	}
+}
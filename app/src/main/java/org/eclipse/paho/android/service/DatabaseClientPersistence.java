@@ -0,0 +1,384 @@
+/*******************************************************************************
+ * Copyright (c) 1999, 2014 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ */
+package org.eclipse.paho.android.service;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+
+import org.eclipse.paho.client.mqttv3.MqttClientPersistence;
+import org.eclipse.paho.client.mqttv3.MqttPersistable;
+import org.eclipse.paho.client.mqttv3.MqttPersistenceException;
+import org.eclipse.paho.client.mqttv3.internal.MqttPersistentData;
+import org.eclipse.paho.client.mqttv3.persist.MqttDefaultFilePersistence;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * An {@link MqttClientPersistence} keeping a client's in-flight messages in a
+ * SQLite database file of its own, rather than in a file for each message.
+ * <p>
+ * Every key is held in memory, so {@link #keys()} and
+ * {@link #containsKey(String)} do not touch the disk. A put is committed
+ * before it returns. A remove is committed along with the next put, or with
+ * the removes which follow it once there are {@link #REMOVE_BATCH_SIZE} of
+ * them, so a steady stream of QoS 1 publishes costs one commit per message
+ * rather than two. A message whose remove is lost in a crash is sent again
+ * when the client reconnects, as it would be had the crash come a moment
+ * earlier.
+ * </p>
+ * <p>
+ * Messages left in flight by {@link MqttDefaultFilePersistence}, in the
+ * directory it was given, are moved into the database when the client opens
+ * its persistence.
+ * </p>
+ */
+public class DatabaseClientPersistence implements MqttClientPersistence {
+
+	// database files are named DATABASE_PREFIX + client + ".db"
+	static final String DATABASE_PREFIX = "mqttPersistence-";
+	private static final String DATABASE_SUFFIX = ".db";
+	private static final int DATABASE_VERSION = 1;
+
+	private static final String TABLE_NAME = "MqttPersistence";
+	private static final String KEY = "persistenceKey";
+	private static final String HEADER = "header";
+	private static final String PAYLOAD = "payload";
+
+	private static final String PUT = "INSERT OR REPLACE INTO " + TABLE_NAME
+			+ " (" + KEY + ", " + HEADER + ", " + PAYLOAD
+			+ ") VALUES (?, ?, ?)";
+	private static final String REMOVE = "DELETE FROM " + TABLE_NAME
+			+ " WHERE " + KEY + "=?";
+
+	/**
+	 * The most removes held back before they are committed on their own
+	 */
+	public static final int REMOVE_BATCH_SIZE = 64;
+
+	private final Context context;
+	private final File legacyDirectory;
+
+	// all guarded by this
+	private SQLiteOpenHelper helper = null;
+	private SQLiteDatabase db = null;
+	private SQLiteStatement putStatement = null;
+	private SQLiteStatement removeStatement = null;
+	// the keys stored, less those waiting to be removed
+	private final Set<String> keys = new HashSet<>();
+	// removes not yet committed, in the order they were made
+	private final Set<String> pendingRemoves = new LinkedHashSet<>();
+
+	/**
+	 * Constructor
+	 *
+	 * @param context
+	 *            a context to use for android calls
+	 */
+	public DatabaseClientPersistence(Context context) {
+		this(context, null);
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param context
+	 *            a context to use for android calls
+	 * @param legacyDirectory
+	 *            a directory given to {@link MqttDefaultFilePersistence}, whose
+	 *            messages are to be moved into the database, or null
+	 */
+	public DatabaseClientPersistence(Context context, File legacyDirectory) {
+		this.context = context;
+		this.legacyDirectory = legacyDirectory;
+	}
+
+	/**
+	 * A helper creating the table, and switching the database to write-ahead
+	 * logging with a full sync at each commit
+	 */
+	private static class PersistenceDatabaseHelper extends SQLiteOpenHelper {
+
+		PersistenceDatabaseHelper(Context context, String databaseName) {
+			super(context, databaseName, null, DATABASE_VERSION);
+		}
+
+		@Override
+		public void onCreate(SQLiteDatabase database) {
+			database.execSQL("CREATE TABLE " + TABLE_NAME + "(" + KEY
+					+ " TEXT PRIMARY KEY, " + HEADER + " BLOB, " + PAYLOAD
+					+ " BLOB)");
+		}
+
+		@Override
+		public void onOpen(SQLiteDatabase database) {
+			if (!database.isReadOnly() && database.enableWriteAheadLogging()) {
+				database.execSQL("PRAGMA synchronous=FULL");
+			}
+		}
+
+		@Override
+		public void onUpgrade(SQLiteDatabase db, int oldVersion,
+				int newVersion) {
+		}
+	}
+
+	@Override
+	public synchronized void open(String clientId, String serverURI)
+			throws MqttPersistenceException {
+		if (db != null) {
+			return;
+		}
+		String databaseName = DATABASE_PREFIX
+				+ MessageStoreProviders.fileName(clientId + "-" + serverURI)
+				+ DATABASE_SUFFIX;
+		try {
+			helper = new PersistenceDatabaseHelper(context, databaseName);
+			db = helper.getWritableDatabase();
+			putStatement = db.compileStatement(PUT);
+			removeStatement = db.compileStatement(REMOVE);
+
+			keys.clear();
+			pendingRemoves.clear();
+			Cursor c = db.query(TABLE_NAME, new String[]{KEY}, null, null,
+					null, null, null);
+			try {
+				while (c.moveToNext()) {
+					keys.add(c.getString(0));
+				}
+			} finally {
+				c.close();
+			}
+		} catch (SQLException e) {
+			close();
+			throw new MqttPersistenceException(e);
+		}
+		importLegacy(clientId, serverURI);
+	}
+
+	/**
+	 * Move the messages left by {@link MqttDefaultFilePersistence} into the
+	 * database, then delete their files
+	 */
+	private void importLegacy(String clientId, String serverURI)
+			throws MqttPersistenceException {
+		if (legacyDirectory == null || !legacyDirectory.isDirectory()) {
+			return;
+		}
+		MqttDefaultFilePersistence legacy = new MqttDefaultFilePersistence(
+				legacyDirectory.getAbsolutePath());
+		legacy.open(clientId, serverURI);
+		try {
+			Enumeration<?> legacyKeys = legacy.keys();
+			if (!legacyKeys.hasMoreElements()) {
+				return;
+			}
+			Set<String> imported = new HashSet<>();
+			db.beginTransaction();
+			try {
+				while (legacyKeys.hasMoreElements()) {
+					String key = (String) legacyKeys.nextElement();
+					bindPut(key, legacy.get(key));
+					putStatement.executeInsert();
+					imported.add(key);
+				}
+				db.setTransactionSuccessful();
+			} catch (SQLException e) {
+				throw new MqttPersistenceException(e);
+			} finally {
+				db.endTransaction();
+			}
+			keys.addAll(imported);
+			legacy.clear();
+		} finally {
+			legacy.close();
+		}
+	}
+
+	@Override
+	public synchronized void close() {
+		if (db != null && removeStatement != null) {
+			try {
+				commitRemoves();
+			} catch (MqttPersistenceException e) {
+				// sent again on reconnect
+			}
+		}
+		if (putStatement != null) {
+			putStatement.close();
+			putStatement = null;
+		}
+		if (removeStatement != null) {
+			removeStatement.close();
+			removeStatement = null;
+		}
+		if (helper != null) {
+			helper.close();
+			helper = null;
+		}
+		db = null;
+	}
+
+	@Override
+	public synchronized void put(String key, MqttPersistable persistable)
+			throws MqttPersistenceException {
+		checkIsOpen();
+		try {
+			db.beginTransaction();
+			try {
+				// a remove waiting here for the same key is deleted first
+				deleteRemoves();
+				bindPut(key, persistable);
+				putStatement.executeInsert();
+				db.setTransactionSuccessful();
+			} finally {
+				db.endTransaction();
+			}
+		} catch (SQLException e) {
+			throw new MqttPersistenceException(e);
+		}
+		pendingRemoves.clear();
+		keys.add(key);
+	}
+
+	private void bindPut(String key, MqttPersistable persistable)
+			throws MqttPersistenceException {
+		putStatement.bindString(1, key);
+		putStatement.bindBlob(2, bytes(persistable.getHeaderBytes(),
+				persistable.getHeaderOffset(), persistable.getHeaderLength()));
+		byte[] payload = persistable.getPayloadBytes();
+		if (payload == null) {
+			putStatement.bindNull(3);
+		} else {
+			putStatement.bindBlob(3, bytes(payload,
+					persistable.getPayloadOffset(),
+					persistable.getPayloadLength()));
+		}
+	}
+
+	private static byte[] bytes(byte[] bytes, int offset, int length) {
+		if (offset == 0 && length == bytes.length) {
+			return bytes;
+		}
+		return Arrays.copyOfRange(bytes, offset, offset + length);
+	}
+
+	@Override
+	public synchronized MqttPersistable get(String key)
+			throws MqttPersistenceException {
+		checkIsOpen();
+		if (!keys.contains(key)) {
+			return null;
+		}
+		try {
+			Cursor c = db.query(TABLE_NAME, new String[]{HEADER, PAYLOAD},
+					KEY + "=?", new String[]{key}, null, null, null);
+			try {
+				if (!c.moveToFirst()) {
+					return null;
+				}
+				byte[] header = c.getBlob(0);
+				byte[] payload = c.isNull(1) ? null : c.getBlob(1);
+				return new MqttPersistentData(key, header, 0, header.length,
+						payload, 0, payload == null ? 0 : payload.length);
+			} finally {
+				c.close();
+			}
+		} catch (SQLException e) {
+			throw new MqttPersistenceException(e);
+		}
+	}
+
+	@Override
+	public synchronized void remove(String key)
+			throws MqttPersistenceException {
+		checkIsOpen();
+		if (keys.remove(key)) {
+			pendingRemoves.add(key);
+			if (pendingRemoves.size() >= REMOVE_BATCH_SIZE) {
+				commitRemoves();
+			}
+		}
+	}
+
+	/**
+	 * Commit the removes held back
+	 */
+	private void commitRemoves() throws MqttPersistenceException {
+		if (pendingRemoves.isEmpty()) {
+			return;
+		}
+		try {
+			db.beginTransaction();
+			try {
+				deleteRemoves();
+				db.setTransactionSuccessful();
+			} finally {
+				db.endTransaction();
+			}
+		} catch (SQLException e) {
+			throw new MqttPersistenceException(e);
+		}
+		pendingRemoves.clear();
+	}
+
+	// called inside a transaction, which the removes are only cleared after
+	private void deleteRemoves() {
+		for (String key : pendingRemoves) {
+			removeStatement.bindString(1, key);
+			removeStatement.executeUpdateDelete();
+		}
+	}
+
+	@Override
+	public synchronized Enumeration<String> keys()
+			throws MqttPersistenceException {
+		checkIsOpen();
+		return Collections.enumeration(new ArrayList<>(keys));
+	}
+
+	@Override
+	public synchronized void clear() throws MqttPersistenceException {
+		checkIsOpen();
+		try {
+			db.delete(TABLE_NAME, null, null);
+		} catch (SQLException e) {
+			throw new MqttPersistenceException(e);
+		}
+		keys.clear();
+		pendingRemoves.clear();
+	}
+
+	@Override
+	public synchronized boolean containsKey(String key)
+			throws MqttPersistenceException {
+		checkIsOpen();
+		return keys.contains(key);
+	}
+
+	private void checkIsOpen() throws MqttPersistenceException {
+		if (db == null) {
+			throw new MqttPersistenceException();
+		}
+	}
+}
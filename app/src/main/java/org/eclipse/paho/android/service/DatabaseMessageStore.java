@@ -15,16 +15,41 @@
  */
 package org.eclipse.paho.android.service;
 
-import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.os.SystemClock;
 
 import org.eclipse.paho.client.mqttv3.MqttMessage;
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Implementation of the {@link MessageStore} interface, using a SQLite database
@@ -35,13 +60,79 @@ class DatabaseMessageStore implements MessageStore {
 	// TAG used for indentify trace data etc.
 	private static final String TAG = "DatabaseMessageStore";
 
-	// One "private" database column name
+	// Three "private" database column names
 	// The other database column names are defined in MqttServiceConstants
 	private static final String MTIMESTAMP = "mtimestamp";
+	// the name of the file holding the payload, when it is too large to be
+	// kept in the table
+	private static final String PAYLOAD_FILE = "payloadFile";
+	// the retained and duplicate flags of the message
+	private static final String FLAGS = "flags";
+
+	// the bits of the flags column
+	private static final int RETAINED_FLAG = 0x01;
+	private static final int DUPLICATE_FLAG = 0x02;
 
 	// the name of the table in the database to which we will save messages
 	private static final String ARRIVED_MESSAGE_TABLE_NAME = "MqttArrivedMessageTable";
 
+	// the most ids bound into one statement, well within SQLite's limit of
+	// 999 host parameters
+	private static final int DISCARD_CHUNK_SIZE = 500;
+
+	// a client with a retention policy has it enforced after this many
+	// messages are stored, or sooner if it has too many messages
+	private static final int RETENTION_CHECK_STORES = 64;
+	// how often age limits are enforced, at most and at least
+	private static final long RETENTION_MIN_PERIOD_MS = 1000;
+	private static final long RETENTION_MAX_PERIOD_MS = 60000;
+
+	// the order in which messages are returned - identifiers are allocated
+	// in arrival order, whatever the clock does meanwhile
+	private static final String ARRIVAL_ORDER = MqttServiceConstants.MESSAGE_ID
+			+ " ASC";
+
+	// the index used to find and order the messages for a client
+	private static final String ARRIVED_MESSAGE_INDEX_NAME = "MqttArrivedMessageIndex";
+
+	// the columns read back for a message, in this order, so that no cursor
+	// needs its column indices looked up
+	private static final String[] MESSAGE_COLUMNS = {
+			MqttServiceConstants.MESSAGE_ID,
+			MqttServiceConstants.CLIENT_HANDLE,
+			MqttServiceConstants.DESTINATION_NAME,
+			MqttServiceConstants.PAYLOAD, PAYLOAD_FILE,
+			MqttServiceConstants.QOS, FLAGS, MTIMESTAMP};
+	private static final int MESSAGE_ID_COLUMN = 0;
+	private static final int CLIENT_HANDLE_COLUMN = 1;
+	private static final int DESTINATION_NAME_COLUMN = 2;
+	private static final int PAYLOAD_COLUMN = 3;
+	private static final int PAYLOAD_FILE_COLUMN = 4;
+	private static final int QOS_COLUMN = 5;
+	private static final int FLAGS_COLUMN = 6;
+	private static final int MTIMESTAMP_COLUMN = 7;
+
+	// compiled once, then bound for each message stored
+	private static final String INSERT_ARRIVED_MESSAGE = "INSERT INTO "
+			+ ARRIVED_MESSAGE_TABLE_NAME + " ("
+			+ MqttServiceConstants.CLIENT_HANDLE + ", "
+			+ MqttServiceConstants.DESTINATION_NAME + ", "
+			+ MqttServiceConstants.PAYLOAD + ", " + PAYLOAD_FILE + ", "
+			+ MqttServiceConstants.QOS + ", " + FLAGS + ", " + MTIMESTAMP
+			+ ") VALUES (?, ?, ?, ?, ?, ?, ?)";
+
+	// payloads larger than this are written to files of their own by default,
+	// well below the 2MB a CursorWindow can hold
+	private static final int DEFAULT_PAYLOAD_FILE_THRESHOLD = 100 * 1024;
+
+	// free pages are handed back to the file system this many at a time, by
+	// default, once no message has been stored for RECLAIM_IDLE_MS
+	private static final int DEFAULT_RECLAIM_PAGE_BUDGET = 256;
+	private static final long RECLAIM_IDLE_MS = 500;
+
+	// PRAGMA auto_vacuum value for incremental vacuum
+	private static final int AUTO_VACUUM_INCREMENTAL = 2;
+
 	// the database
 	private SQLiteDatabase db = null;
 
@@ -51,6 +142,49 @@ class DatabaseMessageStore implements MessageStore {
 	// a place to send trace data
 	private MqttTraceHandler traceHandler = null;
 
+	// our parent, asked whether tracing is on before building per-message
+	// trace text
+	private MqttService service = null;
+
+	// group commit settings - a maximum batch size of zero (the default)
+	// means every insert is committed on its own
+	private volatile int groupCommitMaxBatch = 0;
+	private volatile long groupCommitMaxDelayMs = 0;
+
+	// inserts waiting for the current group commit leader, guarded by
+	// groupCommitLock
+	private final Object groupCommitLock = new Object();
+	private final List<PendingInsert> pendingInserts = new ArrayList<>();
+	private boolean groupCommitInProgress = false;
+	private int activeWriters = 0;
+
+	// number of stored messages for each client handle, counted once from the
+	// database when the client is first seen and then kept up to date
+	private final Map<String, AtomicInteger> arrivedCounts = new ConcurrentHashMap<>();
+
+	// retention policies, by client handle
+	private final Map<String, Retention> retentions = new ConcurrentHashMap<>();
+
+	// the thread enforcing retention policies and reclaiming free pages
+	private ScheduledExecutorService maintenanceExecutor = null;
+
+	// free space reclamation - when a message was last stored, by
+	// SystemClock.elapsedRealtime, and whether a reclaim is waiting to run
+	private volatile int reclaimPageBudget = DEFAULT_RECLAIM_PAGE_BUDGET;
+	private volatile long lastStoreTime = 0;
+	private final AtomicBoolean reclaimScheduled = new AtomicBoolean(false);
+	private final AtomicLong reclaimedPages = new AtomicLong();
+
+	// payloads larger than this many bytes are kept in files of their own
+	private volatile int payloadFileThreshold = DEFAULT_PAYLOAD_FILE_THRESHOLD;
+
+	// the compiled insert, and the database it was compiled for, guarded by
+	// insertLock. Whoever holds insertLock may go on to wait for the
+	// database, never the other way round.
+	private final Object insertLock = new Object();
+	private SQLiteStatement insertStatement = null;
+	private SQLiteDatabase insertStatementDb = null;
+
 	/**
 	 * We need a SQLiteOpenHelper to handle database creation and updating
 	 * 
@@ -60,24 +194,97 @@ class DatabaseMessageStore implements MessageStore {
 		// TAG used for indentify trace data etc.
 		private static final String TAG = "MQTTDatabaseHelper";
 
-		private static final String DATABASE_NAME = "mqttAndroidService.db";
+		static final String DATABASE_NAME = "mqttAndroidService.db";
 
 		// database version, used to recognise when we need to upgrade
-		// (delete and recreate)
-		private static final int DATABASE_VERSION = 1;
+		// 1 - TEXT (UUID) message identifiers
+		// 2 - INTEGER message identifiers allocated by SQLite
+		// 3 - index on (clientHandle, mtimestamp)
+		// 4 - large payloads kept in files, named in payloadFile
+		// 5 - INTEGER flags in place of the TEXT retained and duplicate
+		// 6 - index on (clientHandle, messageId) in place of mtimestamp
+		private static final int DATABASE_VERSION = 6;
 
 		// a place to send trace data
 		private MqttTraceHandler traceHandler = null;
 
+		// the directory holding payloads too large to keep in the table
+		private final File payloadDirectory;
+
+		// whether any row might name a payload file - set when the database
+		// is opened, and whenever a payload file is written
+		private volatile boolean payloadFiles = false;
+
+		// whether the database should be opened in write-ahead-log mode
+		private volatile boolean writeAheadLogging = false;
+
+		// whether free pages can be reclaimed a few at a time - set when the
+		// database is opened
+		private volatile boolean incrementalVacuum = false;
+
+		// where the database file is kept, and whether it has been checked
+		// for before it is first opened
+		private final File databaseFile;
+		private boolean databaseFileChecked = false;
+
 		/**
 		 * Constructor.
 		 * 
 		 * @param traceHandler
 		 * @param context
+		 * @param databaseName
+		 * @param payloadDirectory
 		 */
-		public MQTTDatabaseHelper(MqttTraceHandler traceHandler, Context context) {
-			super(context, DATABASE_NAME, null, DATABASE_VERSION);
+		public MQTTDatabaseHelper(MqttTraceHandler traceHandler,
+				Context context, String databaseName, File payloadDirectory) {
+			super(context, databaseName, null, DATABASE_VERSION);
 			this.traceHandler = traceHandler;
+			this.payloadDirectory = payloadDirectory;
+			this.databaseFile = databaseName == null ? null : context
+					.getDatabasePath(databaseName);
+		}
+
+		@Override
+		public synchronized SQLiteDatabase getWritableDatabase() {
+			if (!databaseFileChecked) {
+				databaseFileChecked = true;
+				createDatabaseFile();
+			}
+			return super.getWritableDatabase();
+		}
+
+		/**
+		 * Create a new database file with incremental vacuum switched on.
+		 * auto_vacuum only takes effect before the first table is created,
+		 * and opening a database through this helper creates the framework's
+		 * android_metadata table first - so we create that table ourselves,
+		 * after the pragma. A database which already exists keeps the mode
+		 * it was created with, as switching it would take a full VACUUM.
+		 */
+		private void createDatabaseFile() {
+			if (databaseFile == null || databaseFile.exists()) {
+				return;
+			}
+			File directory = databaseFile.getParentFile();
+			if (directory != null) {
+				directory.mkdirs();
+			}
+			try {
+				SQLiteDatabase database = SQLiteDatabase.openDatabase(
+						databaseFile.getPath(), null,
+						SQLiteDatabase.CREATE_IF_NECESSARY
+								| SQLiteDatabase.NO_LOCALIZED_COLLATORS);
+				try {
+					database.execSQL("PRAGMA auto_vacuum=INCREMENTAL");
+					database.execSQL("CREATE TABLE android_metadata (locale TEXT)");
+				} finally {
+					database.close();
+				}
+			} catch (SQLException e) {
+				// the helper creates the database as usual, without
+				// incremental vacuum
+				traceHandler.traceException(TAG, "createDatabaseFile", e);
+			}
 		}
 
 		/**
@@ -87,50 +294,209 @@ class DatabaseMessageStore implements MessageStore {
 		 */
 		@Override
 		public void onCreate(SQLiteDatabase database) {
+			try {
+				createArrivedTable(database, ARRIVED_MESSAGE_TABLE_NAME);
+				createArrivedIndex(database);
+				traceHandler.traceDebug(TAG, "created the table");
+			} catch (SQLException e) {
+				traceHandler.traceException(TAG, "onCreate", e);
+				throw e;
+			}
+		}
+
+		/**
+		 * Create the arrived message table. The message identifier is an
+		 * alias for the SQLite rowid; AUTOINCREMENT keeps identifiers
+		 * increasing, so that one is never reused for a later message.
+		 * 
+		 * @param database
+		 * @param tableName
+		 */
+		private void createArrivedTable(SQLiteDatabase database,
+				String tableName) {
 			String createArrivedTableStatement = "CREATE TABLE "
-					+ ARRIVED_MESSAGE_TABLE_NAME + "("
-					+ MqttServiceConstants.MESSAGE_ID + " TEXT PRIMARY KEY, "
+					+ tableName + "("
+					+ MqttServiceConstants.MESSAGE_ID
+					+ " INTEGER PRIMARY KEY AUTOINCREMENT, "
 					+ MqttServiceConstants.CLIENT_HANDLE + " TEXT, "
 					+ MqttServiceConstants.DESTINATION_NAME + " TEXT, "
 					+ MqttServiceConstants.PAYLOAD + " BLOB, "
 					+ MqttServiceConstants.QOS + " INTEGER, "
-					+ MqttServiceConstants.RETAINED + " TEXT, "
-					+ MqttServiceConstants.DUPLICATE + " TEXT, " + MTIMESTAMP
-					+ " INTEGER" + ");";
-			traceHandler.traceDebug(TAG, "onCreate {"
+					+ FLAGS + " INTEGER, " + MTIMESTAMP + " INTEGER, "
+					+ PAYLOAD_FILE + " TEXT" + ");";
+			traceHandler.traceDebug(TAG, "createArrivedTable {"
 					+ createArrivedTableStatement + "}");
+			database.execSQL(createArrivedTableStatement);
+		}
+
+		/**
+		 * Index the arrived message table by client and message identifier.
+		 * This covers counting a client's messages, and returning them in
+		 * arrival order, without visiting other clients' rows or sorting.
+		 * 
+		 * @param database
+		 */
+		private void createArrivedIndex(SQLiteDatabase database) {
+			database.execSQL("CREATE INDEX IF NOT EXISTS "
+					+ ARRIVED_MESSAGE_INDEX_NAME + " ON "
+					+ ARRIVED_MESSAGE_TABLE_NAME + "("
+					+ MqttServiceConstants.CLIENT_HANDLE + ", "
+					+ MqttServiceConstants.MESSAGE_ID + ")");
+		}
+
+		/**
+		 * Note whether free pages can be reclaimed incrementally, then switch to
+		 * write-ahead logging if it has been requested. A commit then only
+		 * appends to the log, so we ask for a full sync to keep each commit
+		 * durable. Then remove any payload file left behind by a crash - this
+		 * runs before anything else can use the database, so no message can
+		 * be part way through being stored.
+		 * 
+		 * @param database
+		 */
+		@Override
+		public void onOpen(SQLiteDatabase database) {
+			if (database.isReadOnly()) {
+				return;
+			}
+			incrementalVacuum = autoVacuum(database) == AUTO_VACUUM_INCREMENTAL;
+			if (!incrementalVacuum) {
+				// created before incremental vacuum was used - SQLite still
+				// reuses its free pages, but the file does not shrink
+				traceHandler.traceDebug(TAG,
+						"incremental vacuum is off for this database");
+			}
+			if (writeAheadLogging) {
+				enableWriteAheadLogging(database);
+			}
+			removeOrphanedPayloadFiles(database);
+		}
+
+		/**
+		 * Delete the payload files which no row names. A file is written
+		 * before its row is inserted, and deleted after its row is, so a
+		 * crash can leave one behind but never a row without its file.
+		 * 
+		 * @param database
+		 */
+		private void removeOrphanedPayloadFiles(SQLiteDatabase database) {
+			String[] names = payloadDirectory.list();
+			if (names == null || names.length == 0) {
+				return;
+			}
+			Set<String> referenced = new HashSet<>();
+			Cursor c = database.query(ARRIVED_MESSAGE_TABLE_NAME,
+					new String[]{PAYLOAD_FILE}, PAYLOAD_FILE + " IS NOT NULL",
+					null, null, null, null);
 			try {
-				database.execSQL(createArrivedTableStatement);
-				traceHandler.traceDebug(TAG, "created the table");
-			} catch (SQLException e) {
-				traceHandler.traceException(TAG, "onCreate", e);
-				throw e;
+				while (c.moveToNext()) {
+					referenced.add(c.getString(0));
+				}
+			} finally {
+				c.close();
+			}
+			int removed = 0;
+			for (String name : names) {
+				if (!referenced.contains(name)
+						&& new File(payloadDirectory, name).delete()) {
+					removed++;
+				}
+			}
+			payloadFiles = !referenced.isEmpty();
+			traceHandler.traceDebug(TAG, "removed " + removed
+					+ " orphaned payload files");
+		}
+
+		private static long autoVacuum(SQLiteDatabase database) {
+			return DatabaseUtils.longForQuery(database, "PRAGMA auto_vacuum",
+					null);
+		}
+
+		void enableWriteAheadLogging(SQLiteDatabase database) {
+			if (database.enableWriteAheadLogging()) {
+				database.execSQL("PRAGMA synchronous=FULL");
+				traceHandler.traceDebug(TAG, "write-ahead logging enabled");
 			}
 		}
 
 		/**
-		 * To upgrade the database, drop and recreate our table
+		 * To upgrade the database, rebuild our table in the current format,
+		 * keeping the stored messages
 		 * 
 		 * @param db
 		 *            the database
 		 * @param oldVersion
-		 *            ignored
+		 *            the version found on disk
 		 * @param newVersion
 		 *            ignored
 		 */
 
 		@Override
 		public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-			traceHandler.traceDebug(TAG, "onUpgrade");
+			traceHandler.traceDebug(TAG, "onUpgrade {" + oldVersion + "}, {"
+					+ newVersion + "}");
 			try {
-				db.execSQL("DROP TABLE IF EXISTS " + ARRIVED_MESSAGE_TABLE_NAME);
+				if (oldVersion < 5) {
+					rebuildArrivedTable(db, oldVersion);
+				} else if (oldVersion < 6) {
+					db.execSQL("DROP INDEX IF EXISTS "
+							+ ARRIVED_MESSAGE_INDEX_NAME);
+					createArrivedIndex(db);
+				}
 			} catch (SQLException e) {
 				traceHandler.traceException(TAG, "onUpgrade", e);
 				throw e;
 			}
-			onCreate(db);
 			traceHandler.traceDebug(TAG, "onUpgrade complete");
 		}
+
+		/**
+		 * Copy the rows of a table from an earlier version into a new table.
+		 * <ul>
+		 * <li>Version 1 UUID message identifiers are replaced with integers,
+		 * given in arrival order. Later identifiers are kept.</li>
+		 * <li>Before version 4 there are no payload files.</li>
+		 * <li>Before version 5 the flags were kept as TEXT - written as "1"
+		 * or "0", although read back as "true" or "false".</li>
+		 * </ul>
+		 * 
+		 * @param db
+		 * @param oldVersion
+		 */
+		private void rebuildArrivedTable(SQLiteDatabase db, int oldVersion) {
+			String oldTable = ARRIVED_MESSAGE_TABLE_NAME + "_v" + oldVersion;
+			String columns = MqttServiceConstants.CLIENT_HANDLE + ", "
+					+ MqttServiceConstants.DESTINATION_NAME + ", "
+					+ MqttServiceConstants.PAYLOAD + ", "
+					+ MqttServiceConstants.QOS + ", " + MTIMESTAMP;
+			String newColumns = columns + ", " + FLAGS;
+			String oldColumns = columns + ", " + flagSql(
+					MqttServiceConstants.RETAINED, RETAINED_FLAG) + " | "
+					+ flagSql(MqttServiceConstants.DUPLICATE, DUPLICATE_FLAG);
+			if (oldVersion >= 2) {
+				newColumns += ", " + MqttServiceConstants.MESSAGE_ID;
+				oldColumns += ", " + MqttServiceConstants.MESSAGE_ID;
+			}
+			if (oldVersion >= 4) {
+				newColumns += ", " + PAYLOAD_FILE;
+				oldColumns += ", " + PAYLOAD_FILE;
+			}
+			db.execSQL("ALTER TABLE " + ARRIVED_MESSAGE_TABLE_NAME
+					+ " RENAME TO " + oldTable);
+			createArrivedTable(db, ARRIVED_MESSAGE_TABLE_NAME);
+			db.execSQL("INSERT INTO " + ARRIVED_MESSAGE_TABLE_NAME + " ("
+					+ newColumns + ") SELECT " + oldColumns + " FROM "
+					+ oldTable + " ORDER BY " + MTIMESTAMP + " ASC");
+			// dropping the old table drops its index, so the new one can
+			// take the same name
+			db.execSQL("DROP TABLE " + oldTable);
+			createArrivedIndex(db);
+		}
+
+		private static String flagSql(String column, int flag) {
+			return "(CASE WHEN " + column + " IN ('1', 'true') THEN " + flag
+					+ " ELSE 0 END)";
+		}
 	}
 
 	/**
@@ -142,10 +508,30 @@ class DatabaseMessageStore implements MessageStore {
 	 *            a context to use for android calls
 	 */
 	public DatabaseMessageStore(MqttService service, Context context) {
+		this(service, context, MQTTDatabaseHelper.DATABASE_NAME);
+	}
+
+	/**
+	 * Constructor - create a DatabaseMessageStore in a database file of its
+	 * own, so that it does not share locks with other stores
+	 * 
+	 * @param service
+	 *            our parent MqttService
+	 * @param context
+	 *            a context to use for android calls
+	 * @param databaseName
+	 *            the name of the database file
+	 */
+	public DatabaseMessageStore(MqttService service, Context context,
+			String databaseName) {
 		this.traceHandler = service;
+		this.service = service;
 
-		// Open message database
-		mqttDb = new MQTTDatabaseHelper(traceHandler, context);
+		// Open message database, with large payloads kept alongside it
+		File payloadDirectory = new File(context.getDatabasePath(databaseName)
+				.getPath() + "-payloads");
+		mqttDb = new MQTTDatabaseHelper(traceHandler, context, databaseName,
+				payloadDirectory);
 
 		// Android documentation suggests that this perhaps
 		// could/should be done in another thread, but as the
@@ -154,6 +540,156 @@ class DatabaseMessageStore implements MessageStore {
 		traceHandler.traceDebug(TAG, "DatabaseMessageStore<init> complete");
 	}
 
+	/**
+	 * Turn group commit on or off.
+	 * <p>
+	 * With group commit on, concurrent calls to
+	 * {@link #storeArrived(String, String, MqttMessage)} are gathered into a
+	 * single transaction of at most <code>maxBatchSize</code> inserts, and the
+	 * database is switched to write-ahead logging. A caller waits at most
+	 * <code>maxDelayMs</code> for other writers to join its batch, and only
+	 * while other writers are actually inside storeArrived. Each call still
+	 * returns only once its own message has been committed.
+	 * </p>
+	 * <p>
+	 * Only concurrent writers are gathered - in practice, several connections
+	 * receiving at once. One connection stores its messages one after another
+	 * on a single thread, so each of its messages is still committed on its
+	 * own, however fast they arrive.
+	 * </p>
+	 * 
+	 * @param maxBatchSize
+	 *            the largest number of inserts per transaction, zero or less
+	 *            to commit every insert on its own
+	 * @param maxDelayMs
+	 *            the longest time a batch is held open waiting for more
+	 *            inserts
+	 */
+	void setGroupCommit(int maxBatchSize, long maxDelayMs) {
+		groupCommitMaxBatch = maxBatchSize;
+		groupCommitMaxDelayMs = Math.max(0, maxDelayMs);
+		if (maxBatchSize > 0 && !mqttDb.writeAheadLogging) {
+			mqttDb.writeAheadLogging = true;
+			if (db != null && db.isOpen()) {
+				mqttDb.enableWriteAheadLogging(db);
+			}
+		}
+		traceHandler.traceDebug(TAG, "setGroupCommit{" + maxBatchSize + "}, {"
+				+ maxDelayMs + "}");
+	}
+
+	/**
+	 * Set the size above which a payload is written to a file of its own,
+	 * rather than into the table. Such a payload is only read back when
+	 * {@link StoredMessage#getMessage()} is called, so it is not limited by
+	 * the size of a cursor window, and does not weigh down queries which
+	 * only need the other columns.
+	 * 
+	 * @param thresholdBytes
+	 *            the largest payload kept in the table, zero or less to keep
+	 *            every payload there
+	 */
+	void setPayloadFileThreshold(int thresholdBytes) {
+		payloadFileThreshold = thresholdBytes;
+		traceHandler.traceDebug(TAG, "setPayloadFileThreshold{"
+				+ thresholdBytes + "}");
+	}
+
+	/**
+	 * Set how many free pages are returned to the file system at a time.
+	 * Once the backlog drains, or messages are cleared, the free pages are
+	 * reclaimed in the background, a budget at a time, for as long as no
+	 * message is being stored - so the file shrinks back without a full
+	 * VACUUM holding up the writers.
+	 * 
+	 * @param pages
+	 *            the most pages reclaimed at a time, zero or less to leave
+	 *            free pages in the file
+	 */
+	void setReclaimPageBudget(int pages) {
+		reclaimPageBudget = pages;
+		traceHandler.traceDebug(TAG, "setReclaimPageBudget{" + pages + "}");
+	}
+
+	/**
+	 * @return the number of free pages returned to the file system
+	 */
+	long getReclaimedPageCount() {
+		return reclaimedPages.get();
+	}
+
+	/**
+	 * Return free pages to the file system
+	 * 
+	 * @param maxPages
+	 *            the most pages to reclaim
+	 * @return the number of pages reclaimed
+	 */
+	int reclaimSpace(int maxPages) {
+		db = mqttDb.getWritableDatabase();
+		if (!mqttDb.incrementalVacuum || maxPages <= 0) {
+			return 0;
+		}
+		long before = freePageCount();
+		if (before == 0) {
+			return 0;
+		}
+		// the pages are freed as the pragma's rows are stepped through
+		Cursor c = db.rawQuery("PRAGMA incremental_vacuum("
+				+ Math.min(before, maxPages) + ")", null);
+		try {
+			while (c.moveToNext()) {
+			}
+		} finally {
+			c.close();
+		}
+		int reclaimed = (int) (before - freePageCount());
+		reclaimedPages.addAndGet(reclaimed);
+		traceHandler.traceDebug(TAG, "reclaimSpace: reclaimed " + reclaimed
+				+ " of " + before + " free pages");
+		return reclaimed;
+	}
+
+	private long freePageCount() {
+		return DatabaseUtils.longForQuery(db, "PRAGMA freelist_count", null);
+	}
+
+	/**
+	 * Reclaim free pages once the store is idle
+	 */
+	private void scheduleReclaim() {
+		if (reclaimPageBudget > 0 && mqttDb.incrementalVacuum
+				&& reclaimScheduled.compareAndSet(false, true)) {
+			try {
+				getMaintenanceExecutor().schedule(reclaimer, RECLAIM_IDLE_MS,
+						TimeUnit.MILLISECONDS);
+			} catch (RejectedExecutionException e) {
+				// the store has been closed
+				reclaimScheduled.set(false);
+			}
+		}
+	}
+
+	private final Runnable reclaimer = new Runnable() {
+		@Override
+		public void run() {
+			reclaimScheduled.set(false);
+			if (SystemClock.elapsedRealtime() - lastStoreTime < RECLAIM_IDLE_MS) {
+				// messages are arriving - wait for a quiet moment
+				scheduleReclaim();
+				return;
+			}
+			try {
+				int budget = reclaimPageBudget;
+				if (reclaimSpace(budget) >= budget) {
+					scheduleReclaim();
+				}
+			} catch (RuntimeException e) {
+				traceHandler.traceException(TAG, "reclaimSpace", e);
+			}
+		}
+	};
+
 	/**
 	 * Store an MQTT message
 	 * 
@@ -166,68 +702,607 @@ class DatabaseMessageStore implements MessageStore {
 	 * @return an identifier for the message, so that it can be removed when appropriate
 	 */
 	@Override
-	public String storeArrived(String clientHandle, String topic,
+	public long storeArrived(String clientHandle, String topic,
 			MqttMessage message) {
 		
 		db = mqttDb.getWritableDatabase();
+		lastStoreTime = SystemClock.elapsedRealtime();
 		
-		traceHandler.traceDebug(TAG, "storeArrived{" + clientHandle + "}, {"
-				+ message.toString() + "}");
+		boolean tracing = service.isTraceEnabled();
+		if (tracing) {
+			traceHandler.traceDebug(TAG, "storeArrived{" + clientHandle
+					+ "}, {" + message.toString() + "}");
+		}
 
 		byte[] payload = message.getPayload();
-		int qos = message.getQos();
-		boolean retained = message.isRetained();
-		boolean duplicate = message.isDuplicate();
-
-		ContentValues values = new ContentValues();
-		String id = java.util.UUID.randomUUID().toString();
-		values.put(MqttServiceConstants.MESSAGE_ID, id);
-		values.put(MqttServiceConstants.CLIENT_HANDLE, clientHandle);
-		values.put(MqttServiceConstants.DESTINATION_NAME, topic);
-		values.put(MqttServiceConstants.PAYLOAD, payload);
-		values.put(MqttServiceConstants.QOS, qos);
-		values.put(MqttServiceConstants.RETAINED, retained);
-		values.put(MqttServiceConstants.DUPLICATE, duplicate);
-		values.put(MTIMESTAMP, System.currentTimeMillis());
+		int flags = (message.isRetained() ? RETAINED_FLAG : 0)
+				| (message.isDuplicate() ? DUPLICATE_FLAG : 0);
+
+		AtomicInteger count = getArrivedCounter(clientHandle);
+		long id;
+		String payloadFile = null;
+		int threshold = payloadFileThreshold;
+		if (threshold > 0 && payload.length > threshold) {
+			payloadFile = writePayloadFile(payload);
+			payload = null;
+		}
+		PendingInsert insert = new PendingInsert(clientHandle, topic, payload,
+				payloadFile, message.getQos(), flags,
+				System.currentTimeMillis());
 		try {
-			db.insertOrThrow(ARRIVED_MESSAGE_TABLE_NAME, null, values);
+			if (groupCommitMaxBatch > 0) {
+				id = insertGrouped(insert);
+			} else {
+				try {
+					synchronized (insertLock) {
+						id = executeInsert(insert);
+					}
+				} catch (SQLException e) {
+					traceHandler.traceException(TAG, "storeArrived", e);
+					throw e;
+				}
+			}
 		} catch (SQLException e) {
-			traceHandler.traceException(TAG, "onUpgrade", e);
+			deletePayloadFile(payloadFile);
 			throw e;
 		}
-		int count = getArrivedRowCount(clientHandle);
-		traceHandler
-				.traceDebug(
-						TAG,
-						"storeArrived: inserted message with id of {"
-								+ id
-								+ "} - Number of messages in database for this clientHandle = "
-								+ count);
+		int newCount = count.incrementAndGet();
+		if (tracing) {
+			traceHandler
+					.traceDebug(
+							TAG,
+							"storeArrived: inserted message with id of {"
+									+ id
+									+ "} - Number of messages in database for this clientHandle = "
+									+ newCount);
+		}
+		Retention retention = retentions.get(clientHandle);
+		if (retention != null) {
+			retention.stored(newCount);
+		}
 		return id;
 	}
 
-	private int getArrivedRowCount(String clientHandle) {
-        int count = 0;
-        String[] projection = {
-                MqttServiceConstants.MESSAGE_ID,
-        };
-  		String selection =  MqttServiceConstants.CLIENT_HANDLE + "=?";
-        String[] selectionArgs = new String[1];
-        selectionArgs[0] = clientHandle;
-		Cursor c = db.query(
-                ARRIVED_MESSAGE_TABLE_NAME, // Table Name
-                projection, // The columns to return;
-                selection, // Columns for WHERE Clause
-                selectionArgs , // The values for the WHERE Cause
-				null,  //Don't group the rows
-                null,  // Don't filter by row groups
-                null   // The sort order
-                           );
-
-		if (c.moveToFirst()) {
-			count = c.getInt(0);
-		}
-		c.close();
+	/**
+	 * Open the database - creating or upgrading it if need be - compile the
+	 * insert, and count each client's messages, so that none of this is left
+	 * for the first message to arrive. It can be called from any thread, and
+	 * while the store is in use.
+	 */
+	void warmUp() {
+		db = mqttDb.getWritableDatabase();
+		synchronized (insertLock) {
+			compiledInsert();
+		}
+		// a client's count is only loaded here if nothing has loaded it yet
+		synchronized (arrivedCounts) {
+			Cursor c = db.query(ARRIVED_MESSAGE_TABLE_NAME, new String[]{
+					MqttServiceConstants.CLIENT_HANDLE, "count(*)"}, null,
+					null, MqttServiceConstants.CLIENT_HANDLE, null, null);
+			try {
+				while (c.moveToNext()) {
+					String clientHandle = c.getString(0);
+					if (clientHandle != null
+							&& !arrivedCounts.containsKey(clientHandle)) {
+						arrivedCounts.put(clientHandle, new AtomicInteger(
+								c.getInt(1)));
+					}
+				}
+			} finally {
+				c.close();
+			}
+		}
+		traceHandler.traceDebug(TAG, "warmUp complete");
+	}
+
+	/**
+	 * @return the compiled insert statement, compiled again if the database
+	 *         has been (re)opened. The caller must hold insertLock.
+	 */
+	private SQLiteStatement compiledInsert() {
+		if (insertStatement == null || insertStatementDb != db) {
+			if (insertStatement != null) {
+				insertStatement.close();
+			}
+			insertStatement = db.compileStatement(INSERT_ARRIVED_MESSAGE);
+			insertStatementDb = db;
+		}
+		return insertStatement;
+	}
+
+	/**
+	 * Insert a row with the compiled insert statement. The caller must hold
+	 * insertLock.
+	 * 
+	 * @param insert
+	 *            the row to insert
+	 * @return the identifier of the inserted row
+	 */
+	private long executeInsert(PendingInsert insert) {
+		SQLiteStatement statement = compiledInsert();
+		statement.bindString(1, insert.clientHandle);
+		statement.bindString(2, insert.topic);
+		if (insert.payload == null) {
+			statement.bindNull(3);
+			statement.bindString(4, insert.payloadFile);
+		} else {
+			statement.bindBlob(3, insert.payload);
+			statement.bindNull(4);
+		}
+		statement.bindLong(5, insert.qos);
+		statement.bindLong(6, insert.flags);
+		statement.bindLong(7, insert.timestamp);
+		long id = statement.executeInsert();
+		// don't keep the payload reachable from the statement
+		statement.clearBindings();
+		if (id == -1) {
+			throw new SQLException("Unable to insert message");
+		}
+		return id;
+	}
+
+	/**
+	 * Limit the messages kept for a client. The policy is enforced in the
+	 * background - straight away, then as messages are stored, and
+	 * periodically if it limits their age.
+	 * 
+	 * @param clientHandle
+	 *            identifier for the client
+	 * @param policy
+	 *            the limits, or null to keep every message until it is
+	 *            acknowledged
+	 */
+	void setRetentionPolicy(String clientHandle, RetentionPolicy policy) {
+		Retention previous;
+		if (policy == null) {
+			previous = retentions.remove(clientHandle);
+		} else {
+			Retention retention = new Retention(clientHandle, policy);
+			previous = retentions.put(clientHandle, retention);
+			if (previous != null) {
+				retention.evictedMessages.set(previous.evictedMessages.get());
+				retention.evictedBytes.set(previous.evictedBytes.get());
+			}
+			retention.start();
+		}
+		if (previous != null) {
+			previous.stop();
+		}
+	}
+
+	/**
+	 * @param clientHandle
+	 *            identifier for the client
+	 * @return the number of the client's messages evicted by its retention
+	 *         policy
+	 */
+	long getEvictedMessageCount(String clientHandle) {
+		Retention retention = retentions.get(clientHandle);
+		return retention == null ? 0 : retention.evictedMessages.get();
+	}
+
+	/**
+	 * @param clientHandle
+	 *            identifier for the client
+	 * @return the number of payload bytes evicted by the client's retention
+	 *         policy
+	 */
+	long getEvictedPayloadBytes(String clientHandle) {
+		Retention retention = retentions.get(clientHandle);
+		return retention == null ? 0 : retention.evictedBytes.get();
+	}
+
+	private synchronized ScheduledExecutorService getMaintenanceExecutor() {
+		if (maintenanceExecutor == null) {
+			maintenanceExecutor = Executors
+					.newSingleThreadScheduledExecutor(new ThreadFactory() {
+						@Override
+						public Thread newThread(Runnable r) {
+							Thread thread = new Thread(r, TAG + " maintenance");
+							thread.setDaemon(true);
+							return thread;
+						}
+					});
+		}
+		return maintenanceExecutor;
+	}
+
+	/**
+	 * Evict the messages which are outside a client's retention policy. The
+	 * client's messages are read newest first, without their payloads, and the
+	 * evicted ones are deleted a chunk at a time, so that other writers are
+	 * not held up for long.
+	 * 
+	 * @return the number of messages evicted
+	 */
+	private int enforceRetention(Retention retention) {
+		db = mqttDb.getWritableDatabase();
+		RetentionPolicy.Enforcement enforcement = retention.policy
+				.enforce(System.currentTimeMillis());
+		List<Long> evicted = new ArrayList<>();
+		List<String> evictedFiles = new ArrayList<>();
+		long evictedBytes = 0;
+		Cursor c = db.query(ARRIVED_MESSAGE_TABLE_NAME, new String[]{
+				MqttServiceConstants.MESSAGE_ID,
+				MqttServiceConstants.DESTINATION_NAME,
+				"length(" + MqttServiceConstants.PAYLOAD + ")", MTIMESTAMP,
+				PAYLOAD_FILE}, MqttServiceConstants.CLIENT_HANDLE + "=?",
+				new String[]{retention.clientHandle}, null, null,
+				MqttServiceConstants.MESSAGE_ID + " DESC");
+		try {
+			while (c.moveToNext()) {
+				String payloadFile = c.getString(4);
+				long bytes = payloadFile == null ? c.getLong(2) : new File(
+						mqttDb.payloadDirectory, payloadFile).length();
+				if (!enforcement.keep(c.getString(1), bytes, c.getLong(3))) {
+					evicted.add(c.getLong(0));
+					evictedBytes += bytes;
+					if (payloadFile != null) {
+						evictedFiles.add(payloadFile);
+					}
+				}
+			}
+		} finally {
+			c.close();
+		}
+		if (evicted.isEmpty()) {
+			return 0;
+		}
+
+		AtomicInteger count = getArrivedCounter(retention.clientHandle);
+		int rows = 0;
+		for (int from = 0; from < evicted.size(); from += DISCARD_CHUNK_SIZE) {
+			List<Long> chunk = evicted.subList(from,
+					Math.min(from + DISCARD_CHUNK_SIZE, evicted.size()));
+			int deleted = db.delete(ARRIVED_MESSAGE_TABLE_NAME,
+					inSelection(chunk.size()),
+					inSelectionArgs(retention.clientHandle, chunk));
+			count.addAndGet(-deleted);
+			rows += deleted;
+		}
+		deletePayloadFiles(evictedFiles);
+		retention.evictedMessages.addAndGet(rows);
+		// a message acknowledged meanwhile is counted as evicted here, which
+		// only matters to the byte count
+		retention.evictedBytes.addAndGet(evictedBytes);
+		traceHandler.traceDebug(TAG, "enforceRetention: evicted " + rows
+				+ " messages for " + retention.clientHandle);
+		return rows;
+	}
+
+	/**
+	 * Write a payload to a new file, synced to the storage device before the
+	 * row naming it is committed
+	 * 
+	 * @param payload
+	 * @return the name of the file
+	 */
+	private String writePayloadFile(byte[] payload) {
+		File directory = mqttDb.payloadDirectory;
+		String name = UUID.randomUUID().toString();
+		File file = new File(directory, name);
+		mqttDb.payloadFiles = true;
+		try {
+			if (!directory.isDirectory() && !directory.mkdirs()) {
+				throw new IOException("Unable to create " + directory);
+			}
+			FileOutputStream out = new FileOutputStream(file);
+			try {
+				out.write(payload);
+				out.getFD().sync();
+			} finally {
+				out.close();
+			}
+		} catch (IOException e) {
+			traceHandler.traceException(TAG, "writePayloadFile", e);
+			file.delete();
+			throw new SQLException("Unable to store payload: "
+					+ e.getMessage());
+		}
+		return name;
+	}
+
+	/**
+	 * Read back a payload written by {@link #writePayloadFile(byte[])}
+	 * 
+	 * @param name
+	 *            the name of the file
+	 * @return the payload
+	 * @throws SQLException
+	 *             if the file has gone, or cannot be read - rows naming such
+	 *             a file are skipped when messages are read, so this is only
+	 *             seen if it went after its row was read
+	 */
+	private byte[] readPayloadFile(String name) {
+		try {
+			RandomAccessFile raf = new RandomAccessFile(new File(
+					mqttDb.payloadDirectory, name), "r");
+			try {
+				byte[] payload = new byte[(int) raf.length()];
+				raf.readFully(payload);
+				return payload;
+			} finally {
+				raf.close();
+			}
+		} catch (IOException e) {
+			traceHandler.traceException(TAG, "readPayloadFile", e);
+			throw new SQLException("Unable to read payload: "
+					+ e.getMessage());
+		}
+	}
+
+	/**
+	 * Check the payload file named by the row under a cursor over
+	 * {@link #MESSAGE_COLUMNS}, so that a message whose payload has been lost
+	 * is never passed on with a made-up one
+	 * 
+	 * @return false, once an error has been traced, if the row names a
+	 *         payload file which cannot be read
+	 */
+	private boolean hasReadablePayload(Cursor c) {
+		String name = c.getString(PAYLOAD_FILE_COLUMN);
+		if (name == null || new File(mqttDb.payloadDirectory, name).canRead()) {
+			return true;
+		}
+		traceHandler.traceError(TAG, "message " + c.getLong(MESSAGE_ID_COLUMN)
+				+ " skipped - its payload file {" + name + "} cannot be read");
+		return false;
+	}
+
+	/**
+	 * @param name
+	 *            the name of a payload file, or null for none
+	 */
+	private void deletePayloadFile(String name) {
+		if (name != null && !new File(mqttDb.payloadDirectory, name).delete()) {
+			traceHandler.traceError(TAG, "deletePayloadFile - unable to delete {"
+					+ name + "}");
+		}
+	}
+
+	private void deletePayloadFiles(List<String> names) {
+		for (String name : names) {
+			deletePayloadFile(name);
+		}
+	}
+
+	/**
+	 * Find the payload files named by the rows a delete is about to remove.
+	 * Nothing is queried unless a payload file has been written.
+	 * 
+	 * @return the names of the files
+	 */
+	private List<String> findPayloadFiles(String selection,
+			String[] selectionArgs) {
+		List<String> names = new ArrayList<>();
+		if (!mqttDb.payloadFiles) {
+			return names;
+		}
+		String fileSelection = PAYLOAD_FILE + " IS NOT NULL";
+		if (selection != null) {
+			fileSelection = selection + " AND " + fileSelection;
+		}
+		Cursor c = db.query(ARRIVED_MESSAGE_TABLE_NAME,
+				new String[]{PAYLOAD_FILE}, fileSelection, selectionArgs, null,
+				null, null);
+		try {
+			while (c.moveToNext()) {
+				names.add(c.getString(0));
+			}
+		} finally {
+			c.close();
+		}
+		return names;
+	}
+
+	/**
+	 * @return a selection for a client's messages with any of a number of ids
+	 */
+	private static String inSelection(int ids) {
+		StringBuilder selection = new StringBuilder(
+				MqttServiceConstants.CLIENT_HANDLE).append("=? AND ")
+				.append(MqttServiceConstants.MESSAGE_ID).append(" IN (");
+		for (int i = 0; i < ids; i++) {
+			selection.append(i == 0 ? "?" : ",?");
+		}
+		return selection.append(')').toString();
+	}
+
+	/**
+	 * @return the arguments for {@link #inSelection(int)}
+	 */
+	private static String[] inSelectionArgs(String clientHandle, List<Long> ids) {
+		String[] selectionArgs = new String[ids.size() + 1];
+		selectionArgs[0] = clientHandle;
+		for (int i = 0; i < ids.size(); i++) {
+			selectionArgs[i + 1] = Long.toString(ids.get(i));
+		}
+		return selectionArgs;
+	}
+
+	/**
+	 * Insert a row as part of a group commit. The first thread to find no
+	 * commit in progress becomes the leader: it waits briefly for the other
+	 * active writers to queue their rows, then commits everything queued (up
+	 * to the batch limit) in one transaction on behalf of all of them. An
+	 * interrupted writer still waits for its own row, as it may be in another
+	 * writer's batch, but a leader stops waiting for others and commits what
+	 * it has; the interrupt is restored once the row is committed.
+	 * 
+	 * @param insert
+	 *            the row to insert
+	 * @return the identifier of the inserted row
+	 */
+	private long insertGrouped(PendingInsert insert) {
+		List<PendingInsert> batch;
+		boolean interrupted = false;
+		synchronized (groupCommitLock) {
+			activeWriters++;
+			pendingInserts.add(insert);
+			groupCommitLock.notifyAll();
+		}
+		try {
+			while (true) {
+				synchronized (groupCommitLock) {
+					while (!insert.done && groupCommitInProgress) {
+						interrupted |= waitForGroupCommit(0);
+					}
+					if (insert.done) {
+						break;
+					}
+					groupCommitInProgress = true;
+					// give the other writers a chance to join this batch
+					long deadline = System.currentTimeMillis()
+							+ groupCommitMaxDelayMs;
+					long remaining = groupCommitMaxDelayMs;
+					while (!interrupted
+							&& pendingInserts.size() < groupCommitMaxBatch
+							&& pendingInserts.size() < activeWriters
+							&& remaining > 0) {
+						interrupted = waitForGroupCommit(remaining);
+						remaining = deadline - System.currentTimeMillis();
+					}
+					int size = Math.min(pendingInserts.size(),
+							groupCommitMaxBatch);
+					List<PendingInsert> head = pendingInserts.subList(0, size);
+					batch = new ArrayList<>(head);
+					head.clear();
+				}
+				try {
+					commitBatch(batch);
+				} finally {
+					synchronized (groupCommitLock) {
+						for (PendingInsert committed : batch) {
+							committed.done = true;
+						}
+						groupCommitInProgress = false;
+						groupCommitLock.notifyAll();
+					}
+				}
+			}
+		} finally {
+			synchronized (groupCommitLock) {
+				activeWriters--;
+			}
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		if (insert.failure != null) {
+			traceHandler.traceException(TAG, "storeArrived", insert.failure);
+			throw insert.failure;
+		}
+		return insert.id;
+	}
+
+	/**
+	 * Wait on the group commit lock, which the caller holds
+	 * 
+	 * @param timeout
+	 *            the longest wait, in milliseconds, or zero for no limit
+	 * @return true if the wait was interrupted - the interrupt is cleared, for
+	 *         the caller to restore once it has stopped waiting
+	 */
+	private boolean waitForGroupCommit(long timeout) {
+		try {
+			groupCommitLock.wait(timeout);
+			return false;
+		} catch (InterruptedException e) {
+			return true;
+		}
+	}
+
+	/**
+	 * Insert a batch of rows in a single transaction. A row which fails is
+	 * marked as such, without preventing the rest of the batch from being
+	 * committed.
+	 * 
+	 * @param batch
+	 *            the rows to insert
+	 */
+	private void commitBatch(List<PendingInsert> batch) {
+		synchronized (insertLock) {
+			commitBatchLocked(batch);
+		}
+	}
+
+	private void commitBatchLocked(List<PendingInsert> batch) {
+		db.beginTransaction();
+		try {
+			for (PendingInsert insert : batch) {
+				try {
+					insert.id = executeInsert(insert);
+				} catch (SQLException e) {
+					insert.failure = e;
+				}
+			}
+			db.setTransactionSuccessful();
+		} catch (RuntimeException e) {
+			for (PendingInsert insert : batch) {
+				if (insert.failure == null) {
+					insert.failure = new SQLException("group commit failed: "
+							+ e.getMessage());
+				}
+			}
+		} finally {
+			try {
+				db.endTransaction();
+			} catch (RuntimeException e) {
+				// the commit itself failed, so nothing in the batch is stored
+				for (PendingInsert insert : batch) {
+					if (insert.failure == null) {
+						insert.failure = new SQLException(
+								"group commit failed: " + e.getMessage());
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Get the number of messages stored for a client. After the first call
+	 * for a client this is answered from memory.
+	 * 
+	 * @param clientHandle
+	 *            identifier for the client.<br>
+	 *            If null, messages for all clients are counted
+	 * @return the number of messages stored
+	 */
+	@Override
+	public int getArrivedCount(String clientHandle) {
+		db = mqttDb.getWritableDatabase();
+		if (clientHandle == null) {
+			return (int) DatabaseUtils.queryNumEntries(db,
+					ARRIVED_MESSAGE_TABLE_NAME);
+		}
+		return getArrivedCounter(clientHandle).get();
+	}
+
+	/**
+	 * Get the running count of messages for a client, counting the rows in
+	 * the database (using the client handle index) the first time the client
+	 * is seen. Callers must fetch the counter before changing the table, so
+	 * that the initial count does not include their change.
+	 * 
+	 * @param clientHandle
+	 *            identifier for the client
+	 * @return the counter
+	 */
+	private AtomicInteger getArrivedCounter(String clientHandle) {
+		AtomicInteger count = arrivedCounts.get(clientHandle);
+		if (count == null) {
+			synchronized (arrivedCounts) {
+				count = arrivedCounts.get(clientHandle);
+				if (count == null) {
+					long rows = DatabaseUtils.queryNumEntries(db,
+							ARRIVED_MESSAGE_TABLE_NAME,
+							MqttServiceConstants.CLIENT_HANDLE + "=?",
+							new String[]{clientHandle});
+					count = new AtomicInteger((int) rows);
+					arrivedCounts.put(clientHandle, count);
+				}
+			}
+		}
 		return count;
 	}
 
@@ -237,46 +1312,181 @@ class DatabaseMessageStore implements MessageStore {
 	 * @param clientHandle
 	 *            identifier for the client which stored the message
 	 * @param id
-	 *            the identifying string returned when the message was stored
+	 *            the identifier returned when the message was stored
 	 * 
 	 * @return true if the message was found and deleted
 	 */
 	@Override
-	public boolean discardArrived(String clientHandle, String id) {
+	public boolean discardArrived(String clientHandle, long id) {
 		
 		db = mqttDb.getWritableDatabase();
 		
-		traceHandler.traceDebug(TAG, "discardArrived{" + clientHandle + "}, {"
-				+ id + "}");
+		boolean tracing = service.isTraceEnabled();
+		if (tracing) {
+			traceHandler.traceDebug(TAG, "discardArrived{" + clientHandle
+					+ "}, {" + id + "}");
+		}
+		AtomicInteger count = getArrivedCounter(clientHandle);
 		int rows;
         String[] selectionArgs = new String[2];
-        selectionArgs[0] = id;
+        selectionArgs[0] = Long.toString(id);
         selectionArgs[1] = clientHandle;
+		String selection = MqttServiceConstants.MESSAGE_ID + "=? AND "
+				+ MqttServiceConstants.CLIENT_HANDLE + "=?";
+		List<String> payloadFiles;
 
 		try {
-			rows = db.delete(ARRIVED_MESSAGE_TABLE_NAME,
-					MqttServiceConstants.MESSAGE_ID + "=? AND "
-							+ MqttServiceConstants.CLIENT_HANDLE + "=?",
+			payloadFiles = findPayloadFiles(selection, selectionArgs);
+			rows = db.delete(ARRIVED_MESSAGE_TABLE_NAME, selection,
                     selectionArgs);
 		} catch (SQLException e) {
 			traceHandler.traceException(TAG, "discardArrived", e);
 			throw e;
 		}
+		if (rows == 1) {
+			deletePayloadFiles(payloadFiles);
+		}
 		if (rows != 1) {
 			traceHandler.traceError(TAG,
 					"discardArrived - Error deleting message {" + id
 							+ "} from database: Rows affected = " + rows);
 			return false;
 		}
-		int count = getArrivedRowCount(clientHandle);
-		traceHandler
-				.traceDebug(
-						TAG,
-						"discardArrived - Message deleted successfully. - messages in db for this clientHandle "
-								+ count);
+		int newCount = count.decrementAndGet();
+		if (newCount == 0) {
+			// the backlog has drained
+			scheduleReclaim();
+		}
+		if (tracing) {
+			traceHandler
+					.traceDebug(
+							TAG,
+							"discardArrived - Message deleted successfully. - messages in db for this clientHandle "
+									+ newCount);
+		}
 		return true;
 	}
 
+	/**
+	 * Delete many MQTT messages in one transaction, using one delete for each
+	 * chunk of ids. Each chunk is only queried first if payload files may
+	 * need deleting with it, or if a delete finds some of its ids are not
+	 * stored - the transaction is then rolled back and made again, querying
+	 * each chunk to find which ids were stored.
+	 * 
+	 * @param clientHandle
+	 *            identifier for the client which stored the messages
+	 * @param ids
+	 *            the identifiers returned when the messages were stored
+	 * 
+	 * @return for each id, true if the message was found and deleted
+	 */
+	@Override
+	public Map<Long, Boolean> discardArrived(String clientHandle,
+			Collection<Long> ids) {
+		db = mqttDb.getWritableDatabase();
+
+		Map<Long, Boolean> results = new LinkedHashMap<>();
+		for (Long id : ids) {
+			results.put(id, Boolean.FALSE);
+		}
+		if (results.isEmpty()) {
+			return results;
+		}
+		traceHandler.traceDebug(TAG, "discardArrived{" + clientHandle
+				+ "}, {" + results.size() + " messages}");
+		AtomicInteger count = getArrivedCounter(clientHandle);
+		List<Long> pending = new ArrayList<>(results.keySet());
+		List<String> payloadFiles = new ArrayList<>();
+		int deleted = -1;
+		try {
+			if (!mqttDb.payloadFiles) {
+				deleted = discardChunks(clientHandle, pending, results,
+						payloadFiles, false);
+			}
+			if (deleted < 0) {
+				deleted = discardChunks(clientHandle, pending, results,
+						payloadFiles, true);
+			}
+		} catch (SQLException e) {
+			traceHandler.traceException(TAG, "discardArrived", e);
+			throw e;
+		}
+		deletePayloadFiles(payloadFiles);
+		int newCount = count.addAndGet(-deleted);
+		if (newCount == 0) {
+			scheduleReclaim();
+		}
+		traceHandler.traceDebug(TAG, "discardArrived - " + deleted
+				+ " messages deleted - messages in db for this clientHandle "
+				+ newCount);
+		return results;
+	}
+
+	/**
+	 * Delete the ids a chunk at a time, in one transaction
+	 * 
+	 * @param query
+	 *            whether to query each chunk for the ids stored and their
+	 *            payload files before deleting it
+	 * @return the number of rows deleted, or -1 if the chunks were not
+	 *         queried and some ids were not stored, in which case nothing is
+	 *         deleted
+	 */
+	private int discardChunks(String clientHandle, List<Long> ids,
+			Map<Long, Boolean> results, List<String> payloadFiles,
+			boolean query) {
+		int deleted = 0;
+		db.beginTransaction();
+		try {
+			for (int from = 0; from < ids.size(); from += DISCARD_CHUNK_SIZE) {
+				List<Long> chunk = ids.subList(from,
+						Math.min(from + DISCARD_CHUNK_SIZE, ids.size()));
+				String selection = inSelection(chunk.size());
+				String[] selectionArgs = inSelectionArgs(clientHandle, chunk);
+				if (query) {
+					queryChunk(selection, selectionArgs, results, payloadFiles);
+				}
+				int rows = db.delete(ARRIVED_MESSAGE_TABLE_NAME, selection,
+						selectionArgs);
+				if (!query && rows < chunk.size()) {
+					// roll back, as there is no knowing which were missing
+					return -1;
+				}
+				deleted += rows;
+			}
+			if (!query) {
+				for (Long id : ids) {
+					results.put(id, Boolean.TRUE);
+				}
+			}
+			db.setTransactionSuccessful();
+		} finally {
+			db.endTransaction();
+		}
+		return deleted;
+	}
+
+	/**
+	 * Find which of a chunk of ids are stored, and their payload files
+	 */
+	private void queryChunk(String selection, String[] selectionArgs,
+			Map<Long, Boolean> results, List<String> payloadFiles) {
+		Cursor c = db.query(ARRIVED_MESSAGE_TABLE_NAME, new String[]{
+				MqttServiceConstants.MESSAGE_ID, PAYLOAD_FILE}, selection,
+				selectionArgs, null, null, null);
+		try {
+			while (c.moveToNext()) {
+				results.put(c.getLong(0), Boolean.TRUE);
+				if (!c.isNull(1)) {
+					payloadFiles.add(c.getString(1));
+				}
+			}
+		} finally {
+			c.close();
+		}
+	}
+
 	/**
 	 * Get an iterator over all messages stored (optionally for a specific client)
 	 * 
@@ -288,90 +1498,176 @@ class DatabaseMessageStore implements MessageStore {
 	@Override
 	public Iterator<StoredMessage> getAllArrivedMessages(
 			final String clientHandle) {
+		final DbMessageCursor cursor = openArrivedMessages(clientHandle, null,
+				0, 0);
 		return new Iterator<StoredMessage>() {
-			private Cursor c;
-			private boolean hasNext;
-            private final String[] selectionArgs = {
-                    clientHandle,
-            };
-
-
-			{
-				db = mqttDb.getWritableDatabase();
-				// anonymous initialiser to start a suitable query
-				// and position at the first row, if one exists
-				if (clientHandle == null) {
-					c = db.query(ARRIVED_MESSAGE_TABLE_NAME,
-                            null,
-                            null,
-                            null,
-							null,
-                            null,
-                            "mtimestamp ASC");
-				} else {
-					c = db.query(ARRIVED_MESSAGE_TABLE_NAME,
-                            null,
-							MqttServiceConstants.CLIENT_HANDLE + "=?",
-                            selectionArgs,
-                            null,
-                            null,
-							"mtimestamp ASC");
-				}
-				hasNext = c.moveToFirst();
-			}
+			// the cursor closes itself once it has been read to the end
+			private boolean hasNext = cursor.moveToNext();
 
 			@Override
 			public boolean hasNext() {
-		        if (!hasNext){
-		          	c.close();
-				}
 				return hasNext;
 			}
 
 			@Override
 			public StoredMessage next() {
-				String messageId = c.getString(c
-						.getColumnIndex(MqttServiceConstants.MESSAGE_ID));
-				String clientHandle = c.getString(c
-						.getColumnIndex(MqttServiceConstants.CLIENT_HANDLE));
-				String topic = c.getString(c
-						.getColumnIndex(MqttServiceConstants.DESTINATION_NAME));
-				byte[] payload = c.getBlob(c
-						.getColumnIndex(MqttServiceConstants.PAYLOAD));
-				int qos = c.getInt(c.getColumnIndex(MqttServiceConstants.QOS));
-				boolean retained = Boolean.parseBoolean(c.getString(c
-						.getColumnIndex(MqttServiceConstants.RETAINED)));
-				boolean dup = Boolean.parseBoolean(c.getString(c
-						.getColumnIndex(MqttServiceConstants.DUPLICATE)));
-
-				// build the result
-				MqttMessageHack message = new MqttMessageHack(payload);
-				message.setQos(qos);
-				message.setRetained(retained);
-				message.setDuplicate(dup);
-
-				// move on
-				hasNext = c.moveToNext();
-				return new DbStoredData(messageId, clientHandle, topic, message);
+				if (!hasNext) {
+					throw new NoSuchElementException();
+				}
+				// the cursor's message is reused, so hand out a copy
+				StoredMessage message = cursor.getMessage().copy();
+				hasNext = cursor.moveToNext();
+				return message;
 			}
 
 			@Override
 			public void remove() {
 				throw new UnsupportedOperationException();
 			}
+		};
+	}
+
+	/**
+	 * Stream the messages stored (optionally for a specific client) through
+	 * a database cursor. The time and a topic without wildcards are matched
+	 * in the query, with the limit; a topic filter with wildcards is matched
+	 * as the rows are read, after the query has skipped the topics without
+	 * its literal prefix.
+	 * 
+	 * @param clientHandle
+	 *            identifier for the client.<br>
+	 *            If null, all messages are retrieved
+	 * @param topicFilter
+	 *            the topics of the messages to retrieve, or null for all
+	 * @param since
+	 *            the earliest time a message was stored
+	 * @param limit
+	 *            the most messages to retrieve, zero or less for no limit
+	 * @return a cursor over the messages, in the order they arrived
+	 */
+	@Override
+	public DbMessageCursor openArrivedMessages(String clientHandle,
+			String topicFilter, long since, int limit) {
+		ArrivedMessageFilter filter = new ArrivedMessageFilter(topicFilter,
+				since, limit);
+		db = mqttDb.getWritableDatabase();
+		List<String> selectionArgs = new ArrayList<>();
+		StringBuilder selection = new StringBuilder();
+		if (clientHandle != null) {
+			selection.append(MqttServiceConstants.CLIENT_HANDLE).append("=?");
+			selectionArgs.add(clientHandle);
+		}
+		if (since > 0) {
+			and(selection).append(MTIMESTAMP).append(">=?");
+			selectionArgs.add(Long.toString(since));
+		}
+		String limitClause = null;
+		if (topicFilter != null && !filter.hasWildcards()) {
+			and(selection).append(MqttServiceConstants.DESTINATION_NAME)
+					.append("=?");
+			selectionArgs.add(topicFilter);
+		} else if (topicFilter != null) {
+			String prefix = filter.getLiteralPrefix();
+			if (prefix.length() > 0) {
+				// substr counts characters, not UTF-16 units
+				and(selection).append("substr(")
+						.append(MqttServiceConstants.DESTINATION_NAME)
+						.append(", 1, ")
+						.append(prefix.codePointCount(0, prefix.length()))
+						.append(")=?");
+				selectionArgs.add(prefix);
+			}
+		}
+		if (limit > 0 && !filter.hasWildcards()) {
+			limitClause = Integer.toString(limit);
+		}
+		Cursor c = db.query(ARRIVED_MESSAGE_TABLE_NAME, MESSAGE_COLUMNS,
+				selection.length() > 0 ? selection.toString() : null,
+				selectionArgs.toArray(new String[selectionArgs.size()]), null,
+				null, ARRIVAL_ORDER, limitClause);
+		return new DbMessageCursor(c, filter);
+	}
+
+	private static StringBuilder and(StringBuilder selection) {
+		if (selection.length() > 0) {
+			selection.append(" AND ");
+		}
+		return selection;
+	}
+
+	/**
+	 * Get a page of the messages stored for a client. The page starts after
+	 * the id of the last message of the previous page, so each page is found
+	 * through the index however far into the backlog it is. Ids increase in
+	 * arrival order, so a message stored while the pages are read is never
+	 * left behind the last page, even if the clock has been set back. A
+	 * message whose payload file cannot be read is skipped.
+	 * 
+	 * @param clientHandle
+	 *            identifier for the client.<br>
+	 *            If null, messages for all clients are retrieved
+	 * @param after
+	 *            the last message of the previous page, or null for the first
+	 *            page
+	 * @param limit
+	 *            the largest number of messages to return
+	 * @return the messages, in the order they arrived
+	 */
+	@Override
+	public List<StoredMessage> getArrivedMessages(String clientHandle,
+			StoredMessage after, int limit) {
+		db = mqttDb.getWritableDatabase();
+		List<StoredMessage> page = new ArrayList<>();
+		long afterId = after != null ? after.getMessageId() : -1;
+		// rows skipped for a lost payload are made up for, so that a short
+		// page still means the end has been reached
+		while (page.size() < limit) {
+			List<String> selectionArgs = new ArrayList<>();
+			StringBuilder selection = new StringBuilder();
+			if (clientHandle != null) {
+				selection.append(MqttServiceConstants.CLIENT_HANDLE).append(
+						"=?");
+				selectionArgs.add(clientHandle);
+			}
+			if (afterId >= 0) {
+				and(selection).append(MqttServiceConstants.MESSAGE_ID)
+						.append(">?");
+				selectionArgs.add(Long.toString(afterId));
+			}
 
-      /* (non-Javadoc)
-       * @see java.lang.Object#finalize()
-       */
-      @Override
-      protected void finalize() throws Throwable
-      {
-        c.close();
-        super.finalize();
-      }
+			int wanted = limit - page.size();
+			int rows = 0;
+			Cursor c = db.query(ARRIVED_MESSAGE_TABLE_NAME, MESSAGE_COLUMNS,
+					selection.length() > 0 ? selection.toString() : null,
+					selectionArgs.toArray(new String[selectionArgs.size()]),
+					null, null, ARRIVAL_ORDER, Integer.toString(wanted));
+			try {
+				while (c.moveToNext()) {
+					rows++;
+					afterId = c.getLong(MESSAGE_ID_COLUMN);
+					if (hasReadablePayload(c)) {
+						page.add(readMessage(c));
+					}
+				}
+			} finally {
+				c.close();
+			}
+			if (rows < wanted) {
+				break;
+			}
+		}
+		return page;
+	}
 
-    };
-  }
+	/**
+	 * Build a message from the row under a cursor over
+	 * {@link #MESSAGE_COLUMNS}
+	 */
+	private DbStoredData readMessage(Cursor c) {
+		DbStoredData message = new DbStoredData();
+		message.read(c);
+		return message;
+	}
 
 	/**
 	 * Delete all messages (optionally for a specific client)
@@ -388,38 +1684,87 @@ class DatabaseMessageStore implements MessageStore {
         selectionArgs[0] = clientHandle;
 		
 		int rows = 0;
+		List<String> payloadFiles;
 		if (clientHandle == null) {
 			traceHandler.traceDebug(TAG,
 					"clearArrivedMessages: clearing the table");
-			rows = db.delete(ARRIVED_MESSAGE_TABLE_NAME, null, null);
+			synchronized (arrivedCounts) {
+				payloadFiles = findPayloadFiles(null, null);
+				rows = db.delete(ARRIVED_MESSAGE_TABLE_NAME, null, null);
+				arrivedCounts.clear();
+			}
 		} else {
 			traceHandler.traceDebug(TAG,
 					"clearArrivedMessages: clearing the table of "
 							+ clientHandle + " messages");
-            rows = db.delete(ARRIVED_MESSAGE_TABLE_NAME,
-                    MqttServiceConstants.CLIENT_HANDLE + "=?",
-                    selectionArgs);
+			String selection = MqttServiceConstants.CLIENT_HANDLE + "=?";
+			synchronized (arrivedCounts) {
+				payloadFiles = findPayloadFiles(selection, selectionArgs);
+				rows = db.delete(ARRIVED_MESSAGE_TABLE_NAME, selection,
+						selectionArgs);
+				arrivedCounts.remove(clientHandle);
+			}
 
 		}
+		deletePayloadFiles(payloadFiles);
+		if (rows > 0) {
+			scheduleReclaim();
+		}
 		traceHandler.traceDebug(TAG, "clearArrivedMessages: rows affected = "
 				+ rows);
 	}
 
+	/**
+	 * A stored message, read from a row. The MQTT message is built when it is
+	 * first asked for, so that a payload in a file of its own is only read if
+	 * it is needed. A cursor reads each of its rows into the same object.
+	 */
 	private class DbStoredData implements StoredMessage {
-		private String messageId;
+		private long messageId;
 		private String clientHandle;
 		private String topic;
-		private MqttMessage message;
+		private long timestamp;
+		private byte[] payload;
+		private String payloadFile;
+		private int qos;
+		private int flags;
+		private MqttMessageHack message;
+		// whether message holds the current row
+		private boolean messageBuilt;
 
-		DbStoredData(String messageId, String clientHandle, String topic,
-				MqttMessage message) {
-			this.messageId = messageId;
-			this.topic = topic;
-			this.message = message;
+		/**
+		 * Read the row under a cursor over {@link #MESSAGE_COLUMNS}
+		 */
+		void read(Cursor c) {
+			messageId = c.getLong(MESSAGE_ID_COLUMN);
+			clientHandle = c.getString(CLIENT_HANDLE_COLUMN);
+			topic = c.getString(DESTINATION_NAME_COLUMN);
+			timestamp = c.getLong(MTIMESTAMP_COLUMN);
+			payloadFile = c.getString(PAYLOAD_FILE_COLUMN);
+			payload = payloadFile != null ? null : c.getBlob(PAYLOAD_COLUMN);
+			qos = c.getInt(QOS_COLUMN);
+			flags = c.getInt(FLAGS_COLUMN);
+			messageBuilt = false;
+		}
+
+		/**
+		 * @return a copy which is not changed when this one is
+		 */
+		DbStoredData copy() {
+			DbStoredData copy = new DbStoredData();
+			copy.messageId = messageId;
+			copy.clientHandle = clientHandle;
+			copy.topic = topic;
+			copy.timestamp = timestamp;
+			copy.payload = payload;
+			copy.payloadFile = payloadFile;
+			copy.qos = qos;
+			copy.flags = flags;
+			return copy;
 		}
 
 		@Override
-		public String getMessageId() {
+		public long getMessageId() {
 			return messageId;
 		}
 
@@ -434,9 +1779,192 @@ class DatabaseMessageStore implements MessageStore {
 		}
 
 		@Override
-		public MqttMessage getMessage() {
+		public synchronized MqttMessage getMessage() {
+			if (!messageBuilt) {
+				byte[] bytes = payloadFile == null ? payload
+						: readPayloadFile(payloadFile);
+				if (message == null) {
+					message = new MqttMessageHack(bytes);
+				} else {
+					message.setPayload(bytes);
+				}
+				message.setQos(qos);
+				message.setRetained((flags & RETAINED_FLAG) != 0);
+				message.setDuplicate((flags & DUPLICATE_FLAG) != 0);
+				messageBuilt = true;
+			}
 			return message;
 		}
+
+		@Override
+		public long getTimestamp() {
+			return timestamp;
+		}
+	}
+
+	/**
+	 * A cursor over the rows of a query, reading each into the same
+	 * {@link DbStoredData}
+	 */
+	private class DbMessageCursor implements StoredMessageCursor {
+		private final Cursor c;
+		private final ArrivedMessageFilter filter;
+		private final DbStoredData current = new DbStoredData();
+		private boolean closed = false;
+		private boolean positioned = false;
+		private int count = 0;
+
+		DbMessageCursor(Cursor c, ArrivedMessageFilter filter) {
+			this.c = c;
+			this.filter = filter;
+		}
+
+		@Override
+		public boolean moveToNext() {
+			positioned = false;
+			if (closed) {
+				return false;
+			}
+			if (!filter.isLimitReached(count)) {
+				while (c.moveToNext()) {
+					// the query has matched everything but wildcards
+					if (!filter.hasWildcards()
+							|| filter.matchesTopic(c
+									.getString(DESTINATION_NAME_COLUMN))) {
+						if (!hasReadablePayload(c)) {
+							continue;
+						}
+						current.read(c);
+						count++;
+						positioned = true;
+						return true;
+					}
+				}
+			}
+			close();
+			return false;
+		}
+
+		@Override
+		public DbStoredData getMessage() {
+			if (!positioned) {
+				throw new IllegalStateException("No current message");
+			}
+			return current;
+		}
+
+		@Override
+		public void close() {
+			if (!closed) {
+				closed = true;
+				c.close();
+			}
+		}
+	}
+
+	/**
+	 * A client's retention policy, and the state of its enforcement
+	 */
+	private class Retention implements Runnable {
+		private final String clientHandle;
+		private final RetentionPolicy policy;
+		private final AtomicBoolean scheduled = new AtomicBoolean(false);
+		private final AtomicInteger storesSinceCheck = new AtomicInteger();
+		private final AtomicLong evictedMessages = new AtomicLong();
+		private final AtomicLong evictedBytes = new AtomicLong();
+		private volatile boolean stopped = false;
+		private ScheduledFuture<?> periodic = null;
+
+		Retention(String clientHandle, RetentionPolicy policy) {
+			this.clientHandle = clientHandle;
+			this.policy = policy;
+		}
+
+		void start() {
+			schedule();
+			long maxAgeMs = policy.getShortestMaxAgeMs();
+			if (maxAgeMs > 0) {
+				long period = Math.max(RETENTION_MIN_PERIOD_MS,
+						Math.min(RETENTION_MAX_PERIOD_MS, maxAgeMs / 2));
+				periodic = getMaintenanceExecutor().scheduleWithFixedDelay(
+						new Runnable() {
+							@Override
+							public void run() {
+								schedule();
+							}
+						}, period, period, TimeUnit.MILLISECONDS);
+			}
+		}
+
+		void stop() {
+			stopped = true;
+			if (periodic != null) {
+				periodic.cancel(false);
+			}
+		}
+
+		/**
+		 * Note a message stored for the client
+		 * 
+		 * @param count
+		 *            the number of messages the client now has
+		 */
+		void stored(int count) {
+			int maxMessages = policy.getMaxMessages();
+			if ((maxMessages > 0 && count > maxMessages)
+					|| storesSinceCheck.incrementAndGet() >= RETENTION_CHECK_STORES) {
+				schedule();
+			}
+		}
+
+		private void schedule() {
+			if (!stopped && scheduled.compareAndSet(false, true)) {
+				getMaintenanceExecutor().execute(this);
+			}
+		}
+
+		@Override
+		public void run() {
+			scheduled.set(false);
+			storesSinceCheck.set(0);
+			if (stopped) {
+				return;
+			}
+			try {
+				enforceRetention(this);
+			} catch (RuntimeException e) {
+				traceHandler.traceException(TAG, "enforceRetention", e);
+			}
+		}
+	}
+
+	/**
+	 * A row to insert, queued for the next group commit if group commit is on
+	 */
+	private static class PendingInsert {
+		private final String clientHandle;
+		private final String topic;
+		// exactly one of payload and payloadFile is set
+		private final byte[] payload;
+		private final String payloadFile;
+		private final int qos;
+		private final int flags;
+		private final long timestamp;
+		// both guarded by groupCommitLock once the insert has been queued
+		private boolean done = false;
+		private SQLException failure = null;
+		private long id = -1;
+
+		PendingInsert(String clientHandle, String topic, byte[] payload,
+				String payloadFile, int qos, int flags, long timestamp) {
+			this.clientHandle = clientHandle;
+			this.topic = topic;
+			this.payload = payload;
+			this.payloadFile = payloadFile;
+			this.qos = qos;
+			this.flags = flags;
+			this.timestamp = timestamp;
+		}
 	}
 
 	/**
@@ -456,6 +1984,20 @@ class DatabaseMessageStore implements MessageStore {
 
 	@Override
 	public void close() {
+		for (Retention retention : retentions.values()) {
+			retention.stop();
+		}
+		synchronized (this) {
+			if (maintenanceExecutor != null) {
+				maintenanceExecutor.shutdown();
+			}
+		}
+		synchronized (insertLock) {
+			if (insertStatement != null) {
+				insertStatement.close();
+				insertStatement = null;
+			}
+		}
 		if (this.db!=null)
 			this.db.close();
 		
@@ -0,0 +1,66 @@
+/*******************************************************************************
+ * Copyright (c) 1999, 2014 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution. 
+ *
+ * The Eclipse Public License is available at 
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at 
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ */
+package org.eclipse.paho.android.service;
+
+import java.util.Iterator;
+
+/**
+ * A {@link MessageStore.StoredMessageCursor} over an iterator which holds no
+ * resources of its own, for the stores which keep their messages (or an index
+ * of them) in memory. The filter is applied as the iterator is read.
+ */
+class IteratorMessageCursor implements MessageStore.StoredMessageCursor {
+
+	private Iterator<MessageStore.StoredMessage> messages;
+	private final ArrivedMessageFilter filter;
+	private MessageStore.StoredMessage current = null;
+	private int count = 0;
+
+	IteratorMessageCursor(Iterator<MessageStore.StoredMessage> messages,
+			ArrivedMessageFilter filter) {
+		this.messages = messages;
+		this.filter = filter;
+	}
+
+	@Override
+	public boolean moveToNext() {
+		current = null;
+		if (messages == null || filter.isLimitReached(count)) {
+			close();
+			return false;
+		}
+		while (messages.hasNext()) {
+			MessageStore.StoredMessage message = messages.next();
+			if (filter.matches(message.getTopic(), message.getTimestamp())) {
+				current = message;
+				count++;
+				return true;
+			}
+		}
+		close();
+		return false;
+	}
+
+	@Override
+	public MessageStore.StoredMessage getMessage() {
+		if (current == null) {
+			throw new IllegalStateException("No current message");
+		}
+		return current;
+	}
+
+	@Override
+	public void close() {
+		messages = null;
+	}
+}
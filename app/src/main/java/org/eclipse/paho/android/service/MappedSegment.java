@@ -0,0 +1,321 @@
+/*******************************************************************************
+ * Copyright (c) 1999, 2014 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ */
+package org.eclipse.paho.android.service;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * <p>
+ * A fixed size, memory-mapped file holding an append-only sequence of records.
+ * </p>
+ * <p>
+ * The file starts with a header identifying its owner (a magic number), its
+ * position in a sequence of segments, and a base value (for example the first
+ * identifier the owner could allocate while this segment was written). Each
+ * record is framed by its length and a CRC-32 of its contents. A record with a
+ * length of zero marks the end of the data, as the file is zero filled when it
+ * is created.
+ * </p>
+ * <p>
+ * A record is only accepted back by {@link #recover(RecordVisitor)} if its
+ * checksum matches, so a record torn by a crash part way through a write is
+ * detected and dropped, together with anything after it.
+ * </p>
+ * <p>
+ * This class is not thread safe - callers must serialise access to it.
+ * </p>
+ */
+class MappedSegment {
+
+	/**
+	 * Callback for each valid record found when a segment is recovered
+	 */
+	interface RecordVisitor {
+		/**
+		 * @param offset
+		 *            the offset of the record, as later passed to
+		 *            {@link MappedSegment#read(int)}
+		 * @param body
+		 *            the contents of the record, positioned at its start
+		 */
+		void onRecord(int offset, ByteBuffer body);
+	}
+
+	// magic, version, sequence, base - padded for future use
+	static final int HEADER_SIZE = 32;
+	// length and CRC-32 before the record itself
+	static final int FRAME_SIZE = 8;
+
+	private static final int VERSION = 1;
+
+	private final File file;
+	private final RandomAccessFile raf;
+	private final FileChannel channel;
+	// never positioned, so that it can be duplicated safely
+	private final MappedByteBuffer buffer;
+	// used for appending records
+	private final ByteBuffer writer;
+	private final CRC32 crc = new CRC32();
+	private final long sequence;
+	private final long base;
+
+	private MappedSegment(File file, RandomAccessFile raf, int capacity,
+			long sequence, long base) throws IOException {
+		this.file = file;
+		this.raf = raf;
+		this.channel = raf.getChannel();
+		this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+		this.writer = buffer.duplicate();
+		this.writer.position(HEADER_SIZE);
+		this.sequence = sequence;
+		this.base = base;
+	}
+
+	/**
+	 * Create a new, empty segment, replacing any existing file
+	 *
+	 * @param file
+	 *            the file to hold the segment
+	 * @param magic
+	 *            identifies the owner of the segment
+	 * @param sequence
+	 *            the position of this segment in its owner's sequence
+	 * @param base
+	 *            a value recorded for the owner in the header
+	 * @param capacity
+	 *            the size of the file, including the header
+	 * @return the segment, ready for appending
+	 * @throws IOException
+	 */
+	static MappedSegment create(File file, int magic, long sequence, long base,
+			int capacity) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.setLength(0);
+			raf.setLength(capacity);
+			MappedSegment segment = new MappedSegment(file, raf, capacity,
+					sequence, base);
+			segment.buffer.putInt(0, magic);
+			segment.buffer.putInt(4, VERSION);
+			segment.buffer.putLong(8, sequence);
+			segment.buffer.putLong(16, base);
+			// the header must be in place before any record is trusted
+			segment.buffer.force();
+			return segment;
+		} catch (IOException e) {
+			raf.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Open an existing segment. {@link #recover(RecordVisitor)} must be called
+	 * before anything is appended to it.
+	 *
+	 * @param file
+	 *            the file holding the segment
+	 * @param magic
+	 *            the magic number expected in the header
+	 * @return the segment
+	 * @throws IOException
+	 *             if the file cannot be mapped, or its header is not valid
+	 */
+	static MappedSegment open(File file, int magic) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			long length = raf.length();
+			if (length < HEADER_SIZE || length > Integer.MAX_VALUE) {
+				throw new IOException("Bad segment length " + length + " in "
+						+ file);
+			}
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			raf.getChannel().read(header, 0);
+			if (header.getInt(0) != magic || header.getInt(4) != VERSION) {
+				throw new IOException("Bad segment header in " + file);
+			}
+			return new MappedSegment(file, raf, (int) length,
+					header.getLong(8), header.getLong(16));
+		} catch (IOException e) {
+			raf.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * @return the number of bytes taken by a record with the given body length
+	 */
+	static int recordSize(int length) {
+		return FRAME_SIZE + length;
+	}
+
+	File getFile() {
+		return file;
+	}
+
+	long getSequence() {
+		return sequence;
+	}
+
+	long getBase() {
+		return base;
+	}
+
+	int getCapacity() {
+		return buffer.capacity();
+	}
+
+	/**
+	 * @return the number of bytes used, including the header
+	 */
+	int getWritePosition() {
+		return writer.position();
+	}
+
+	/**
+	 * @return the number of bytes left for records
+	 */
+	int remaining() {
+		return writer.remaining();
+	}
+
+	/**
+	 * Append a record
+	 *
+	 * @param body
+	 *            array holding the record
+	 * @param length
+	 *            the length of the record, from the start of the array
+	 * @return the offset of the record, or -1 if it does not fit in the
+	 *         space left
+	 */
+	int append(byte[] body, int length) {
+		if (length <= 0) {
+			throw new IllegalArgumentException("Empty record");
+		}
+		int offset = writer.position();
+		if (writer.remaining() < recordSize(length)) {
+			return -1;
+		}
+		crc.reset();
+		crc.update(body, 0, length);
+		// the body goes in before its length, so that a record is never
+		// seen with a length but without its contents
+		writer.position(offset + FRAME_SIZE);
+		writer.put(body, 0, length);
+		writer.putInt(offset + 4, (int) crc.getValue());
+		writer.putInt(offset, length);
+		return offset;
+	}
+
+	/**
+	 * Read back a record
+	 *
+	 * @param offset
+	 *            the offset returned when the record was appended or recovered
+	 * @return a buffer holding just the record, positioned at its start
+	 */
+	ByteBuffer read(int offset) {
+		ByteBuffer record = buffer.duplicate();
+		record.position(offset + FRAME_SIZE);
+		record.limit(offset + FRAME_SIZE + buffer.getInt(offset));
+		return record.slice();
+	}
+
+	/**
+	 * Read every valid record, and move the write position to the end of
+	 * them. Anything after the first invalid record is erased.
+	 *
+	 * @param visitor
+	 *            called for each valid record, in the order they were written
+	 * @return true if an invalid (torn) record was found and erased
+	 */
+	boolean recover(RecordVisitor visitor) {
+		int offset = HEADER_SIZE;
+		int capacity = buffer.capacity();
+		byte[] body = new byte[0];
+		boolean torn = false;
+		while (capacity - offset >= FRAME_SIZE) {
+			int length = buffer.getInt(offset);
+			if (length == 0) {
+				break;
+			}
+			if (length < 0 || length > capacity - offset - FRAME_SIZE) {
+				torn = true;
+				break;
+			}
+			if (body.length < length) {
+				body = new byte[length];
+			}
+			ByteBuffer record = buffer.duplicate();
+			record.position(offset + FRAME_SIZE);
+			record.get(body, 0, length);
+			crc.reset();
+			crc.update(body, 0, length);
+			if ((int) crc.getValue() != buffer.getInt(offset + 4)) {
+				torn = true;
+				break;
+			}
+			visitor.onRecord(offset, read(offset));
+			offset += recordSize(length);
+		}
+		writer.clear();
+		writer.position(offset);
+		if (torn) {
+			// zero the rest, so that stale bytes are never mistaken for
+			// records once new ones have been appended in front of them
+			ByteBuffer erase = buffer.duplicate();
+			erase.position(offset);
+			byte[] zeros = new byte[Math.min(erase.remaining(), 8192)];
+			while (erase.hasRemaining()) {
+				erase.put(zeros, 0, Math.min(erase.remaining(), zeros.length));
+			}
+			buffer.force();
+		}
+		return torn;
+	}
+
+	/**
+	 * Make sure that everything appended so far is on the storage device
+	 */
+	void force() {
+		buffer.force();
+	}
+
+	/**
+	 * Release the file. Buffers returned by {@link #read(int)} stay readable.
+	 */
+	void close() {
+		try {
+			channel.close();
+			raf.close();
+		} catch (IOException e) {
+			// nothing to be done - the mapping itself remains valid
+		}
+	}
+
+	/**
+	 * Close and remove the file
+	 *
+	 * @return true if the file was removed
+	 */
+	boolean delete() {
+		close();
+		return file.delete();
+	}
+}
@@ -14,7 +14,11 @@ package org.eclipse.paho.android.service;
 
 import org.eclipse.paho.client.mqttv3.MqttMessage;
 
+import java.io.Closeable;
+import java.util.Collection;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 
 /**
  * <p>
@@ -24,14 +28,18 @@ import java.util.Iterator;
  * <li>A Service should store messages as they arrive via
  * {@link #storeArrived(String, String, MqttMessage)}.
  * <li>When a message has been passed to the consuming entity,
- * {@link #discardArrived(String, String)} should be called.
+ * {@link #discardArrived(String, long)} should be called.
  * <li>To recover messages which have not been definitely passed to the
- * consumer, {@link MessageStore#getAllArrivedMessages(String)} is used.
+ * consumer, {@link #openArrivedMessages(String, String, long, int)} is used.
  * <li>When a clean session is started {@link #clearArrivedMessages(String)} is
  * used.
  * </ul>
+ * <p>
+ * Each client may be given a store of its own through a
+ * {@link MessageStoreProvider}, see {@link MessageStoreProviders}.
+ * </p>
  */
-interface MessageStore {
+public interface MessageStore {
 
 	/**
 	 * External representation of a stored message
@@ -40,7 +48,7 @@ interface MessageStore {
 		/**
 		 * @return the identifier for the message within the store
 		 */
-		String getMessageId();
+		long getMessageId();
 
 		/**
 		 * @return the identifier of the client which stored this message
@@ -56,6 +64,44 @@ interface MessageStore {
 		 * @return the identifier of the client which stored this message
 		 */
 		MqttMessage getMessage();
+
+		/**
+		 * @return when the message was stored, in milliseconds since the epoch
+		 */
+		long getTimestamp();
+	}
+
+	/**
+	 * A forward-only view of stored messages, read as it is moved through. It
+	 * may hold resources, such as a database cursor, until it is closed - so
+	 * open it in a try-with-resources statement, or close it in a finally
+	 * block. It is closed automatically once moveToNext returns false.
+	 * <p>
+	 * A cursor must only be used by one thread at a time.
+	 * </p>
+	 */
+	interface StoredMessageCursor extends Closeable {
+		/**
+		 * Move to the next message
+		 * 
+		 * @return false if there are no more messages
+		 */
+		boolean moveToNext();
+
+		/**
+		 * @return the current message. The same object may be updated and
+		 *         returned for every message, so it is only valid until the
+		 *         cursor is moved or closed - copy whatever is needed after
+		 *         that.
+		 */
+		StoredMessage getMessage();
+
+		/**
+		 * Release anything held by the cursor. Closing a closed cursor has no
+		 * effect.
+		 */
+		@Override
+		void close();
 	}
 
 	/**
@@ -65,9 +111,10 @@ interface MessageStore {
 	 *            identifier for the client
 	 * @param message
 	 *            message to be stored
-	 * @return a unique identifier for it
+	 * @return a unique identifier for it, which increases with each message
+	 *         stored
 	 */
-	String storeArrived(String clientHandle, String Topic,
+	long storeArrived(String clientHandle, String Topic,
             MqttMessage message);
 
 	/**
@@ -79,10 +126,35 @@ interface MessageStore {
 	 * @param id
 	 *            id of message to be discarded
 	 */
-	boolean discardArrived(String clientHandle, String id);
+	boolean discardArrived(String clientHandle, long id);
 
 	/**
-	 * Get all the stored messages, usually for a specific client
+	 * Discard many messages at once - much cheaper than discarding them one by
+	 * one, for applications acknowledging messages in batches.
+	 * 
+	 * @param clientHandle
+	 *            identifier for the client
+	 * @param ids
+	 *            ids of the messages to be discarded
+	 * @return for each id, whether the message was found and discarded
+	 */
+	Map<Long, Boolean> discardArrived(String clientHandle, Collection<Long> ids);
+
+	/**
+	 * Get the number of stored messages, usually for a specific client. This is
+	 * cheap enough to call for every message stored or discarded.
+	 * 
+	 * @param clientHandle
+	 *            identifier for the client - if null, then messages for all
+	 *            clients are counted
+	 * @return the number of messages stored
+	 */
+	int getArrivedCount(String clientHandle);
+
+	/**
+	 * Get all the stored messages, usually for a specific client. The
+	 * iterator may hold resources until it reaches the end, so
+	 * {@link #openArrivedMessages(String, String, long, int)} is preferred.
 	 * 
 	 * @param clientHandle
 	 *            identifier for the client - if null, then messages for all
@@ -90,6 +162,46 @@ interface MessageStore {
 	 */
 	Iterator<StoredMessage> getAllArrivedMessages(String clientHandle);
 
+	/**
+	 * Stream the stored messages, usually for a specific client, in the same
+	 * order as {@link #getAllArrivedMessages(String)}
+	 * 
+	 * @param clientHandle
+	 *            identifier for the client - if null, then messages for all
+	 *            clients are returned
+	 * @param topicFilter
+	 *            only messages whose topic matches this MQTT topic filter are
+	 *            returned - if null, messages on every topic are returned
+	 * @param since
+	 *            only messages stored at or after this time, in milliseconds
+	 *            since the epoch, are returned - zero for every message
+	 * @param limit
+	 *            the most messages returned - zero or less for no limit
+	 * @return a cursor over the messages, which must be closed
+	 * @throws IllegalArgumentException
+	 *             if the topic filter is not valid
+	 */
+	StoredMessageCursor openArrivedMessages(String clientHandle,
+			String topicFilter, long since, int limit);
+
+	/**
+	 * Get a page of the stored messages, usually for a specific client, in the
+	 * same order as {@link #getAllArrivedMessages(String)}. Paging through a
+	 * large backlog this way holds no cursor open between pages.
+	 * 
+	 * @param clientHandle
+	 *            identifier for the client - if null, then messages for all
+	 *            clients are returned
+	 * @param after
+	 *            the last message of the previous page, or null for the first
+	 *            page
+	 * @param limit
+	 *            the largest number of messages to return
+	 * @return the messages - fewer than the limit once the end is reached
+	 */
+	List<StoredMessage> getArrivedMessages(String clientHandle,
+			StoredMessage after, int limit);
+
 	/**
 	 * Discard stored messages, usually for a specific client
 	 * 
@@ -0,0 +1,42 @@
+/*******************************************************************************
+ * Copyright (c) 1999, 2014 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution. 
+ *
+ * The Eclipse Public License is available at 
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at 
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ */
+package org.eclipse.paho.android.service;
+
+/**
+ * <p>
+ * Chooses the {@link MessageStore} used by a client to keep its arrived
+ * messages until the application has acknowledged them.
+ * </p>
+ * <p>
+ * Set on the client with
+ * {@link MqttAndroidClient#setMessageStoreProvider(MessageStoreProvider)},
+ * and called by the service when the client's connection is first created.
+ * Some ready made providers are available from {@link MessageStoreProviders}.
+ * </p>
+ */
+public interface MessageStoreProvider {
+
+	/**
+	 * Create the store for a client. The store is closed by the service when
+	 * the service is destroyed, so it should not be shared with other clients.
+	 * 
+	 * @param service
+	 *            the service holding the connection, which may be used as a
+	 *            context and as a trace handler
+	 * @param clientHandle
+	 *            identifier for the client
+	 * @return the store, or null to use the store the service shares between
+	 *         clients
+	 */
+	MessageStore createMessageStore(MqttService service, String clientHandle);
+}
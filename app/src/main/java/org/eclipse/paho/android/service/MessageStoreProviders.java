@@ -0,0 +1,121 @@
+/*******************************************************************************
+ * Copyright (c) 1999, 2014 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution. 
+ *
+ * The Eclipse Public License is available at 
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at 
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ */
+package org.eclipse.paho.android.service;
+
+import java.io.File;
+
+/**
+ * Ready made {@link MessageStoreProvider}s, each giving every client a store
+ * of its own.
+ */
+public final class MessageStoreProviders {
+
+	private MessageStoreProviders() {
+	}
+
+	/**
+	 * @return a provider giving each client a SQLite database file of its own
+	 */
+	public static MessageStoreProvider database() {
+		return new MessageStoreProvider() {
+			@Override
+			public MessageStore createMessageStore(MqttService service,
+					String clientHandle) {
+				return new DatabaseMessageStore(service, service, "mqtt-"
+						+ fileName(clientHandle) + ".db");
+			}
+		};
+	}
+
+	/**
+	 * @return a provider giving each client a memory-mapped append-only log
+	 *         of its own, see {@link SegmentLogMessageStore}
+	 */
+	public static MessageStoreProvider segmentLog() {
+		return new MessageStoreProvider() {
+			@Override
+			public MessageStore createMessageStore(MqttService service,
+					String clientHandle) {
+				File logs = new File(service.getFilesDir(),
+						MqttServiceConstants.SEGMENT_LOG_DIRECTORY);
+				return new SegmentLogMessageStore(service, new File(logs,
+						fileName(clientHandle)));
+			}
+		};
+	}
+
+	/**
+	 * Keep arrived messages in memory only, for clients using clean sessions
+	 * 
+	 * @param capacity
+	 *            the number of unacknowledged messages held for each client
+	 * @param overflowPolicy
+	 *            what to do with a message which arrives when a client's ring
+	 *            is full - spilled messages go to a database file of the
+	 *            client's own
+	 * @return a provider giving each client a {@link RingBufferMessageStore}
+	 */
+	public static MessageStoreProvider ringBuffer(final int capacity,
+			final RingBufferMessageStore.OverflowPolicy overflowPolicy) {
+		return new MessageStoreProvider() {
+			@Override
+			public MessageStore createMessageStore(MqttService service,
+					String clientHandle) {
+				MessageStore spillStore = null;
+				if (overflowPolicy == RingBufferMessageStore.OverflowPolicy.SPILL) {
+					spillStore = database().createMessageStore(service,
+							clientHandle);
+				}
+				return new RingBufferMessageStore(capacity, overflowPolicy,
+						spillStore);
+			}
+		};
+	}
+
+	/**
+	 * @return a provider giving each client a store which keeps nothing, for
+	 *         clients which can afford to lose messages the application was
+	 *         not there to receive
+	 */
+	public static MessageStoreProvider noOp() {
+		return new MessageStoreProvider() {
+			@Override
+			public MessageStore createMessageStore(MqttService service,
+					String clientHandle) {
+				return new NoOpMessageStore();
+			}
+		};
+	}
+
+	/**
+	 * Turn a client handle (server URI, client id and package name) into
+	 * something which can be used as a file name
+	 * 
+	 * @param clientHandle
+	 *            identifier for the client
+	 * @return the file name
+	 */
+	static String fileName(String clientHandle) {
+		StringBuilder name = new StringBuilder(clientHandle.length());
+		for (int i = 0; i < clientHandle.length(); i++) {
+			char c = clientHandle.charAt(i);
+			boolean safe = (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z')
+					|| (c >= '0' && c <= '9') || c == '.' || c == '-';
+			name.append(safe ? c : '_');
+		}
+		// handles differing only in replaced characters stay apart
+		return name.append('-')
+				.append(Integer.toHexString(clientHandle.hashCode()))
+				.toString();
+	}
+}
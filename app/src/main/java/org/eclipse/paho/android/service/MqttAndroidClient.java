@@ -20,11 +20,12 @@ import android.content.BroadcastReceiver;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
-import android.content.IntentFilter;
 import android.content.ServiceConnection;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
-import android.support.v4.content.LocalBroadcastManager;
+import android.os.Looper;
 import android.util.SparseArray;
 
 import org.eclipse.paho.client.mqttv3.DisconnectedBufferOptions;
@@ -45,11 +46,18 @@ import org.eclipse.paho.client.mqttv3.MqttToken;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.security.KeyManagementException;
 import java.security.KeyStore;
 import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
 import java.security.cert.CertificateException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
@@ -95,9 +103,35 @@ public class MqttAndroidClient extends BroadcastReceiver implements IMqttAsyncCl
     // An identifier for the underlying client connection, which we can pass to
     // the service
     private String clientHandle;
+    // the handle this client's listener was registered with the service and
+    // the router under, kept after clientHandle is cleared on disconnect so
+    // that the listener can still be unregistered
+    private volatile String listenerHandle = null;
+    // receives this client's callbacks from the service and the router
+    private final MqttServiceEventListener eventListener = new MqttServiceEventListener()
+    {
+        @Override
+        public void onServiceEvent(ServiceEvent event)
+        {
+            MqttAndroidClient.this.onServiceEvent(event);
+        }
+    };
     private Context myContext;
     private int tokenNumber = 0;
     private MqttClientPersistence persistence = null;
+    private MessageStoreProvider messageStoreProvider = null;
+    private int backlogPageSize = 0;
+    private long backlogPageIntervalMs = 0;
+    private BacklogReplayCallback backlogReplayCallback = null;
+    private RetentionPolicy retentionPolicy = null;
+    private int writeBehindCapacity = 0;
+    private WriteBehindPolicy writeBehindPolicy = WriteBehindPolicy.BLOCK;
+    private int batchMaxMessages = 0;
+    private long batchMaxDelayMs = 0;
+    // group commit of the service's shared store, left alone unless set
+    private boolean groupCommitSet = false;
+    private int groupCommitMaxBatch = 0;
+    private long groupCommitMaxDelayMs = 0;
     private MqttConnectOptions connectOptions;
     private IMqttToken connectToken;
     // The MqttCallback provided by the application
@@ -106,6 +140,10 @@ public class MqttAndroidClient extends BroadcastReceiver implements IMqttAsyncCl
     private boolean traceEnabled = false;
     private volatile boolean receiverRegistered = false;
     private volatile boolean bindedService = false;
+    // runs the callbacks to the application one at a time, in order - by
+    // default on a thread of this client's own
+    private Executor callbackExecutor = null;
+    private HandlerThread callbackThread = null;
 
     /**
      * Constructor - create an MqttAndroidClient that can be used to communicate with an MQTT server on android
@@ -164,7 +202,7 @@ public class MqttAndroidClient extends BroadcastReceiver implements IMqttAsyncCl
      * @param clientId    specifies the name by which this connection should be
      *                    identified to the server
      * @param persistence the persistence class to use to store in-flight message. If
-     *                    null then the default persistence mechanism is used
+     *                    null then a {@link DatabaseClientPersistence} is used
      * @param ackType     how the application wishes to acknowledge a message has been
      *                    processed.
      */
@@ -233,7 +271,7 @@ public class MqttAndroidClient extends BroadcastReceiver implements IMqttAsyncCl
             if (clientHandle == null)
             {
                 clientHandle = mqttService.getClient(serverURI, clientId, myContext.getApplicationInfo().packageName,
-                        persistence);
+                        persistence, messageStoreProvider);
             }
             mqttService.close(clientHandle);
         }
@@ -361,7 +399,7 @@ public class MqttAndroidClient extends BroadcastReceiver implements IMqttAsyncCl
             // until the last time it is stopped by a call to stopService()
             myContext.bindService(serviceStartIntent, serviceConnection, Context.BIND_AUTO_CREATE);
 
-            if (!receiverRegistered) registerReceiver(this);
+            if (!receiverRegistered) registerReceiver();
         }
         else
         {
@@ -374,7 +412,7 @@ public class MqttAndroidClient extends BroadcastReceiver implements IMqttAsyncCl
                     doConnect();
 
                     //Register receiver to show shoulder tap.
-                    if (!receiverRegistered) registerReceiver(MqttAndroidClient.this);
+                    if (!receiverRegistered) registerReceiver();
                 }
 
             });
@@ -383,12 +421,47 @@ public class MqttAndroidClient extends BroadcastReceiver implements IMqttAsyncCl
         return token;
     }
 
-    private void registerReceiver(BroadcastReceiver receiver)
+    private void registerReceiver()
     {
-        IntentFilter filter = new IntentFilter();
-        filter.addAction(MqttServiceConstants.CALLBACK_TO_ACTIVITY);
-        LocalBroadcastManager.getInstance(myContext).registerReceiver(receiver, filter);
         receiverRegistered = true;
+        registerListeners();
+    }
+
+    /**
+     * Once the service knows this client, have its callbacks passed to it by
+     * the service directly, or by the router when they are broadcast
+     */
+    private synchronized void registerListeners()
+    {
+        String handle = clientHandle;
+        if (handle != null)
+        {
+            unregisterListeners();
+            CallbackRouter.getInstance(myContext).register(handle, eventListener);
+            if (mqttService != null)
+            {
+                mqttService.registerEventListener(handle, eventListener);
+            }
+            listenerHandle = handle;
+        }
+    }
+
+    /**
+     * Stop the service and the router passing callbacks to this client, using
+     * the handle it was registered under
+     */
+    private synchronized void unregisterListeners()
+    {
+        String handle = listenerHandle;
+        if (handle != null)
+        {
+            CallbackRouter.getInstance(myContext).unregister(handle, eventListener);
+            if (mqttService != null)
+            {
+                mqttService.unregisterEventListener(handle, eventListener);
+            }
+        }
+        listenerHandle = null;
     }
 
     /**
@@ -399,10 +472,22 @@ public class MqttAndroidClient extends BroadcastReceiver implements IMqttAsyncCl
         if (clientHandle == null)
         {
             clientHandle = mqttService.getClient(serverURI, clientId, myContext.getApplicationInfo().packageName,
-                    persistence);
+                    persistence, messageStoreProvider);
+        }
+        if (receiverRegistered)
+        {
+            registerListeners();
         }
         mqttService.setTraceEnabled(traceEnabled);
         mqttService.setTraceCallbackId(clientHandle);
+        mqttService.setBacklogReplay(clientHandle, backlogPageSize, backlogPageIntervalMs);
+        mqttService.setRetentionPolicy(clientHandle, retentionPolicy);
+        mqttService.setWriteBehind(clientHandle, writeBehindCapacity, writeBehindPolicy);
+        mqttService.setMessageBatching(clientHandle, batchMaxMessages, batchMaxDelayMs);
+        if (groupCommitSet)
+        {
+            mqttService.setMessageStoreGroupCommit(groupCommitMaxBatch, groupCommitMaxDelayMs);
+        }
 
         String activityToken = storeToken(connectToken);
         try
@@ -1189,6 +1274,175 @@ public class MqttAndroidClient extends BroadcastReceiver implements IMqttAsyncCl
 
     }
 
+    /**
+     * Choose where the service keeps messages which have arrived for this
+     * client until they are acknowledged, instead of the store shared by all
+     * clients. Must be called before the client first connects.
+     *
+     * @param messageStoreProvider creates the store, see {@link MessageStoreProviders}
+     */
+    public void setMessageStoreProvider(MessageStoreProvider messageStoreProvider)
+    {
+        this.messageStoreProvider = messageStoreProvider;
+    }
+
+    /**
+     * Deliver messages which arrived while the application was not there to
+     * acknowledge them a page at a time, in the background, instead of all at
+     * once before the connection completes. Messages arriving during the replay
+     * are delivered after it, in order. Must be called before connecting.
+     *
+     * @param pageSize       the number of messages delivered together - zero or less
+     *                       to deliver the whole backlog while connecting (the default)
+     * @param pageIntervalMs the pause after each page, to let the application keep up
+     */
+    public void setBacklogReplay(int pageSize, long pageIntervalMs)
+    {
+        this.backlogPageSize = pageSize;
+        this.backlogPageIntervalMs = pageIntervalMs;
+    }
+
+    /**
+     * <p>
+     * Gather the inserts of messages arriving at the same time into shared
+     * transactions of the service's message store (group commit). Each
+     * message is still stored before it is passed to the application.
+     * </p>
+     * <p>
+     * This is a setting of the service, shared by every client using its
+     * message store, rather than of this client; it does not apply to a
+     * store chosen with {@link #setMessageStoreProvider(MessageStoreProvider)}.
+     * Only messages stored at the same time by different connections are
+     * gathered - one connection stores its messages one at a time, so a burst
+     * on a single connection is not speeded up.
+     * </p>
+     *
+     * @param maxBatchSize the most messages committed together - zero or less to
+     *                     commit every message on its own (the default)
+     * @param maxDelayMs   the longest a commit waits for other messages
+     */
+    public void setMessageStoreGroupCommit(int maxBatchSize, long maxDelayMs)
+    {
+        this.groupCommitSet = true;
+        this.groupCommitMaxBatch = maxBatchSize;
+        this.groupCommitMaxDelayMs = maxDelayMs;
+        if (mqttService != null)
+        {
+            mqttService.setMessageStoreGroupCommit(maxBatchSize, maxDelayMs);
+        }
+    }
+
+    /**
+     * <p>
+     * Pass arrived messages to the application in batches, rather than one at
+     * a time, once a batch holds <code>maxMessages</code> or its first message
+     * has waited <code>maxDelayMs</code>. Each batch costs a single callback,
+     * and with {@link Ack#AUTO_ACK} it is acknowledged with a single change to
+     * the service's store, which suits high message rates.
+     * </p>
+     * <p>
+     * A callback implementing {@link MqttCallbackBatch} is passed each batch
+     * as a list; any other callback is passed its messages one at a time.
+     * Messages replayed from the backlog are always passed one at a time.
+     * </p>
+     *
+     * @param maxMessages the most messages in a batch - one or less to pass each
+     *                    message on as it arrives (the default)
+     * @param maxDelayMs  the longest a message waits for others to join its batch
+     */
+    public void setMessageBatching(int maxMessages, long maxDelayMs)
+    {
+        this.batchMaxMessages = maxMessages;
+        this.batchMaxDelayMs = maxDelayMs;
+        if (mqttService != null && clientHandle != null)
+        {
+            mqttService.setMessageBatching(clientHandle, maxMessages, maxDelayMs);
+        }
+    }
+
+    /**
+     * Limit the messages the service keeps for this client while they wait to
+     * be acknowledged, evicting the oldest once a limit is reached. Takes effect
+     * when the client connects.
+     *
+     * @param retentionPolicy the limits, or null to keep every message until it
+     *                        is acknowledged (the default)
+     */
+    public void setRetentionPolicy(RetentionPolicy retentionPolicy)
+    {
+        this.retentionPolicy = retentionPolicy;
+    }
+
+    /**
+     * @return the number of messages the service has evicted under this
+     * client's retention policy since the service started
+     * @see #setRetentionPolicy(RetentionPolicy)
+     */
+    public long getEvictedMessageCount()
+    {
+        if (mqttService == null || clientHandle == null)
+        {
+            return 0;
+        }
+        return mqttService.getEvictedMessageCount(clientHandle);
+    }
+
+    /**
+     * @return the number of payload bytes the service has evicted under this
+     * client's retention policy since the service started
+     * @see #setRetentionPolicy(RetentionPolicy)
+     */
+    public long getEvictedPayloadBytes()
+    {
+        if (mqttService == null || clientHandle == null)
+        {
+            return 0;
+        }
+        return mqttService.getEvictedPayloadBytes(clientHandle);
+    }
+
+    /**
+     * Store arriving messages on a thread of their own, so that a slow write
+     * does not stop the service reading from the network. Messages wait in a
+     * queue of the given size; each is still acknowledged to the server, and
+     * delivered to the application, only once it has been stored. Must be
+     * called before the client first connects.
+     *
+     * @param queueCapacity the most messages waiting to be stored - zero or less
+     *                      to store each message as it is read (the default)
+     * @param policy        what to do with a message when the queue is full
+     */
+    public void setWriteBehind(int queueCapacity, WriteBehindPolicy policy)
+    {
+        this.writeBehindCapacity = queueCapacity;
+        this.writeBehindPolicy = policy;
+    }
+
+    /**
+     * @return the current state of the write-behind queue, or null if there is
+     * none
+     * @see #setWriteBehind(int, WriteBehindPolicy)
+     */
+    public WriteBehindMetrics getWriteBehindMetrics()
+    {
+        if (mqttService == null || clientHandle == null)
+        {
+            return null;
+        }
+        return mqttService.getWriteBehindMetrics(clientHandle);
+    }
+
+    /**
+     * Receive progress reports from a paged backlog replay
+     *
+     * @param backlogReplayCallback the callback
+     * @see #setBacklogReplay(int, long)
+     */
+    public void setBacklogReplayCallback(BacklogReplayCallback backlogReplayCallback)
+    {
+        this.backlogReplayCallback = backlogReplayCallback;
+    }
+
     /**
      * identify the callback to be invoked when making tracing calls back into
      * the Activity
@@ -1222,7 +1476,9 @@ public class MqttAndroidClient extends BroadcastReceiver implements IMqttAsyncCl
      * <p>
      * <strong>Note:</strong> This is only a public method because the Android
      * APIs require such.<br>
-     * This method should not be explicitly invoked.
+     * This method should not be explicitly invoked. The client no longer
+     * registers itself for broadcasts, which reach it through a single
+     * receiver for the whole process that routes them by client handle.
      * </p>
      */
     @Override
@@ -1238,54 +1494,202 @@ public class MqttAndroidClient extends BroadcastReceiver implements IMqttAsyncCl
             return;
         }
 
-        String action = data.getString(MqttServiceConstants.CALLBACK_ACTION);
+        onServiceEvent(ServiceEvent.fromBundle(data));
+    }
 
-        if (MqttServiceConstants.CONNECT_ACTION.equals(action))
-        {
-            connectAction(data);
-        }
-        else if (MqttServiceConstants.CONNECT_EXTENDED_ACTION.equals(action))
-        {
-            connectExtendedAction(data);
-        }
-        else if (MqttServiceConstants.MESSAGE_ARRIVED_ACTION.equals(action))
-        {
-            messageArrivedAction(data);
-        }
-        else if (MqttServiceConstants.SUBSCRIBE_ACTION.equals(action))
+    /**
+     * Receive the results of operations and asynchronous activities directly
+     * from the service, on the thread which produced them, and pass them to
+     * the callback executor.
+     *
+     * @param event the service's callback
+     */
+    private void onServiceEvent(final ServiceEvent event)
+    {
+        Executor executor = getCallbackExecutor();
+        if (executor == null)
         {
-            subscribeAction(data);
+            // resources are unregistered, so there is no one to pass it to
+            return;
         }
-        else if (MqttServiceConstants.UNSUBSCRIBE_ACTION.equals(action))
+        executor.execute(new Runnable()
         {
-            unSubscribeAction(data);
-        }
-        else if (MqttServiceConstants.SEND_ACTION.equals(action))
+            @Override
+            public void run()
+            {
+                if (receiverRegistered)
+                {
+                    dispatch(event);
+                }
+            }
+        });
+    }
+
+    /**
+     * @return the listener this client's callbacks are passed to by the
+     * service and the router
+     */
+    MqttServiceEventListener getEventListener()
+    {
+        return eventListener;
+    }
+
+    /**
+     * @return the executor for callbacks to the application, starting this
+     * client's callback thread if no other executor has been set, or null
+     * once resources are unregistered
+     */
+    private synchronized Executor getCallbackExecutor()
+    {
+        if (!receiverRegistered)
         {
-            sendAction(data);
+            return null;
         }
-        else if (MqttServiceConstants.MESSAGE_DELIVERED_ACTION.equals(action))
+        if (callbackExecutor == null)
         {
-            messageDeliveredAction(data);
+            callbackThread = new HandlerThread("MqttAndroidClient " + clientId);
+            callbackThread.start();
+            callbackExecutor = new HandlerExecutor(new Handler(callbackThread.getLooper()));
         }
-        else if (MqttServiceConstants.ON_CONNECTION_LOST_ACTION
-                .equals(action))
+        return callbackExecutor;
+    }
+
+    /**
+     * Stop this client's callback thread, once it has run the callbacks
+     * already given to it
+     */
+    private synchronized void stopCallbackThread()
+    {
+        if (callbackThread != null)
         {
-            connectionLostAction(data);
+            final HandlerThread thread = callbackThread;
+            callbackExecutor.execute(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    thread.quit();
+                }
+            });
+            callbackThread = null;
+            callbackExecutor = null;
         }
-        else if (MqttServiceConstants.DISCONNECT_ACTION.equals(action))
+    }
+
+    /**
+     * <p>
+     * Run the callbacks to the application, including
+     * {@link MqttCallback#messageArrived(String, MqttMessage)},
+     * {@link MqttCallback#deliveryComplete(IMqttDeliveryToken)} and the
+     * {@link IMqttActionListener}s of tokens, on the given executor.
+     * </p>
+     * <p>
+     * By default they are run on a thread of this client's own, so that a
+     * high rate of messages does not hold up the main thread, and work on the
+     * main thread does not hold up the messages. Callbacks which update views
+     * need to pass the work to the main thread, or the client can be given
+     * the main thread's looper with {@link #setCallbackLooper(Looper)}.
+     * </p>
+     * <p>
+     * The callbacks are run one at a time, in the order the service made
+     * them, even if the executor has several threads.
+     * </p>
+     *
+     * @param executor runs the callbacks, or null for this client's own thread
+     */
+    public void setCallbackExecutor(Executor executor)
+    {
+        setSerialCallbackExecutor(executor == null ? null : new SerialExecutor(executor));
+    }
+
+    /**
+     * Run the callbacks to the application on the thread of the given looper,
+     * such as the main thread's
+     *
+     * @param looper runs the callbacks, or null for this client's own thread
+     * @see #setCallbackExecutor(Executor)
+     */
+    public void setCallbackLooper(Looper looper)
+    {
+        setSerialCallbackExecutor(looper == null ? null : new HandlerExecutor(new Handler(looper)));
+    }
+
+    private synchronized void setSerialCallbackExecutor(Executor executor)
+    {
+        stopCallbackThread();
+        callbackExecutor = executor;
+    }
+
+    /**
+     * Pass the result of an operation, or an asynchronous activity, to the
+     * application
+     *
+     * @param event the service's callback
+     */
+    private void dispatch(ServiceEvent event)
+    {
+        switch (event.action)
         {
-            disconnected(data);
+            case ServiceEvent.CONNECT:
+                connectAction(event);
+                break;
+            case ServiceEvent.CONNECT_EXTENDED:
+                connectExtendedAction(event);
+                break;
+            case ServiceEvent.MESSAGE_ARRIVED:
+                messageArrivedAction(event);
+                break;
+            case ServiceEvent.MESSAGES_ARRIVED:
+                messagesArrivedAction(event);
+                break;
+            case ServiceEvent.SUBSCRIBE:
+                subscribeAction(event);
+                break;
+            case ServiceEvent.UNSUBSCRIBE:
+                unSubscribeAction(event);
+                break;
+            case ServiceEvent.SEND:
+                sendAction(event);
+                break;
+            case ServiceEvent.MESSAGE_DELIVERED:
+                messageDeliveredAction(event);
+                break;
+            case ServiceEvent.CONNECTION_LOST:
+                connectionLostAction(event);
+                break;
+            case ServiceEvent.DISCONNECT:
+                disconnected(event);
+                break;
+            case ServiceEvent.TRACE:
+                traceAction(event);
+                break;
+            case ServiceEvent.BACKLOG_REPLAY:
+                backlogReplayAction(event);
+                break;
+            default:
+                mqttService.traceError(MqttService.TAG, "Callback action doesn't exist.");
+                break;
         }
-        else if (MqttServiceConstants.TRACE_ACTION.equals(action))
+    }
+
+    /**
+     * Acknowledges a message received on the
+     * {@link MqttCallback#messageArrived(String, MqttMessage)}
+     *
+     * @param messageId the messageId received from the MqttMessage, in its string form
+     * @return whether or not the message was successfully acknowledged
+     * @see #acknowledgeMessage(long)
+     */
+    public boolean acknowledgeMessage(String messageId)
+    {
+        try
         {
-            traceAction(data);
+            return acknowledgeMessage(Long.parseLong(messageId));
         }
-        else
+        catch (NumberFormatException e)
         {
-            mqttService.traceError(MqttService.TAG, "Callback action doesn't exist.");
+            return false;
         }
-
     }
 
     /**
@@ -1297,7 +1701,7 @@ public class MqttAndroidClient extends BroadcastReceiver implements IMqttAsyncCl
      *                  {@link ParcelableMqttMessage})
      * @return whether or not the message was successfully acknowledged
      */
-    public boolean acknowledgeMessage(String messageId)
+    public boolean acknowledgeMessage(long messageId)
     {
         if (messageAck == Ack.MANUAL_ACK)
         {
@@ -1308,6 +1712,32 @@ public class MqttAndroidClient extends BroadcastReceiver implements IMqttAsyncCl
 
     }
 
+    /**
+     * Acknowledges a batch of messages received on the
+     * {@link MqttCallback#messageArrived(String, MqttMessage)}. The messages
+     * are removed from the service's store together, which costs much less
+     * than acknowledging them one at a time.
+     *
+     * @param messageIds the messageIds received from the MqttMessages (To access
+     *                   this field you need to cast {@link MqttMessage} to
+     *                   {@link ParcelableMqttMessage})
+     * @return for each messageId, whether or not the message was successfully
+     * acknowledged
+     */
+    public Map<Long, Boolean> acknowledgeMessages(Collection<Long> messageIds)
+    {
+        if (messageAck == Ack.MANUAL_ACK)
+        {
+            return mqttService.acknowledgeMessageArrivals(clientHandle, messageIds);
+        }
+        Map<Long, Boolean> results = new LinkedHashMap<>();
+        for (Long messageId : messageIds)
+        {
+            results.put(messageId, Boolean.FALSE);
+        }
+        return results;
+    }
+
     public void messageArrivedComplete(int messageId, int qos) throws MqttException
     {
         throw new UnsupportedOperationException();
@@ -1321,25 +1751,25 @@ public class MqttAndroidClient extends BroadcastReceiver implements IMqttAsyncCl
     /**
      * Process the results of a connection
      *
-     * @param data
+     * @param event
      */
-    private void connectAction(Bundle data)
+    private void connectAction(ServiceEvent event)
     {
         IMqttToken token = connectToken;
-        removeMqttToken(data);
+        removeMqttToken(event);
 
-        simpleAction(token, data);
+        simpleAction(token, event);
     }
 
     /**
      * Process a notification that we have disconnected
      *
-     * @param data
+     * @param event
      */
-    private void disconnected(Bundle data)
+    private void disconnected(ServiceEvent event)
     {
         clientHandle = null; // avoid reuse!
-        IMqttToken token = removeMqttToken(data);
+        IMqttToken token = removeMqttToken(event);
         if (token != null)
         {
             ((MqttTokenAndroid) token).notifyComplete();
@@ -1353,26 +1783,24 @@ public class MqttAndroidClient extends BroadcastReceiver implements IMqttAsyncCl
     /**
      * Process a Connection Lost notification
      *
-     * @param data
+     * @param event
      */
-    private void connectionLostAction(Bundle data)
+    private void connectionLostAction(ServiceEvent event)
     {
         if (callback != null)
         {
-            Exception reason = (Exception) data.getSerializable(MqttServiceConstants.CALLBACK_EXCEPTION);
+            Exception reason = (Exception) event.exception;
             callback.connectionLost(reason);
         }
     }
 
-    private void connectExtendedAction(Bundle data)
+    private void connectExtendedAction(ServiceEvent event)
     {
         // This is called differently from a normal connect
 
         if (callback instanceof MqttCallbackExtended)
         {
-            boolean reconnect = data.getBoolean(MqttServiceConstants.CALLBACK_RECONNECT, false);
-            String serverURI = data.getString(MqttServiceConstants.CALLBACK_SERVER_URI);
-            ((MqttCallbackExtended) callback).connectComplete(reconnect, serverURI);
+            ((MqttCallbackExtended) callback).connectComplete(event.reconnect, event.serverURI);
         }
 
     }
@@ -1381,21 +1809,19 @@ public class MqttAndroidClient extends BroadcastReceiver implements IMqttAsyncCl
      * Common processing for many notifications
      *
      * @param token the token associated with the action being undertake
-     * @param data  the result data
+     * @param event the result data
      */
-    private void simpleAction(IMqttToken token, Bundle data)
+    private void simpleAction(IMqttToken token, ServiceEvent event)
     {
         if (token != null)
         {
-            Status status = (Status) data.getSerializable(MqttServiceConstants.CALLBACK_STATUS);
-            if (status == Status.OK)
+            if (event.status == Status.OK)
             {
                 ((MqttTokenAndroid) token).notifyComplete();
             }
             else
             {
-                Exception exceptionThrown = (Exception) data.getSerializable(MqttServiceConstants.CALLBACK_EXCEPTION);
-                ((MqttTokenAndroid) token).notifyFailure(exceptionThrown);
+                ((MqttTokenAndroid) token).notifyFailure(event.exception);
             }
         }
         else
@@ -1407,51 +1833,50 @@ public class MqttAndroidClient extends BroadcastReceiver implements IMqttAsyncCl
     /**
      * Process notification of a publish(send) operation
      *
-     * @param data
+     * @param event
      */
-    private void sendAction(Bundle data)
+    private void sendAction(ServiceEvent event)
     {
-        IMqttToken token = getMqttToken(data); // get, don't remove - will
+        IMqttToken token = getMqttToken(event); // get, don't remove - will
         // remove on delivery
-        simpleAction(token, data);
+        simpleAction(token, event);
     }
 
     /**
      * Process notification of a subscribe operation
      *
-     * @param data
+     * @param event
      */
-    private void subscribeAction(Bundle data)
+    private void subscribeAction(ServiceEvent event)
     {
-        IMqttToken token = removeMqttToken(data);
-        simpleAction(token, data);
+        IMqttToken token = removeMqttToken(event);
+        simpleAction(token, event);
     }
 
     /**
      * Process notification of an unsubscribe operation
      *
-     * @param data
+     * @param event
      */
-    private void unSubscribeAction(Bundle data)
+    private void unSubscribeAction(ServiceEvent event)
     {
-        IMqttToken token = removeMqttToken(data);
-        simpleAction(token, data);
+        IMqttToken token = removeMqttToken(event);
+        simpleAction(token, event);
     }
 
     /**
      * Process notification of a published message having been delivered
      *
-     * @param data
+     * @param event
      */
-    private void messageDeliveredAction(Bundle data)
+    private void messageDeliveredAction(ServiceEvent event)
     {
-        IMqttToken token = removeMqttToken(data);
+        IMqttToken token = removeMqttToken(event);
         if (token != null)
         {
             if (callback != null)
             {
-                Status status = (Status) data.getSerializable(MqttServiceConstants.CALLBACK_STATUS);
-                if (status == Status.OK && token instanceof IMqttDeliveryToken)
+                if (event.status == Status.OK && token instanceof IMqttDeliveryToken)
                 {
                     callback.deliveryComplete((IMqttDeliveryToken) token);
                 }
@@ -1462,16 +1887,15 @@ public class MqttAndroidClient extends BroadcastReceiver implements IMqttAsyncCl
     /**
      * Process notification of a message's arrival
      *
-     * @param data
+     * @param event
      */
-    private void messageArrivedAction(Bundle data)
+    private void messageArrivedAction(ServiceEvent event)
     {
         if (callback != null)
         {
-            String messageId = data.getString(MqttServiceConstants.CALLBACK_MESSAGE_ID);
-            String destinationName = data.getString(MqttServiceConstants.CALLBACK_DESTINATION_NAME);
-
-            ParcelableMqttMessage message = data.getParcelable(MqttServiceConstants.CALLBACK_MESSAGE_PARCEL);
+            long messageId = event.messageId;
+            String destinationName = event.topic;
+            ParcelableMqttMessage message = event.message;
             try
             {
                 if (messageAck == Ack.AUTO_ACK)
@@ -1494,31 +1918,109 @@ public class MqttAndroidClient extends BroadcastReceiver implements IMqttAsyncCl
         }
     }
 
+    /**
+     * Process notification of a batch of messages' arrival, acknowledging
+     * together those which the callback processed
+     *
+     * @param event
+     */
+    private void messagesArrivedAction(ServiceEvent event)
+    {
+        if (callback == null)
+        {
+            return;
+        }
+        String[] destinationNames = event.topics;
+        ParcelableMqttMessage[] messages = event.messages;
+        long[] messageIds = event.messageIds;
+
+        List<Long> processed = new ArrayList<>(messageIds.length);
+        if (callback instanceof MqttCallbackBatch)
+        {
+            List<ArrivedMessage> batch = new ArrayList<>(messageIds.length);
+            for (int i = 0; i < messageIds.length; i++)
+            {
+                messages[i].messageId = messageIds[i];
+                batch.add(new ArrivedMessage(destinationNames[i], messages[i], messageIds[i]));
+            }
+            try
+            {
+                ((MqttCallbackBatch) callback).messagesArrived(batch);
+                for (long messageId : messageIds)
+                {
+                    processed.add(messageId);
+                }
+            }
+            catch (Exception e)
+            {
+                // Swallow the exception
+            }
+        }
+        else
+        {
+            for (int i = 0; i < messageIds.length; i++)
+            {
+                if (messageAck == Ack.MANUAL_ACK)
+                {
+                    messages[i].messageId = messageIds[i];
+                }
+                try
+                {
+                    callback.messageArrived(destinationNames[i], messages[i]);
+                    processed.add(messageIds[i]);
+                }
+                catch (Exception e)
+                {
+                    // Swallow the exception
+                }
+            }
+        }
+
+        if (messageAck == Ack.AUTO_ACK && !processed.isEmpty())
+        {
+            mqttService.acknowledgeMessageArrivals(clientHandle, processed);
+        }
+    }
+
     /**
      * Process trace action - pass trace data back to the callback
      *
-     * @param data
+     * @param event
      */
-    private void traceAction(Bundle data)
+    private void traceAction(ServiceEvent event)
     {
 
         if (traceCallback != null)
         {
-            String severity = data.getString(MqttServiceConstants.CALLBACK_TRACE_SEVERITY);
-            String message = data.getString(MqttServiceConstants.CALLBACK_ERROR_MESSAGE);
-            String tag = data.getString(MqttServiceConstants.CALLBACK_TRACE_TAG);
+            String severity = event.traceSeverity;
+            String message = event.errorMessage;
+            String tag = event.traceTag;
             if (MqttServiceConstants.TRACE_DEBUG.equals(severity))
                 traceCallback.traceDebug(tag, message);
             else if (MqttServiceConstants.TRACE_ERROR.equals(severity))
                 traceCallback.traceError(tag, message);
             else
             {
-                Exception e = (Exception) data.getSerializable(MqttServiceConstants.CALLBACK_EXCEPTION);
+                Exception e = (Exception) event.exception;
                 traceCallback.traceException(tag, message, e);
             }
         }
     }
 
+    /**
+     * Process progress of a paged backlog replay
+     *
+     * @param event
+     */
+    private void backlogReplayAction(ServiceEvent event)
+    {
+        if (backlogReplayCallback != null)
+        {
+            backlogReplayCallback.backlogReplayProgress(
+                    event.backlogDelivered, event.backlogTotal, event.backlogComplete);
+        }
+    }
+
     /**
      * @param token identifying an operation
      * @return an identifier for the token which can be passed to the Android
@@ -1533,13 +2035,13 @@ public class MqttAndroidClient extends BroadcastReceiver implements IMqttAsyncCl
     /**
      * Get a token identified by a string, and remove it from our map
      *
-     * @param data
+     * @param event
      * @return the token
      */
-    private synchronized IMqttToken removeMqttToken(Bundle data)
+    private synchronized IMqttToken removeMqttToken(ServiceEvent event)
     {
 
-        String activityToken = data.getString(MqttServiceConstants.CALLBACK_ACTIVITY_TOKEN);
+        String activityToken = event.activityToken;
         if (activityToken != null)
         {
             int tokenNumber = Integer.parseInt(activityToken);
@@ -1553,17 +2055,26 @@ public class MqttAndroidClient extends BroadcastReceiver implements IMqttAsyncCl
     /**
      * Get a token identified by a string, and remove it from our map
      *
-     * @param data
+     * @param event
      * @return the token
      */
-    private synchronized IMqttToken getMqttToken(Bundle data)
+    private synchronized IMqttToken getMqttToken(ServiceEvent event)
     {
-        String activityToken = data.getString(MqttServiceConstants.CALLBACK_ACTIVITY_TOKEN);
+        String activityToken = event.activityToken;
         return tokenMap.get(Integer.parseInt(activityToken));
     }
 
     /**
      * Sets the DisconnectedBufferOptions for this client
+     * <p>
+     * If the options enable the buffer and ask for it to be persisted, messages
+     * published while disconnected are written to segment files on disk, which
+     * survive the process being killed. The buffer size still limits how many
+     * are kept. Once connected they are sent oldest first, a few at a time, and
+     * messages published meanwhile queue behind them. Each is sent at least
+     * once - one in flight when the connection is lost is sent again. A
+     * message already being sent cannot be deleted from a persisted buffer.
+     * </p>
      *
      * @param bufferOpts the DisconnectedBufferOptions
      */
@@ -1577,6 +2088,16 @@ public class MqttAndroidClient extends BroadcastReceiver implements IMqttAsyncCl
         return mqttService.getBufferedMessageCount(clientHandle);
     }
 
+    /**
+     * @return the bytes taken on disk by buffered messages - zero unless the
+     * DisconnectedBufferOptions persist the buffer
+     * @see #setBufferOpts(DisconnectedBufferOptions)
+     */
+    public long getBufferedMessageBytes()
+    {
+        return mqttService.getBufferedMessageBytes(clientHandle);
+    }
+
     public MqttMessage getBufferedMessage(int bufferIndex)
     {
         return mqttService.getBufferedMessage(clientHandle, bufferIndex);
@@ -1587,6 +2108,55 @@ public class MqttAndroidClient extends BroadcastReceiver implements IMqttAsyncCl
         mqttService.deleteBufferedMessage(clientHandle, bufferIndex);
     }
 
+    /**
+     * Copy a range of the buffered messages, with their topics and when they
+     * were buffered, in a single call to the service
+     *
+     * @param fromIndex the position of the first message, the oldest being 0
+     * @param count     the most messages to copy
+     * @return the messages, oldest first
+     */
+    public List<BufferedMessage> getBufferedMessages(int fromIndex, int count)
+    {
+        return mqttService.getBufferedMessages(clientHandle, fromIndex, count);
+    }
+
+    /**
+     * Delete every buffered message matching a topic filter, age and quality
+     * of service, in a single call to the service - to drop stale readings
+     * before reconnecting, say
+     *
+     * @param topicFilter    an MQTT topic filter, which may contain wildcards, or
+     *                       null for every topic
+     * @param bufferedBefore delete only messages buffered before this time, in
+     *                       milliseconds since the epoch, or zero or less for any time
+     * @param qos            delete only messages of this quality of service, or -1
+     *                       for any
+     * @return the number of messages deleted
+     * @throws IllegalArgumentException if the topic filter or quality of service
+     *                                  is not valid
+     */
+    public int deleteBufferedMessages(String topicFilter, long bufferedBefore, int qos)
+    {
+        return mqttService.deleteBufferedMessages(clientHandle, topicFilter, bufferedBefore, qos);
+    }
+
+    /**
+     * Write every buffered message to a stream, oldest first. Each message is
+     * written as by {@link java.io.DataOutputStream}: the topic (writeUTF),
+     * when it was buffered (writeLong, zero if not known), its quality of
+     * service (writeByte), whether it is retained (writeBoolean), and its
+     * payload as a length (writeInt) followed by the bytes.
+     *
+     * @param out the stream, which is flushed but not closed
+     * @return the number of messages written
+     * @throws IOException if the stream cannot be written, or the buffer read
+     */
+    public int exportBufferedMessages(OutputStream out) throws IOException
+    {
+        return mqttService.exportBufferedMessages(clientHandle, out);
+    }
+
     /**
      * Get the SSLSocketFactory using SSL key store and password
      * <p>
@@ -1657,9 +2227,10 @@ public class MqttAndroidClient extends BroadcastReceiver implements IMqttAsyncCl
         {
             synchronized (MqttAndroidClient.this)
             {
-                LocalBroadcastManager.getInstance(myContext).unregisterReceiver(this);
                 receiverRegistered = false;
             }
+            unregisterListeners();
+            stopCallbackThread();
             if (bindedService)
             {
                 try
@@ -1688,7 +2259,7 @@ public class MqttAndroidClient extends BroadcastReceiver implements IMqttAsyncCl
             this.myContext = context;
             if (!receiverRegistered)
             {
-                registerReceiver(this);
+                registerReceiver();
             }
         }
     }
@@ -1706,11 +2277,31 @@ public class MqttAndroidClient extends BroadcastReceiver implements IMqttAsyncCl
         /**
          * When {@link MqttCallback#messageArrived(String, MqttMessage)} returns, the message
          * will not be acknowledged as received, the application will have to make an acknowledgment call
-         * to {@link MqttAndroidClient} using {@link MqttAndroidClient#acknowledgeMessage(String)}
+         * to {@link MqttAndroidClient} using {@link MqttAndroidClient#acknowledgeMessage(long)}
          */
         MANUAL_ACK
     }
 
+    /**
+     * Runs tasks on the thread of a Handler's looper, in order
+     */
+    private static final class HandlerExecutor implements Executor
+    {
+
+        private final Handler handler;
+
+        HandlerExecutor(Handler handler)
+        {
+            this.handler = handler;
+        }
+
+        @Override
+        public void execute(Runnable task)
+        {
+            handler.post(task);
+        }
+    }
+
     /**
      * ServiceConnection to process when we bind to our service
      */
@@ -0,0 +1,39 @@
+/*******************************************************************************
+ * Copyright (c) 1999, 2014 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ */
+package org.eclipse.paho.android.service;
+
+import org.eclipse.paho.client.mqttv3.MqttCallback;
+
+import java.util.List;
+
+/**
+ * A callback which is passed arrived messages a batch at a time, once
+ * batching is turned on with
+ * {@link MqttAndroidClient#setMessageBatching(int, long)}. Until then, and
+ * for messages replayed from the backlog, messages are passed one at a time
+ * to {@link MqttCallback#messageArrived(String, org.eclipse.paho.client.mqttv3.MqttMessage)}.
+ */
+public interface MqttCallbackBatch extends MqttCallback {
+
+	/**
+	 * Called with messages which arrived from the server, in the order they
+	 * arrived. With automatic acknowledgement the whole batch is acknowledged
+	 * together once this returns, and none of it if this throws.
+	 *
+	 * @param messages
+	 *            the messages
+	 * @throws Exception
+	 *             if the messages could not be processed
+	 */
+	void messagesArrived(List<ArrivedMessage> messages) throws Exception;
+}
@@ -14,7 +14,6 @@ package org.eclipse.paho.android.service;
 
 import android.app.Service;
 import android.content.Context;
-import android.os.Bundle;
 import android.os.PowerManager;
 import android.os.PowerManager.WakeLock;
 import android.util.Log;
@@ -32,13 +31,20 @@ import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
 import org.eclipse.paho.client.mqttv3.MqttException;
 import org.eclipse.paho.client.mqttv3.MqttMessage;
 import org.eclipse.paho.client.mqttv3.MqttPersistenceException;
-import org.eclipse.paho.client.mqttv3.persist.MqttDefaultFilePersistence;
 
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
-import java.util.Iterator;
+import java.util.IdentityHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * <p>
@@ -98,9 +104,50 @@ class MqttConnection implements MqttCallbackExtended
     private Map<IMqttDeliveryToken, MqttMessage> savedSentMessages = new HashMap<>();
     private Map<IMqttDeliveryToken, String> savedActivityTokens = new HashMap<>();
     private Map<IMqttDeliveryToken, String> savedInvocationContexts = new HashMap<>();
+    // when messages went into Paho's buffer, for deleting them by age
+    private Map<IMqttDeliveryToken, Long> savedBufferTimes = new HashMap<>();
     private WakeLock wakelock = null;
     private String wakeLockTag = null;
     private DisconnectedBufferOptions bufferOpts = null;
+    // somewhere to persist received messages until we're sure
+    // that they've reached the application
+    private final MessageStore messageStore;
+    // paged backlog replay - with a page size of zero or less the whole
+    // backlog is delivered before the connection is marked connected
+    private volatile int backlogPageSize = 0;
+    private volatile long backlogPageIntervalMs = 0;
+    // held while an arrived message is stored, and while a paged replay looks
+    // for its next page, so that a message arriving as the replay finishes is
+    // either found by the replay or delivered live - never both or neither
+    private final Object backlogLock = new Object();
+    // guarded by backlogLock - incremented to stop a replay in progress
+    private boolean replayingBacklog = false;
+    private int backlogReplayGeneration = 0;
+    private ExecutorService backlogExecutor = null;
+    // write-behind - with a capacity of zero or less arrived messages are
+    // stored on the thread reading from the network
+    private int writeBehindCapacity = 0;
+    private WriteBehindPolicy writeBehindPolicy = WriteBehindPolicy.BLOCK;
+    private volatile WriteBehindQueue writeBehind = null;
+    // gathers arrived messages into batches for the application - null to
+    // pass each on as it is stored
+    private volatile ArrivalBatcher batcher = null;
+
+    // disk-backed buffer for messages published while disconnected, used when
+    // the DisconnectedBufferOptions ask for the buffer to be persisted
+    private volatile OfflinePublishBuffer offlineBuffer = null;
+    // held while the buffer is drained, and guards the fields below
+    private final Object offlineLock = new Object();
+    private int offlineInFlight = 0;
+    // incremented when the connection is lost, so that late results for
+    // messages sent before then are ignored
+    private int offlineGeneration = 0;
+    private ExecutorService offlineExecutor = null;
+
+    // how long closing waits for queued messages to be written
+    private static final long WRITE_BEHIND_CLOSE_TIMEOUT_MS = 5000;
+    // the directory holding each client's offline buffer
+    private static final String OFFLINE_BUFFER_DIR = "MqttOfflineBuffer";
 
     /**
      * Constructor - create an MqttConnection to communicate with MQTT server
@@ -112,9 +159,12 @@ class MqttConnection implements MqttCallbackExtended
      * @param persistence  the persistence class to use to store in-flight message. If
      *                     null then the default persistence mechanism is used
      * @param clientHandle the "handle" by which the activity will identify us
+     * @param messageStoreProvider chooses the store for arrived messages. If
+     *                     null, or it provides no store, the service's store is used
      */
     MqttConnection(MqttService service, String serverURI, String clientId,
-            MqttClientPersistence persistence, String clientHandle)
+            MqttClientPersistence persistence, String clientHandle,
+            MessageStoreProvider messageStoreProvider)
     {
         this.serverURI = serverURI;
         this.service = service;
@@ -122,6 +172,13 @@ class MqttConnection implements MqttCallbackExtended
         this.persistence = persistence;
         this.clientHandle = clientHandle;
 
+        MessageStore store = null;
+        if (messageStoreProvider != null)
+        {
+            store = messageStoreProvider.createMessageStore(service, clientHandle);
+        }
+        this.messageStore = store != null ? store : service.messageStore;
+
         StringBuilder stringBuilder = new StringBuilder(this.getClass().getCanonicalName());
         stringBuilder.append(" ");
         stringBuilder.append(clientId);
@@ -131,6 +188,14 @@ class MqttConnection implements MqttCallbackExtended
         wakeLockTag = stringBuilder.toString();
     }
 
+    /**
+     * @return the store holding this connection's arrived messages
+     */
+    MessageStore getMessageStore()
+    {
+        return messageStore;
+    }
+
     public String getServerURI()
     {
         return serverURI;
@@ -195,59 +260,36 @@ class MqttConnection implements MqttCallbackExtended
         if (connectOptions.isCleanSession())
         { // if it's a clean session,
             // discard old data
-            service.messageStore.clearArrivedMessages(clientHandle);
+            messageStore.clearArrivedMessages(clientHandle);
         }
 
         service.traceDebug(TAG, "Connecting {" + serverURI + "} as {" + clientId + "}");
-        final Bundle resultBundle = new Bundle();
-        resultBundle.putString(MqttServiceConstants.CALLBACK_ACTIVITY_TOKEN,
-                activityToken);
-        resultBundle.putString(
-                MqttServiceConstants.CALLBACK_INVOCATION_CONTEXT,
-                invocationContext);
-        resultBundle.putString(MqttServiceConstants.CALLBACK_ACTION,
-                MqttServiceConstants.CONNECT_ACTION);
+        final ServiceEvent resultEvent = new ServiceEvent(ServiceEvent.CONNECT,
+                activityToken, invocationContext);
 
 
         try
         {
             if (persistence == null)
             {
-                // ask Android where we can put files
-                File myDir = service.getExternalFilesDir(TAG);
-
-                if (myDir == null)
+                // in-flight messages go to a database of the client's own,
+                // taking over any left in the files of earlier versions
+                File legacyDir = service.getExternalFilesDir(TAG);
+                if (legacyDir == null)
                 {
-                    // No external storage, use internal storage instead.
-                    myDir = service.getDir(TAG, Context.MODE_PRIVATE);
-
-                    if (myDir == null)
-                    {
-                        //Shouldn't happen.
-                        resultBundle.putString(
-                                MqttServiceConstants.CALLBACK_ERROR_MESSAGE,
-                                "Error! No external and internal storage available");
-                        resultBundle.putSerializable(
-                                MqttServiceConstants.CALLBACK_EXCEPTION, new MqttPersistenceException());
-                        service.callbackToActivity(clientHandle, Status.ERROR,
-                                resultBundle);
-                        return;
-                    }
+                    legacyDir = service.getDir(TAG, Context.MODE_PRIVATE);
                 }
-
-                // use that to setup MQTT client persistence storage
-                persistence = new MqttDefaultFilePersistence(
-                        myDir.getAbsolutePath());
+                persistence = new DatabaseClientPersistence(service, legacyDir);
             }
 
             IMqttActionListener listener = new MqttConnectionListener(
-                    resultBundle)
+                    resultEvent)
             {
 
                 @Override
                 public void onSuccess(IMqttToken asyncActionToken)
                 {
-                    doAfterConnectSuccess(resultBundle);
+                    doAfterConnectSuccess(resultEvent);
                     service.traceDebug(TAG, "connect success!");
                 }
 
@@ -255,16 +297,13 @@ class MqttConnection implements MqttCallbackExtended
                 public void onFailure(IMqttToken asyncActionToken,
                         Throwable exception)
                 {
-                    resultBundle.putString(
-                            MqttServiceConstants.CALLBACK_ERROR_MESSAGE,
-                            exception.getLocalizedMessage());
-                    resultBundle.putSerializable(
-                            MqttServiceConstants.CALLBACK_EXCEPTION, exception);
+                    resultEvent.errorMessage = exception.getLocalizedMessage();
+                    resultEvent.exception = exception;
                     service.traceError(TAG,
                             "connect fail, call connect to reconnect.reason:"
                                     + exception.getMessage());
 
-                    doAfterConnectFail(resultBundle);
+                    doAfterConnectFail(resultEvent);
 
                 }
             };
@@ -281,7 +320,7 @@ class MqttConnection implements MqttCallbackExtended
                 else if (!disconnected)
                 {
                     service.traceDebug(TAG, "myClient != null and the client is connected and notify!");
-                    doAfterConnectSuccess(resultBundle);
+                    doAfterConnectSuccess(resultEvent);
                 }
                 else
                 {
@@ -298,6 +337,7 @@ class MqttConnection implements MqttCallbackExtended
                 alarmPingSender = new AlarmPingSender(service);
                 myClient = new MqttAsyncClient(serverURI, clientId,
                         persistence, alarmPingSender);
+                startWriteBehind();
                 myClient.setCallback(this);
 
                 service.traceDebug(TAG, "Do Real connect!");
@@ -309,50 +349,56 @@ class MqttConnection implements MqttCallbackExtended
         {
             service.traceError(TAG, "Exception occurred attempting to connect: " + e.getMessage());
             setConnectingState(false);
-            handleException(resultBundle, e);
+            handleException(resultEvent, e);
         }
     }
 
-    private void doAfterConnectSuccess(final Bundle resultBundle)
+    private void doAfterConnectSuccess(final ServiceEvent resultEvent)
     {
         //since the device's cpu can go to sleep, acquire a wakelock and drop it later.
         acquireWakeLock();
-        service.callbackToActivity(clientHandle, Status.OK, resultBundle);
-        deliverBacklog();
+        service.callbackToActivity(clientHandle, Status.OK, resultEvent);
+        if (backlogPageSize > 0)
+        {
+            replayBacklog();
+        }
+        else
+        {
+            deliverBacklog();
+        }
         setConnectingState(false);
         disconnected = false;
+        scheduleOfflineDrain();
         releaseWakeLock();
     }
 
     @Override
     public void connectComplete(boolean reconnect, String serverURI)
     {
-        Bundle resultBundle = new Bundle();
-        resultBundle.putString(MqttServiceConstants.CALLBACK_ACTION,
-                MqttServiceConstants.CONNECT_EXTENDED_ACTION);
-        resultBundle.putBoolean(MqttServiceConstants.CALLBACK_RECONNECT, reconnect);
-        resultBundle.putString(MqttServiceConstants.CALLBACK_SERVER_URI, serverURI);
-        service.callbackToActivity(clientHandle, Status.OK, resultBundle);
+        ServiceEvent resultEvent = new ServiceEvent(ServiceEvent.CONNECT_EXTENDED);
+        resultEvent.reconnect = reconnect;
+        resultEvent.serverURI = serverURI;
+        service.callbackToActivity(clientHandle, Status.OK, resultEvent);
+        scheduleOfflineDrain();
     }
 
-    private void doAfterConnectFail(final Bundle resultBundle)
+    private void doAfterConnectFail(final ServiceEvent resultEvent)
     {
         //
         acquireWakeLock();
         disconnected = true;
         setConnectingState(false);
-        service.callbackToActivity(clientHandle, Status.ERROR, resultBundle);
+        service.callbackToActivity(clientHandle, Status.ERROR, resultEvent);
         releaseWakeLock();
     }
 
-    private void handleException(final Bundle resultBundle, Exception e)
+    private void handleException(final ServiceEvent resultEvent, Exception e)
     {
-        resultBundle.putString(MqttServiceConstants.CALLBACK_ERROR_MESSAGE,
-                e.getLocalizedMessage());
+        resultEvent.errorMessage = e.getLocalizedMessage();
 
-        resultBundle.putSerializable(MqttServiceConstants.CALLBACK_EXCEPTION, e);
+        resultEvent.exception = e;
 
-        service.callbackToActivity(clientHandle, Status.ERROR, resultBundle);
+        service.callbackToActivity(clientHandle, Status.ERROR, resultEvent);
     }
 
     /**
@@ -362,45 +408,365 @@ class MqttConnection implements MqttCallbackExtended
      */
     private void deliverBacklog()
     {
-        Iterator<StoredMessage> backlog = service.messageStore
-                .getAllArrivedMessages(clientHandle);
-        while (backlog.hasNext())
+        MessageStore.StoredMessageCursor backlog = messageStore
+                .openArrivedMessages(clientHandle, null, 0, 0);
+        try
         {
-            StoredMessage msgArrived = backlog.next();
-            Bundle resultBundle = messageToBundle(msgArrived.getMessageId(),
-                    msgArrived.getTopic(), msgArrived.getMessage());
-            resultBundle.putString(MqttServiceConstants.CALLBACK_ACTION,
-                    MqttServiceConstants.MESSAGE_ARRIVED_ACTION);
-            service.callbackToActivity(clientHandle, Status.OK, resultBundle);
+            while (backlog.moveToNext())
+            {
+                deliverStoredMessage(backlog.getMessage());
+            }
+        }
+        finally
+        {
+            backlog.close();
         }
     }
 
     /**
-     * Create a bundle containing all relevant data pertaining to a message
+     * Deliver outstanding messages a page at a time, on a thread of our own,
+     * so that a large backlog neither holds up the connection nor floods the
+     * Activity. Messages arriving meanwhile are stored, and delivered by the
+     * replay after the older ones.
+     */
+    private void replayBacklog()
+    {
+        final int generation;
+        synchronized (backlogLock)
+        {
+            replayingBacklog = true;
+            generation = ++backlogReplayGeneration;
+            if (backlogExecutor == null)
+            {
+                backlogExecutor = Executors.newSingleThreadExecutor();
+            }
+        }
+        backlogExecutor.execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    replayBacklogPages(generation);
+                }
+                catch (RuntimeException e)
+                {
+                    service.traceException(TAG, "replayBacklog", e);
+                    stopBacklogReplay();
+                }
+            }
+        });
+    }
+
+    /**
+     * Deliver the backlog page by page, using the last message of each page to
+     * find the next
      *
-     * @param messageId the message's identifier in the messageStore, so that a
-     *                  callback can be made to remove it once delivered
-     * @param topic     the topic on which the message was delivered
-     * @param message   the message itself
-     * @return the bundle
+     * @param generation identifies this replay, so that it stops if it is replaced
      */
-    private Bundle messageToBundle(String messageId, String topic,
-            MqttMessage message)
-    {
-        Bundle result = new Bundle();
-        result.putString(MqttServiceConstants.CALLBACK_MESSAGE_ID, messageId);
-        result.putString(MqttServiceConstants.CALLBACK_DESTINATION_NAME, topic);
-        result.putParcelable(MqttServiceConstants.CALLBACK_MESSAGE_PARCEL,
-                new ParcelableMqttMessage(message));
+    private void replayBacklogPages(int generation)
+    {
+        int pageSize = backlogPageSize;
+        long pageIntervalMs = backlogPageIntervalMs;
+        int total = messageStore.getArrivedCount(clientHandle);
+        int delivered = 0;
+        StoredMessage last = null;
+        while (true)
+        {
+            List<StoredMessage> page;
+            synchronized (backlogLock)
+            {
+                if (generation != backlogReplayGeneration)
+                {
+                    return;
+                }
+                page = messageStore.getArrivedMessages(clientHandle, last, pageSize);
+                if (page.isEmpty())
+                {
+                    // from here on messages are delivered as they arrive
+                    replayingBacklog = false;
+                    break;
+                }
+            }
+            for (StoredMessage message : page)
+            {
+                deliverStoredMessage(message);
+            }
+            delivered += page.size();
+            last = page.get(page.size() - 1);
+            total = Math.max(total, delivered);
+            reportBacklogProgress(delivered, total, false);
+
+            if (pageIntervalMs > 0)
+            {
+                try
+                {
+                    Thread.sleep(pageIntervalMs);
+                }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                    stopBacklogReplay();
+                    return;
+                }
+            }
+        }
+        service.traceDebug(TAG, "Backlog replay delivered " + delivered + " messages");
+        reportBacklogProgress(delivered, delivered, true);
+    }
+
+    /**
+     * Stop any paged replay in progress. Messages it has not reached stay in the
+     * store, and are delivered by the next replay.
+     */
+    private void stopBacklogReplay()
+    {
+        synchronized (backlogLock)
+        {
+            backlogReplayGeneration++;
+            replayingBacklog = false;
+        }
+    }
+
+    private void reportBacklogProgress(int delivered, int total, boolean complete)
+    {
+        ServiceEvent resultEvent = new ServiceEvent(ServiceEvent.BACKLOG_REPLAY);
+        resultEvent.backlogDelivered = delivered;
+        resultEvent.backlogTotal = total;
+        resultEvent.backlogComplete = complete;
+        service.callbackToActivity(clientHandle, Status.OK, resultEvent);
+    }
+
+    /**
+     * Pass a stored message to the Activity
+     *
+     * @param msgArrived the message
+     */
+    private void deliverStoredMessage(StoredMessage msgArrived)
+    {
+        ServiceEvent resultEvent = messageEvent(ServiceEvent.MESSAGE_ARRIVED,
+                msgArrived.getTopic(), msgArrived.getMessage());
+        resultEvent.messageId = msgArrived.getMessageId();
+        service.callbackToActivity(clientHandle, Status.OK, resultEvent);
+    }
+
+    /**
+     * Deliver the backlog a page at a time, on a thread of its own, after
+     * connecting
+     *
+     * @param pageSize       the number of messages delivered together - zero or less
+     *                       to deliver the whole backlog before the connection is
+     *                       reported as complete
+     * @param pageIntervalMs the pause after each page
+     */
+    void setBacklogReplay(int pageSize, long pageIntervalMs)
+    {
+        backlogPageSize = pageSize;
+        backlogPageIntervalMs = Math.max(0, pageIntervalMs);
+    }
+
+    /**
+     * Pass arrived messages to the application in batches, once a batch holds
+     * <code>maxMessages</code> or its first message has waited
+     * <code>maxDelayMs</code>. Takes effect at once, passing on any batch
+     * gathered under the previous settings.
+     *
+     * @param maxMessages the most messages in a batch - one or less to pass each
+     *                    message on as it is stored
+     * @param maxDelayMs  the longest a message waits for others to join its batch
+     */
+    void setMessageBatching(int maxMessages, long maxDelayMs)
+    {
+        ArrivalBatcher previous;
+        synchronized (backlogLock)
+        {
+            previous = batcher;
+            batcher = maxMessages > 1 ? new ArrivalBatcher(clientId, maxMessages, maxDelayMs,
+                    new ArrivalBatcher.Sink()
+                    {
+                        @Override
+                        public void deliver(List<ArrivedMessage> batch)
+                        {
+                            deliverBatch(batch);
+                        }
+                    }, service) : null;
+        }
+        if (previous != null)
+        {
+            previous.close();
+        }
+    }
+
+    /**
+     * Pass a batch of stored messages to the Activity in one callback
+     *
+     * @param batch the messages, in the order they arrived
+     */
+    private void deliverBatch(List<ArrivedMessage> batch)
+    {
+        int size = batch.size();
+        String[] topics = new String[size];
+        ParcelableMqttMessage[] messages = new ParcelableMqttMessage[size];
+        long[] messageIds = new long[size];
+        for (int i = 0; i < size; i++)
+        {
+            ArrivedMessage arrived = batch.get(i);
+            topics[i] = arrived.getTopic();
+            messages[i] = new ParcelableMqttMessage(arrived.getMessage());
+            messageIds[i] = arrived.getMessageId();
+        }
+        ServiceEvent resultEvent = new ServiceEvent(ServiceEvent.MESSAGES_ARRIVED);
+        resultEvent.topics = topics;
+        resultEvent.messages = messages;
+        resultEvent.messageIds = messageIds;
+        service.callbackToActivity(clientHandle, Status.OK, resultEvent);
+    }
+
+    /**
+     * Create an event containing all relevant data pertaining to a message.
+     * An arrived message also needs its identifier in the messageStore, so that
+     * a callback can be made to remove it once delivered.
+     *
+     * @param action  the event's action code
+     * @param topic   the topic on which the message was delivered
+     * @param message the message itself
+     * @return the event
+     */
+    private ServiceEvent messageEvent(int action, String topic, MqttMessage message)
+    {
+        ServiceEvent result = new ServiceEvent(action);
+        result.topic = topic;
+        result.message = new ParcelableMqttMessage(message);
         return result;
     }
 
+    /**
+     * Store arrived messages on a thread of their own, queueing at most
+     * <code>capacity</code> of them. Takes effect when the client is first
+     * connected.
+     *
+     * @param capacity the size of the queue - zero or less to store messages on
+     *                 the thread reading from the network
+     * @param policy   what to do with a message when the queue is full
+     */
+    void setWriteBehind(int capacity, WriteBehindPolicy policy)
+    {
+        writeBehindCapacity = capacity;
+        writeBehindPolicy = policy != null ? policy : WriteBehindPolicy.BLOCK;
+    }
+
+    /**
+     * @return the metrics of the write-behind queue, or null if messages are
+     * stored on the thread reading from the network
+     */
+    WriteBehindMetrics getWriteBehindMetrics()
+    {
+        WriteBehindQueue queue = writeBehind;
+        return queue == null ? null : queue.getMetrics();
+    }
+
+    /**
+     * Start the write-behind queue, if one has been asked for. The client then
+     * acknowledges each message itself, once it has been stored, rather than
+     * Paho doing so when messageArrived returns.
+     */
+    private void startWriteBehind()
+    {
+        if (writeBehindCapacity <= 0)
+        {
+            return;
+        }
+        myClient.setManualAcks(true);
+        writeBehind = new WriteBehindQueue(clientHandle, writeBehindCapacity, writeBehindPolicy,
+                new WriteBehindQueue.Writer()
+                {
+                    @Override
+                    public void write(String topic, MqttMessage message) throws Exception
+                    {
+                        storeAndDeliver(topic, message);
+                        myClient.messageArrivedComplete(message.getId(), message.getQos());
+                    }
+
+                    @Override
+                    public void failed(String topic, MqttMessage message, Exception e)
+                    {
+                        storeFailed(e);
+                    }
+                }, service);
+        writeBehind.start();
+    }
+
+    /**
+     * Drop the connection when the write-behind queue could not store a
+     * message, as Paho does when messageArrived throws. The message has not
+     * been acknowledged, so a persistent session has it sent again after
+     * reconnecting, and the activity is told the connection was lost.
+     *
+     * @param e why the message could not be stored
+     */
+    private void storeFailed(Exception e)
+    {
+        if (!isConnected())
+        {
+            // already dropped - the message is sent again with the others
+            // not acknowledged
+            return;
+        }
+        try
+        {
+            myClient.disconnectForcibly(0, WRITE_BEHIND_CLOSE_TIMEOUT_MS, false);
+        }
+        catch (MqttException ex)
+        {
+            service.traceException(TAG, "storeFailed", ex);
+        }
+        connectionLost(new MqttException(e));
+        if (connectOptions.isAutomaticReconnect())
+        {
+            // a connection we dropped ourselves is not reconnected by Paho
+            reconnect();
+        }
+    }
+
     /**
      * Close connection from the server
      */
     void close()
     {
         service.traceDebug(TAG, "close()");
+        stopBacklogReplay();
+        WriteBehindQueue queue = writeBehind;
+        if (queue != null)
+        {
+            queue.close(WRITE_BEHIND_CLOSE_TIMEOUT_MS);
+        }
+        ArrivalBatcher arrivals = batcher;
+        if (arrivals != null)
+        {
+            arrivals.close();
+        }
+        synchronized (backlogLock)
+        {
+            if (backlogExecutor != null)
+            {
+                backlogExecutor.shutdown();
+                backlogExecutor = null;
+            }
+        }
+        synchronized (offlineLock)
+        {
+            if (offlineExecutor != null)
+            {
+                offlineExecutor.shutdown();
+                offlineExecutor = null;
+            }
+            if (offlineBuffer != null)
+            {
+                offlineBuffer.close();
+                offlineBuffer = null;
+            }
+        }
         try
         {
             if (myClient != null)
@@ -410,8 +776,8 @@ class MqttConnection implements MqttCallbackExtended
         }
         catch (MqttException e)
         {
-            // Pass a new bundle, let handleException stores error messages.
-            handleException(new Bundle(), e);
+            // Pass a new event, let handleException stores error messages.
+            handleException(new ServiceEvent(ServiceEvent.UNKNOWN), e);
         }
     }
 
@@ -427,40 +793,33 @@ class MqttConnection implements MqttCallbackExtended
     {
         service.traceDebug(TAG, "disconnect()");
         disconnected = true;
-        final Bundle resultBundle = new Bundle();
-        resultBundle.putString(MqttServiceConstants.CALLBACK_ACTIVITY_TOKEN,
-                activityToken);
-        resultBundle.putString(
-                MqttServiceConstants.CALLBACK_INVOCATION_CONTEXT,
-                invocationContext);
-        resultBundle.putString(MqttServiceConstants.CALLBACK_ACTION,
-                MqttServiceConstants.DISCONNECT_ACTION);
+        final ServiceEvent resultEvent = new ServiceEvent(ServiceEvent.DISCONNECT,
+                activityToken, invocationContext);
         if ((myClient != null) && (myClient.isConnected()))
         {
             IMqttActionListener listener = new MqttConnectionListener(
-                    resultBundle);
+                    resultEvent);
             try
             {
                 myClient.disconnect(quiesceTimeout, invocationContext, listener);
             }
             catch (Exception e)
             {
-                handleException(resultBundle, e);
+                handleException(resultEvent, e);
             }
         }
         else
         {
-            resultBundle.putString(MqttServiceConstants.CALLBACK_ERROR_MESSAGE,
-                    NOT_CONNECTED);
+            resultEvent.errorMessage = NOT_CONNECTED;
             service.traceError(MqttServiceConstants.DISCONNECT_ACTION,
                     NOT_CONNECTED);
-            service.callbackToActivity(clientHandle, Status.ERROR, resultBundle);
+            service.callbackToActivity(clientHandle, Status.ERROR, resultEvent);
         }
 
         if (connectOptions != null && connectOptions.isCleanSession())
         {
             // assume we'll clear the stored messages at this point
-            service.messageStore.clearArrivedMessages(clientHandle);
+            messageStore.clearArrivedMessages(clientHandle);
         }
 
         releaseWakeLock();
@@ -476,40 +835,33 @@ class MqttConnection implements MqttCallbackExtended
     {
         service.traceDebug(TAG, "disconnect()");
         disconnected = true;
-        final Bundle resultBundle = new Bundle();
-        resultBundle.putString(MqttServiceConstants.CALLBACK_ACTIVITY_TOKEN,
-                activityToken);
-        resultBundle.putString(
-                MqttServiceConstants.CALLBACK_INVOCATION_CONTEXT,
-                invocationContext);
-        resultBundle.putString(MqttServiceConstants.CALLBACK_ACTION,
-                MqttServiceConstants.DISCONNECT_ACTION);
+        final ServiceEvent resultEvent = new ServiceEvent(ServiceEvent.DISCONNECT,
+                activityToken, invocationContext);
         if ((myClient != null) && (myClient.isConnected()))
         {
             IMqttActionListener listener = new MqttConnectionListener(
-                    resultBundle);
+                    resultEvent);
             try
             {
                 myClient.disconnect(invocationContext, listener);
             }
             catch (Exception e)
             {
-                handleException(resultBundle, e);
+                handleException(resultEvent, e);
             }
         }
         else
         {
-            resultBundle.putString(MqttServiceConstants.CALLBACK_ERROR_MESSAGE,
-                    NOT_CONNECTED);
+            resultEvent.errorMessage = NOT_CONNECTED;
             service.traceError(MqttServiceConstants.DISCONNECT_ACTION,
                     NOT_CONNECTED);
-            service.callbackToActivity(clientHandle, Status.ERROR, resultBundle);
+            service.callbackToActivity(clientHandle, Status.ERROR, resultEvent);
         }
 
         if (connectOptions != null && connectOptions.isCleanSession())
         {
             // assume we'll clear the stored messages at this point
-            service.messageStore.clearArrivedMessages(clientHandle);
+            messageStore.clearArrivedMessages(clientHandle);
         }
         releaseWakeLock();
     }
@@ -537,21 +889,15 @@ class MqttConnection implements MqttCallbackExtended
     public IMqttDeliveryToken publish(String topic, byte[] payload, int qos,
             boolean retained, String invocationContext, String activityToken)
     {
-        final Bundle resultBundle = new Bundle();
-        resultBundle.putString(MqttServiceConstants.CALLBACK_ACTION,
-                MqttServiceConstants.SEND_ACTION);
-        resultBundle.putString(MqttServiceConstants.CALLBACK_ACTIVITY_TOKEN,
-                activityToken);
-        resultBundle.putString(
-                MqttServiceConstants.CALLBACK_INVOCATION_CONTEXT,
-                invocationContext);
+        final ServiceEvent resultEvent = new ServiceEvent(ServiceEvent.SEND,
+                activityToken, invocationContext);
 
         IMqttDeliveryToken sendToken = null;
 
         if ((myClient != null) && (myClient.isConnected()))
         {
             IMqttActionListener listener = new MqttConnectionListener(
-                    resultBundle);
+                    resultEvent);
             try
             {
                 MqttMessage message = new MqttMessage(payload);
@@ -564,15 +910,14 @@ class MqttConnection implements MqttCallbackExtended
             }
             catch (Exception e)
             {
-                handleException(resultBundle, e);
+                handleException(resultEvent, e);
             }
         }
         else
         {
-            resultBundle.putString(MqttServiceConstants.CALLBACK_ERROR_MESSAGE,
-                    NOT_CONNECTED);
+            resultEvent.errorMessage = NOT_CONNECTED;
             service.traceError(MqttServiceConstants.SEND_ACTION, NOT_CONNECTED);
-            service.callbackToActivity(clientHandle, Status.ERROR, resultBundle);
+            service.callbackToActivity(clientHandle, Status.ERROR, resultEvent);
         }
 
         return sendToken;
@@ -591,21 +936,23 @@ class MqttConnection implements MqttCallbackExtended
     public IMqttDeliveryToken publish(String topic, MqttMessage message,
             String invocationContext, String activityToken)
     {
-        final Bundle resultBundle = new Bundle();
-        resultBundle.putString(MqttServiceConstants.CALLBACK_ACTION,
-                MqttServiceConstants.SEND_ACTION);
-        resultBundle.putString(MqttServiceConstants.CALLBACK_ACTIVITY_TOKEN,
-                activityToken);
-        resultBundle.putString(
-                MqttServiceConstants.CALLBACK_INVOCATION_CONTEXT,
-                invocationContext);
+        final ServiceEvent resultEvent = new ServiceEvent(ServiceEvent.SEND,
+                activityToken, invocationContext);
 
         IMqttDeliveryToken sendToken = null;
 
-        if ((myClient != null) && (myClient.isConnected()))
+        OfflinePublishBuffer buffer = offlineBuffer;
+        if ((myClient != null) && (buffer != null)
+                && (!myClient.isConnected() || buffer.getMessageCount() > 0))
+        {
+            // buffered messages go first, so later ones queue behind them
+            bufferOffline(buffer, topic, message, invocationContext,
+                    activityToken, resultEvent);
+        }
+        else if ((myClient != null) && (myClient.isConnected()))
         {
             IMqttActionListener listener = new MqttConnectionListener(
-                    resultBundle);
+                    resultEvent);
             try
             {
                 sendToken = myClient.publish(topic, message, invocationContext,
@@ -615,33 +962,33 @@ class MqttConnection implements MqttCallbackExtended
             }
             catch (Exception e)
             {
-                handleException(resultBundle, e);
+                handleException(resultEvent, e);
             }
         }
         else if ((myClient != null) && (this.bufferOpts != null) && (this.bufferOpts.isBufferEnabled()))
         {
             // Client is not connected, but buffer is enabled, so sending message
             IMqttActionListener listener = new MqttConnectionListener(
-                    resultBundle);
+                    resultEvent);
             try
             {
                 sendToken = myClient.publish(topic, message, invocationContext,
                         listener);
                 storeSendDetails(topic, message, sendToken, invocationContext,
                         activityToken);
+                savedBufferTimes.put(sendToken, System.currentTimeMillis());
             }
             catch (Exception e)
             {
-                handleException(resultBundle, e);
+                handleException(resultEvent, e);
             }
         }
         else
         {
             Log.i(TAG, "Client is not connected, so not sending message");
-            resultBundle.putString(MqttServiceConstants.CALLBACK_ERROR_MESSAGE,
-                    NOT_CONNECTED);
+            resultEvent.errorMessage = NOT_CONNECTED;
             service.traceError(MqttServiceConstants.SEND_ACTION, NOT_CONNECTED);
-            service.callbackToActivity(clientHandle, Status.ERROR, resultBundle);
+            service.callbackToActivity(clientHandle, Status.ERROR, resultEvent);
         }
         return sendToken;
     }
@@ -659,34 +1006,27 @@ class MqttConnection implements MqttCallbackExtended
     {
         service.traceDebug(TAG, "subscribe({" + topic + "}," + qos + ",{"
                 + invocationContext + "}, {" + activityToken + "}");
-        final Bundle resultBundle = new Bundle();
-        resultBundle.putString(MqttServiceConstants.CALLBACK_ACTION,
-                MqttServiceConstants.SUBSCRIBE_ACTION);
-        resultBundle.putString(MqttServiceConstants.CALLBACK_ACTIVITY_TOKEN,
-                activityToken);
-        resultBundle.putString(
-                MqttServiceConstants.CALLBACK_INVOCATION_CONTEXT,
-                invocationContext);
+        final ServiceEvent resultEvent = new ServiceEvent(ServiceEvent.SUBSCRIBE,
+                activityToken, invocationContext);
 
         if ((myClient != null) && (myClient.isConnected()))
         {
             IMqttActionListener listener = new MqttConnectionListener(
-                    resultBundle);
+                    resultEvent);
             try
             {
                 myClient.subscribe(topic, qos, invocationContext, listener);
             }
             catch (Exception e)
             {
-                handleException(resultBundle, e);
+                handleException(resultEvent, e);
             }
         }
         else
         {
-            resultBundle.putString(MqttServiceConstants.CALLBACK_ERROR_MESSAGE,
-                    NOT_CONNECTED);
+            resultEvent.errorMessage = NOT_CONNECTED;
             service.traceError("subscribe", NOT_CONNECTED);
-            service.callbackToActivity(clientHandle, Status.ERROR, resultBundle);
+            service.callbackToActivity(clientHandle, Status.ERROR, resultEvent);
         }
     }
 
@@ -703,34 +1043,27 @@ class MqttConnection implements MqttCallbackExtended
     {
         service.traceDebug(TAG, "subscribe({" + Arrays.toString(topic) + "}," + Arrays.toString(qos) + ",{"
                 + invocationContext + "}, {" + activityToken + "}");
-        final Bundle resultBundle = new Bundle();
-        resultBundle.putString(MqttServiceConstants.CALLBACK_ACTION,
-                MqttServiceConstants.SUBSCRIBE_ACTION);
-        resultBundle.putString(MqttServiceConstants.CALLBACK_ACTIVITY_TOKEN,
-                activityToken);
-        resultBundle.putString(
-                MqttServiceConstants.CALLBACK_INVOCATION_CONTEXT,
-                invocationContext);
+        final ServiceEvent resultEvent = new ServiceEvent(ServiceEvent.SUBSCRIBE,
+                activityToken, invocationContext);
 
         if ((myClient != null) && (myClient.isConnected()))
         {
             IMqttActionListener listener = new MqttConnectionListener(
-                    resultBundle);
+                    resultEvent);
             try
             {
                 myClient.subscribe(topic, qos, invocationContext, listener);
             }
             catch (Exception e)
             {
-                handleException(resultBundle, e);
+                handleException(resultEvent, e);
             }
         }
         else
         {
-            resultBundle.putString(MqttServiceConstants.CALLBACK_ERROR_MESSAGE,
-                    NOT_CONNECTED);
+            resultEvent.errorMessage = NOT_CONNECTED;
             service.traceError("subscribe", NOT_CONNECTED);
-            service.callbackToActivity(clientHandle, Status.ERROR, resultBundle);
+            service.callbackToActivity(clientHandle, Status.ERROR, resultEvent);
         }
     }
 
@@ -739,13 +1072,11 @@ class MqttConnection implements MqttCallbackExtended
     {
         service.traceDebug(TAG, "subscribe({" + Arrays.toString(topicFilters) + "}," + Arrays.toString(qos) + ",{"
                 + invocationContext + "}, {" + activityToken + "}");
-        final Bundle resultBundle = new Bundle();
-        resultBundle.putString(MqttServiceConstants.CALLBACK_ACTION, MqttServiceConstants.SUBSCRIBE_ACTION);
-        resultBundle.putString(MqttServiceConstants.CALLBACK_ACTIVITY_TOKEN, activityToken);
-        resultBundle.putString(MqttServiceConstants.CALLBACK_INVOCATION_CONTEXT, invocationContext);
+        final ServiceEvent resultEvent = new ServiceEvent(ServiceEvent.SUBSCRIBE,
+                activityToken, invocationContext);
         if ((myClient != null) && (myClient.isConnected()))
         {
-            IMqttActionListener listener = new MqttConnectionListener(resultBundle);
+            IMqttActionListener listener = new MqttConnectionListener(resultEvent);
             try
             {
 
@@ -753,14 +1084,14 @@ class MqttConnection implements MqttCallbackExtended
             }
             catch (Exception e)
             {
-                handleException(resultBundle, e);
+                handleException(resultEvent, e);
             }
         }
         else
         {
-            resultBundle.putString(MqttServiceConstants.CALLBACK_ERROR_MESSAGE, NOT_CONNECTED);
+            resultEvent.errorMessage = NOT_CONNECTED;
             service.traceError("subscribe", NOT_CONNECTED);
-            service.callbackToActivity(clientHandle, Status.ERROR, resultBundle);
+            service.callbackToActivity(clientHandle, Status.ERROR, resultEvent);
         }
     }
 
@@ -776,34 +1107,27 @@ class MqttConnection implements MqttCallbackExtended
     {
         service.traceDebug(TAG, "unsubscribe({" + topic + "},{"
                 + invocationContext + "}, {" + activityToken + "})");
-        final Bundle resultBundle = new Bundle();
-        resultBundle.putString(MqttServiceConstants.CALLBACK_ACTION,
-                MqttServiceConstants.UNSUBSCRIBE_ACTION);
-        resultBundle.putString(MqttServiceConstants.CALLBACK_ACTIVITY_TOKEN,
-                activityToken);
-        resultBundle.putString(
-                MqttServiceConstants.CALLBACK_INVOCATION_CONTEXT,
-                invocationContext);
+        final ServiceEvent resultEvent = new ServiceEvent(ServiceEvent.UNSUBSCRIBE,
+                activityToken, invocationContext);
         if ((myClient != null) && (myClient.isConnected()))
         {
             IMqttActionListener listener = new MqttConnectionListener(
-                    resultBundle);
+                    resultEvent);
             try
             {
                 myClient.unsubscribe(topic, invocationContext, listener);
             }
             catch (Exception e)
             {
-                handleException(resultBundle, e);
+                handleException(resultEvent, e);
             }
         }
         else
         {
-            resultBundle.putString(MqttServiceConstants.CALLBACK_ERROR_MESSAGE,
-                    NOT_CONNECTED);
+            resultEvent.errorMessage = NOT_CONNECTED;
 
             service.traceError("subscribe", NOT_CONNECTED);
-            service.callbackToActivity(clientHandle, Status.ERROR, resultBundle);
+            service.callbackToActivity(clientHandle, Status.ERROR, resultEvent);
         }
     }
 
@@ -819,34 +1143,27 @@ class MqttConnection implements MqttCallbackExtended
     {
         service.traceDebug(TAG, "unsubscribe({" + Arrays.toString(topic) + "},{"
                 + invocationContext + "}, {" + activityToken + "})");
-        final Bundle resultBundle = new Bundle();
-        resultBundle.putString(MqttServiceConstants.CALLBACK_ACTION,
-                MqttServiceConstants.UNSUBSCRIBE_ACTION);
-        resultBundle.putString(MqttServiceConstants.CALLBACK_ACTIVITY_TOKEN,
-                activityToken);
-        resultBundle.putString(
-                MqttServiceConstants.CALLBACK_INVOCATION_CONTEXT,
-                invocationContext);
+        final ServiceEvent resultEvent = new ServiceEvent(ServiceEvent.UNSUBSCRIBE,
+                activityToken, invocationContext);
         if ((myClient != null) && (myClient.isConnected()))
         {
             IMqttActionListener listener = new MqttConnectionListener(
-                    resultBundle);
+                    resultEvent);
             try
             {
                 myClient.unsubscribe(topic, invocationContext, listener);
             }
             catch (Exception e)
             {
-                handleException(resultBundle, e);
+                handleException(resultEvent, e);
             }
         }
         else
         {
-            resultBundle.putString(MqttServiceConstants.CALLBACK_ERROR_MESSAGE,
-                    NOT_CONNECTED);
+            resultEvent.errorMessage = NOT_CONNECTED;
 
             service.traceError("subscribe", NOT_CONNECTED);
-            service.callbackToActivity(clientHandle, Status.ERROR, resultBundle);
+            service.callbackToActivity(clientHandle, Status.ERROR, resultEvent);
         }
     }
 
@@ -872,6 +1189,14 @@ class MqttConnection implements MqttCallbackExtended
     {
         service.traceDebug(TAG, "connectionLost(" + why.getMessage() + ")");
         disconnected = true;
+        rewindOfflineBuffer();
+        ArrivalBatcher arrivals = batcher;
+        if (arrivals != null)
+        {
+            // a replay after reconnecting finds anything not acknowledged,
+            // so pass on what has been gathered before it starts
+            arrivals.flush();
+        }
         try
         {
             if (!this.connectOptions.isAutomaticReconnect())
@@ -906,23 +1231,17 @@ class MqttConnection implements MqttCallbackExtended
             // ignore it - we've done our best
         }
 
-        Bundle resultBundle = new Bundle();
-        resultBundle.putString(MqttServiceConstants.CALLBACK_ACTION,
-                MqttServiceConstants.ON_CONNECTION_LOST_ACTION);
+        ServiceEvent resultEvent = new ServiceEvent(ServiceEvent.CONNECTION_LOST);
         if (why != null)
         {
-            resultBundle.putString(MqttServiceConstants.CALLBACK_ERROR_MESSAGE,
-                    why.getMessage());
+            resultEvent.errorMessage = why.getMessage();
             if (why instanceof MqttException)
             {
-                resultBundle.putSerializable(
-                        MqttServiceConstants.CALLBACK_EXCEPTION, why);
+                resultEvent.exception = why;
             }
-            resultBundle.putString(
-                    MqttServiceConstants.CALLBACK_EXCEPTION_STACK,
-                    Log.getStackTraceString(why));
+            resultEvent.exceptionStack = Log.getStackTraceString(why);
         }
-        service.callbackToActivity(clientHandle, Status.OK, resultBundle);
+        service.callbackToActivity(clientHandle, Status.OK, resultEvent);
         // client has lost connection no need for wake lock
         releaseWakeLock();
     }
@@ -946,18 +1265,19 @@ class MqttConnection implements MqttCallbackExtended
             String topic = savedTopics.remove(messageToken);
             String activityToken = savedActivityTokens.remove(messageToken);
             String invocationContext = savedInvocationContexts.remove(messageToken);
+            savedBufferTimes.remove(messageToken);
 
-            Bundle resultBundle = messageToBundle(null, topic, message);
             if (activityToken != null)
             {
-                resultBundle.putString(MqttServiceConstants.CALLBACK_ACTION, MqttServiceConstants.SEND_ACTION);
-                resultBundle.putString(MqttServiceConstants.CALLBACK_ACTIVITY_TOKEN, activityToken);
-                resultBundle.putString(MqttServiceConstants.CALLBACK_INVOCATION_CONTEXT, invocationContext);
-
-                service.callbackToActivity(clientHandle, Status.OK, resultBundle);
+                ServiceEvent sendEvent = messageEvent(ServiceEvent.SEND, topic, message);
+                sendEvent.activityToken = activityToken;
+                sendEvent.invocationContext = invocationContext;
+                service.callbackToActivity(clientHandle, Status.OK, sendEvent);
             }
-            resultBundle.putString(MqttServiceConstants.CALLBACK_ACTION, MqttServiceConstants.MESSAGE_DELIVERED_ACTION);
-            service.callbackToActivity(clientHandle, Status.OK, resultBundle);
+            ServiceEvent resultEvent = messageEvent(ServiceEvent.MESSAGE_DELIVERED, topic, message);
+            resultEvent.activityToken = activityToken;
+            resultEvent.invocationContext = invocationContext;
+            service.callbackToActivity(clientHandle, Status.OK, resultEvent);
         }
 
         // this notification will have kept the connection alive but send the previously sechudled ping anyway
@@ -977,12 +1297,48 @@ class MqttConnection implements MqttCallbackExtended
         service.traceDebug(TAG,
                 "messageArrived(" + topic + ",{" + message.toString() + "})");
 
-        String messageId = service.messageStore.storeArrived(clientHandle, topic, message);
+        WriteBehindQueue queue = writeBehind;
+        if (queue != null)
+        {
+            queue.enqueue(topic, message);
+        }
+        else
+        {
+            storeAndDeliver(topic, message);
+        }
+    }
+
+    /**
+     * Store an arrived message, then pass it to the Activity unless a backlog
+     * replay will
+     *
+     * @param topic   the topic on which the message was received
+     * @param message the message
+     */
+    private void storeAndDeliver(String topic, MqttMessage message)
+    {
+        long messageId;
+        ArrivalBatcher arrivals;
+        synchronized (backlogLock)
+        {
+            messageId = messageStore.storeArrived(clientHandle, topic, message);
+            if (replayingBacklog)
+            {
+                // the replay will reach it, after the messages before it
+                return;
+            }
+            arrivals = batcher;
+        }
+
+        if (arrivals != null)
+        {
+            arrivals.add(topic, message, messageId);
+            return;
+        }
 
-        Bundle resultBundle = messageToBundle(messageId, topic, message);
-        resultBundle.putString(MqttServiceConstants.CALLBACK_ACTION, MqttServiceConstants.MESSAGE_ARRIVED_ACTION);
-        resultBundle.putString(MqttServiceConstants.CALLBACK_MESSAGE_ID, messageId);
-        service.callbackToActivity(clientHandle, Status.OK, resultBundle);
+        ServiceEvent resultEvent = messageEvent(ServiceEvent.MESSAGE_ARRIVED, topic, message);
+        resultEvent.messageId = messageId;
+        service.callbackToActivity(clientHandle, Status.OK, resultEvent);
 
     }
 
@@ -1006,6 +1362,20 @@ class MqttConnection implements MqttCallbackExtended
         savedInvocationContexts.put(messageToken, invocationContext);
     }
 
+    /**
+     * Forget the details of a sent message which will not be delivered
+     *
+     * @param messageToken the message token provided when the message was sent
+     */
+    private void forgetSendDetails(IMqttToken messageToken)
+    {
+        savedTopics.remove(messageToken);
+        savedSentMessages.remove(messageToken);
+        savedActivityTokens.remove(messageToken);
+        savedInvocationContexts.remove(messageToken);
+        savedBufferTimes.remove(messageToken);
+    }
+
     /**
      * Acquires a partial wake lock for this client
      */
@@ -1077,14 +1447,8 @@ class MqttConnection implements MqttCallbackExtended
         {
             //The Automatic reconnect functionality is enabled here
             Log.i(TAG, "Requesting Automatic reconnect using New Java AC");
-            final Bundle resultBundle = new Bundle();
-            resultBundle.putString(
-                    MqttServiceConstants.CALLBACK_ACTIVITY_TOKEN,
-                    reconnectActivityToken);
-            resultBundle.putString(
-                    MqttServiceConstants.CALLBACK_INVOCATION_CONTEXT, null);
-            resultBundle.putString(MqttServiceConstants.CALLBACK_ACTION,
-                    MqttServiceConstants.CONNECT_ACTION);
+            final ServiceEvent resultEvent = new ServiceEvent(ServiceEvent.CONNECT,
+                    reconnectActivityToken, null);
             try
             {
                 myClient.reconnect();
@@ -1093,26 +1457,20 @@ class MqttConnection implements MqttCallbackExtended
             {
                 Log.e(TAG, "Exception occurred attempting to reconnect: " + ex.getMessage());
                 setConnectingState(false);
-                handleException(resultBundle, ex);
+                handleException(resultEvent, ex);
             }
         }
         else if (disconnected && !cleanSession)
         {
             // use the activityToke the same with action connect
             service.traceDebug(TAG, "Do Real Reconnect!");
-            final Bundle resultBundle = new Bundle();
-            resultBundle.putString(
-                    MqttServiceConstants.CALLBACK_ACTIVITY_TOKEN,
-                    reconnectActivityToken);
-            resultBundle.putString(
-                    MqttServiceConstants.CALLBACK_INVOCATION_CONTEXT, null);
-            resultBundle.putString(MqttServiceConstants.CALLBACK_ACTION,
-                    MqttServiceConstants.CONNECT_ACTION);
+            final ServiceEvent resultEvent = new ServiceEvent(ServiceEvent.CONNECT,
+                    reconnectActivityToken, null);
 
             try
             {
 
-                IMqttActionListener listener = new MqttConnectionListener(resultBundle)
+                IMqttActionListener listener = new MqttConnectionListener(resultEvent)
                 {
                     @Override
                     public void onSuccess(IMqttToken asyncActionToken)
@@ -1121,22 +1479,18 @@ class MqttConnection implements MqttCallbackExtended
                         // wakelock and drop it later.
                         service.traceDebug(TAG, "Reconnect Success!");
                         service.traceDebug(TAG, "DeliverBacklog when reconnect.");
-                        doAfterConnectSuccess(resultBundle);
+                        doAfterConnectSuccess(resultEvent);
                     }
 
                     @Override
                     public void onFailure(IMqttToken asyncActionToken, Throwable exception)
                     {
-                        resultBundle.putString(
-                                MqttServiceConstants.CALLBACK_ERROR_MESSAGE,
-                                exception.getLocalizedMessage());
-                        resultBundle.putSerializable(
-                                MqttServiceConstants.CALLBACK_EXCEPTION,
-                                exception);
+                        resultEvent.errorMessage = exception.getLocalizedMessage();
+                        resultEvent.exception = exception;
                         service.callbackToActivity(clientHandle, Status.ERROR,
-                                resultBundle);
+                                resultEvent);
 
-                        doAfterConnectFail(resultBundle);
+                        doAfterConnectFail(resultEvent);
 
                     }
                 };
@@ -1148,7 +1502,7 @@ class MqttConnection implements MqttCallbackExtended
             {
                 service.traceError(TAG, "Cannot reconnect to remote server." + e.getMessage());
                 setConnectingState(false);
-                handleException(resultBundle, e);
+                handleException(resultEvent, e);
             }
             catch (Exception e)
             {
@@ -1161,7 +1515,7 @@ class MqttConnection implements MqttCallbackExtended
                 service.traceError(TAG, "Cannot reconnect to remote server." + e.getMessage());
                 setConnectingState(false);
                 MqttException newEx = new MqttException(MqttException.REASON_CODE_UNEXPECTED_ERROR, e.getCause());
-                handleException(resultBundle, newEx);
+                handleException(resultEvent, newEx);
             }
         }
     }
@@ -1183,23 +1537,521 @@ class MqttConnection implements MqttCallbackExtended
     {
         this.bufferOpts = bufferOpts;
         myClient.setBufferOpts(bufferOpts);
+        if (bufferOpts != null && bufferOpts.isBufferEnabled() && bufferOpts.isPersistBuffer())
+        {
+            openOfflineBuffer();
+        }
     }
 
+    /**
+     * @return the number of messages buffered while disconnected. Once the
+     * buffer is persisted, this and the other buffer methods refer to the
+     * messages on disk.
+     */
     public int getBufferedMessageCount()
     {
+        OfflinePublishBuffer buffer = offlineBuffer;
+        if (buffer != null)
+        {
+            return (int) Math.min(buffer.getMessageCount(), Integer.MAX_VALUE);
+        }
         return myClient.getBufferedMessageCount();
     }
 
+    /**
+     * @return the bytes taken on disk by messages published while
+     * disconnected, and not yet delivered - zero unless the buffer is persisted
+     */
+    public long getBufferedMessageBytes()
+    {
+        OfflinePublishBuffer buffer = offlineBuffer;
+        return buffer == null ? 0 : buffer.getByteCount();
+    }
+
     public MqttMessage getBufferedMessage(int bufferIndex)
     {
+        OfflinePublishBuffer buffer = offlineBuffer;
+        if (buffer != null)
+        {
+            try
+            {
+                return buffer.getMessage(bufferIndex);
+            }
+            catch (IOException e)
+            {
+                service.traceException(TAG, "getBufferedMessage", e);
+                return null;
+            }
+        }
         return myClient.getBufferedMessage(bufferIndex);
     }
 
+    /**
+     * Delete a buffered message. A message from a persisted buffer which is
+     * already being sent is not deleted.
+     *
+     * @param bufferIndex the position of the message in the buffer
+     */
     public void deleteBufferedMessage(int bufferIndex)
     {
+        OfflinePublishBuffer buffer = offlineBuffer;
+        if (buffer != null)
+        {
+            try
+            {
+                buffer.delete(bufferIndex);
+            }
+            catch (IOException e)
+            {
+                service.traceException(TAG, "deleteBufferedMessage", e);
+            }
+            return;
+        }
         myClient.deleteBufferedMessage(bufferIndex);
     }
 
+    /**
+     * Copy a range of the buffered messages
+     *
+     * @param fromIndex the position of the first message
+     * @param count     the most messages to copy
+     * @return the messages, oldest first
+     */
+    public List<BufferedMessage> getBufferedMessages(int fromIndex, final int count)
+    {
+        final List<BufferedMessage> messages = new ArrayList<>();
+        OfflinePublishBuffer buffer = offlineBuffer;
+        if (buffer != null)
+        {
+            try
+            {
+                buffer.forEach(fromIndex, new OfflinePublishBuffer.Visitor()
+                {
+                    @Override
+                    public boolean visit(OfflinePublishBuffer.BufferedPublish publish)
+                    {
+                        messages.add(new BufferedMessage(publish.getTopic(), publish.getMessage(),
+                                publish.getBufferedAt()));
+                        return messages.size() < count;
+                    }
+                });
+            }
+            catch (IOException e)
+            {
+                service.traceException(TAG, "getBufferedMessages", e);
+            }
+            return messages;
+        }
+        Map<MqttMessage, IMqttDeliveryToken> tokens = bufferedTokens();
+        int end = Math.min(myClient.getBufferedMessageCount(), fromIndex + count);
+        for (int i = Math.max(0, fromIndex); i < end; i++)
+        {
+            messages.add(bufferedMessage(myClient.getBufferedMessage(i), tokens));
+        }
+        return messages;
+    }
+
+    /**
+     * Delete the buffered messages a filter matches. Messages from a persisted
+     * buffer which are already being sent are not deleted.
+     *
+     * @param topicFilter    an MQTT topic filter, which may contain wildcards, or
+     *                       null for every topic
+     * @param bufferedBefore delete only messages buffered before this time, in
+     *                       milliseconds since the epoch, or zero or less for any time
+     * @param qos            delete only messages of this quality of service, or -1
+     *                       for any
+     * @return the number of messages deleted
+     */
+    public int deleteBufferedMessages(String topicFilter, long bufferedBefore, int qos)
+    {
+        BufferedMessageFilter filter = new BufferedMessageFilter(topicFilter, bufferedBefore, qos);
+        OfflinePublishBuffer buffer = offlineBuffer;
+        if (buffer != null)
+        {
+            try
+            {
+                return buffer.delete(filter);
+            }
+            catch (IOException e)
+            {
+                service.traceException(TAG, "deleteBufferedMessages", e);
+                return 0;
+            }
+        }
+        Map<MqttMessage, IMqttDeliveryToken> tokens = bufferedTokens();
+        int deleted = 0;
+        // from the end, so that the positions still to be looked at stay put
+        for (int i = myClient.getBufferedMessageCount() - 1; i >= 0; i--)
+        {
+            BufferedMessage message = bufferedMessage(myClient.getBufferedMessage(i), tokens);
+            if (filter.matches(message.getTopic(), message.getMessage(), message.getBufferedAt()))
+            {
+                myClient.deleteBufferedMessage(i);
+                deleted++;
+            }
+        }
+        return deleted;
+    }
+
+    /**
+     * Write every buffered message to a stream, oldest first, in the form
+     * described by {@link MqttAndroidClient#exportBufferedMessages(OutputStream)}
+     *
+     * @param out the stream, which is flushed but not closed
+     * @return the number of messages written
+     * @throws IOException if the stream or the buffer cannot be written or read
+     */
+    public int exportBufferedMessages(OutputStream out) throws IOException
+    {
+        final DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out));
+        final int[] written = {0};
+        OfflinePublishBuffer buffer = offlineBuffer;
+        if (buffer != null)
+        {
+            buffer.forEach(0, new OfflinePublishBuffer.Visitor()
+            {
+                @Override
+                public boolean visit(OfflinePublishBuffer.BufferedPublish publish) throws IOException
+                {
+                    new BufferedMessage(publish.getTopic(), publish.getMessage(), publish.getBufferedAt())
+                            .writeTo(data);
+                    written[0]++;
+                    return true;
+                }
+            });
+        }
+        else
+        {
+            Map<MqttMessage, IMqttDeliveryToken> tokens = bufferedTokens();
+            int count = myClient.getBufferedMessageCount();
+            for (int i = 0; i < count; i++)
+            {
+                bufferedMessage(myClient.getBufferedMessage(i), tokens).writeTo(data);
+                written[0]++;
+            }
+        }
+        data.flush();
+        return written[0];
+    }
+
+    /**
+     * @return the token of each message sent, by the message itself - Paho's
+     * buffer holds the messages but not their topics
+     */
+    private Map<MqttMessage, IMqttDeliveryToken> bufferedTokens()
+    {
+        Map<MqttMessage, IMqttDeliveryToken> tokens = new IdentityHashMap<>();
+        for (Map.Entry<IMqttDeliveryToken, MqttMessage> entry : savedSentMessages.entrySet())
+        {
+            tokens.put(entry.getValue(), entry.getKey());
+        }
+        return tokens;
+    }
+
+    private BufferedMessage bufferedMessage(MqttMessage message, Map<MqttMessage, IMqttDeliveryToken> tokens)
+    {
+        IMqttDeliveryToken token = tokens.get(message);
+        Long bufferedAt = token == null ? null : savedBufferTimes.get(token);
+        return new BufferedMessage(token == null ? null : savedTopics.get(token), message,
+                bufferedAt == null ? 0 : bufferedAt);
+    }
+
+    /**
+     * Open the client's disk-backed buffer, and send anything left in it by
+     * an earlier process once connected
+     */
+    private void openOfflineBuffer()
+    {
+        synchronized (offlineLock)
+        {
+            if (offlineBuffer != null)
+            {
+                return;
+            }
+            File directory = new File(service.getDir(OFFLINE_BUFFER_DIR, Context.MODE_PRIVATE),
+                    MessageStoreProviders.fileName(clientHandle));
+            OfflinePublishBuffer buffer = new OfflinePublishBuffer(directory,
+                    OfflinePublishBuffer.DEFAULT_SEGMENT_SIZE);
+            try
+            {
+                buffer.open();
+            }
+            catch (IOException e)
+            {
+                service.traceException(TAG, "openOfflineBuffer", e);
+                return;
+            }
+            offlineBuffer = buffer;
+        }
+        scheduleOfflineDrain();
+    }
+
+    /**
+     * Append a message to the disk-backed buffer, making room as the
+     * DisconnectedBufferOptions say. The activity is told the message was
+     * sent when it is delivered, as for a message sent straight away.
+     */
+    private void bufferOffline(OfflinePublishBuffer buffer, String topic, MqttMessage message,
+            String invocationContext, String activityToken, ServiceEvent resultEvent)
+    {
+        try
+        {
+            DisconnectedBufferOptions options = bufferOpts;
+            if (options != null && buffer.getMessageCount() >= options.getBufferSize()
+                    && !(options.isDeleteOldestMessages() && buffer.dropOldest()))
+            {
+                handleException(resultEvent,
+                        new MqttException(MqttException.REASON_CODE_DISCONNECTED_BUFFER_FULL));
+                return;
+            }
+            buffer.append(topic, message, invocationContext, activityToken);
+        }
+        catch (IOException e)
+        {
+            handleException(resultEvent, new MqttPersistenceException(e));
+            return;
+        }
+        scheduleOfflineDrain();
+    }
+
+    /**
+     * Drain the disk-backed buffer on a thread of our own, if connected
+     */
+    private void scheduleOfflineDrain()
+    {
+        synchronized (offlineLock)
+        {
+            if (offlineBuffer == null || !isConnected())
+            {
+                return;
+            }
+            if (offlineExecutor == null)
+            {
+                offlineExecutor = Executors.newSingleThreadExecutor();
+            }
+            offlineExecutor.execute(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    drainOfflineBuffer();
+                }
+            });
+        }
+    }
+
+    /**
+     * Send buffered messages, oldest first, keeping no more than half of the
+     * client's in-flight window for them so that there is room for others.
+     * A message is committed once the server has it, unless it is QoS 1 or 2
+     * on a persistent session - then Paho's persistence holds it as soon as it
+     * is sent, and sends it again after a reconnect itself.
+     */
+    private void drainOfflineBuffer()
+    {
+        synchronized (offlineLock)
+        {
+            OfflinePublishBuffer buffer = offlineBuffer;
+            if (buffer == null)
+            {
+                return;
+            }
+            int window = Math.max(1, connectOptions.getMaxInflight() / 2);
+            try
+            {
+                while (offlineInFlight < window && isConnected())
+                {
+                    OfflinePublishBuffer.BufferedPublish next = buffer.peek();
+                    if (next == null)
+                    {
+                        return;
+                    }
+                    boolean handedOver = !cleanSession && next.getMessage().getQos() > 0;
+                    IMqttDeliveryToken token;
+                    try
+                    {
+                        token = myClient.publish(next.getTopic(), next.getMessage(),
+                                next.getInvocationContext(),
+                                new OfflineDrainListener(next, offlineGeneration, handedOver));
+                    }
+                    catch (MqttException e)
+                    {
+                        if (isTransientFailure(e))
+                        {
+                            // the window is full, or the connection has gone - we
+                            // try again when a message completes, or on reconnect
+                            service.traceDebug(TAG, "drainOfflineBuffer: " + e.getMessage());
+                            return;
+                        }
+                        // the client will never take it, so it is dropped
+                        buffer.dropOldest();
+                        refuseOffline(next, e);
+                        continue;
+                    }
+                    buffer.sent(next);
+                    offlineInFlight++;
+                    storeSendDetails(next.getTopic(), next.getMessage(), token,
+                            next.getInvocationContext(), next.getActivityToken());
+                    if (handedOver)
+                    {
+                        buffer.complete(next.getSequence());
+                    }
+                }
+            }
+            catch (IOException e)
+            {
+                service.traceException(TAG, "drainOfflineBuffer", e);
+            }
+        }
+    }
+
+    /**
+     * Send again the buffered messages which were in flight when the
+     * connection was lost
+     */
+    private void rewindOfflineBuffer()
+    {
+        synchronized (offlineLock)
+        {
+            if (offlineBuffer == null)
+            {
+                return;
+            }
+            offlineGeneration++;
+            offlineInFlight = 0;
+            try
+            {
+                offlineBuffer.rewind();
+            }
+            catch (IOException e)
+            {
+                service.traceException(TAG, "rewindOfflineBuffer", e);
+            }
+        }
+    }
+
+    /**
+     * @param exception why a buffered message could not be sent
+     * @return true if sending it again later may succeed - the connection
+     * has gone, or the in-flight window is full - rather than the message
+     * being refused
+     */
+    private boolean isTransientFailure(Throwable exception)
+    {
+        if (!isConnected())
+        {
+            return true;
+        }
+        if (exception instanceof MqttException)
+        {
+            switch (((MqttException) exception).getReasonCode())
+            {
+                case MqttException.REASON_CODE_CONNECTION_LOST:
+                case MqttException.REASON_CODE_CLIENT_NOT_CONNECTED:
+                case MqttException.REASON_CODE_CLIENT_DISCONNECTING:
+                case MqttException.REASON_CODE_CLIENT_CLOSED:
+                case MqttException.REASON_CODE_CLIENT_TIMEOUT:
+                case MqttException.REASON_CODE_WRITE_TIMEOUT:
+                case MqttException.REASON_CODE_MAX_INFLIGHT:
+                    return true;
+                default:
+                    return false;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Tell the activity a buffered message it published was refused, as it
+     * would be told of a message refused when sent straight away
+     */
+    private void refuseOffline(OfflinePublishBuffer.BufferedPublish publish, Throwable exception)
+    {
+        ServiceEvent resultEvent = new ServiceEvent(ServiceEvent.SEND,
+                publish.getActivityToken(), publish.getInvocationContext());
+        handleException(resultEvent, exception instanceof Exception
+                ? (Exception) exception : new MqttException(exception));
+    }
+
+    /**
+     * Commits a buffered message once it has been delivered, and sends the
+     * next. A message the client or server refuses is dropped and the
+     * activity told, so that it does not hold up those behind it; the
+     * messages in flight are only sent again when the connection is lost.
+     */
+    private class OfflineDrainListener implements IMqttActionListener
+    {
+
+        private final OfflinePublishBuffer.BufferedPublish publish;
+        private final int generation;
+        private final boolean handedOver;
+
+        private OfflineDrainListener(OfflinePublishBuffer.BufferedPublish publish, int generation,
+                boolean handedOver)
+        {
+            this.publish = publish;
+            this.generation = generation;
+            this.handedOver = handedOver;
+        }
+
+        @Override
+        public void onSuccess(IMqttToken asyncActionToken)
+        {
+            synchronized (offlineLock)
+            {
+                if (generation != offlineGeneration || offlineBuffer == null)
+                {
+                    return;
+                }
+                offlineInFlight--;
+                if (!handedOver)
+                {
+                    try
+                    {
+                        offlineBuffer.complete(publish.getSequence());
+                    }
+                    catch (IOException e)
+                    {
+                        service.traceException(TAG, "OfflineDrainListener", e);
+                    }
+                }
+            }
+            scheduleOfflineDrain();
+        }
+
+        @Override
+        public void onFailure(IMqttToken asyncActionToken, Throwable exception)
+        {
+            synchronized (offlineLock)
+            {
+                if (generation != offlineGeneration)
+                {
+                    return;
+                }
+                if (!isTransientFailure(exception) && offlineBuffer != null)
+                {
+                    offlineInFlight--;
+                    try
+                    {
+                        offlineBuffer.complete(publish.getSequence());
+                    }
+                    catch (IOException e)
+                    {
+                        service.traceException(TAG, "OfflineDrainListener", e);
+                    }
+                    forgetSendDetails(asyncActionToken);
+                    refuseOffline(publish, exception);
+                    scheduleOfflineDrain();
+                    return;
+                }
+            }
+            // sent again, with the others in flight, after the next reconnect
+            // or publish
+            rewindOfflineBuffer();
+        }
+    }
+
     /**
      * General-purpose IMqttActionListener for the Client context
      * <p>
@@ -1209,29 +2061,27 @@ class MqttConnection implements MqttCallbackExtended
     private class MqttConnectionListener implements IMqttActionListener
     {
 
-        private final Bundle resultBundle;
+        private final ServiceEvent resultEvent;
 
-        private MqttConnectionListener(Bundle resultBundle)
+        private MqttConnectionListener(ServiceEvent resultEvent)
         {
-            this.resultBundle = resultBundle;
+            this.resultEvent = resultEvent;
         }
 
         @Override
         public void onSuccess(IMqttToken asyncActionToken)
         {
-            service.callbackToActivity(clientHandle, Status.OK, resultBundle);
+            service.callbackToActivity(clientHandle, Status.OK, resultEvent);
         }
 
         @Override
         public void onFailure(IMqttToken asyncActionToken, Throwable exception)
         {
-            resultBundle.putString(MqttServiceConstants.CALLBACK_ERROR_MESSAGE,
-                    exception.getLocalizedMessage());
+            resultEvent.errorMessage = exception.getLocalizedMessage();
 
-            resultBundle.putSerializable(
-                    MqttServiceConstants.CALLBACK_EXCEPTION, exception);
+            resultEvent.exception = exception;
 
-            service.callbackToActivity(clientHandle, Status.ERROR, resultBundle);
+            service.callbackToActivity(clientHandle, Status.ERROR, resultEvent);
         }
     }
 }
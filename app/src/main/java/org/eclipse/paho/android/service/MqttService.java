@@ -18,14 +18,17 @@ package org.eclipse.paho.android.service;
 import android.annotation.SuppressLint;
 import android.app.Service;
 import android.content.BroadcastReceiver;
+import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.content.pm.PackageManager;
+import android.content.pm.ServiceInfo;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
-import android.os.Bundle;
 import android.os.IBinder;
 import android.os.PowerManager;
+import android.os.SystemClock;
 import android.os.PowerManager.WakeLock;
 import android.support.v4.content.LocalBroadcastManager;
 
@@ -39,8 +42,16 @@ import org.eclipse.paho.client.mqttv3.MqttMessage;
 import org.eclipse.paho.client.mqttv3.MqttPersistenceException;
 import org.eclipse.paho.client.mqttv3.MqttSecurityException;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * <p>
@@ -70,13 +81,35 @@ import java.util.concurrent.ConcurrentHashMap;
  * approach.
  * </p>
  * <p>
+ * Arrived messages are kept in a SQLite database until the Activity
+ * acknowledges them. An append-only log of memory-mapped files, which is
+ * cheaper to write to, can be chosen instead by adding meta-data to the
+ * service's entry in the application manifest:
+ * </p>
+ * <pre>
+ * &lt;service android:name="org.eclipse.paho.android.service.MqttService"&gt;
+ *     &lt;meta-data android:name="org.eclipse.paho.android.service.messageStore"
+ *         android:value="segmentLog"/&gt;
+ * &lt;/service&gt;
+ * </pre>
+ * <p>
+ * With several busy clients, the value "sharded" gives each client a database
+ * file of its own, so that they do not wait for one another's writes. A
+ * further "org.eclipse.paho.android.service.messageStoreShards" integer hashes
+ * the clients into that many files instead. Files which have not been used for
+ * a minute are closed until they are needed again.
+ * </p>
+ * <p>
  * Operations are highly asynchronous - in most cases results are returned to
  * the Activity by broadcasting one (or occasionally more) appropriate Intents,
  * which the Activity is expected to register a listener for.<br>
  * The Intents have an Action of
  * {@link MqttServiceConstants#CALLBACK_TO_ACTIVITY
  * MqttServiceConstants.CALLBACK_TO_ACTIVITY} which allows the Activity to
- * register a listener with an appropriate IntentFilter.<br>
+ * register a listener with an appropriate IntentFilter. A client in the same
+ * process, such as {@link MqttAndroidClient}, is instead passed the data
+ * directly once it has registered for its client handle, which saves building
+ * and routing an Intent for every callback.<br>
  * Further data is provided by "Extra Data" in the Intent, as follows :-
  * </p>
  * <table border="1" summary="">
@@ -162,6 +195,16 @@ import java.util.concurrent.ConcurrentHashMap;
  * {@link MqttServiceConstants#ON_CONNECTION_LOST_ACTION
  * MqttServiceConstants.ON_CONNECTION_LOST_ACTION}</td>
  * </tr>
+ * <tr>
+ * <td align="left" valign="top">
+ * {@link MqttServiceConstants#BACKLOG_REPLAY_ACTION
+ * MqttServiceConstants.BACKLOG_REPLAY_ACTION}</td>
+ * </tr>
+ * <tr>
+ * <td align="left" valign="top">
+ * {@link MqttServiceConstants#MESSAGES_ARRIVED_ACTION
+ * MqttServiceConstants.MESSAGES_ARRIVED_ACTION}</td>
+ * </tr>
  * </table>
  * </td>
  * <td align="left" valign="top">All operations</td>
@@ -196,7 +239,7 @@ import java.util.concurrent.ConcurrentHashMap;
  * <td align="left" valign="top">
  * {@link MqttServiceConstants#CALLBACK_MESSAGE_ID
  * MqttServiceConstants.CALLBACK_MESSAGE_ID}</td>
- * <td align="left" valign="top">String</td>
+ * <td align="left" valign="top">long</td>
  * <td align="left" valign="top">The identifier for the message in the message
  * store, used by the Activity to acknowledge the arrival of the message, so
  * that the service may remove it from the store</td>
@@ -219,6 +262,19 @@ import java.util.concurrent.ConcurrentHashMap;
  * Parcelable format as a {@link ParcelableMqttMessage}</td>
  * <td align="left" valign="top">The Message Arrived event</td>
  * </tr>
+ * <tr>
+ * <td align="left" valign="top">
+ * {@link MqttServiceConstants#CALLBACK_MESSAGE_IDS
+ * MqttServiceConstants.CALLBACK_MESSAGE_IDS},
+ * {@link MqttServiceConstants#CALLBACK_DESTINATION_NAMES
+ * MqttServiceConstants.CALLBACK_DESTINATION_NAMES},
+ * {@link MqttServiceConstants#CALLBACK_MESSAGE_PARCELS
+ * MqttServiceConstants.CALLBACK_MESSAGE_PARCELS}</td>
+ * <td align="left" valign="top">long[], String[], Parcelable[]</td>
+ * <td align="left" valign="top">The identifiers, topics and messages of a
+ * batch of arrived messages, in the order they arrived</td>
+ * <td align="left" valign="top">The Messages Arrived event</td>
+ * </tr>
  * </table>
  */
 @SuppressLint("Registered")
@@ -230,6 +286,14 @@ public class MqttService extends Service implements MqttTraceHandler
     // somewhere to persist received messages until we're sure
     // that they've reached the application
     MessageStore messageStore;
+    // opens the message store in the background when the service is created,
+    // and runs any connect made before it is ready
+    private ExecutorService startupExecutor = null;
+    // guards messageStoreReady and deferredConnects
+    private final Object startupLock = new Object();
+    private boolean messageStoreReady = true;
+    // the connects waiting for the message store, by client handle
+    private final Map<String, Runnable> deferredConnects = new HashMap<>();
     // callback id for making trace callbacks to the Activity
     // needs to be set by the activity as appropriate
     private String traceCallbackId;
@@ -250,36 +314,67 @@ public class MqttService extends Service implements MqttTraceHandler
     // mapping from client handle strings to actual client connections.
     private Map<String/* clientHandle */, MqttConnection/* client */> connections = new ConcurrentHashMap<>();
 
+    // clients in this process which take their callbacks directly, rather
+    // than by broadcast
+    private final ConcurrentHashMap<String/* clientHandle */, MqttServiceEventListener> eventListeners = new ConcurrentHashMap<>();
+
     public MqttService()
     {
         super();
     }
 
     /**
-     * pass data back to the Activity, by building a suitable Intent object and
+     * pass data back to the Activity, directly if a listener is registered for
+     * the client, otherwise by building a suitable Intent object and
      * broadcasting it
      *
      * @param clientHandle source of the data
      * @param status       OK or Error
-     * @param dataBundle   the data to be passed
+     * @param event        the data to be passed, which must not be changed
+     *                     afterwards as a listener may still be reading it
      */
-    void callbackToActivity(String clientHandle, Status status, Bundle dataBundle)
+    void callbackToActivity(String clientHandle, Status status, ServiceEvent event)
     {
         // Don't call traceDebug, as it will try to callbackToActivity leading
         // to recursion.
-        Intent callbackIntent = new Intent(MqttServiceConstants.CALLBACK_TO_ACTIVITY);
-        if (clientHandle != null)
+        event.clientHandle = clientHandle;
+        event.status = status;
+        MqttServiceEventListener listener = clientHandle != null ? eventListeners.get(clientHandle) : null;
+        if (listener != null)
         {
-            callbackIntent.putExtra(MqttServiceConstants.CALLBACK_CLIENT_HANDLE, clientHandle);
-        }
-        callbackIntent.putExtra(MqttServiceConstants.CALLBACK_STATUS, status);
-        if (dataBundle != null)
-        {
-            callbackIntent.putExtras(dataBundle);
+            listener.onServiceEvent(event);
+            return;
         }
+        // only a broadcast needs the event as an Intent's extra data
+        Intent callbackIntent = new Intent(MqttServiceConstants.CALLBACK_TO_ACTIVITY);
+        callbackIntent.putExtras(event.toBundle());
         LocalBroadcastManager.getInstance(this).sendBroadcast(callbackIntent);
     }
 
+    /**
+     * Pass a client's callbacks directly to a listener in this process,
+     * instead of broadcasting them
+     *
+     * @param clientHandle identifies the client
+     * @param listener     receives the client's callbacks
+     */
+    void registerEventListener(String clientHandle, MqttServiceEventListener listener)
+    {
+        eventListeners.put(clientHandle, listener);
+    }
+
+    /**
+     * Go back to broadcasting a client's callbacks
+     *
+     * @param clientHandle identifies the client
+     * @param listener     the listener registered for the client, which is
+     *                     left in place if another has replaced it since
+     */
+    void unregisterEventListener(String clientHandle, MqttServiceEventListener listener)
+    {
+        eventListeners.remove(clientHandle, listener);
+    }
+
     // The major API implementation follows :-
 
     /**
@@ -293,11 +388,30 @@ public class MqttService extends Service implements MqttTraceHandler
      * MqttConnection
      */
     public String getClient(String serverURI, String clientId, String contextId, MqttClientPersistence persistence)
+    {
+        return getClient(serverURI, clientId, contextId, persistence, null);
+    }
+
+    /**
+     * Get an MqttConnection object to represent a connection to a server
+     *
+     * @param serverURI            specifies the protocol, host name and port to be used to connect to an MQTT server
+     * @param clientId             specifies the name by which this connection should be identified to the server
+     * @param contextId            specifies the app context info to make a difference between apps
+     * @param persistence          specifies the persistence layer to be used with this client
+     * @param messageStoreProvider chooses where this client's arrived messages are kept - if null,
+     *                             the store shared by all clients is used
+     * @return a string to be used by the Activity as a "handle" for this
+     * MqttConnection
+     */
+    public String getClient(String serverURI, String clientId, String contextId, MqttClientPersistence persistence,
+            MessageStoreProvider messageStoreProvider)
     {
         String clientHandle = serverURI + ":" + clientId + ":" + contextId;
         if (!connections.containsKey(clientHandle))
         {
-            MqttConnection client = new MqttConnection(this, serverURI, clientId, persistence, clientHandle);
+            MqttConnection client = new MqttConnection(this, serverURI, clientId, persistence, clientHandle,
+                    messageStoreProvider);
             connections.put(clientHandle, client);
         }
         return clientHandle;
@@ -313,12 +427,55 @@ public class MqttService extends Service implements MqttTraceHandler
      * @throws MqttSecurityException thrown if there is a security exception
      * @throws MqttException         thrown for all other MqttExceptions
      */
-    public void connect(String clientHandle, MqttConnectOptions connectOptions, String invocationContext, String
-            activityToken) throws MqttSecurityException, MqttException
+    public void connect(String clientHandle, final MqttConnectOptions connectOptions, String invocationContext,
+            final String activityToken) throws MqttSecurityException, MqttException
     {
-        MqttConnection client = getConnection(clientHandle);
+        final MqttConnection client = getConnection(clientHandle);
+        synchronized (startupLock)
+        {
+            if (!messageStoreReady)
+            {
+                // the message store is still being opened - connect once it
+                // is, rather than waiting for the disk on the caller's thread
+                traceDebug(TAG, "connect {" + clientHandle + "} deferred until the message store is ready");
+                final String handle = clientHandle;
+                Runnable deferred = new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        synchronized (startupLock)
+                        {
+                            // dropped if the client was disconnected or
+                            // closed, or connected again, in the meantime
+                            if (deferredConnects.get(handle) != this)
+                            {
+                                return;
+                            }
+                            deferredConnects.remove(handle);
+                        }
+                        client.connect(connectOptions, null, activityToken);
+                    }
+                };
+                deferredConnects.put(clientHandle, deferred);
+                startupExecutor.execute(deferred);
+                return;
+            }
+        }
         client.connect(connectOptions, null, activityToken);
+    }
 
+    /**
+     * Drop a connect still waiting for the message store
+     *
+     * @param clientHandle identifies the MqttConnection
+     */
+    private void cancelDeferredConnect(String clientHandle)
+    {
+        synchronized (startupLock)
+        {
+            deferredConnects.remove(clientHandle);
+        }
     }
 
     /**
@@ -345,6 +502,7 @@ public class MqttService extends Service implements MqttTraceHandler
      */
     public void close(String clientHandle)
     {
+        cancelDeferredConnect(clientHandle);
         MqttConnection client = getConnection(clientHandle);
         client.close();
     }
@@ -359,6 +517,7 @@ public class MqttService extends Service implements MqttTraceHandler
     public void disconnect(String clientHandle, String invocationContext,
             String activityToken)
     {
+        cancelDeferredConnect(clientHandle);
         MqttConnection client = getConnection(clientHandle);
         client.disconnect(invocationContext, activityToken);
         connections.remove(clientHandle);
@@ -380,6 +539,7 @@ public class MqttService extends Service implements MqttTraceHandler
      */
     public void disconnect(String clientHandle, long quiesceTimeout, String invocationContext, String activityToken)
     {
+        cancelDeferredConnect(clientHandle);
         MqttConnection client = getConnection(clientHandle);
         client.disconnect(quiesceTimeout, invocationContext, activityToken);
         connections.remove(clientHandle);
@@ -555,9 +715,9 @@ public class MqttService extends Service implements MqttTraceHandler
      * @param id           identifier for the MQTT message
      * @return {@link Status}
      */
-    public Status acknowledgeMessageArrival(String clientHandle, String id)
+    public Status acknowledgeMessageArrival(String clientHandle, long id)
     {
-        if (messageStore.discardArrived(clientHandle, id))
+        if (getMessageStore(clientHandle).discardArrived(clientHandle, id))
         {
             return Status.OK;
         }
@@ -567,6 +727,169 @@ public class MqttService extends Service implements MqttTraceHandler
         }
     }
 
+    /**
+     * Deliver a client's backlog of unacknowledged messages a page at a time,
+     * in the background, once it connects. Progress is reported with the
+     * {@link MqttServiceConstants#BACKLOG_REPLAY_ACTION} callback action.
+     *
+     * @param clientHandle   identifier for the client
+     * @param pageSize       the number of messages delivered together - zero or less to
+     *                       deliver the whole backlog while connecting
+     * @param pageIntervalMs the pause after each page
+     */
+    public void setBacklogReplay(String clientHandle, int pageSize, long pageIntervalMs)
+    {
+        MqttConnection client = getConnection(clientHandle);
+        client.setBacklogReplay(pageSize, pageIntervalMs);
+    }
+
+    /**
+     * Store a client's arrived messages on a thread of their own, once it
+     * first connects
+     *
+     * @param clientHandle identifier for the client
+     * @param capacity     the most messages waiting to be stored - zero or less to
+     *                     store each message as it is read
+     * @param policy       what to do with a message when the queue is full
+     */
+    public void setWriteBehind(String clientHandle, int capacity, WriteBehindPolicy policy)
+    {
+        MqttConnection client = getConnection(clientHandle);
+        client.setWriteBehind(capacity, policy);
+    }
+
+    /**
+     * Pass a client's arrived messages to the Activity in batches, with the
+     * {@link MqttServiceConstants#MESSAGES_ARRIVED_ACTION} callback action
+     *
+     * @param clientHandle identifier for the client
+     * @param maxMessages  the most messages in a batch - one or less to pass each
+     *                     message on as it arrives
+     * @param maxDelayMs   the longest a message waits for others to join its batch
+     */
+    public void setMessageBatching(String clientHandle, int maxMessages, long maxDelayMs)
+    {
+        MqttConnection client = getConnection(clientHandle);
+        client.setMessageBatching(maxMessages, maxDelayMs);
+    }
+
+    /**
+     * @param clientHandle identifier for the client
+     * @return the metrics of the client's write-behind queue, or null if it has none
+     */
+    public WriteBehindMetrics getWriteBehindMetrics(String clientHandle)
+    {
+        MqttConnection client = getConnection(clientHandle);
+        return client.getWriteBehindMetrics();
+    }
+
+    /**
+     * Limit the messages kept for a client while they wait to be acknowledged.
+     * Only the database and sharded message stores support retention policies.
+     *
+     * @param clientHandle identifier for the client
+     * @param policy       the limits, or null to keep every message until it is acknowledged
+     */
+    public void setRetentionPolicy(String clientHandle, RetentionPolicy policy)
+    {
+        MessageStore store = getMessageStore(clientHandle);
+        if (store instanceof DatabaseMessageStore)
+        {
+            ((DatabaseMessageStore) store).setRetentionPolicy(clientHandle, policy);
+        }
+        else if (store instanceof ShardedMessageStore)
+        {
+            ((ShardedMessageStore) store).setRetentionPolicy(clientHandle, policy);
+        }
+        else if (policy != null)
+        {
+            traceError(TAG, "The message store for " + clientHandle + " does not support retention policies");
+        }
+    }
+
+    /**
+     * @param clientHandle identifier for the client
+     * @return the number of the client's messages evicted by its retention policy
+     */
+    public long getEvictedMessageCount(String clientHandle)
+    {
+        MessageStore store = getMessageStore(clientHandle);
+        if (store instanceof DatabaseMessageStore)
+        {
+            return ((DatabaseMessageStore) store).getEvictedMessageCount(clientHandle);
+        }
+        if (store instanceof ShardedMessageStore)
+        {
+            return ((ShardedMessageStore) store).getEvictedMessageCount(clientHandle);
+        }
+        return 0;
+    }
+
+    /**
+     * @param clientHandle identifier for the client
+     * @return the number of payload bytes evicted by the client's retention policy
+     */
+    public long getEvictedPayloadBytes(String clientHandle)
+    {
+        MessageStore store = getMessageStore(clientHandle);
+        if (store instanceof DatabaseMessageStore)
+        {
+            return ((DatabaseMessageStore) store).getEvictedPayloadBytes(clientHandle);
+        }
+        if (store instanceof ShardedMessageStore)
+        {
+            return ((ShardedMessageStore) store).getEvictedPayloadBytes(clientHandle);
+        }
+        return 0;
+    }
+
+    /**
+     * Called by the Activity when a batch of messages has been passed back to
+     * the application
+     *
+     * @param clientHandle identifier for the client which received the messages
+     * @param ids          identifiers for the MQTT messages
+     * @return for each id, whether the message was found and discarded
+     */
+    public Map<Long, Boolean> acknowledgeMessageArrivals(String clientHandle, Collection<Long> ids)
+    {
+        return getMessageStore(clientHandle).discardArrived(clientHandle, ids);
+    }
+
+    /**
+     * @param clientHandle identifier for a client
+     * @return the store holding the client's arrived messages
+     */
+    private MessageStore getMessageStore(String clientHandle)
+    {
+        MqttConnection client = connections.get(clientHandle);
+        return client != null ? client.getMessageStore() : messageStore;
+    }
+
+    /**
+     * Gather the inserts made by concurrently arriving messages into shared
+     * transactions (group commit). Each message is still committed before it is
+     * passed to the application. Only messages stored at the same time by
+     * different connections are gathered, as each connection stores its own
+     * messages one at a time. This applies to the service's shared message
+     * store, not to stores a client has chosen for itself.
+     *
+     * @param maxBatchSize the largest number of messages committed together, zero or less to
+     *                     commit every message on its own
+     * @param maxDelayMs   the longest time a commit is held back waiting for other messages
+     */
+    public void setMessageStoreGroupCommit(int maxBatchSize, long maxDelayMs)
+    {
+        if (messageStore instanceof DatabaseMessageStore)
+        {
+            ((DatabaseMessageStore) messageStore).setGroupCommit(maxBatchSize, maxDelayMs);
+        }
+        else if (messageStore instanceof ShardedMessageStore)
+        {
+            ((ShardedMessageStore) messageStore).setGroupCommit(maxBatchSize, maxDelayMs);
+        }
+    }
+
     // Extend Service
 
     /**
@@ -583,7 +906,97 @@ public class MqttService extends Service implements MqttTraceHandler
 
         // create somewhere to buffer received messages until
         // we know that they have been passed to the application
-        messageStore = new DatabaseMessageStore(this, this);
+        messageStore = createMessageStore();
+        warmUpMessageStore();
+    }
+
+    /**
+     * Open the message store's database on a background thread, creating or
+     * upgrading it as need be, so that neither the main thread nor the first
+     * message to arrive has to wait for it. The thread ends once it has run
+     * the connects made in the meantime.
+     */
+    private void warmUpMessageStore()
+    {
+        final MessageStore store = messageStore;
+        synchronized (startupLock)
+        {
+            messageStoreReady = false;
+            startupExecutor = Executors.newSingleThreadExecutor();
+            startupExecutor.execute(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    long begin = SystemClock.elapsedRealtime();
+                    try
+                    {
+                        if (store instanceof DatabaseMessageStore)
+                        {
+                            ((DatabaseMessageStore) store).warmUp();
+                        }
+                        traceDebug(TAG, "message store ready in " + (SystemClock.elapsedRealtime() - begin) + "ms");
+                    }
+                    catch (RuntimeException e)
+                    {
+                        // the store tries again when it is first used
+                        traceException(TAG, "warmUpMessageStore", e);
+                    }
+                    finally
+                    {
+                        synchronized (startupLock)
+                        {
+                            // later connects run straight away; those queued
+                            // behind this still run before the thread ends
+                            messageStoreReady = true;
+                            startupExecutor.shutdown();
+                        }
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Create the message store named by the
+     * {@link MqttServiceConstants#MESSAGE_STORE_META_DATA} meta-data on this
+     * service's manifest entry, defaulting to a database
+     *
+     * @return the message store
+     */
+    private MessageStore createMessageStore()
+    {
+        String store = null;
+        int shards = 0;
+        try
+        {
+            ServiceInfo info = getPackageManager().getServiceInfo(
+                    new ComponentName(this, getClass()), PackageManager.GET_META_DATA);
+            if (info.metaData != null)
+            {
+                store = info.metaData.getString(MqttServiceConstants.MESSAGE_STORE_META_DATA);
+                shards = info.metaData.getInt(MqttServiceConstants.MESSAGE_STORE_SHARDS_META_DATA);
+            }
+        }
+        catch (PackageManager.NameNotFoundException e)
+        {
+            traceException(TAG, "createMessageStore", e);
+        }
+
+        if (MqttServiceConstants.MESSAGE_STORE_SEGMENT_LOG.equals(store))
+        {
+            return new SegmentLogMessageStore(this,
+                    new File(getFilesDir(), MqttServiceConstants.SEGMENT_LOG_DIRECTORY));
+        }
+        if (MqttServiceConstants.MESSAGE_STORE_SHARDED.equals(store))
+        {
+            return new ShardedMessageStore(this, this, shards, ShardedMessageStore.DEFAULT_IDLE_TIMEOUT_MS);
+        }
+        if (store != null && !MqttServiceConstants.MESSAGE_STORE_DATABASE.equals(store))
+        {
+            traceError(TAG, "Unknown message store {" + store + "}, using the database");
+        }
+        return new DatabaseMessageStore(this, this);
     }
 
 
@@ -607,6 +1020,24 @@ public class MqttService extends Service implements MqttTraceHandler
 
         unregisterBroadcastReceivers();
 
+        synchronized (startupLock)
+        {
+            deferredConnects.clear();
+            if (startupExecutor != null)
+            {
+                startupExecutor.shutdown();
+            }
+        }
+
+        // stores provided for particular clients
+        for (MqttConnection client : connections.values())
+        {
+            if (client.getMessageStore() != messageStore)
+            {
+                client.getMessageStore().close();
+            }
+        }
+
         if (this.messageStore != null)
             this.messageStore.close();
 
@@ -686,13 +1117,11 @@ public class MqttService extends Service implements MqttTraceHandler
     {
         if ((traceCallbackId != null) && (traceEnabled))
         {
-            Bundle dataBundle = new Bundle();
-            dataBundle.putString(MqttServiceConstants.CALLBACK_ACTION, MqttServiceConstants.TRACE_ACTION);
-            dataBundle.putString(MqttServiceConstants.CALLBACK_TRACE_SEVERITY, severity);
-            dataBundle.putString(MqttServiceConstants.CALLBACK_TRACE_TAG, tag);
-            //dataBundle.putString(MqttServiceConstants.CALLBACK_TRACE_ID, traceCallbackId);
-            dataBundle.putString(MqttServiceConstants.CALLBACK_ERROR_MESSAGE, message);
-            callbackToActivity(traceCallbackId, Status.ERROR, dataBundle);
+            ServiceEvent event = new ServiceEvent(ServiceEvent.TRACE);
+            event.traceSeverity = severity;
+            event.traceTag = tag;
+            event.errorMessage = message;
+            callbackToActivity(traceCallbackId, Status.ERROR, event);
         }
     }
 
@@ -708,14 +1137,12 @@ public class MqttService extends Service implements MqttTraceHandler
     {
         if (traceCallbackId != null)
         {
-            Bundle dataBundle = new Bundle();
-            dataBundle.putString(MqttServiceConstants.CALLBACK_ACTION, MqttServiceConstants.TRACE_ACTION);
-            dataBundle.putString(MqttServiceConstants.CALLBACK_TRACE_SEVERITY, MqttServiceConstants.TRACE_EXCEPTION);
-            dataBundle.putString(MqttServiceConstants.CALLBACK_ERROR_MESSAGE, message);
-            dataBundle.putSerializable(MqttServiceConstants.CALLBACK_EXCEPTION, e); //TODO: Check
-            dataBundle.putString(MqttServiceConstants.CALLBACK_TRACE_TAG, tag);
-            //dataBundle.putString(MqttServiceConstants.CALLBACK_TRACE_ID, traceCallbackId);
-            callbackToActivity(traceCallbackId, Status.ERROR, dataBundle);
+            ServiceEvent event = new ServiceEvent(ServiceEvent.TRACE);
+            event.traceSeverity = MqttServiceConstants.TRACE_EXCEPTION;
+            event.errorMessage = message;
+            event.exception = e;
+            event.traceTag = tag;
+            callbackToActivity(traceCallbackId, Status.ERROR, event);
         }
     }
 
@@ -785,6 +1212,17 @@ public class MqttService extends Service implements MqttTraceHandler
         return client.getBufferedMessageCount();
     }
 
+    /**
+     * @param clientHandle identifier for the client
+     * @return the bytes taken on disk by the client's buffered messages - zero
+     * unless its DisconnectedBufferOptions persist the buffer
+     */
+    public long getBufferedMessageBytes(String clientHandle)
+    {
+        MqttConnection client = getConnection(clientHandle);
+        return client.getBufferedMessageBytes();
+    }
+
     public MqttMessage getBufferedMessage(String clientHandle, int bufferIndex)
     {
         MqttConnection client = getConnection(clientHandle);
@@ -797,6 +1235,53 @@ public class MqttService extends Service implements MqttTraceHandler
         client.deleteBufferedMessage(bufferIndex);
     }
 
+    /**
+     * Copy a range of a client's buffered messages in one call
+     *
+     * @param clientHandle identifier for the client
+     * @param fromIndex    the position of the first message
+     * @param count        the most messages to copy
+     * @return the messages, oldest first
+     */
+    public List<BufferedMessage> getBufferedMessages(String clientHandle, int fromIndex, int count)
+    {
+        MqttConnection client = getConnection(clientHandle);
+        return client.getBufferedMessages(fromIndex, count);
+    }
+
+    /**
+     * Delete the buffered messages of a client which match a filter, in one
+     * call
+     *
+     * @param clientHandle   identifier for the client
+     * @param topicFilter    an MQTT topic filter, which may contain wildcards, or
+     *                       null for every topic
+     * @param bufferedBefore delete only messages buffered before this time, in
+     *                       milliseconds since the epoch, or zero or less for any time
+     * @param qos            delete only messages of this quality of service, or -1
+     *                       for any
+     * @return the number of messages deleted
+     */
+    public int deleteBufferedMessages(String clientHandle, String topicFilter, long bufferedBefore, int qos)
+    {
+        MqttConnection client = getConnection(clientHandle);
+        return client.deleteBufferedMessages(topicFilter, bufferedBefore, qos);
+    }
+
+    /**
+     * Write every buffered message of a client to a stream
+     *
+     * @param clientHandle identifier for the client
+     * @param out          the stream, which is flushed but not closed
+     * @return the number of messages written
+     * @throws IOException if the stream cannot be written, or the buffer read
+     */
+    public int exportBufferedMessages(String clientHandle, OutputStream out) throws IOException
+    {
+        MqttConnection client = getConnection(clientHandle);
+        return client.exportBufferedMessages(out);
+    }
+
     /*
      * Called in response to a change in network connection - after losing a
      * connection to the server, this allows us to wait until we have a usable
@@ -35,6 +35,15 @@ interface MqttServiceConstants {
   String CLIENT_HANDLE = "clientHandle";
   String MESSAGE_ID = "messageId";
 
+  /* Meta-data on the service's manifest entry choosing the message store */
+  String MESSAGE_STORE_META_DATA = "org.eclipse.paho.android.service.messageStore";
+  String MESSAGE_STORE_DATABASE = "database";
+  String MESSAGE_STORE_SEGMENT_LOG = "segmentLog";
+  String MESSAGE_STORE_SHARDED = "sharded";
+  /* with the sharded store, the number of shards clients are hashed into - none for a shard per client */
+  String MESSAGE_STORE_SHARDS_META_DATA = "org.eclipse.paho.android.service.messageStoreShards";
+  String SEGMENT_LOG_DIRECTORY = "MqttSegmentLog";
+
   /* Tags for actions passed between the Activity and the Service */
   String SEND_ACTION = "send";
   String UNSUBSCRIBE_ACTION = "unsubscribe";
@@ -46,6 +55,8 @@ interface MqttServiceConstants {
   String MESSAGE_DELIVERED_ACTION = "messageDelivered";
   String ON_CONNECTION_LOST_ACTION = "onConnectionLost";
   String TRACE_ACTION = "trace";
+  String BACKLOG_REPLAY_ACTION = "backlogReplay";
+  String MESSAGES_ARRIVED_ACTION = "messagesArrived";
 
   /* Identifies an Intent which calls back to the Activity */
   String CALLBACK_TO_ACTIVITY = MqttService.TAG
@@ -79,6 +90,16 @@ interface MqttServiceConstants {
                                               + ".ERROR_NUMBER";
 
   String CALLBACK_EXCEPTION = MqttService.TAG + ".exception";
+
+  /* Progress of a paged backlog replay */
+  String CALLBACK_BACKLOG_DELIVERED = MqttService.TAG + ".backlogDelivered";
+  String CALLBACK_BACKLOG_TOTAL = MqttService.TAG + ".backlogTotal";
+  String CALLBACK_BACKLOG_COMPLETE = MqttService.TAG + ".backlogComplete";
+
+  /* A batch of arrived messages, in parallel arrays */
+  String CALLBACK_DESTINATION_NAMES = MqttService.TAG + ".destinationNames";
+  String CALLBACK_MESSAGE_IDS = MqttService.TAG + ".messageIds";
+  String CALLBACK_MESSAGE_PARCELS = MqttService.TAG + ".PARCELS";
   
   //Intent prefix for Ping sender.
   String PING_SENDER = MqttService.TAG + ".pingSender.";
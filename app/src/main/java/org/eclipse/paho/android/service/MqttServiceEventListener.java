@@ -0,0 +1,32 @@
+/*******************************************************************************
+ * Copyright (c) 1999, 2014 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ */
+package org.eclipse.paho.android.service;
+
+/**
+ * Receives the results of operations and asynchronous activities, such as
+ * messages arriving, for one client directly from the service, rather than
+ * through a broadcast Intent.
+ *
+ * @see MqttService#registerEventListener(String, MqttServiceEventListener)
+ */
+interface MqttServiceEventListener {
+
+	/**
+	 * Called on the thread which produced the event, so the listener should
+	 * pass it to another thread rather than doing any real work itself.
+	 *
+	 * @param event
+	 *            the event, including the client handle and the status
+	 */
+	void onServiceEvent(ServiceEvent event);
+}
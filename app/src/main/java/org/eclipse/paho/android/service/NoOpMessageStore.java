@@ -0,0 +1,85 @@
+/*******************************************************************************
+ * Copyright (c) 1999, 2014 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution. 
+ *
+ * The Eclipse Public License is available at 
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at 
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ */
+package org.eclipse.paho.android.service;
+
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A {@link MessageStore} which keeps nothing. Messages are passed to the
+ * application once and are lost if it is not listening, which suits high rate
+ * QoS 0 telemetry where a missing sample does not matter.
+ */
+class NoOpMessageStore implements MessageStore {
+
+	private final AtomicLong nextId = new AtomicLong(1);
+
+	@Override
+	public long storeArrived(String clientHandle, String Topic,
+			MqttMessage message) {
+		return nextId.getAndIncrement();
+	}
+
+	@Override
+	public boolean discardArrived(String clientHandle, long id) {
+		return true;
+	}
+
+	@Override
+	public Map<Long, Boolean> discardArrived(String clientHandle,
+			Collection<Long> ids) {
+		Map<Long, Boolean> results = new LinkedHashMap<>();
+		for (Long id : ids) {
+			results.put(id, Boolean.TRUE);
+		}
+		return results;
+	}
+
+	@Override
+	public int getArrivedCount(String clientHandle) {
+		return 0;
+	}
+
+	@Override
+	public Iterator<StoredMessage> getAllArrivedMessages(String clientHandle) {
+		return Collections.<StoredMessage> emptyList().iterator();
+	}
+
+	@Override
+	public StoredMessageCursor openArrivedMessages(String clientHandle,
+			String topicFilter, long since, int limit) {
+		return new IteratorMessageCursor(getAllArrivedMessages(clientHandle),
+				new ArrivedMessageFilter(topicFilter, since, limit));
+	}
+
+	@Override
+	public List<StoredMessage> getArrivedMessages(String clientHandle,
+			StoredMessage after, int limit) {
+		return Collections.emptyList();
+	}
+
+	@Override
+	public void clearArrivedMessages(String clientHandle) {
+	}
+
+	@Override
+	public void close() {
+	}
+}
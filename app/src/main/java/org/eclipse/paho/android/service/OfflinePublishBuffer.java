@@ -0,0 +1,994 @@
+/*******************************************************************************
+ * Copyright (c) 1999, 2014 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ */
+package org.eclipse.paho.android.service;
+
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * <p>
+ * A queue of messages published while a client is disconnected, kept on disk
+ * in fixed size, memory-mapped segment files (see {@link MappedSegment}) so
+ * that it can grow far beyond what would fit in memory, and survives the
+ * process being killed.
+ * </p>
+ * <p>
+ * Messages are appended to the newest segment. Draining is a stream:
+ * {@link #peek()} reads the oldest message not yet sent, {@link #sent} moves
+ * past it, and {@link #complete(long)} marks it done once the server has it.
+ * Done messages at the head of the queue are committed by appending a commit
+ * record, and segments holding nothing but committed messages are deleted.
+ * After a crash, or a {@link #rewind()} when the connection is lost, messages
+ * sent but not completed are read again, so each is delivered at least once.
+ * </p>
+ * <p>
+ * A message not yet sent can be deleted from anywhere in the queue, by
+ * appending a record naming it. It is then skipped, and committed along with
+ * the messages around it.
+ * </p>
+ * <p>
+ * Only the segment being read and the segment being written are mapped, and
+ * only the messages in flight are held in memory, so the heap used does not
+ * grow with the length of the queue.
+ * </p>
+ */
+class OfflinePublishBuffer {
+
+	// the size of each segment file
+	static final int DEFAULT_SEGMENT_SIZE = 1024 * 1024;
+
+	// "MQOB" - identifies our segment files
+	private static final int SEGMENT_MAGIC = 0x4D514F42;
+	private static final String SEGMENT_SUFFIX = ".seg";
+
+	// record types
+	private static final byte MESSAGE = 1;
+	private static final byte COMMIT = 2;
+	private static final byte DELETE = 3;
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private static final MappedSegment.RecordVisitor IGNORE = new MappedSegment.RecordVisitor() {
+		@Override
+		public void onRecord(int offset, ByteBuffer body) {
+		}
+	};
+
+	private final File directory;
+	private final int segmentSize;
+	// tokens are only handed back for messages added since the buffer was
+	// opened - those from an earlier process mean nothing now
+	private final long epoch = new Random().nextLong();
+
+	// guards everything below
+	private final Object lock = new Object();
+	// oldest first - the last is the one being written
+	private final ArrayDeque<Segment> segments = new ArrayDeque<>();
+	// the sequence number the next message appended is given
+	private long nextSequence = 0;
+	// every message before this one is committed
+	private long headSequence = 0;
+	// bytes taken by the messages not yet committed
+	private long byteCount = 0;
+	// where the next message to be sent is
+	private Segment readSegment = null;
+	private int readOffset = MappedSegment.HEADER_SIZE;
+	private long readSequence = 0;
+	// messages sent but not committed, with their size and whether they are
+	// complete
+	private final TreeMap<Long, InFlight> inFlight = new TreeMap<>();
+	// messages deleted but not yet committed
+	private final TreeSet<Long> deleted = new TreeSet<>();
+	private byte[] scratch = new byte[256];
+	private boolean open = false;
+
+	/**
+	 * Constructor
+	 *
+	 * @param directory
+	 *            the directory holding this buffer's segment files, and nothing
+	 *            else
+	 * @param segmentSize
+	 *            the size of each segment file - a message too big to fit is
+	 *            given a segment of its own
+	 */
+	OfflinePublishBuffer(File directory, int segmentSize) {
+		if (segmentSize < MappedSegment.HEADER_SIZE + MappedSegment.FRAME_SIZE) {
+			throw new IllegalArgumentException("Segment size " + segmentSize
+					+ " is too small");
+		}
+		this.directory = directory;
+		this.segmentSize = segmentSize;
+	}
+
+	/**
+	 * A message read from the buffer
+	 */
+	static class BufferedPublish {
+		private final long sequence;
+		private final int size;
+		private final long bufferedAt;
+		private final String topic;
+		private final MqttMessage message;
+		private final String invocationContext;
+		private final String activityToken;
+
+		BufferedPublish(long sequence, int size, long bufferedAt,
+				String topic, MqttMessage message, String invocationContext,
+				String activityToken) {
+			this.sequence = sequence;
+			this.size = size;
+			this.bufferedAt = bufferedAt;
+			this.topic = topic;
+			this.message = message;
+			this.invocationContext = invocationContext;
+			this.activityToken = activityToken;
+		}
+
+		long getSequence() {
+			return sequence;
+		}
+
+		/**
+		 * @return when the message was added, in milliseconds since the epoch
+		 */
+		long getBufferedAt() {
+			return bufferedAt;
+		}
+
+		String getTopic() {
+			return topic;
+		}
+
+		MqttMessage getMessage() {
+			return message;
+		}
+
+		/**
+		 * @return the invocation context given when the message was
+		 *         published, or null if it was published before the buffer was
+		 *         last opened
+		 */
+		String getInvocationContext() {
+			return invocationContext;
+		}
+
+		/**
+		 * @return the activity token given when the message was published, or
+		 *         null if it was published before the buffer was last opened
+		 */
+		String getActivityToken() {
+			return activityToken;
+		}
+	}
+
+	/**
+	 * Called for each message by {@link OfflinePublishBuffer#forEach}
+	 */
+	interface Visitor {
+		/**
+		 * @param publish
+		 *            the message
+		 * @return false to stop
+		 * @throws IOException
+		 */
+		boolean visit(BufferedPublish publish) throws IOException;
+	}
+
+	/**
+	 * Open the buffer, recovering the messages left in its directory
+	 *
+	 * @throws IOException
+	 *             if the directory cannot be created
+	 */
+	void open() throws IOException {
+		synchronized (lock) {
+			if (open) {
+				return;
+			}
+			if (!directory.isDirectory() && !directory.mkdirs()) {
+				throw new IOException("Cannot create " + directory);
+			}
+			recover();
+			open = true;
+		}
+	}
+
+	/**
+	 * Close the buffer, flushing it to the storage device
+	 */
+	void close() {
+		synchronized (lock) {
+			if (!open) {
+				return;
+			}
+			for (Segment segment : segments) {
+				if (segment.file != null) {
+					segment.file.force();
+					segment.file.close();
+					segment.file = null;
+				}
+			}
+			segments.clear();
+			inFlight.clear();
+			readSegment = null;
+			open = false;
+		}
+	}
+
+	/**
+	 * Add a message to the end of the queue
+	 *
+	 * @param topic
+	 *            the topic to publish to
+	 * @param message
+	 *            the message
+	 * @param invocationContext
+	 *            to be handed back when the message is read, or null
+	 * @param activityToken
+	 *            to be handed back when the message is read, or null
+	 * @return the sequence number of the message
+	 * @throws IOException
+	 *             if a segment file cannot be created
+	 */
+	long append(String topic, MqttMessage message, String invocationContext,
+			String activityToken) throws IOException {
+		return append(topic, message, invocationContext, activityToken,
+				System.currentTimeMillis());
+	}
+
+	/**
+	 * Add a message to the end of the queue, as if at the given time
+	 */
+	long append(String topic, MqttMessage message, String invocationContext,
+			String activityToken, long time) throws IOException {
+		byte[] topicBytes = topic.getBytes(UTF_8);
+		byte[] payload = message.getPayload();
+		byte[] contextBytes = invocationContext == null ? null
+				: invocationContext.getBytes(UTF_8);
+		byte[] tokenBytes = activityToken == null ? null : activityToken
+				.getBytes(UTF_8);
+		synchronized (lock) {
+			checkIsOpen();
+			int length = 1 + 8 + 8 + 1 + 1 + 4 + topicBytes.length + 4
+					+ payload.length + 4
+					+ (contextBytes == null ? 0 : contextBytes.length) + 4
+					+ (tokenBytes == null ? 0 : tokenBytes.length);
+			ensureScratch(length);
+			int position = 0;
+			scratch[position++] = MESSAGE;
+			position = putLong(scratch, position, epoch);
+			position = putLong(scratch, position, time);
+			scratch[position++] = (byte) message.getQos();
+			scratch[position++] = (byte) (message.isRetained() ? 1 : 0);
+			position = putBytes(scratch, position, topicBytes);
+			position = putBytes(scratch, position, payload);
+			position = putBytes(scratch, position, contextBytes);
+			putBytes(scratch, position, tokenBytes);
+
+			Segment segment = append(length);
+			segment.count++;
+			segment.bytes += MappedSegment.recordSize(length);
+			byteCount += MappedSegment.recordSize(length);
+			return nextSequence++;
+		}
+	}
+
+	/**
+	 * @return the oldest message not yet sent, or null if every message has
+	 *         been sent
+	 * @throws IOException
+	 *             if a segment cannot be read
+	 */
+	BufferedPublish peek() throws IOException {
+		synchronized (lock) {
+			checkIsOpen();
+			while (readSequence < nextSequence) {
+				while (readSequence >= readSegment.base + readSegment.count) {
+					// move on to the next segment
+					Segment next = null;
+					Iterator<Segment> iterator = segments.iterator();
+					while (iterator.hasNext()) {
+						if (iterator.next() == readSegment) {
+							next = iterator.next();
+							break;
+						}
+					}
+					unmap(readSegment);
+					readSegment = next;
+					readOffset = MappedSegment.HEADER_SIZE;
+				}
+				readOffset = skipToMessage(map(readSegment), readOffset);
+				ByteBuffer body = readSegment.file.read(readOffset);
+				if (!deleted.contains(readSequence)) {
+					return decode(readSequence, body);
+				}
+				readOffset += MappedSegment.recordSize(body.remaining());
+				readSequence++;
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * Move past the message last returned by {@link #peek()}, once it has
+	 * been handed to the client
+	 *
+	 * @param publish
+	 *            the message
+	 */
+	void sent(BufferedPublish publish) {
+		synchronized (lock) {
+			if (!open || publish.sequence != readSequence) {
+				return;
+			}
+			inFlight.put(readSequence, new InFlight(publish.size));
+			readOffset += publish.size;
+			readSequence++;
+		}
+	}
+
+	/**
+	 * Mark a sent message as done with. Messages are committed, and will not
+	 * be read again, once every message before them is done with too.
+	 *
+	 * @param sequence
+	 *            the message's sequence number
+	 * @throws IOException
+	 *             if the commit cannot be written
+	 */
+	void complete(long sequence) throws IOException {
+		synchronized (lock) {
+			checkIsOpen();
+			InFlight entry = inFlight.get(sequence);
+			if (entry == null) {
+				return;
+			}
+			entry.complete = true;
+			advanceHead();
+		}
+	}
+
+	/**
+	 * Commit the messages at the head of the queue which are complete or
+	 * deleted
+	 */
+	private void advanceHead() throws IOException {
+		long head = headSequence;
+		while (true) {
+			if (deleted.remove(head)) {
+				head++;
+				continue;
+			}
+			Map.Entry<Long, InFlight> first = inFlight.firstEntry();
+			if (first != null && first.getKey() == head
+					&& first.getValue().complete) {
+				byteCount -= inFlight.pollFirstEntry().getValue().size;
+				head++;
+				continue;
+			}
+			break;
+		}
+		commit(head);
+	}
+
+	/**
+	 * Forget that the messages in flight were sent, so that they are read
+	 * again - as when the connection they were sent on is lost
+	 *
+	 * @throws IOException
+	 *             if the segment holding them cannot be read
+	 */
+	void rewind() throws IOException {
+		synchronized (lock) {
+			if (!open || inFlight.isEmpty()) {
+				return;
+			}
+			// messages completed at the head have been committed, so the first
+			// in flight is the first not committed
+			long first = inFlight.firstKey();
+			inFlight.clear();
+			Segment segment = segmentOf(first);
+			if (segment != readSegment) {
+				unmap(readSegment);
+				readSegment = segment;
+			}
+			readOffset = offsetOf(map(segment), first);
+			readSequence = first;
+		}
+	}
+
+	/**
+	 * Drop the oldest message not yet sent, to make room for a new one
+	 *
+	 * @return true if a message was dropped
+	 * @throws IOException
+	 *             if the deletion cannot be written
+	 */
+	boolean dropOldest() throws IOException {
+		synchronized (lock) {
+			checkIsOpen();
+			BufferedPublish oldest = peek();
+			if (oldest == null) {
+				return false;
+			}
+			delete(oldest);
+			return true;
+		}
+	}
+
+	/**
+	 * Delete a message by its position, counting from the oldest not
+	 * committed. A message which has been sent cannot be deleted.
+	 *
+	 * @param index
+	 *            the position of the message
+	 * @return true if the message was deleted, false if it has been sent
+	 * @throws IOException
+	 *             if the deletion cannot be written
+	 */
+	boolean delete(long index) throws IOException {
+		synchronized (lock) {
+			BufferedPublish publish = find(index);
+			if (publish.sequence < readSequence) {
+				return false;
+			}
+			delete(publish);
+			return true;
+		}
+	}
+
+	/**
+	 * Delete every message not yet sent which a filter matches
+	 *
+	 * @param filter
+	 *            chooses the messages
+	 * @return the number of messages deleted
+	 * @throws IOException
+	 *             if a segment cannot be read, or a deletion written
+	 */
+	int delete(final BufferedMessageFilter filter) throws IOException {
+		synchronized (lock) {
+			checkIsOpen();
+			final List<BufferedPublish> matched = new ArrayList<>();
+			walk(readSequence, new Visitor() {
+				@Override
+				public boolean visit(BufferedPublish publish) {
+					if (filter.matches(publish.topic, publish.message,
+							publish.bufferedAt)) {
+						matched.add(publish);
+					}
+					return true;
+				}
+			});
+			for (BufferedPublish publish : matched) {
+				delete(publish);
+			}
+			return matched.size();
+		}
+	}
+
+	private void delete(BufferedPublish publish) throws IOException {
+		scratch[0] = DELETE;
+		putInt(scratch, putLong(scratch, 1, publish.sequence), publish.size);
+		append(13);
+		deleted.add(publish.sequence);
+		byteCount -= publish.size;
+		advanceHead();
+	}
+
+	/**
+	 * Visit the messages not committed, oldest first, starting at a position
+	 * counted from the oldest
+	 *
+	 * @param fromIndex
+	 *            the position of the first message to visit
+	 * @param visitor
+	 *            called for each message
+	 * @throws IOException
+	 *             if a segment cannot be read
+	 */
+	void forEach(final long fromIndex, final Visitor visitor)
+			throws IOException {
+		synchronized (lock) {
+			checkIsOpen();
+			walk(headSequence, new Visitor() {
+				private long index = 0;
+
+				@Override
+				public boolean visit(BufferedPublish publish)
+						throws IOException {
+					return index++ < fromIndex || visitor.visit(publish);
+				}
+			});
+		}
+	}
+
+	/**
+	 * Visit the messages not deleted, from the given sequence number on
+	 */
+	private void walk(long fromSequence, Visitor visitor) throws IOException {
+		Segment[] snapshot = segments.toArray(new Segment[segments.size()]);
+		for (Segment segment : snapshot) {
+			if (segment.base + segment.count <= fromSequence) {
+				continue;
+			}
+			boolean mapped = segment.file != null;
+			MappedSegment file = map(segment);
+			try {
+				int offset = MappedSegment.HEADER_SIZE;
+				for (long sequence = segment.base; sequence < segment.base
+						+ segment.count; sequence++) {
+					offset = skipToMessage(file, offset);
+					ByteBuffer body = file.read(offset);
+					offset += MappedSegment.recordSize(body.remaining());
+					if (sequence >= fromSequence && !deleted.contains(sequence)
+							&& !visitor.visit(decode(sequence, body))) {
+						return;
+					}
+				}
+			} finally {
+				if (!mapped) {
+					unmap(segment);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return the message at a position, counting from the oldest not
+	 *         committed
+	 */
+	private BufferedPublish find(final long index) throws IOException {
+		checkIsOpen();
+		if (index < 0 || index >= getMessageCount()) {
+			throw new ArrayIndexOutOfBoundsException("No message at " + index);
+		}
+		final BufferedPublish[] found = new BufferedPublish[1];
+		forEach(index, new Visitor() {
+			@Override
+			public boolean visit(BufferedPublish publish) {
+				found[0] = publish;
+				return false;
+			}
+		});
+		return found[0];
+	}
+
+	/**
+	 * Drop every message
+	 *
+	 * @throws IOException
+	 *             if the commit cannot be written
+	 */
+	void clear() throws IOException {
+		synchronized (lock) {
+			checkIsOpen();
+			inFlight.clear();
+			deleted.clear();
+			byteCount = 0;
+			commit(nextSequence);
+		}
+	}
+
+	/**
+	 * Read a message by its position, counting from the oldest not committed.
+	 * This walks the queue from the start, so is only meant for looking at
+	 * the first few messages.
+	 *
+	 * @param index
+	 *            the position of the message
+	 * @return the message
+	 * @throws IOException
+	 *             if a segment cannot be read
+	 */
+	MqttMessage getMessage(long index) throws IOException {
+		synchronized (lock) {
+			return find(index).message;
+		}
+	}
+
+	/**
+	 * @return the number of messages not yet committed, including those in
+	 *         flight
+	 */
+	long getMessageCount() {
+		synchronized (lock) {
+			return nextSequence - headSequence - deleted.size();
+		}
+	}
+
+	/**
+	 * @return the number of bytes taken by the messages not yet committed
+	 */
+	long getByteCount() {
+		synchronized (lock) {
+			return byteCount;
+		}
+	}
+
+	/**
+	 * @return the number of messages sent but not committed
+	 */
+	int getInFlightCount() {
+		synchronized (lock) {
+			return inFlight.size();
+		}
+	}
+
+	/**
+	 * @return the number of segment files in use
+	 */
+	int getSegmentCount() {
+		synchronized (lock) {
+			return segments.size();
+		}
+	}
+
+	private void checkIsOpen() throws IOException {
+		if (!open) {
+			throw new IOException("Buffer is closed");
+		}
+	}
+
+	/**
+	 * Record that every message before the given one is committed, and delete
+	 * the segments left with nothing else
+	 */
+	private void commit(long head) throws IOException {
+		if (head == headSequence) {
+			return;
+		}
+		scratch[0] = COMMIT;
+		putLong(scratch, 1, head);
+		append(9);
+		headSequence = head;
+		// the commit record is in the newest segment, which is kept
+		while (segments.size() > 1) {
+			Segment oldest = segments.peekFirst();
+			if (oldest.base + oldest.count > headSequence) {
+				break;
+			}
+			segments.removeFirst();
+			if (oldest == readSegment) {
+				readSegment = segments.peekFirst();
+				readOffset = MappedSegment.HEADER_SIZE;
+			}
+			map(oldest).delete();
+			oldest.file = null;
+		}
+		if (readSequence < headSequence) {
+			// dropped without being sent
+			Segment segment = segmentOf(headSequence);
+			if (segment != readSegment) {
+				unmap(readSegment);
+				readSegment = segment;
+			}
+			readOffset = offsetOf(map(segment), headSequence);
+			readSequence = headSequence;
+		}
+	}
+
+	/**
+	 * Append the record held in scratch to the newest segment, starting a new
+	 * segment if it does not fit
+	 *
+	 * @return the segment it was written to
+	 */
+	private Segment append(int length) throws IOException {
+		Segment segment = segments.peekLast();
+		if (segment == null || segment.file.append(scratch, length) < 0) {
+			Segment full = segment;
+			segment = newSegment(MappedSegment.recordSize(length));
+			segment.file.append(scratch, length);
+			if (full != null) {
+				// a full segment will never be written to again
+				full.file.force();
+				if (full != readSegment) {
+					unmap(full);
+				}
+			}
+		}
+		return segment;
+	}
+
+	private Segment newSegment(int recordSize) throws IOException {
+		long sequence = segments.isEmpty() ? 1 : segments.peekLast().sequence + 1;
+		int capacity = Math.max(segmentSize, MappedSegment.HEADER_SIZE
+				+ recordSize);
+		File file = new File(directory, String.format(Locale.US, "%020d",
+				sequence) + SEGMENT_SUFFIX);
+		Segment segment = new Segment(file, sequence, nextSequence);
+		segment.file = MappedSegment.create(file, SEGMENT_MAGIC, sequence,
+				nextSequence, capacity);
+		segments.addLast(segment);
+		if (readSegment == null) {
+			readSegment = segment;
+			readOffset = MappedSegment.HEADER_SIZE;
+		}
+		return segment;
+	}
+
+	/**
+	 * Count the messages in each segment, and find the last commit
+	 */
+	private void recover() throws IOException {
+		segments.clear();
+		inFlight.clear();
+		deleted.clear();
+		readSegment = null;
+		nextSequence = 0;
+		headSequence = 0;
+		byteCount = 0;
+		File[] files = directory.listFiles();
+		if (files == null) {
+			files = new File[0];
+		}
+		Arrays.sort(files);
+		final long[] commit = {0};
+		// the size of each message deleted
+		final Map<Long, Integer> deletes = new HashMap<>();
+		for (File file : files) {
+			if (!file.getName().endsWith(SEGMENT_SUFFIX)) {
+				continue;
+			}
+			MappedSegment mapped;
+			try {
+				mapped = MappedSegment.open(file, SEGMENT_MAGIC);
+			} catch (IOException e) {
+				// the header is written before any record, so there is
+				// nothing to lose here
+				file.delete();
+				continue;
+			}
+			final Segment segment = new Segment(file, mapped.getSequence(),
+					mapped.getBase());
+			segment.file = mapped;
+			mapped.recover(new MappedSegment.RecordVisitor() {
+				@Override
+				public void onRecord(int offset, ByteBuffer body) {
+					int length = body.remaining();
+					byte type = body.get();
+					if (type == MESSAGE) {
+						segment.count++;
+						segment.bytes += MappedSegment.recordSize(length);
+					} else if (type == COMMIT) {
+						commit[0] = Math.max(commit[0], body.getLong());
+					} else if (type == DELETE) {
+						deletes.put(body.getLong(), body.getInt());
+					}
+				}
+			});
+			segments.addLast(segment);
+		}
+		if (segments.isEmpty()) {
+			return;
+		}
+		Segment last = segments.peekLast();
+		nextSequence = last.base + last.count;
+		headSequence = Math.max(segments.peekFirst().base,
+				Math.min(commit[0], nextSequence));
+		for (Segment segment : segments) {
+			byteCount += segment.bytes;
+		}
+		for (Map.Entry<Long, Integer> delete : deletes.entrySet()) {
+			if (delete.getKey() >= headSequence) {
+				deleted.add(delete.getKey());
+				byteCount -= delete.getValue();
+			}
+		}
+
+		// position the reader at the first message not committed, taking
+		// those before it out of the count
+		readSegment = segmentOf(headSequence);
+		readSequence = headSequence;
+		readOffset = offsetOf(readSegment.file, headSequence);
+		for (Segment segment : segments) {
+			if (segment == readSegment) {
+				break;
+			}
+			byteCount -= segment.bytes;
+		}
+		int offset = MappedSegment.HEADER_SIZE;
+		long sequence = readSegment.base;
+		while (sequence < headSequence) {
+			offset = skipToMessage(readSegment.file, offset);
+			int size = MappedSegment.recordSize(readSegment.file.read(offset)
+					.remaining());
+			byteCount -= size;
+			offset += size;
+			sequence++;
+		}
+
+		// deleting what is wholly committed, and keeping no more mapped than
+		// is needed
+		while (segments.size() > 1
+				&& segments.peekFirst().base + segments.peekFirst().count <= headSequence) {
+			Segment oldest = segments.removeFirst();
+			oldest.file.delete();
+			oldest.file = null;
+		}
+		for (Segment segment : segments) {
+			if (segment != readSegment && segment != last) {
+				unmap(segment);
+			}
+		}
+	}
+
+	/**
+	 * @return the segment holding a message, or the newest if the message is
+	 *         still to come
+	 */
+	private Segment segmentOf(long sequence) {
+		for (Segment segment : segments) {
+			if (sequence < segment.base + segment.count) {
+				return segment;
+			}
+		}
+		return segments.peekLast();
+	}
+
+	/**
+	 * @return the offset of a message in the segment holding it, or the end
+	 *         of the segment if the message is still to come
+	 */
+	private int offsetOf(MappedSegment file, long sequence) {
+		Segment segment = segmentOf(sequence);
+		int offset = MappedSegment.HEADER_SIZE;
+		for (long s = segment.base; s < sequence
+				&& offset < file.getWritePosition(); s++) {
+			offset = skipToMessage(file, offset);
+			offset += MappedSegment.recordSize(file.read(offset).remaining());
+		}
+		return offset < file.getWritePosition() ? skipToMessage(file, offset)
+				: offset;
+	}
+
+	/**
+	 * @return the offset of the first message record at or after the given
+	 *         offset
+	 */
+	private static int skipToMessage(MappedSegment file, int offset) {
+		while (offset < file.getWritePosition()) {
+			ByteBuffer record = file.read(offset);
+			if (record.get(0) == MESSAGE) {
+				break;
+			}
+			offset += MappedSegment.recordSize(record.remaining());
+		}
+		return offset;
+	}
+
+	private MappedSegment map(Segment segment) throws IOException {
+		if (segment.file == null) {
+			segment.file = MappedSegment.open(segment.path, SEGMENT_MAGIC);
+			segment.file.recover(IGNORE);
+		}
+		return segment.file;
+	}
+
+	private void unmap(Segment segment) {
+		if (segment != null && segment.file != null
+				&& segment != segments.peekLast()) {
+			segment.file.close();
+			segment.file = null;
+		}
+	}
+
+	private BufferedPublish decode(long sequence, ByteBuffer body) {
+		int size = MappedSegment.recordSize(body.remaining());
+		body.get(); // type
+		boolean current = body.getLong() == epoch;
+		long bufferedAt = body.getLong();
+		int qos = body.get();
+		boolean retained = body.get() != 0;
+		String topic = getString(body);
+		byte[] payload = new byte[body.getInt()];
+		body.get(payload);
+		String invocationContext = getString(body);
+		String activityToken = getString(body);
+		MqttMessage message = new MqttMessage(payload);
+		message.setQos(qos);
+		message.setRetained(retained);
+		return new BufferedPublish(sequence, size, bufferedAt, topic, message,
+				current ? invocationContext : null, current ? activityToken
+						: null);
+	}
+
+	private void ensureScratch(int length) {
+		if (scratch.length < length) {
+			scratch = new byte[Math.max(length, scratch.length * 2)];
+		}
+	}
+
+	private static int putLong(byte[] array, int position, long value) {
+		for (int shift = 56; shift >= 0; shift -= 8) {
+			array[position++] = (byte) (value >>> shift);
+		}
+		return position;
+	}
+
+	private static int putInt(byte[] array, int position, int value) {
+		array[position++] = (byte) (value >>> 24);
+		array[position++] = (byte) (value >>> 16);
+		array[position++] = (byte) (value >>> 8);
+		array[position++] = (byte) value;
+		return position;
+	}
+
+	private static int putBytes(byte[] array, int position, byte[] value) {
+		position = putInt(array, position, value == null ? -1 : value.length);
+		if (value != null) {
+			System.arraycopy(value, 0, array, position, value.length);
+			position += value.length;
+		}
+		return position;
+	}
+
+	private static String getString(ByteBuffer buffer) {
+		int length = buffer.getInt();
+		if (length < 0) {
+			return null;
+		}
+		byte[] bytes = new byte[length];
+		buffer.get(bytes);
+		return new String(bytes, UTF_8);
+	}
+
+	/**
+	 * A segment file, mapped only while it is being read or written
+	 */
+	private static class Segment {
+		private final File path;
+		private final long sequence;
+		// the sequence number of the first message in the segment
+		private final long base;
+		private MappedSegment file = null;
+		private int count = 0;
+		// bytes taken by the segment's messages
+		private long bytes = 0;
+
+		Segment(File path, long sequence, long base) {
+			this.path = path;
+			this.sequence = sequence;
+			this.base = base;
+		}
+	}
+
+	/**
+	 * A message sent but not yet committed
+	 */
+	private static class InFlight {
+		private final int size;
+		private boolean complete = false;
+
+		InFlight(int size) {
+			this.size = size;
+		}
+	}
+}
@@ -46,7 +46,7 @@ import org.eclipse.paho.client.mqttv3.MqttMessage;
 public class ParcelableMqttMessage extends MqttMessage implements Parcelable
 {
 
-  String messageId = null;
+  long messageId = -1;
 
   ParcelableMqttMessage(MqttMessage original) {
     super(original.getPayload());
@@ -61,13 +61,14 @@ public class ParcelableMqttMessage extends MqttMessage implements Parcelable
     boolean[] flags = parcel.createBooleanArray();
     setRetained(flags[0]);
     setDuplicate(flags[1]);
-    messageId = parcel.readString();
+    messageId = parcel.readLong();
   }
 
   /**
-   * @return the messageId
+   * @return the messageId, or -1 if the message has no identifier in the
+   *         message store
    */
-  public String getMessageId() {
+  public long getMessageId() {
     return messageId;
   }
 
@@ -92,7 +93,7 @@ public class ParcelableMqttMessage extends MqttMessage implements Parcelable
     parcel.writeByteArray(getPayload());
     parcel.writeInt(getQos());
     parcel.writeBooleanArray(new boolean[]{isRetained(), isDuplicate()});
-    parcel.writeString(messageId);
+    parcel.writeLong(messageId);
   }
 
 	/**
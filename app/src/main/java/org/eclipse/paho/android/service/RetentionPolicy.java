@@ -0,0 +1,208 @@
+/*******************************************************************************
+ * Copyright (c) 1999, 2014 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution. 
+ *
+ * The Eclipse Public License is available at 
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at 
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ */
+package org.eclipse.paho.android.service;
+
+import org.eclipse.paho.client.mqttv3.MqttTopic;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>
+ * Limits on the messages kept for a client while they wait to be acknowledged
+ * by the application. When a limit is exceeded the oldest messages are
+ * evicted, so that a backlog never grows beyond what can be replayed quickly.
+ * </p>
+ * <p>
+ * A limit of zero or less means no limit. Further limits can be added for the
+ * messages whose topics match a topic filter; a message is kept only if it is
+ * within the limits of this policy and of every topic policy it matches.
+ * </p>
+ * <p>
+ * A policy should not be changed once it has been given to the service.
+ * </p>
+ * 
+ * @see MqttAndroidClient#setRetentionPolicy(RetentionPolicy)
+ */
+public class RetentionPolicy {
+
+	private int maxMessages = 0;
+	private long maxPayloadBytes = 0;
+	private long maxAgeMs = 0;
+	private final Map<String, RetentionPolicy> topicPolicies = new LinkedHashMap<>();
+
+	/**
+	 * @return the most messages kept
+	 */
+	public int getMaxMessages() {
+		return maxMessages;
+	}
+
+	/**
+	 * @param maxMessages
+	 *            the most messages kept
+	 */
+	public void setMaxMessages(int maxMessages) {
+		this.maxMessages = maxMessages;
+	}
+
+	/**
+	 * @return the most payload bytes kept, in total
+	 */
+	public long getMaxPayloadBytes() {
+		return maxPayloadBytes;
+	}
+
+	/**
+	 * @param maxPayloadBytes
+	 *            the most payload bytes kept, in total
+	 */
+	public void setMaxPayloadBytes(long maxPayloadBytes) {
+		this.maxPayloadBytes = maxPayloadBytes;
+	}
+
+	/**
+	 * @return how long a message is kept after it arrived, in milliseconds
+	 */
+	public long getMaxAgeMs() {
+		return maxAgeMs;
+	}
+
+	/**
+	 * @param maxAgeMs
+	 *            how long a message is kept after it arrived, in milliseconds
+	 */
+	public void setMaxAgeMs(long maxAgeMs) {
+		this.maxAgeMs = maxAgeMs;
+	}
+
+	/**
+	 * Add limits for the messages whose topics match a filter. Any topic
+	 * policies of the given policy are ignored.
+	 * 
+	 * @param topicFilter
+	 *            the topic filter, which may contain wildcards
+	 * @param policy
+	 *            the limits for the matching messages
+	 * @throws IllegalArgumentException
+	 *             if the topic filter is not valid
+	 */
+	public void addTopicPolicy(String topicFilter, RetentionPolicy policy) {
+		MqttTopic.validate(topicFilter, true);
+		topicPolicies.put(topicFilter, policy);
+	}
+
+	/**
+	 * @return the shortest age limit in this policy or its topic policies, or
+	 *         zero if there is none
+	 */
+	long getShortestMaxAgeMs() {
+		long shortest = maxAgeMs > 0 ? maxAgeMs : 0;
+		for (RetentionPolicy policy : topicPolicies.values()) {
+			if (policy.maxAgeMs > 0
+					&& (shortest == 0 || policy.maxAgeMs < shortest)) {
+				shortest = policy.maxAgeMs;
+			}
+		}
+		return shortest;
+	}
+
+	/**
+	 * Start deciding which of a client's messages to keep
+	 * 
+	 * @param now
+	 *            the time against which ages are measured
+	 * @return the decision maker, to be given the messages newest first
+	 */
+	Enforcement enforce(long now) {
+		return new Enforcement(now);
+	}
+
+	/**
+	 * Decides, message by message from the newest back, which messages are
+	 * kept - a message is kept if the newer messages kept so far leave room
+	 * for it.
+	 */
+	class Enforcement {
+		private final long now;
+		private final Usage total = new Usage(RetentionPolicy.this);
+		private final List<String> filters = new ArrayList<>();
+		private final List<Usage> usages = new ArrayList<>();
+		private final List<Usage> matched = new ArrayList<>();
+
+		private Enforcement(long now) {
+			this.now = now;
+			for (Map.Entry<String, RetentionPolicy> topicPolicy : topicPolicies
+					.entrySet()) {
+				filters.add(topicPolicy.getKey());
+				usages.add(new Usage(topicPolicy.getValue()));
+			}
+		}
+
+		/**
+		 * @param topic
+		 *            the topic of the message
+		 * @param payloadBytes
+		 *            the size of its payload
+		 * @param timestamp
+		 *            when it arrived
+		 * @return true to keep the message, false to evict it
+		 */
+		boolean keep(String topic, long payloadBytes, long timestamp) {
+			if (!total.fits(payloadBytes, timestamp, now)) {
+				return false;
+			}
+			matched.clear();
+			for (int i = 0; i < filters.size(); i++) {
+				if (MqttTopic.isMatched(filters.get(i), topic)) {
+					Usage usage = usages.get(i);
+					if (!usage.fits(payloadBytes, timestamp, now)) {
+						return false;
+					}
+					matched.add(usage);
+				}
+			}
+			total.add(payloadBytes);
+			for (Usage usage : matched) {
+				usage.add(payloadBytes);
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * What has been kept against one set of limits
+	 */
+	private static class Usage {
+		private final RetentionPolicy limits;
+		private int messages = 0;
+		private long payloadBytes = 0;
+
+		Usage(RetentionPolicy limits) {
+			this.limits = limits;
+		}
+
+		boolean fits(long bytes, long timestamp, long now) {
+			return (limits.maxAgeMs <= 0 || now - timestamp <= limits.maxAgeMs)
+					&& (limits.maxMessages <= 0 || messages < limits.maxMessages)
+					&& (limits.maxPayloadBytes <= 0 || payloadBytes + bytes <= limits.maxPayloadBytes);
+		}
+
+		void add(long bytes) {
+			messages++;
+			payloadBytes += bytes;
+		}
+	}
+}
@@ -0,0 +1,630 @@
+/*******************************************************************************
+ * Copyright (c) 1999, 2014 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution. 
+ *
+ * The Eclipse Public License is available at 
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at 
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ */
+package org.eclipse.paho.android.service;
+
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * <p>
+ * Implementation of the {@link MessageStore} interface which keeps arrived
+ * messages in memory only, in a bounded ring of slots. Nothing survives the
+ * process, so this suits clients using clean sessions, where the server does
+ * not keep messages for them either.
+ * </p>
+ * <p>
+ * Message identifiers are taken from a counter, and each identifier has a
+ * fixed slot in the ring. Storing and discarding a message are a single
+ * compare-and-set on its slot, so no locks are taken.
+ * </p>
+ * <p>
+ * When a message arrives and its slot still holds a message which has not been
+ * acknowledged (the ring is full), the {@link OverflowPolicy} decides what
+ * happens.
+ * </p>
+ */
+public class RingBufferMessageStore implements MessageStore {
+
+	/**
+	 * What to do with a message which arrives when the ring is full
+	 */
+	public enum OverflowPolicy {
+		/**
+		 * Replace the oldest message, which is lost
+		 */
+		DROP_OLDEST,
+		/**
+		 * Wait for the oldest message to be acknowledged. This holds up the
+		 * thread delivering messages from the server.
+		 */
+		BLOCK,
+		/**
+		 * Put the message in a second, usually durable, store
+		 */
+		SPILL
+	}
+
+	// marks identifiers of messages held by the spill store
+	private static final long SPILLED = 1L << 62;
+
+	// how long a blocked store waits before looking at its slot again
+	private static final long BLOCK_PARK_NANOS = 100000;
+
+	private static final Comparator<StoredMessage> ARRIVAL_ORDER = new Comparator<StoredMessage>() {
+		@Override
+		public int compare(StoredMessage lhs, StoredMessage rhs) {
+			long lhsId = lhs.getMessageId();
+			long rhsId = rhs.getMessageId();
+			return lhsId < rhsId ? -1 : (lhsId == rhsId ? 0 : 1);
+		}
+	};
+
+	private final AtomicReferenceArray<Slot> slots;
+	private final int mask;
+	private final OverflowPolicy overflowPolicy;
+	private final MessageStore spillStore;
+
+	private final AtomicLong nextId = new AtomicLong(1);
+	private final ConcurrentMap<String, AtomicInteger> counts = new ConcurrentHashMap<>();
+	private final AtomicLong dropped = new AtomicLong();
+	private final AtomicLong spilled = new AtomicLong();
+
+	/**
+	 * Constructor
+	 * 
+	 * @param capacity
+	 *            the number of messages held, rounded up to a power of two
+	 * @param overflowPolicy
+	 *            what to do with a message which arrives when the ring is
+	 *            full
+	 * @param spillStore
+	 *            the store used by {@link OverflowPolicy#SPILL} - closed with
+	 *            this store
+	 */
+	public RingBufferMessageStore(int capacity, OverflowPolicy overflowPolicy,
+			MessageStore spillStore) {
+		if (capacity <= 0 || capacity > (1 << 30)) {
+			throw new IllegalArgumentException("Bad capacity " + capacity);
+		}
+		if (overflowPolicy == OverflowPolicy.SPILL && spillStore == null) {
+			throw new IllegalArgumentException("No store to spill to");
+		}
+		int size = Integer.highestOneBit(capacity);
+		if (size < capacity) {
+			size <<= 1;
+		}
+		this.slots = new AtomicReferenceArray<>(size);
+		this.mask = size - 1;
+		this.overflowPolicy = overflowPolicy;
+		this.spillStore = spillStore;
+	}
+
+	/**
+	 * Store an MQTT message
+	 * 
+	 * @param clientHandle
+	 *            identifier for the client storing the message
+	 * @param topic
+	 *            The topic on which the message was published
+	 * @param message
+	 *            the arrived MQTT message
+	 * @return an identifier for the message
+	 */
+	@Override
+	public long storeArrived(String clientHandle, String topic,
+			MqttMessage message) {
+		long id = nextId.getAndIncrement();
+		int index = (int) (id & mask);
+		Slot slot = new Slot(id, clientHandle, topic, message,
+				System.currentTimeMillis());
+		while (true) {
+			Slot current = slots.get(index);
+			if (current == null) {
+				if (slots.compareAndSet(index, null, slot)) {
+					increment(clientHandle);
+					return id;
+				}
+				continue;
+			}
+			if (current.id > id) {
+				// a store which started after this one has lapped the ring
+				// and taken the slot - this message is the older of the two
+				if (overflowPolicy == OverflowPolicy.DROP_OLDEST) {
+					dropped.incrementAndGet();
+					return id;
+				}
+			}
+			switch (overflowPolicy) {
+			case DROP_OLDEST:
+				if (slots.compareAndSet(index, current, slot)) {
+					decrement(current.clientHandle);
+					increment(clientHandle);
+					dropped.incrementAndGet();
+					return id;
+				}
+				break;
+			case BLOCK:
+				if (Thread.currentThread().isInterrupted()) {
+					// don't hold up a client which is being shut down
+					if (slots.compareAndSet(index, current, slot)) {
+						decrement(current.clientHandle);
+						increment(clientHandle);
+						dropped.incrementAndGet();
+						return id;
+					}
+					break;
+				}
+				LockSupport.parkNanos(this, BLOCK_PARK_NANOS);
+				break;
+			case SPILL:
+				spilled.incrementAndGet();
+				return SPILLED | spillStore.storeArrived(clientHandle, topic,
+						message);
+			}
+		}
+	}
+
+	/**
+	 * Discard an MQTT message
+	 * 
+	 * @param clientHandle
+	 *            identifier for the client which stored the message
+	 * @param id
+	 *            the identifier returned when the message was stored
+	 * 
+	 * @return true if the message was found and deleted
+	 */
+	@Override
+	public boolean discardArrived(String clientHandle, long id) {
+		if ((id & SPILLED) != 0) {
+			return spillStore != null
+					&& spillStore.discardArrived(clientHandle, id & ~SPILLED);
+		}
+		int index = (int) (id & mask);
+		Slot current = slots.get(index);
+		if (current == null || current.id != id
+				|| !current.clientHandle.equals(clientHandle)) {
+			return false;
+		}
+		if (slots.compareAndSet(index, current, null)) {
+			decrement(clientHandle);
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Discard many MQTT messages. Any which were spilled are discarded from the
+	 * spill store in one batch.
+	 * 
+	 * @param clientHandle
+	 *            identifier for the client which stored the messages
+	 * @param ids
+	 *            the identifiers returned when the messages were stored
+	 * 
+	 * @return for each id, true if the message was found and deleted
+	 */
+	@Override
+	public Map<Long, Boolean> discardArrived(String clientHandle,
+			Collection<Long> ids) {
+		Map<Long, Boolean> results = new LinkedHashMap<>();
+		List<Long> spilledIds = new ArrayList<>();
+		for (Long id : ids) {
+			if ((id & SPILLED) != 0) {
+				if (spillStore != null) {
+					spilledIds.add(id & ~SPILLED);
+				}
+				results.put(id, Boolean.FALSE);
+			} else {
+				results.put(id, discardArrived(clientHandle, id));
+			}
+		}
+		if (!spilledIds.isEmpty()) {
+			for (Map.Entry<Long, Boolean> result : spillStore.discardArrived(
+					clientHandle, spilledIds).entrySet()) {
+				results.put(SPILLED | result.getKey(), result.getValue());
+			}
+		}
+		return results;
+	}
+
+	/**
+	 * Get the number of messages stored, including any spilled
+	 * 
+	 * @param clientHandle
+	 *            identifier for the client.<br>
+	 *            If null, messages for all clients are counted
+	 * @return the number of messages stored
+	 */
+	@Override
+	public int getArrivedCount(String clientHandle) {
+		int count = 0;
+		if (clientHandle == null) {
+			for (AtomicInteger clientCount : counts.values()) {
+				count += clientCount.get();
+			}
+		} else {
+			AtomicInteger clientCount = counts.get(clientHandle);
+			count = clientCount == null ? 0 : clientCount.get();
+		}
+		if (spillStore != null) {
+			count += spillStore.getArrivedCount(clientHandle);
+		}
+		return count;
+	}
+
+	/**
+	 * Get an iterator over the messages stored (optionally for a specific
+	 * client). Messages still in the ring come first, in the order they
+	 * arrived, followed by any spilled messages.
+	 * 
+	 * @param clientHandle
+	 *            identifier for the client.<br>
+	 *            If null, all messages are retrieved
+	 * @return iterator of all the arrived MQTT messages
+	 */
+	@Override
+	public Iterator<StoredMessage> getAllArrivedMessages(String clientHandle) {
+		final Iterator<StoredMessage> ring = ringMessages(clientHandle)
+				.iterator();
+		if (spillStore == null) {
+			return ring;
+		}
+		final Iterator<StoredMessage> spilled = spillStore
+				.getAllArrivedMessages(clientHandle);
+		return new Iterator<StoredMessage>() {
+			@Override
+			public boolean hasNext() {
+				return ring.hasNext() || spilled.hasNext();
+			}
+
+			@Override
+			public StoredMessage next() {
+				if (ring.hasNext()) {
+					return ring.next();
+				}
+				return tag(spilled.next(), SPILLED);
+			}
+
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+
+	/**
+	 * Stream the messages stored (optionally for a specific client), in the
+	 * same order as {@link #getAllArrivedMessages(String)}. The messages in
+	 * the ring are gathered when the cursor is opened; spilled messages are
+	 * streamed from the spill store once they are reached.
+	 * 
+	 * @param clientHandle
+	 *            identifier for the client.<br>
+	 *            If null, all messages are retrieved
+	 * @param topicFilter
+	 *            the topics of the messages to retrieve, or null for all
+	 * @param since
+	 *            the earliest time a message was stored
+	 * @param limit
+	 *            the most messages to retrieve, zero or less for no limit
+	 * @return a cursor over the messages
+	 */
+	@Override
+	public StoredMessageCursor openArrivedMessages(String clientHandle,
+			String topicFilter, long since, int limit) {
+		ArrivedMessageFilter filter = new ArrivedMessageFilter(topicFilter,
+				since, limit);
+		StoredMessageCursor ring = new IteratorMessageCursor(ringMessages(
+				clientHandle).iterator(), filter);
+		if (spillStore == null) {
+			return ring;
+		}
+		return new SpillingCursor(ring, clientHandle, filter);
+	}
+
+	/**
+	 * Get a page of the messages stored (optionally for a specific client),
+	 * in the same order as {@link #getAllArrivedMessages(String)}
+	 * 
+	 * @param clientHandle
+	 *            identifier for the client.<br>
+	 *            If null, messages for all clients are retrieved
+	 * @param after
+	 *            the last message of the previous page, or null for the first
+	 *            page
+	 * @param limit
+	 *            the largest number of messages to return
+	 * @return the messages
+	 */
+	@Override
+	public List<StoredMessage> getArrivedMessages(String clientHandle,
+			StoredMessage after, int limit) {
+		List<StoredMessage> page = new ArrayList<>();
+		boolean afterSpilled = after != null
+				&& (after.getMessageId() & SPILLED) != 0;
+		if (!afterSpilled) {
+			long afterId = after == null ? 0 : after.getMessageId();
+			for (StoredMessage message : ringMessages(clientHandle)) {
+				if (page.size() >= limit) {
+					return page;
+				}
+				if (message.getMessageId() > afterId) {
+					page.add(message);
+				}
+			}
+		}
+		if (spillStore != null && page.size() < limit) {
+			StoredMessage spillAfter = afterSpilled ? tag(after, 0) : null;
+			for (StoredMessage message : spillStore.getArrivedMessages(
+					clientHandle, spillAfter, limit - page.size())) {
+				page.add(tag(message, SPILLED));
+			}
+		}
+		return page;
+	}
+
+	/**
+	 * @return the messages in the ring, in the order they arrived
+	 */
+	private List<StoredMessage> ringMessages(String clientHandle) {
+		// a spilled message leaves a gap in the identifiers used in the ring,
+		// so the slots are not simply in order from the newest back
+		List<StoredMessage> messages = new ArrayList<>();
+		for (int index = 0; index < slots.length(); index++) {
+			Slot slot = slots.get(index);
+			if (slot != null
+					&& (clientHandle == null || slot.clientHandle
+							.equals(clientHandle))) {
+				messages.add(slot);
+			}
+		}
+		Collections.sort(messages, ARRIVAL_ORDER);
+		return messages;
+	}
+
+	/**
+	 * Copy a message, moving it into or out of the spilled identifiers
+	 * 
+	 * @param tag
+	 *            SPILLED to mark the identifier, or 0 to clear the mark
+	 */
+	private static StoredMessage tag(StoredMessage message, long tag) {
+		return new Slot((message.getMessageId() & ~SPILLED) | tag,
+				message.getClientHandle(), message.getTopic(),
+				message.getMessage(), message.getTimestamp());
+	}
+
+	/**
+	 * A cursor over the messages in the ring, then those in the spill store
+	 */
+	private class SpillingCursor implements StoredMessageCursor {
+		private final StoredMessageCursor ring;
+		private final String clientHandle;
+		private final ArrivedMessageFilter filter;
+		private final SpilledMessage spilledMessage = new SpilledMessage();
+		private StoredMessageCursor spilled = null;
+		private StoredMessageCursor current;
+		private int count = 0;
+
+		SpillingCursor(StoredMessageCursor ring, String clientHandle,
+				ArrivedMessageFilter filter) {
+			this.ring = ring;
+			this.clientHandle = clientHandle;
+			this.filter = filter;
+			this.current = ring;
+		}
+
+		@Override
+		public boolean moveToNext() {
+			if (current == ring) {
+				if (ring.moveToNext()) {
+					count++;
+					return true;
+				}
+				if (filter.isLimitReached(count)) {
+					current = null;
+					return false;
+				}
+				int limit = filter.getLimit();
+				spilled = spillStore.openArrivedMessages(clientHandle,
+						filter.getTopicFilter(), filter.getSince(),
+						limit > 0 ? limit - count : 0);
+				current = spilled;
+			}
+			if (current == null || !spilled.moveToNext()) {
+				current = null;
+				return false;
+			}
+			spilledMessage.spilled = spilled.getMessage();
+			return true;
+		}
+
+		@Override
+		public StoredMessage getMessage() {
+			if (current == ring) {
+				return ring.getMessage();
+			}
+			if (current == null) {
+				throw new IllegalStateException("No current message");
+			}
+			return spilledMessage;
+		}
+
+		@Override
+		public void close() {
+			current = null;
+			ring.close();
+			if (spilled != null) {
+				spilled.close();
+			}
+		}
+	}
+
+	/**
+	 * A message in the spill store, seen with the identifier it is known by
+	 * in this store
+	 */
+	private static class SpilledMessage implements StoredMessage {
+		private StoredMessage spilled;
+
+		@Override
+		public long getMessageId() {
+			return spilled.getMessageId() | SPILLED;
+		}
+
+		@Override
+		public String getClientHandle() {
+			return spilled.getClientHandle();
+		}
+
+		@Override
+		public String getTopic() {
+			return spilled.getTopic();
+		}
+
+		@Override
+		public MqttMessage getMessage() {
+			return spilled.getMessage();
+		}
+
+		@Override
+		public long getTimestamp() {
+			return spilled.getTimestamp();
+		}
+	}
+
+	/**
+	 * Delete all messages (optionally for a specific client)
+	 * 
+	 * @param clientHandle
+	 *            identifier for the client.<br>
+	 *            If null, all messages are deleted
+	 */
+	@Override
+	public void clearArrivedMessages(String clientHandle) {
+		for (int index = 0; index < slots.length(); index++) {
+			Slot current = slots.get(index);
+			if (current != null
+					&& (clientHandle == null || current.clientHandle
+							.equals(clientHandle))
+					&& slots.compareAndSet(index, current, null)) {
+				decrement(current.clientHandle);
+			}
+		}
+		if (spillStore != null) {
+			spillStore.clearArrivedMessages(clientHandle);
+		}
+	}
+
+	@Override
+	public void close() {
+		if (spillStore != null) {
+			spillStore.close();
+		}
+	}
+
+	/**
+	 * @return the number of messages lost because the ring was full
+	 */
+	long getDroppedCount() {
+		return dropped.get();
+	}
+
+	/**
+	 * @return the number of messages put in the spill store because the ring
+	 *         was full
+	 */
+	long getSpilledCount() {
+		return spilled.get();
+	}
+
+	private void increment(String clientHandle) {
+		AtomicInteger count = counts.get(clientHandle);
+		if (count == null) {
+			AtomicInteger created = new AtomicInteger();
+			count = counts.putIfAbsent(clientHandle, created);
+			if (count == null) {
+				count = created;
+			}
+		}
+		count.incrementAndGet();
+	}
+
+	private void decrement(String clientHandle) {
+		AtomicInteger count = counts.get(clientHandle);
+		if (count != null) {
+			count.decrementAndGet();
+		}
+	}
+
+	/**
+	 * A message in the ring - immutable, so that the compare-and-set on its
+	 * slot decides which thread owns it
+	 */
+	private static class Slot implements StoredMessage {
+		private final long id;
+		private final String clientHandle;
+		private final String topic;
+		private final MqttMessage message;
+		private final long timestamp;
+
+		Slot(long id, String clientHandle, String topic, MqttMessage message,
+				long timestamp) {
+			this.id = id;
+			this.clientHandle = clientHandle;
+			this.topic = topic;
+			this.message = message;
+			this.timestamp = timestamp;
+		}
+
+		@Override
+		public long getMessageId() {
+			return id;
+		}
+
+		@Override
+		public String getClientHandle() {
+			return clientHandle;
+		}
+
+		@Override
+		public String getTopic() {
+			return topic;
+		}
+
+		@Override
+		public MqttMessage getMessage() {
+			return message;
+		}
+
+		@Override
+		public long getTimestamp() {
+			return timestamp;
+		}
+	}
+}
@@ -0,0 +1,562 @@
+/*******************************************************************************
+ * Copyright (c) 1999, 2014 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ */
+package org.eclipse.paho.android.service;
+
+import org.eclipse.paho.client.mqttv3.MqttClientPersistence;
+import org.eclipse.paho.client.mqttv3.MqttPersistable;
+import org.eclipse.paho.client.mqttv3.MqttPersistenceException;
+import org.eclipse.paho.client.mqttv3.internal.MqttPersistentData;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * <p>
+ * An {@link MqttClientPersistence} for clients with many messages in flight,
+ * using an append-only log held in fixed size, memory-mapped segment files
+ * (see {@link MappedSegment}), in a directory for each client.
+ * </p>
+ * <p>
+ * A put appends the key, header and payload to the newest segment, and a
+ * remove appends a tombstone - each little more than a copy into the mapped
+ * file. An index from each key to its record is kept in memory, and is
+ * rebuilt by replaying the log when the persistence is opened, so the keys
+ * are the same after the process is killed as they were before.
+ * </p>
+ * <p>
+ * Segments whose records have all been removed are deleted in the
+ * background, the few records left in the oldest segment being copied to the
+ * newest one first, as {@link SegmentLogMessageStore} does.
+ * </p>
+ * <p>
+ * Records reach the file system as soon as they are written. Unless the
+ * persistence is created to force each write, a segment is only flushed to
+ * the storage device when it is full or the persistence is closed.
+ * </p>
+ */
+public class SegmentLogClientPersistence implements MqttClientPersistence {
+
+	// the size of each segment file
+	static final int DEFAULT_SEGMENT_SIZE = 1024 * 1024;
+
+	// "MQCP" - identifies our segment files
+	private static final int SEGMENT_MAGIC = 0x4D514350;
+	private static final String SEGMENT_SUFFIX = ".seg";
+
+	// record types
+	private static final byte PUT = 1;
+	private static final byte REMOVE = 2;
+	private static final byte CLEAR = 3;
+
+	// the oldest segment is compacted by copying once its records take no
+	// more than this fraction of it
+	private static final int RELOCATE_DIVISOR = 4;
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private final File directory;
+	private final int segmentSize;
+	private final boolean forceEachWrite;
+
+	// guards everything below
+	private final Object lock = new Object();
+	// the directory of the client which opened the persistence, or null
+	private File clientDirectory = null;
+	// oldest first - the last is the one being written
+	private final ArrayDeque<Segment> segments = new ArrayDeque<>();
+	private final Map<String, Entry> index = new HashMap<>();
+	private byte[] scratch = new byte[256];
+	private ExecutorService compactor = null;
+	private boolean compactionScheduled = false;
+
+	/**
+	 * Constructor
+	 *
+	 * @param directory
+	 *            the directory to hold a directory of segment files for each
+	 *            client
+	 */
+	public SegmentLogClientPersistence(File directory) {
+		this(directory, DEFAULT_SEGMENT_SIZE, false);
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param directory
+	 *            the directory to hold a directory of segment files for each
+	 *            client
+	 * @param segmentSize
+	 *            the size of each segment file - a record too big to fit is
+	 *            given a segment of its own
+	 * @param forceEachWrite
+	 *            true to flush each record to the storage device before
+	 *            returning, so that it also survives a power failure
+	 */
+	public SegmentLogClientPersistence(File directory, int segmentSize,
+			boolean forceEachWrite) {
+		if (segmentSize < MappedSegment.HEADER_SIZE + MappedSegment.FRAME_SIZE) {
+			throw new IllegalArgumentException("Segment size " + segmentSize
+					+ " is too small");
+		}
+		this.directory = directory;
+		this.segmentSize = segmentSize;
+		this.forceEachWrite = forceEachWrite;
+	}
+
+	@Override
+	public void open(String clientId, String serverURI)
+			throws MqttPersistenceException {
+		synchronized (lock) {
+			if (clientDirectory != null) {
+				return;
+			}
+			File dir = new File(directory,
+					MessageStoreProviders.fileName(clientId + "-" + serverURI));
+			if (!dir.isDirectory() && !dir.mkdirs()) {
+				throw new MqttPersistenceException();
+			}
+			clientDirectory = dir;
+			compactor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r,
+							"SegmentLogClientPersistence compactor");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+			recover();
+		}
+	}
+
+	@Override
+	public void close() {
+		synchronized (lock) {
+			if (clientDirectory == null) {
+				return;
+			}
+			compactor.shutdown();
+			compactor = null;
+			compactionScheduled = false;
+			for (Segment segment : segments) {
+				segment.file.force();
+				segment.file.close();
+			}
+			segments.clear();
+			index.clear();
+			clientDirectory = null;
+		}
+	}
+
+	@Override
+	public void put(String key, MqttPersistable persistable)
+			throws MqttPersistenceException {
+		byte[] keyBytes = key.getBytes(UTF_8);
+		byte[] header = persistable.getHeaderBytes();
+		byte[] payload = persistable.getPayloadBytes();
+		int headerLength = persistable.getHeaderLength();
+		int payloadLength = payload == null ? 0 : persistable
+				.getPayloadLength();
+		synchronized (lock) {
+			checkIsOpen();
+			int length = 1 + 4 + keyBytes.length + 4 + headerLength + 4
+					+ payloadLength;
+			ensureScratch(length);
+			int position = 0;
+			scratch[position++] = PUT;
+			position = putBytes(scratch, position, keyBytes, 0,
+					keyBytes.length);
+			position = putBytes(scratch, position, header,
+					persistable.getHeaderOffset(), headerLength);
+			if (payload == null) {
+				putInt(scratch, position, -1);
+			} else {
+				putBytes(scratch, position, payload,
+						persistable.getPayloadOffset(), payloadLength);
+			}
+			Segment segment = append(length);
+			Entry previous = index.get(key);
+			if (previous != null) {
+				removeEntry(previous);
+			}
+			addEntry(key, new Entry(segment, segment.offset(length)), length);
+			if (previous != null) {
+				scheduleCompaction();
+			}
+		}
+	}
+
+	@Override
+	public MqttPersistable get(String key) throws MqttPersistenceException {
+		synchronized (lock) {
+			checkIsOpen();
+			Entry entry = index.get(key);
+			if (entry == null) {
+				return null;
+			}
+			ByteBuffer body = entry.segment.file.read(entry.offset);
+			body.get(); // type
+			int keyLength = body.getInt();
+			body.position(body.position() + keyLength);
+			byte[] header = new byte[body.getInt()];
+			body.get(header);
+			int payloadLength = body.getInt();
+			byte[] payload = null;
+			if (payloadLength >= 0) {
+				payload = new byte[payloadLength];
+				body.get(payload);
+			}
+			return new MqttPersistentData(key, header, 0, header.length,
+					payload, 0, payload == null ? 0 : payload.length);
+		}
+	}
+
+	@Override
+	public void remove(String key) throws MqttPersistenceException {
+		byte[] keyBytes = key.getBytes(UTF_8);
+		synchronized (lock) {
+			checkIsOpen();
+			Entry entry = index.remove(key);
+			if (entry == null) {
+				return;
+			}
+			int length = 1 + 4 + keyBytes.length;
+			ensureScratch(length);
+			scratch[0] = REMOVE;
+			putBytes(scratch, 1, keyBytes, 0, keyBytes.length);
+			append(length);
+			removeEntry(entry);
+			scheduleCompaction();
+		}
+	}
+
+	@Override
+	public Enumeration<String> keys() throws MqttPersistenceException {
+		synchronized (lock) {
+			checkIsOpen();
+			return Collections.enumeration(new ArrayList<>(index.keySet()));
+		}
+	}
+
+	@Override
+	public void clear() throws MqttPersistenceException {
+		synchronized (lock) {
+			checkIsOpen();
+			scratch[0] = CLEAR;
+			append(1);
+			applyClear();
+			scheduleCompaction();
+		}
+	}
+
+	@Override
+	public boolean containsKey(String key) throws MqttPersistenceException {
+		synchronized (lock) {
+			checkIsOpen();
+			return index.containsKey(key);
+		}
+	}
+
+	private void checkIsOpen() throws MqttPersistenceException {
+		if (clientDirectory == null) {
+			throw new MqttPersistenceException();
+		}
+	}
+
+	/**
+	 * Compact the log now, deleting the oldest segments once none of their
+	 * records are still needed. This is normally done in the background.
+	 */
+	void compact() {
+		synchronized (lock) {
+			compactionScheduled = false;
+			if (clientDirectory == null) {
+				return;
+			}
+			while (segments.size() > 1) {
+				Segment head = segments.peekFirst();
+				if (head.live > 0) {
+					if (head.liveBytes > head.file.getCapacity()
+							/ RELOCATE_DIVISOR) {
+						break;
+					}
+					try {
+						relocate(head);
+					} catch (MqttPersistenceException e) {
+						// no room for the copies - try again after the next
+						// remove
+						break;
+					}
+				}
+				segments.removeFirst();
+				head.file.delete();
+			}
+		}
+	}
+
+	/**
+	 * @return the number of segment files in use
+	 */
+	int getSegmentCount() {
+		synchronized (lock) {
+			return segments.size();
+		}
+	}
+
+	/**
+	 * Copy the records still needed from a segment to the newest segment, so
+	 * that the old one can be deleted
+	 */
+	private void relocate(Segment from) throws MqttPersistenceException {
+		List<Map.Entry<String, Entry>> moving = new ArrayList<>();
+		for (Map.Entry<String, Entry> entry : index.entrySet()) {
+			if (entry.getValue().segment == from) {
+				moving.add(entry);
+			}
+		}
+		for (Map.Entry<String, Entry> moved : moving) {
+			Entry entry = moved.getValue();
+			ByteBuffer record = from.file.read(entry.offset);
+			int length = record.remaining();
+			ensureScratch(length);
+			record.get(scratch, 0, length);
+			Segment to = append(length);
+			removeEntry(entry);
+			addEntry(moved.getKey(), new Entry(to, to.offset(length)), length);
+		}
+		// the copies must not be lost once the originals are deleted
+		segments.peekLast().file.force();
+	}
+
+	private void scheduleCompaction() {
+		if (compactionScheduled || compactor == null || segments.size() < 2) {
+			return;
+		}
+		Segment head = segments.peekFirst();
+		if (head.live > 0
+				&& head.liveBytes > head.file.getCapacity() / RELOCATE_DIVISOR) {
+			return;
+		}
+		compactionScheduled = true;
+		compactor.execute(new Runnable() {
+			@Override
+			public void run() {
+				compact();
+			}
+		});
+	}
+
+	/**
+	 * Append the record held in scratch to the newest segment, starting a new
+	 * segment if it does not fit
+	 *
+	 * @return the segment it was written to
+	 */
+	private Segment append(int length) throws MqttPersistenceException {
+		Segment segment = segments.peekLast();
+		if (segment == null || segment.file.append(scratch, length) < 0) {
+			if (segment != null) {
+				// a full segment will never be written to again
+				segment.file.force();
+			}
+			segment = newSegment(MappedSegment.recordSize(length));
+			segment.file.append(scratch, length);
+		}
+		if (forceEachWrite) {
+			segment.file.force();
+		}
+		return segment;
+	}
+
+	private Segment newSegment(int recordSize) throws MqttPersistenceException {
+		long sequence = segments.isEmpty() ? 1 : segments.peekLast().file
+				.getSequence() + 1;
+		int capacity = Math.max(segmentSize, MappedSegment.HEADER_SIZE
+				+ recordSize);
+		File file = new File(clientDirectory, String.format(Locale.US,
+				"%020d", sequence) + SEGMENT_SUFFIX);
+		try {
+			Segment segment = new Segment(MappedSegment.create(file,
+					SEGMENT_MAGIC, sequence, 0, capacity));
+			segments.addLast(segment);
+			return segment;
+		} catch (IOException e) {
+			throw new MqttPersistenceException(e);
+		}
+	}
+
+	/**
+	 * Rebuild the index by replaying every segment in the client's directory
+	 */
+	private void recover() {
+		File[] files = clientDirectory.listFiles();
+		if (files == null) {
+			files = new File[0];
+		}
+		Arrays.sort(files);
+		for (File file : files) {
+			if (!file.getName().endsWith(SEGMENT_SUFFIX)) {
+				continue;
+			}
+			final Segment segment;
+			try {
+				segment = new Segment(MappedSegment.open(file, SEGMENT_MAGIC));
+			} catch (IOException e) {
+				// the header is written before any record, so there is
+				// nothing to lose here
+				file.delete();
+				continue;
+			}
+			segments.addLast(segment);
+			segment.file.recover(new MappedSegment.RecordVisitor() {
+				@Override
+				public void onRecord(int offset, ByteBuffer body) {
+					replay(segment, offset, body);
+				}
+			});
+		}
+	}
+
+	private void replay(Segment segment, int offset, ByteBuffer body) {
+		int length = body.remaining();
+		switch (body.get()) {
+		case PUT: {
+			// a relocated record can be seen twice if the process was
+			// killed before the original segment was deleted
+			String key = getString(body);
+			Entry previous = index.get(key);
+			if (previous != null) {
+				removeEntry(previous);
+			}
+			addEntry(key, new Entry(segment, offset), length);
+			break;
+		}
+		case REMOVE: {
+			Entry entry = index.remove(getString(body));
+			if (entry != null) {
+				removeEntry(entry);
+			}
+			break;
+		}
+		case CLEAR:
+			applyClear();
+			break;
+		default:
+			// written by a later version - nothing we can do with it
+			break;
+		}
+	}
+
+	private void applyClear() {
+		Iterator<Entry> entries = index.values().iterator();
+		while (entries.hasNext()) {
+			removeEntry(entries.next());
+			entries.remove();
+		}
+	}
+
+	private void addEntry(String key, Entry entry, int length) {
+		entry.size = MappedSegment.recordSize(length);
+		entry.segment.live++;
+		entry.segment.liveBytes += entry.size;
+		index.put(key, entry);
+	}
+
+	/**
+	 * Account for an entry leaving a segment - the caller removes it from the
+	 * index if need be
+	 */
+	private void removeEntry(Entry entry) {
+		entry.segment.live--;
+		entry.segment.liveBytes -= entry.size;
+	}
+
+	private void ensureScratch(int length) {
+		if (scratch.length < length) {
+			scratch = new byte[Math.max(length, scratch.length * 2)];
+		}
+	}
+
+	private static int putInt(byte[] array, int position, int value) {
+		array[position++] = (byte) (value >>> 24);
+		array[position++] = (byte) (value >>> 16);
+		array[position++] = (byte) (value >>> 8);
+		array[position++] = (byte) value;
+		return position;
+	}
+
+	private static int putBytes(byte[] array, int position, byte[] value,
+			int offset, int length) {
+		position = putInt(array, position, length);
+		System.arraycopy(value, offset, array, position, length);
+		return position + length;
+	}
+
+	private static String getString(ByteBuffer buffer) {
+		byte[] bytes = new byte[buffer.getInt()];
+		buffer.get(bytes);
+		return new String(bytes, UTF_8);
+	}
+
+	/**
+	 * A segment file, and how much of it is still needed
+	 */
+	private static class Segment {
+		private final MappedSegment file;
+		// records in this segment which are still needed
+		private int live = 0;
+		private int liveBytes = 0;
+
+		Segment(MappedSegment file) {
+			this.file = file;
+		}
+
+		/**
+		 * @return the offset of the record of the given length just appended
+		 */
+		int offset(int length) {
+			return file.getWritePosition() - MappedSegment.recordSize(length);
+		}
+	}
+
+	/**
+	 * Where to find a record still needed
+	 */
+	private static class Entry {
+		private final Segment segment;
+		private final int offset;
+		// bytes taken in the segment, including the frame
+		private int size;
+
+		Entry(Segment segment, int offset) {
+			this.segment = segment;
+			this.offset = offset;
+		}
+	}
+}
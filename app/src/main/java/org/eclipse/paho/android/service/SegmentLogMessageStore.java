@@ -0,0 +1,851 @@
+/*******************************************************************************
+ * Copyright (c) 1999, 2014 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ */
+package org.eclipse.paho.android.service;
+
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * <p>
+ * Implementation of the {@link MessageStore} interface, using an append-only
+ * log held in fixed size, memory-mapped segment files (see
+ * {@link MappedSegment}).
+ * </p>
+ * <p>
+ * Storing a message appends it to the newest segment; discarding a message
+ * appends a tombstone, and clearing a client's messages appends a record
+ * saying so. An index of the messages which are still stored is kept in
+ * memory, and is rebuilt by replaying the log when the store is opened.
+ * </p>
+ * <p>
+ * Once every message in the oldest segment has been discarded the segment is
+ * deleted. If only a few of its messages are left, they are first copied to
+ * the newest segment. This compaction is done in the background.
+ * </p>
+ * <p>
+ * Records reach the file system as soon as they are written, so they survive
+ * the process being killed. Unless the store is created to force each write,
+ * a segment is only flushed to the storage device when it is full or the
+ * store is closed.
+ * </p>
+ */
+class SegmentLogMessageStore implements MessageStore {
+
+	// TAG used for indentify trace data etc.
+	private static final String TAG = "SegmentLogMessageStore";
+
+	// the size of each segment file
+	static final int DEFAULT_SEGMENT_SIZE = 1024 * 1024;
+
+	// "MQSL" - identifies our segment files
+	private static final int SEGMENT_MAGIC = 0x4D51534C;
+	private static final String SEGMENT_SUFFIX = ".seg";
+
+	// record types
+	private static final byte STORE = 1;
+	private static final byte DISCARD = 2;
+	private static final byte CLEAR = 3;
+
+	// bits of the flags byte in a STORE record, after the QoS
+	private static final int QOS_MASK = 0x03;
+	private static final int RETAINED = 0x04;
+	private static final int DUPLICATE = 0x08;
+
+	// the oldest segment is compacted by copying once its messages take no
+	// more than this fraction of it
+	private static final int RELOCATE_DIVISOR = 4;
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private final MqttTraceHandler traceHandler;
+	private final File directory;
+	private final int segmentSize;
+	private final boolean forceEachWrite;
+
+	// guards everything below
+	private final Object lock = new Object();
+	// oldest first - the last is the one being written
+	private final ArrayDeque<Segment> segments = new ArrayDeque<>();
+	// the messages still stored, in the order they arrived
+	private final TreeMap<Long, Entry> index = new TreeMap<>();
+	private final Map<String, int[]> counts = new HashMap<>();
+	private long nextId = 1;
+	private byte[] scratch = new byte[256];
+	private boolean compactionScheduled = false;
+	private boolean closed = false;
+
+	private final ExecutorService compactor = Executors
+			.newSingleThreadExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, TAG + " compactor");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+
+	/**
+	 * Constructor - open the log in the given directory, recovering any
+	 * messages already stored there
+	 *
+	 * @param traceHandler
+	 *            a trace handler for the store
+	 * @param directory
+	 *            the directory to hold the segment files
+	 */
+	public SegmentLogMessageStore(MqttTraceHandler traceHandler, File directory) {
+		this(traceHandler, directory, DEFAULT_SEGMENT_SIZE, false);
+	}
+
+	/**
+	 * Constructor - open the log in the given directory, recovering any
+	 * messages already stored there
+	 *
+	 * @param traceHandler
+	 *            a trace handler for the store
+	 * @param directory
+	 *            the directory to hold the segment files
+	 * @param segmentSize
+	 *            the size of each segment file - a message too big to fit is
+	 *            given a segment of its own
+	 * @param forceEachWrite
+	 *            true to flush each record to the storage device before
+	 *            returning, so that it also survives a power failure
+	 */
+	public SegmentLogMessageStore(MqttTraceHandler traceHandler,
+			File directory, int segmentSize, boolean forceEachWrite) {
+		if (segmentSize < MappedSegment.HEADER_SIZE + MappedSegment.FRAME_SIZE) {
+			throw new IllegalArgumentException("Segment size " + segmentSize
+					+ " is too small");
+		}
+		this.traceHandler = traceHandler;
+		this.directory = directory;
+		this.segmentSize = segmentSize;
+		this.forceEachWrite = forceEachWrite;
+		synchronized (lock) {
+			recover();
+		}
+	}
+
+	/**
+	 * Store an MQTT message
+	 *
+	 * @param clientHandle
+	 *            identifier for the client storing the message
+	 * @param topic
+	 *            The topic on which the message was published
+	 * @param message
+	 *            the arrived MQTT message
+	 * @return an identifier for the message
+	 */
+	@Override
+	public long storeArrived(String clientHandle, String topic,
+			MqttMessage message) {
+		synchronized (lock) {
+			long id = nextId++;
+			long timestamp = System.currentTimeMillis();
+			int length = encodeStore(id, timestamp, clientHandle, topic,
+					message.getQos(), message.isRetained(),
+					message.isDuplicate(), message.getPayload());
+			Segment segment = append(length);
+			addEntry(new Entry(id, clientHandle, segment,
+					segment.offset(length)), length);
+			traceHandler.traceDebug(TAG, "storeArrived: stored message with id of {"
+					+ id + "} - Number of messages stored for this clientHandle = "
+					+ counts.get(clientHandle)[0]);
+			return id;
+		}
+	}
+
+	/**
+	 * Discard an MQTT message
+	 *
+	 * @param clientHandle
+	 *            identifier for the client which stored the message
+	 * @param id
+	 *            the identifying string returned when the message was stored
+	 *
+	 * @return true if the message was found and deleted
+	 */
+	@Override
+	public boolean discardArrived(String clientHandle, long id) {
+		synchronized (lock) {
+			Entry entry = index.get(id);
+			if (entry == null || !entry.clientHandle.equals(clientHandle)) {
+				traceHandler.traceError(TAG,
+						"discardArrived - Error deleting message {" + id
+								+ "} from store: not found");
+				return false;
+			}
+			scratch[0] = DISCARD;
+			putLong(scratch, 1, id);
+			append(9);
+			removeEntry(entry);
+			index.remove(id);
+			traceHandler.traceDebug(TAG,
+					"discardArrived - Message deleted successfully. - messages stored for this clientHandle "
+							+ getArrivedCount(clientHandle));
+			scheduleCompaction();
+			return true;
+		}
+	}
+
+	/**
+	 * Discard many MQTT messages, taking the lock once
+	 *
+	 * @param clientHandle
+	 *            identifier for the client which stored the messages
+	 * @param ids
+	 *            the identifiers returned when the messages were stored
+	 *
+	 * @return for each id, true if the message was found and deleted
+	 */
+	@Override
+	public Map<Long, Boolean> discardArrived(String clientHandle,
+			Collection<Long> ids) {
+		Map<Long, Boolean> results = new LinkedHashMap<>();
+		synchronized (lock) {
+			for (Long id : ids) {
+				if (!results.containsKey(id)) {
+					results.put(id, discardArrived(clientHandle, id));
+				}
+			}
+		}
+		return results;
+	}
+
+	/**
+	 * Get the number of messages stored for a client
+	 *
+	 * @param clientHandle
+	 *            identifier for the client.<br>
+	 *            If null, messages for all clients are counted
+	 * @return the number of messages stored
+	 */
+	@Override
+	public int getArrivedCount(String clientHandle) {
+		synchronized (lock) {
+			if (clientHandle == null) {
+				return index.size();
+			}
+			int[] count = counts.get(clientHandle);
+			return count == null ? 0 : count[0];
+		}
+	}
+
+	/**
+	 * Get an iterator over all messages stored (optionally for a specific
+	 * client)
+	 *
+	 * @param clientHandle
+	 *            identifier for the client.<br>
+	 *            If null, all messages are retrieved
+	 * @return iterator of all the arrived MQTT messages
+	 */
+	@Override
+	public Iterator<StoredMessage> getAllArrivedMessages(
+			final String clientHandle) {
+		final List<Long> ids = new ArrayList<>();
+		synchronized (lock) {
+			for (Entry entry : index.values()) {
+				if (clientHandle == null
+						|| entry.clientHandle.equals(clientHandle)) {
+					ids.add(entry.id);
+				}
+			}
+		}
+		return new Iterator<StoredMessage>() {
+			private int position = 0;
+			private StoredMessage next = null;
+
+			@Override
+			public boolean hasNext() {
+				// skip anything discarded since the iterator was created
+				while (next == null && position < ids.size()) {
+					next = read(ids.get(position++));
+				}
+				return next != null;
+			}
+
+			@Override
+			public StoredMessage next() {
+				if (!hasNext()) {
+					throw new NoSuchElementException();
+				}
+				StoredMessage result = next;
+				next = null;
+				return result;
+			}
+
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+
+	/**
+	 * Stream the messages stored (optionally for a specific client). Each
+	 * message is read from its segment as the cursor reaches it.
+	 *
+	 * @param clientHandle
+	 *            identifier for the client.<br>
+	 *            If null, all messages are retrieved
+	 * @param topicFilter
+	 *            the topics of the messages to retrieve, or null for all
+	 * @param since
+	 *            the earliest time a message was stored
+	 * @param limit
+	 *            the most messages to retrieve, zero or less for no limit
+	 * @return a cursor over the messages, in the order they arrived
+	 */
+	@Override
+	public StoredMessageCursor openArrivedMessages(String clientHandle,
+			String topicFilter, long since, int limit) {
+		return new IteratorMessageCursor(getAllArrivedMessages(clientHandle),
+				new ArrivedMessageFilter(topicFilter, since, limit));
+	}
+
+	/**
+	 * Get a page of the messages stored (optionally for a specific client)
+	 *
+	 * @param clientHandle
+	 *            identifier for the client.<br>
+	 *            If null, messages for all clients are retrieved
+	 * @param after
+	 *            the last message of the previous page, or null for the first
+	 *            page
+	 * @param limit
+	 *            the largest number of messages to return
+	 * @return the messages, in the order they arrived
+	 */
+	@Override
+	public List<StoredMessage> getArrivedMessages(String clientHandle,
+			StoredMessage after, int limit) {
+		List<StoredMessage> page = new ArrayList<>();
+		synchronized (lock) {
+			Map<Long, Entry> entries = after == null ? index : index.tailMap(
+					after.getMessageId(), false);
+			for (Entry entry : entries.values()) {
+				if (page.size() >= limit) {
+					break;
+				}
+				if (clientHandle == null
+						|| entry.clientHandle.equals(clientHandle)) {
+					page.add(read(entry.id));
+				}
+			}
+		}
+		return page;
+	}
+
+	/**
+	 * Delete all messages (optionally for a specific client)
+	 *
+	 * @param clientHandle
+	 *            identifier for the client.<br>
+	 *            If null, all messages are deleted
+	 */
+	@Override
+	public void clearArrivedMessages(String clientHandle) {
+		synchronized (lock) {
+			int length = encodeClear(clientHandle);
+			append(length);
+			int rows = applyClear(clientHandle);
+			traceHandler.traceDebug(TAG, "clearArrivedMessages: rows affected = "
+					+ rows);
+			scheduleCompaction();
+		}
+	}
+
+	@Override
+	public void close() {
+		synchronized (lock) {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			compactor.shutdown();
+			for (Segment segment : segments) {
+				segment.file.force();
+				segment.file.close();
+			}
+		}
+	}
+
+	/**
+	 * Compact the log now, deleting the oldest segments once none of their
+	 * messages are still stored. This is normally done in the background.
+	 */
+	void compact() {
+		synchronized (lock) {
+			compactionScheduled = false;
+			if (closed) {
+				return;
+			}
+			while (segments.size() > 1) {
+				Segment head = segments.peekFirst();
+				if (head.live > 0) {
+					if (head.liveBytes > head.file.getCapacity()
+							/ RELOCATE_DIVISOR) {
+						break;
+					}
+					relocate(head);
+				}
+				segments.removeFirst();
+				if (!head.file.delete()) {
+					traceHandler.traceError(TAG, "compact: failed to delete "
+							+ head.file.getFile());
+				}
+				traceHandler.traceDebug(TAG, "compact: deleted segment "
+						+ head.file.getSequence());
+			}
+		}
+	}
+
+	/**
+	 * @return the number of segment files in use
+	 */
+	int getSegmentCount() {
+		synchronized (lock) {
+			return segments.size();
+		}
+	}
+
+	/**
+	 * Copy the messages still stored in a segment to the newest segment, so
+	 * that the old one can be deleted
+	 */
+	private void relocate(Segment from) {
+		List<Entry> moving = new ArrayList<>();
+		for (Entry entry : index.values()) {
+			if (entry.segment == from) {
+				moving.add(entry);
+			}
+		}
+		for (Entry entry : moving) {
+			ByteBuffer record = from.file.read(entry.offset);
+			int length = record.remaining();
+			ensureScratch(length);
+			record.get(scratch, 0, length);
+			Segment to = append(length);
+			removeEntry(entry);
+			entry.segment = to;
+			entry.offset = to.offset(length);
+			addEntry(entry, length);
+		}
+		// the copies must not be lost once the originals are deleted
+		segments.peekLast().file.force();
+		traceHandler.traceDebug(TAG, "compact: relocated " + moving.size()
+				+ " messages from segment " + from.file.getSequence());
+	}
+
+	private void scheduleCompaction() {
+		if (compactionScheduled || closed || segments.size() < 2) {
+			return;
+		}
+		Segment head = segments.peekFirst();
+		if (head.live > 0
+				&& head.liveBytes > head.file.getCapacity() / RELOCATE_DIVISOR) {
+			return;
+		}
+		compactionScheduled = true;
+		compactor.execute(new Runnable() {
+			@Override
+			public void run() {
+				compact();
+			}
+		});
+	}
+
+	/**
+	 * Append the record held in scratch to the newest segment, starting a new
+	 * segment if it does not fit
+	 *
+	 * @return the segment it was written to
+	 */
+	private Segment append(int length) {
+		Segment segment = segments.peekLast();
+		if (segment == null || segment.file.append(scratch, length) < 0) {
+			if (segment != null) {
+				// a full segment will never be written to again
+				segment.file.force();
+			}
+			segment = newSegment(MappedSegment.recordSize(length));
+			segment.file.append(scratch, length);
+		}
+		if (forceEachWrite) {
+			segment.file.force();
+		}
+		return segment;
+	}
+
+	private Segment newSegment(int recordSize) {
+		long sequence = segments.isEmpty() ? 1 : segments.peekLast().file
+				.getSequence() + 1;
+		int capacity = Math.max(segmentSize, MappedSegment.HEADER_SIZE
+				+ recordSize);
+		File file = new File(directory, String.format(Locale.US, "%020d", sequence)
+				+ SEGMENT_SUFFIX);
+		try {
+			// nextId is kept in the header, so that identifiers are not
+			// reused once the segments holding them are deleted
+			Segment segment = new Segment(MappedSegment.create(file,
+					SEGMENT_MAGIC, sequence, nextId, capacity));
+			segments.addLast(segment);
+			return segment;
+		} catch (IOException e) {
+			traceHandler.traceException(TAG, "newSegment", e);
+			throw new IllegalStateException("Cannot create segment " + file, e);
+		}
+	}
+
+	/**
+	 * Rebuild the index by replaying every segment in the directory
+	 */
+	private void recover() {
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IllegalStateException("Cannot create directory "
+					+ directory);
+		}
+		File[] files = directory.listFiles();
+		if (files == null) {
+			files = new File[0];
+		}
+		Arrays.sort(files);
+		for (File file : files) {
+			if (!file.getName().endsWith(SEGMENT_SUFFIX)) {
+				continue;
+			}
+			final Segment segment;
+			try {
+				segment = new Segment(MappedSegment.open(file, SEGMENT_MAGIC));
+			} catch (IOException e) {
+				// the header is written before any record, so there is
+				// nothing to lose here
+				traceHandler.traceException(TAG, "recover: discarding "
+						+ file, e);
+				if (!file.delete()) {
+					traceHandler.traceError(TAG, "recover: failed to delete "
+							+ file);
+				}
+				continue;
+			}
+			segments.addLast(segment);
+			nextId = Math.max(nextId, segment.file.getBase());
+			boolean torn = segment.file
+					.recover(new MappedSegment.RecordVisitor() {
+						@Override
+						public void onRecord(int offset, ByteBuffer body) {
+							replay(segment, offset, body);
+						}
+					});
+			if (torn) {
+				traceHandler.traceError(TAG,
+						"recover: dropped an incomplete record from segment "
+								+ segment.file.getSequence());
+			}
+		}
+		traceHandler.traceDebug(TAG, "recover: " + index.size()
+				+ " messages in " + segments.size() + " segments");
+	}
+
+	private void replay(Segment segment, int offset, ByteBuffer body) {
+		int length = body.remaining();
+		switch (body.get()) {
+		case STORE: {
+			long id = body.getLong();
+			body.getLong(); // timestamp
+			body.get(); // flags
+			String clientHandle = getString(body);
+			// a relocated message can be seen twice if the process was
+			// killed before the original segment was deleted
+			Entry previous = index.remove(id);
+			if (previous != null) {
+				removeEntry(previous);
+			}
+			addEntry(new Entry(id, clientHandle, segment, offset), length);
+			nextId = Math.max(nextId, id + 1);
+			break;
+		}
+		case DISCARD: {
+			Entry entry = index.remove(body.getLong());
+			if (entry != null) {
+				removeEntry(entry);
+			}
+			break;
+		}
+		case CLEAR:
+			applyClear(body.get() == 0 ? null : getString(body));
+			break;
+		default:
+			traceHandler.traceError(TAG, "recover: unknown record in segment "
+					+ segment.file.getSequence());
+		}
+	}
+
+	private int applyClear(String clientHandle) {
+		int rows = 0;
+		Iterator<Entry> entries = index.values().iterator();
+		while (entries.hasNext()) {
+			Entry entry = entries.next();
+			if (clientHandle == null || entry.clientHandle.equals(clientHandle)) {
+				entries.remove();
+				entry.segment.live--;
+				entry.segment.liveBytes -= entry.size;
+				rows++;
+			}
+		}
+		if (clientHandle == null) {
+			counts.clear();
+		} else {
+			counts.remove(clientHandle);
+		}
+		return rows;
+	}
+
+	private void addEntry(Entry entry, int length) {
+		int[] count = counts.get(entry.clientHandle);
+		if (count == null) {
+			count = new int[1];
+			counts.put(entry.clientHandle, count);
+		}
+		count[0]++;
+		entry.size = MappedSegment.recordSize(length);
+		entry.segment.live++;
+		entry.segment.liveBytes += entry.size;
+		index.put(entry.id, entry);
+	}
+
+	/**
+	 * Account for an entry leaving a segment - the caller removes it from the
+	 * index if need be
+	 */
+	private void removeEntry(Entry entry) {
+		int[] count = counts.get(entry.clientHandle);
+		if (count != null && --count[0] == 0) {
+			counts.remove(entry.clientHandle);
+		}
+		entry.segment.live--;
+		entry.segment.liveBytes -= entry.size;
+	}
+
+	private StoredMessage read(long id) {
+		synchronized (lock) {
+			Entry entry = index.get(id);
+			if (entry == null) {
+				return null;
+			}
+			ByteBuffer body = entry.segment.file.read(entry.offset);
+			body.get(); // type
+			body.getLong(); // id
+			long timestamp = body.getLong();
+			int flags = body.get();
+			getString(body); // client handle
+			String topic = getString(body);
+			byte[] payload = new byte[body.getInt()];
+			body.get(payload);
+			MqttMessageHack message = new MqttMessageHack(payload);
+			message.setQos(flags & QOS_MASK);
+			message.setRetained((flags & RETAINED) != 0);
+			message.setDuplicate((flags & DUPLICATE) != 0);
+			return new LogStoredData(id, entry.clientHandle, topic, message,
+					timestamp);
+		}
+	}
+
+	private int encodeStore(long id, long timestamp, String clientHandle,
+			String topic, int qos, boolean retained, boolean duplicate,
+			byte[] payload) {
+		byte[] handleBytes = clientHandle.getBytes(UTF_8);
+		byte[] topicBytes = topic.getBytes(UTF_8);
+		int length = 1 + 8 + 8 + 1 + 4 + handleBytes.length + 4
+				+ topicBytes.length + 4 + payload.length;
+		ensureScratch(length);
+		int flags = qos & QOS_MASK;
+		if (retained) {
+			flags |= RETAINED;
+		}
+		if (duplicate) {
+			flags |= DUPLICATE;
+		}
+		int position = 0;
+		scratch[position++] = STORE;
+		position = putLong(scratch, position, id);
+		position = putLong(scratch, position, timestamp);
+		scratch[position++] = (byte) flags;
+		position = putBytes(scratch, position, handleBytes);
+		position = putBytes(scratch, position, topicBytes);
+		putBytes(scratch, position, payload);
+		return length;
+	}
+
+	private int encodeClear(String clientHandle) {
+		if (clientHandle == null) {
+			ensureScratch(2);
+			scratch[0] = CLEAR;
+			scratch[1] = 0;
+			return 2;
+		}
+		byte[] handleBytes = clientHandle.getBytes(UTF_8);
+		ensureScratch(2 + 4 + handleBytes.length);
+		scratch[0] = CLEAR;
+		scratch[1] = 1;
+		return putBytes(scratch, 2, handleBytes);
+	}
+
+	private void ensureScratch(int length) {
+		if (scratch.length < length) {
+			scratch = new byte[Math.max(length, scratch.length * 2)];
+		}
+	}
+
+	private static int putLong(byte[] array, int position, long value) {
+		for (int shift = 56; shift >= 0; shift -= 8) {
+			array[position++] = (byte) (value >>> shift);
+		}
+		return position;
+	}
+
+	private static int putBytes(byte[] array, int position, byte[] value) {
+		int length = value.length;
+		array[position++] = (byte) (length >>> 24);
+		array[position++] = (byte) (length >>> 16);
+		array[position++] = (byte) (length >>> 8);
+		array[position++] = (byte) length;
+		System.arraycopy(value, 0, array, position, length);
+		return position + length;
+	}
+
+	private static String getString(ByteBuffer buffer) {
+		byte[] bytes = new byte[buffer.getInt()];
+		buffer.get(bytes);
+		return new String(bytes, UTF_8);
+	}
+
+	/**
+	 * A segment file, and how much of it is still needed
+	 */
+	private static class Segment {
+		private final MappedSegment file;
+		// messages in this segment which are still stored
+		private int live = 0;
+		private int liveBytes = 0;
+
+		Segment(MappedSegment file) {
+			this.file = file;
+		}
+
+		/**
+		 * @return the offset of the record of the given length just appended
+		 */
+		int offset(int length) {
+			return file.getWritePosition() - MappedSegment.recordSize(length);
+		}
+	}
+
+	/**
+	 * Where to find a message still stored
+	 */
+	private static class Entry {
+		private final long id;
+		private final String clientHandle;
+		private Segment segment;
+		private int offset;
+		// bytes taken in the segment, including the frame
+		private int size;
+
+		Entry(long id, String clientHandle, Segment segment, int offset) {
+			this.id = id;
+			this.clientHandle = clientHandle;
+			this.segment = segment;
+			this.offset = offset;
+		}
+	}
+
+	private static class LogStoredData implements StoredMessage {
+		private final long messageId;
+		private final String clientHandle;
+		private final String topic;
+		private final MqttMessage message;
+		private final long timestamp;
+
+		LogStoredData(long messageId, String clientHandle, String topic,
+				MqttMessage message, long timestamp) {
+			this.messageId = messageId;
+			this.clientHandle = clientHandle;
+			this.topic = topic;
+			this.message = message;
+			this.timestamp = timestamp;
+		}
+
+		@Override
+		public long getMessageId() {
+			return messageId;
+		}
+
+		@Override
+		public String getClientHandle() {
+			return clientHandle;
+		}
+
+		@Override
+		public String getTopic() {
+			return topic;
+		}
+
+		@Override
+		public MqttMessage getMessage() {
+			return message;
+		}
+
+		@Override
+		public long getTimestamp() {
+			return timestamp;
+		}
+	}
+
+	/**
+	 * A way to get at the "setDuplicate" method of MqttMessage
+	 */
+	private static class MqttMessageHack extends MqttMessage {
+
+		public MqttMessageHack(byte[] payload) {
+			super(payload);
+		}
+
+		@Override
+		protected void setDuplicate(boolean dup) {
+			super.setDuplicate(dup);
+		}
+	}
+}
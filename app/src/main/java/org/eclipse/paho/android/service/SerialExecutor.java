@@ -0,0 +1,68 @@
+/*******************************************************************************
+ * Copyright (c) 1999, 2014 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ */
+package org.eclipse.paho.android.service;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+
+/**
+ * Runs tasks one at a time, in the order they were given, on another
+ * executor which may have any number of threads. A client's callbacks are
+ * passed through one of these so they keep their order whatever executor the
+ * application provides.
+ */
+class SerialExecutor implements Executor {
+
+	private final Executor executor;
+	private final ArrayDeque<Runnable> tasks = new ArrayDeque<Runnable>();
+	// the task given to the executor, which has not yet finished
+	private Runnable active = null;
+
+	/**
+	 * @param executor
+	 *            runs the tasks
+	 */
+	SerialExecutor(Executor executor) {
+		this.executor = executor;
+	}
+
+	@Override
+	public synchronized void execute(final Runnable task) {
+		tasks.add(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					task.run();
+				} finally {
+					scheduleNext();
+				}
+			}
+		});
+		if (active == null) {
+			scheduleNext();
+		}
+	}
+
+	private synchronized void scheduleNext() {
+		active = tasks.poll();
+		if (active != null) {
+			try {
+				executor.execute(active);
+			} catch (RuntimeException e) {
+				// the task is lost, but those after it can still run
+				active = null;
+				throw e;
+			}
+		}
+	}
+}
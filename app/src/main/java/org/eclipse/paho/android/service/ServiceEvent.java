@@ -0,0 +1,293 @@
+/*******************************************************************************
+ * Copyright (c) 1999, 2014 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ */
+package org.eclipse.paho.android.service;
+
+import android.os.Bundle;
+import android.os.Parcelable;
+
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The result of an operation, or an asynchronous activity such as a message
+ * arriving, passed from the service to a client. Clients in the same process
+ * are passed the event itself; it is turned into the extra data of a
+ * broadcast Intent, under the {@link MqttServiceConstants} keys, only when it
+ * has to be broadcast.
+ */
+class ServiceEvent {
+
+	/* Codes for the actions, each matching one of the action names */
+	static final int UNKNOWN = 0;
+	static final int CONNECT = 1;
+	static final int CONNECT_EXTENDED = 2;
+	static final int MESSAGE_ARRIVED = 3;
+	static final int MESSAGES_ARRIVED = 4;
+	static final int SUBSCRIBE = 5;
+	static final int UNSUBSCRIBE = 6;
+	static final int SEND = 7;
+	static final int MESSAGE_DELIVERED = 8;
+	static final int CONNECTION_LOST = 9;
+	static final int DISCONNECT = 10;
+	static final int TRACE = 11;
+	static final int BACKLOG_REPLAY = 12;
+
+	// the action names, indexed by code
+	private static final String[] ACTION_NAMES = { null,
+			MqttServiceConstants.CONNECT_ACTION,
+			MqttServiceConstants.CONNECT_EXTENDED_ACTION,
+			MqttServiceConstants.MESSAGE_ARRIVED_ACTION,
+			MqttServiceConstants.MESSAGES_ARRIVED_ACTION,
+			MqttServiceConstants.SUBSCRIBE_ACTION,
+			MqttServiceConstants.UNSUBSCRIBE_ACTION,
+			MqttServiceConstants.SEND_ACTION,
+			MqttServiceConstants.MESSAGE_DELIVERED_ACTION,
+			MqttServiceConstants.ON_CONNECTION_LOST_ACTION,
+			MqttServiceConstants.DISCONNECT_ACTION,
+			MqttServiceConstants.TRACE_ACTION,
+			MqttServiceConstants.BACKLOG_REPLAY_ACTION };
+
+	// the action codes, by name
+	private static final Map<String, Integer> ACTION_CODES = new HashMap<>();
+
+	static {
+		for (int action = UNKNOWN + 1; action < ACTION_NAMES.length; action++) {
+			ACTION_CODES.put(ACTION_NAMES[action], action);
+		}
+	}
+
+	final int action;
+
+	// set by the service as the event is passed on
+	String clientHandle;
+	Status status;
+
+	// the operation this is the result of
+	String activityToken;
+	String invocationContext;
+	String errorMessage;
+	Throwable exception;
+	String exceptionStack;
+
+	// a single message
+	String topic;
+	ParcelableMqttMessage message;
+	long messageId;
+
+	// a batch of messages, in parallel arrays
+	String[] topics;
+	ParcelableMqttMessage[] messages;
+	long[] messageIds;
+
+	// an extended connect
+	boolean reconnect;
+	String serverURI;
+
+	// trace data
+	String traceSeverity;
+	String traceTag;
+
+	// progress of a paged backlog replay
+	int backlogDelivered;
+	int backlogTotal;
+	boolean backlogComplete;
+
+	/**
+	 * @param action
+	 *            one of the action codes
+	 */
+	ServiceEvent(int action) {
+		this.action = action;
+	}
+
+	/**
+	 * @param action
+	 *            one of the action codes
+	 * @param activityToken
+	 *            identifies the operation this is the result of
+	 * @param invocationContext
+	 *            the application's context for the operation
+	 */
+	ServiceEvent(int action, String activityToken, String invocationContext) {
+		this.action = action;
+		this.activityToken = activityToken;
+		this.invocationContext = invocationContext;
+	}
+
+	/**
+	 * @param action
+	 *            an action code
+	 * @return the action's name, or null for an unknown code
+	 */
+	static String actionName(int action) {
+		return action > UNKNOWN && action < ACTION_NAMES.length ? ACTION_NAMES[action]
+				: null;
+	}
+
+	/**
+	 * @param name
+	 *            an action name
+	 * @return the action's code, or {@link #UNKNOWN}
+	 */
+	static int actionCode(String name) {
+		Integer action = ACTION_CODES.get(name);
+		return action != null ? action : UNKNOWN;
+	}
+
+	/**
+	 * Read an event from the extra data of a broadcast Intent
+	 *
+	 * @param data
+	 *            the extra data
+	 * @return the event
+	 */
+	static ServiceEvent fromBundle(Bundle data) {
+		ServiceEvent event = new ServiceEvent(actionCode(data
+				.getString(MqttServiceConstants.CALLBACK_ACTION)),
+				data.getString(MqttServiceConstants.CALLBACK_ACTIVITY_TOKEN),
+				data.getString(MqttServiceConstants.CALLBACK_INVOCATION_CONTEXT));
+		event.clientHandle = data
+				.getString(MqttServiceConstants.CALLBACK_CLIENT_HANDLE);
+		event.status = (Status) data
+				.getSerializable(MqttServiceConstants.CALLBACK_STATUS);
+		event.errorMessage = data
+				.getString(MqttServiceConstants.CALLBACK_ERROR_MESSAGE);
+		Serializable exception = data
+				.getSerializable(MqttServiceConstants.CALLBACK_EXCEPTION);
+		if (exception instanceof Throwable) {
+			event.exception = (Throwable) exception;
+		}
+		event.exceptionStack = data
+				.getString(MqttServiceConstants.CALLBACK_EXCEPTION_STACK);
+
+		switch (event.action) {
+		case MESSAGE_ARRIVED:
+		case SEND:
+		case MESSAGE_DELIVERED:
+			event.topic = data
+					.getString(MqttServiceConstants.CALLBACK_DESTINATION_NAME);
+			event.message = data
+					.getParcelable(MqttServiceConstants.CALLBACK_MESSAGE_PARCEL);
+			event.messageId = data
+					.getLong(MqttServiceConstants.CALLBACK_MESSAGE_ID);
+			break;
+		case MESSAGES_ARRIVED:
+			event.topics = data
+					.getStringArray(MqttServiceConstants.CALLBACK_DESTINATION_NAMES);
+			Parcelable[] parcels = data
+					.getParcelableArray(MqttServiceConstants.CALLBACK_MESSAGE_PARCELS);
+			event.messages = new ParcelableMqttMessage[parcels.length];
+			for (int i = 0; i < parcels.length; i++) {
+				event.messages[i] = (ParcelableMqttMessage) parcels[i];
+			}
+			event.messageIds = data
+					.getLongArray(MqttServiceConstants.CALLBACK_MESSAGE_IDS);
+			break;
+		case CONNECT_EXTENDED:
+			event.reconnect = data.getBoolean(
+					MqttServiceConstants.CALLBACK_RECONNECT, false);
+			event.serverURI = data
+					.getString(MqttServiceConstants.CALLBACK_SERVER_URI);
+			break;
+		case TRACE:
+			event.traceSeverity = data
+					.getString(MqttServiceConstants.CALLBACK_TRACE_SEVERITY);
+			event.traceTag = data
+					.getString(MqttServiceConstants.CALLBACK_TRACE_TAG);
+			break;
+		case BACKLOG_REPLAY:
+			event.backlogDelivered = data
+					.getInt(MqttServiceConstants.CALLBACK_BACKLOG_DELIVERED);
+			event.backlogTotal = data
+					.getInt(MqttServiceConstants.CALLBACK_BACKLOG_TOTAL);
+			event.backlogComplete = data
+					.getBoolean(MqttServiceConstants.CALLBACK_BACKLOG_COMPLETE);
+			break;
+		default:
+			break;
+		}
+		return event;
+	}
+
+	/**
+	 * Write the event as the extra data of a broadcast Intent, under the keys
+	 * receivers outside the library read
+	 *
+	 * @return the extra data
+	 */
+	Bundle toBundle() {
+		Bundle data = new Bundle();
+		putString(data, MqttServiceConstants.CALLBACK_CLIENT_HANDLE, clientHandle);
+		data.putSerializable(MqttServiceConstants.CALLBACK_STATUS, status);
+		putString(data, MqttServiceConstants.CALLBACK_ACTION, actionName(action));
+		putString(data, MqttServiceConstants.CALLBACK_ACTIVITY_TOKEN, activityToken);
+		putString(data, MqttServiceConstants.CALLBACK_INVOCATION_CONTEXT,
+				invocationContext);
+		putString(data, MqttServiceConstants.CALLBACK_ERROR_MESSAGE, errorMessage);
+		if (exception != null) {
+			data.putSerializable(MqttServiceConstants.CALLBACK_EXCEPTION, exception);
+		}
+		putString(data, MqttServiceConstants.CALLBACK_EXCEPTION_STACK,
+				exceptionStack);
+
+		switch (action) {
+		case MESSAGE_ARRIVED:
+		case SEND:
+		case MESSAGE_DELIVERED:
+			if (action == MESSAGE_ARRIVED) {
+				data.putLong(MqttServiceConstants.CALLBACK_MESSAGE_ID, messageId);
+			}
+			putString(data, MqttServiceConstants.CALLBACK_DESTINATION_NAME, topic);
+			if (message != null) {
+				data.putParcelable(MqttServiceConstants.CALLBACK_MESSAGE_PARCEL,
+						message);
+			}
+			break;
+		case MESSAGES_ARRIVED:
+			data.putStringArray(MqttServiceConstants.CALLBACK_DESTINATION_NAMES,
+					topics);
+			data.putParcelableArray(
+					MqttServiceConstants.CALLBACK_MESSAGE_PARCELS, messages);
+			data.putLongArray(MqttServiceConstants.CALLBACK_MESSAGE_IDS,
+					messageIds);
+			break;
+		case CONNECT_EXTENDED:
+			data.putBoolean(MqttServiceConstants.CALLBACK_RECONNECT, reconnect);
+			putString(data, MqttServiceConstants.CALLBACK_SERVER_URI, serverURI);
+			break;
+		case TRACE:
+			putString(data, MqttServiceConstants.CALLBACK_TRACE_SEVERITY,
+					traceSeverity);
+			putString(data, MqttServiceConstants.CALLBACK_TRACE_TAG, traceTag);
+			break;
+		case BACKLOG_REPLAY:
+			data.putInt(MqttServiceConstants.CALLBACK_BACKLOG_DELIVERED,
+					backlogDelivered);
+			data.putInt(MqttServiceConstants.CALLBACK_BACKLOG_TOTAL,
+					backlogTotal);
+			data.putBoolean(MqttServiceConstants.CALLBACK_BACKLOG_COMPLETE,
+					backlogComplete);
+			break;
+		default:
+			break;
+		}
+		return data;
+	}
+
+	private static void putString(Bundle data, String key, String value) {
+		if (value != null) {
+			data.putString(key, value);
+		}
+	}
+}
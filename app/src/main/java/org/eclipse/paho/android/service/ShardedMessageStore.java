@@ -0,0 +1,582 @@
+/*******************************************************************************
+ * Copyright (c) 1999, 2014 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ */
+package org.eclipse.paho.android.service;
+
+import android.content.Context;
+import android.os.SystemClock;
+
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.TreeSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A {@link MessageStore} which spreads the arrived messages over several
+ * SQLite database files (shards), each a {@link DatabaseMessageStore} of its
+ * own, so that busy clients do not queue for one another's write lock.
+ * <p>
+ * A client's messages go to a shard of its own, or, with a number of buckets
+ * given, to the bucket its client handle hashes to. A shard is opened the
+ * first time it is used, and closed again once it has not been used for a
+ * while - unless one of its clients has a retention policy, which has to be
+ * enforced in the background.
+ * </p>
+ * <p>
+ * Calls made without a client handle are answered from every shard in turn,
+ * including those not open at the time. Messages are in the order they
+ * arrived within a shard, but shards are visited one after another.
+ * </p>
+ */
+class ShardedMessageStore implements MessageStore {
+
+	// TAG used for indentify trace data etc.
+	private static final String TAG = "ShardedMessageStore";
+
+	// shard database files are named SHARD_PREFIX + client or bucket + ".db"
+	static final String SHARD_PREFIX = "mqttShard-";
+	private static final String SHARD_SUFFIX = ".db";
+
+	// how long a shard is kept open after it was last used, by default
+	static final long DEFAULT_IDLE_TIMEOUT_MS = 60 * 1000;
+
+	private final MqttService service;
+	private final Context context;
+	private final int buckets;
+	private final long idleTimeoutMs;
+
+	// the open shards, by database name - guarded by itself
+	private final Map<String, Shard> shards = new HashMap<>();
+	private ScheduledExecutorService idleExecutor = null;
+	private boolean closed = false;
+
+	// settings applied to every shard as it is opened
+	private volatile int groupCommitMaxBatch = 0;
+	private volatile long groupCommitMaxDelayMs = 0;
+
+	/**
+	 * An open shard, and the number of calls (and cursors) using it
+	 */
+	private static class Shard {
+		final String name;
+		final DatabaseMessageStore store;
+		int users = 0;
+		long lastUsed = SystemClock.elapsedRealtime();
+		// client handles with a retention policy in this shard
+		final Map<String, RetentionPolicy> retentionPolicies = new HashMap<>();
+
+		Shard(String name, DatabaseMessageStore store) {
+			this.name = name;
+			this.store = store;
+		}
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param service
+	 *            our parent MqttService
+	 * @param context
+	 *            a context to use for android calls
+	 * @param buckets
+	 *            the number of shards to hash clients into, zero or less for
+	 *            a shard for each client
+	 * @param idleTimeoutMs
+	 *            how long a shard is kept open after it was last used
+	 */
+	ShardedMessageStore(MqttService service, Context context, int buckets,
+			long idleTimeoutMs) {
+		this.service = service;
+		this.context = context;
+		this.buckets = buckets;
+		this.idleTimeoutMs = idleTimeoutMs;
+		service.traceDebug(TAG, "ShardedMessageStore<init>{" + buckets
+				+ "}, {" + idleTimeoutMs + "}");
+	}
+
+	/**
+	 * @param clientHandle
+	 *            identifier for a client
+	 * @return the name of the database file holding the client's messages
+	 */
+	String getShardName(String clientHandle) {
+		if (clientHandle == null) {
+			throw new IllegalArgumentException("No client handle");
+		}
+		if (buckets > 0) {
+			int bucket = (clientHandle.hashCode() & Integer.MAX_VALUE)
+					% buckets;
+			return SHARD_PREFIX + bucket + SHARD_SUFFIX;
+		}
+		return SHARD_PREFIX + MessageStoreProviders.fileName(clientHandle)
+				+ SHARD_SUFFIX;
+	}
+
+	/**
+	 * @return the number of shards open at the moment
+	 */
+	int getOpenShardCount() {
+		synchronized (shards) {
+			return shards.size();
+		}
+	}
+
+	/**
+	 * Take a shard for the duration of a call, opening it if need be
+	 */
+	private Shard acquire(String name) {
+		synchronized (shards) {
+			if (closed) {
+				throw new IllegalStateException("The message store is closed");
+			}
+			Shard shard = shards.get(name);
+			if (shard == null) {
+				shard = new Shard(name, new DatabaseMessageStore(service,
+						context, name));
+				if (groupCommitMaxBatch > 0) {
+					shard.store.setGroupCommit(groupCommitMaxBatch,
+							groupCommitMaxDelayMs);
+				}
+				shards.put(name, shard);
+				startIdleExecutor();
+				service.traceDebug(TAG, "opened shard {" + name + "}");
+			}
+			shard.users++;
+			return shard;
+		}
+	}
+
+	private void release(Shard shard) {
+		synchronized (shards) {
+			shard.users--;
+			shard.lastUsed = SystemClock.elapsedRealtime();
+		}
+	}
+
+	// called with the shards lock held
+	private void startIdleExecutor() {
+		if (idleExecutor != null) {
+			return;
+		}
+		idleExecutor = Executors
+				.newSingleThreadScheduledExecutor(new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, TAG + " idle");
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		long period = Math.max(idleTimeoutMs / 2, 1000);
+		idleExecutor.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				closeIdleShards(idleTimeoutMs);
+			}
+		}, period, period, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Close the shards which nobody is using, and which have not been used
+	 * for the given time
+	 *
+	 * @param idleMs
+	 *            how long a shard must have been unused to be closed
+	 * @return the number of shards closed
+	 */
+	int closeIdleShards(long idleMs) {
+		int closedShards = 0;
+		long now = SystemClock.elapsedRealtime();
+		// closed with the lock held, so that the file is not opened again
+		// until it has been closed
+		synchronized (shards) {
+			Iterator<Shard> iterator = shards.values().iterator();
+			while (iterator.hasNext()) {
+				Shard shard = iterator.next();
+				if (shard.users == 0 && shard.retentionPolicies.isEmpty()
+						&& now - shard.lastUsed >= idleMs) {
+					iterator.remove();
+					service.traceDebug(TAG, "closing idle shard {"
+							+ shard.name + "}");
+					shard.store.close();
+					closedShards++;
+				}
+			}
+		}
+		return closedShards;
+	}
+
+	/**
+	 * @return the names of every shard, open or on disk, in a fixed order
+	 */
+	private List<String> allShardNames() {
+		TreeSet<String> names = new TreeSet<>();
+		String[] databases = context.databaseList();
+		if (databases != null) {
+			for (String name : databases) {
+				if (name.startsWith(SHARD_PREFIX)
+						&& name.endsWith(SHARD_SUFFIX)) {
+					names.add(name);
+				}
+			}
+		}
+		synchronized (shards) {
+			names.addAll(shards.keySet());
+		}
+		return new ArrayList<>(names);
+	}
+
+	/**
+	 * @see DatabaseMessageStore#setGroupCommit(int, long)
+	 */
+	void setGroupCommit(int maxBatchSize, long maxDelayMs) {
+		List<Shard> open;
+		synchronized (shards) {
+			groupCommitMaxBatch = maxBatchSize;
+			groupCommitMaxDelayMs = maxDelayMs;
+			open = new ArrayList<>(shards.values());
+		}
+		for (Shard shard : open) {
+			shard.store.setGroupCommit(maxBatchSize, maxDelayMs);
+		}
+	}
+
+	/**
+	 * Limit the messages kept for a client. The client's shard is kept open
+	 * while it has a policy, so that the policy can be enforced.
+	 *
+	 * @see DatabaseMessageStore#setRetentionPolicy(String, RetentionPolicy)
+	 */
+	void setRetentionPolicy(String clientHandle, RetentionPolicy policy) {
+		Shard shard = acquire(getShardName(clientHandle));
+		try {
+			synchronized (shards) {
+				if (policy == null) {
+					shard.retentionPolicies.remove(clientHandle);
+				} else {
+					shard.retentionPolicies.put(clientHandle, policy);
+				}
+			}
+			shard.store.setRetentionPolicy(clientHandle, policy);
+		} finally {
+			release(shard);
+		}
+	}
+
+	/**
+	 * @see DatabaseMessageStore#getEvictedMessageCount(String)
+	 */
+	long getEvictedMessageCount(String clientHandle) {
+		Shard shard = openShard(clientHandle);
+		return shard == null ? 0 : shard.store
+				.getEvictedMessageCount(clientHandle);
+	}
+
+	/**
+	 * @see DatabaseMessageStore#getEvictedPayloadBytes(String)
+	 */
+	long getEvictedPayloadBytes(String clientHandle) {
+		Shard shard = openShard(clientHandle);
+		return shard == null ? 0 : shard.store
+				.getEvictedPayloadBytes(clientHandle);
+	}
+
+	/**
+	 * @return the client's shard if it is open - which it is while the
+	 *         client has a retention policy
+	 */
+	private Shard openShard(String clientHandle) {
+		synchronized (shards) {
+			return shards.get(getShardName(clientHandle));
+		}
+	}
+
+	@Override
+	public long storeArrived(String clientHandle, String topic,
+			MqttMessage message) {
+		Shard shard = acquire(getShardName(clientHandle));
+		try {
+			return shard.store.storeArrived(clientHandle, topic, message);
+		} finally {
+			release(shard);
+		}
+	}
+
+	@Override
+	public boolean discardArrived(String clientHandle, long id) {
+		for (String name : shardNames(clientHandle)) {
+			Shard shard = acquire(name);
+			try {
+				if (shard.store.discardArrived(clientHandle, id)) {
+					return true;
+				}
+			} finally {
+				release(shard);
+			}
+		}
+		return false;
+	}
+
+	@Override
+	public Map<Long, Boolean> discardArrived(String clientHandle,
+			Collection<Long> ids) {
+		if (clientHandle != null) {
+			Shard shard = acquire(getShardName(clientHandle));
+			try {
+				return shard.store.discardArrived(clientHandle, ids);
+			} finally {
+				release(shard);
+			}
+		}
+		Map<Long, Boolean> results = new LinkedHashMap<>();
+		for (Long id : ids) {
+			results.put(id, Boolean.FALSE);
+		}
+		for (String name : allShardNames()) {
+			List<Long> remaining = new ArrayList<>();
+			for (Map.Entry<Long, Boolean> result : results.entrySet()) {
+				if (!result.getValue()) {
+					remaining.add(result.getKey());
+				}
+			}
+			if (remaining.isEmpty()) {
+				break;
+			}
+			Shard shard = acquire(name);
+			try {
+				for (Map.Entry<Long, Boolean> result : shard.store
+						.discardArrived(null, remaining).entrySet()) {
+					if (result.getValue()) {
+						results.put(result.getKey(), Boolean.TRUE);
+					}
+				}
+			} finally {
+				release(shard);
+			}
+		}
+		return results;
+	}
+
+	@Override
+	public int getArrivedCount(String clientHandle) {
+		if (clientHandle != null) {
+			Shard shard = acquire(getShardName(clientHandle));
+			try {
+				return shard.store.getArrivedCount(clientHandle);
+			} finally {
+				release(shard);
+			}
+		}
+		int count = 0;
+		for (String name : allShardNames()) {
+			Shard shard = acquire(name);
+			try {
+				count += shard.store.getArrivedCount(null);
+			} finally {
+				release(shard);
+			}
+		}
+		return count;
+	}
+
+	@Override
+	public Iterator<StoredMessage> getAllArrivedMessages(
+			final String clientHandle) {
+		final Iterator<String> names = shardNames(clientHandle).iterator();
+		return new Iterator<StoredMessage>() {
+			// the shard being read, released once its messages run out
+			private Shard shard = null;
+			private Iterator<StoredMessage> messages = null;
+
+			@Override
+			public boolean hasNext() {
+				while (messages == null || !messages.hasNext()) {
+					if (shard != null) {
+						release(shard);
+						shard = null;
+					}
+					messages = null;
+					if (!names.hasNext()) {
+						return false;
+					}
+					shard = acquire(names.next());
+					messages = shard.store.getAllArrivedMessages(clientHandle);
+				}
+				return true;
+			}
+
+			@Override
+			public StoredMessage next() {
+				if (!hasNext()) {
+					throw new NoSuchElementException();
+				}
+				return messages.next();
+			}
+
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+
+	@Override
+	public StoredMessageCursor openArrivedMessages(String clientHandle,
+			String topicFilter, long since, int limit) {
+		// reject a bad filter now, rather than when the first shard is read
+		new ArrivedMessageFilter(topicFilter, since, limit);
+		return new ShardCursor(shardNames(clientHandle), clientHandle,
+				topicFilter, since, limit);
+	}
+
+	@Override
+	public List<StoredMessage> getArrivedMessages(String clientHandle,
+			StoredMessage after, int limit) {
+		List<String> names = shardNames(clientHandle);
+		int first = 0;
+		if (clientHandle == null && after != null) {
+			// carry on from the shard holding the previous page's last message
+			first = names.indexOf(getShardName(after.getClientHandle()));
+		}
+		List<StoredMessage> page = new ArrayList<>();
+		for (int i = first; i >= 0 && i < names.size()
+				&& page.size() < limit; i++) {
+			Shard shard = acquire(names.get(i));
+			try {
+				page.addAll(shard.store.getArrivedMessages(clientHandle,
+						i == first ? after : null, limit - page.size()));
+			} finally {
+				release(shard);
+			}
+		}
+		return page;
+	}
+
+	@Override
+	public void clearArrivedMessages(String clientHandle) {
+		for (String name : shardNames(clientHandle)) {
+			Shard shard = acquire(name);
+			try {
+				shard.store.clearArrivedMessages(clientHandle);
+			} finally {
+				release(shard);
+			}
+		}
+	}
+
+	private List<String> shardNames(String clientHandle) {
+		if (clientHandle == null) {
+			return allShardNames();
+		}
+		List<String> names = new ArrayList<>(1);
+		names.add(getShardName(clientHandle));
+		return names;
+	}
+
+	@Override
+	public void close() {
+		List<Shard> open;
+		synchronized (shards) {
+			closed = true;
+			if (idleExecutor != null) {
+				idleExecutor.shutdown();
+			}
+			open = new ArrayList<>(shards.values());
+			shards.clear();
+		}
+		for (Shard shard : open) {
+			shard.store.close();
+		}
+	}
+
+	/**
+	 * A cursor over the shards in turn, holding on to the shard it is reading
+	 * until it moves on or is closed
+	 */
+	private class ShardCursor implements StoredMessageCursor {
+
+		private final Iterator<String> names;
+		private final String clientHandle;
+		private final String topicFilter;
+		private final long since;
+		private final int limit;
+		private int count = 0;
+
+		private Shard shard = null;
+		private StoredMessageCursor cursor = null;
+		private boolean closed = false;
+
+		ShardCursor(List<String> names, String clientHandle,
+				String topicFilter, long since, int limit) {
+			this.names = names.iterator();
+			this.clientHandle = clientHandle;
+			this.topicFilter = topicFilter;
+			this.since = since;
+			this.limit = limit;
+		}
+
+		@Override
+		public boolean moveToNext() {
+			while (!closed && (limit <= 0 || count < limit)) {
+				if (cursor != null && cursor.moveToNext()) {
+					count++;
+					return true;
+				}
+				closeShard();
+				if (!names.hasNext()) {
+					break;
+				}
+				shard = acquire(names.next());
+				cursor = shard.store.openArrivedMessages(clientHandle,
+						topicFilter, since, limit > 0 ? limit - count : 0);
+			}
+			close();
+			return false;
+		}
+
+		@Override
+		public StoredMessage getMessage() {
+			if (cursor == null) {
+				throw new IllegalStateException("No current message");
+			}
+			return cursor.getMessage();
+		}
+
+		private void closeShard() {
+			if (cursor != null) {
+				cursor.close();
+				cursor = null;
+			}
+			if (shard != null) {
+				release(shard);
+				shard = null;
+			}
+		}
+
+		@Override
+		public void close() {
+			closeShard();
+			closed = true;
+		}
+	}
+}
@@ -0,0 +1,152 @@
+/*******************************************************************************
+ * Copyright (c) 1999, 2014 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution. 
+ *
+ * The Eclipse Public License is available at 
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at 
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ */
+package org.eclipse.paho.android.service;
+
+/**
+ * A snapshot of the state of a client's write-behind queue. Times are in
+ * nanoseconds.
+ * 
+ * @see MqttAndroidClient#getWriteBehindMetrics()
+ */
+public class WriteBehindMetrics {
+
+	private final int queueDepth;
+	private final int queueCapacity;
+	private final long messagesEnqueued;
+	private final long messagesWritten;
+	private final long messagesDropped;
+	private final long blockedEnqueues;
+	private final long totalEnqueueWaitNanos;
+	private final long maxEnqueueWaitNanos;
+	private final long totalFlushLatencyNanos;
+	private final long maxFlushLatencyNanos;
+
+	WriteBehindMetrics(int queueDepth, int queueCapacity,
+			long messagesEnqueued, long messagesWritten, long messagesDropped,
+			long blockedEnqueues, long totalEnqueueWaitNanos,
+			long maxEnqueueWaitNanos, long totalFlushLatencyNanos,
+			long maxFlushLatencyNanos) {
+		this.queueDepth = queueDepth;
+		this.queueCapacity = queueCapacity;
+		this.messagesEnqueued = messagesEnqueued;
+		this.messagesWritten = messagesWritten;
+		this.messagesDropped = messagesDropped;
+		this.blockedEnqueues = blockedEnqueues;
+		this.totalEnqueueWaitNanos = totalEnqueueWaitNanos;
+		this.maxEnqueueWaitNanos = maxEnqueueWaitNanos;
+		this.totalFlushLatencyNanos = totalFlushLatencyNanos;
+		this.maxFlushLatencyNanos = maxFlushLatencyNanos;
+	}
+
+	/**
+	 * @return the number of messages waiting to be stored
+	 */
+	public int getQueueDepth() {
+		return queueDepth;
+	}
+
+	/**
+	 * @return the most messages the queue holds
+	 */
+	public int getQueueCapacity() {
+		return queueCapacity;
+	}
+
+	/**
+	 * @return the number of messages queued
+	 */
+	public long getMessagesEnqueued() {
+		return messagesEnqueued;
+	}
+
+	/**
+	 * @return the number of messages stored and passed on
+	 */
+	public long getMessagesWritten() {
+		return messagesWritten;
+	}
+
+	/**
+	 * @return the number of QoS 0 messages dropped because the queue was full
+	 * @see WriteBehindPolicy#DROP_QOS0
+	 */
+	public long getMessagesDropped() {
+		return messagesDropped;
+	}
+
+	/**
+	 * @return the number of times a message had to wait for space in the
+	 *         queue
+	 */
+	public long getBlockedEnqueues() {
+		return blockedEnqueues;
+	}
+
+	/**
+	 * @return the time spent waiting for space in the queue, in total
+	 */
+	public long getTotalEnqueueWaitNanos() {
+		return totalEnqueueWaitNanos;
+	}
+
+	/**
+	 * @return the longest wait for space in the queue
+	 */
+	public long getMaxEnqueueWaitNanos() {
+		return maxEnqueueWaitNanos;
+	}
+
+	/**
+	 * @return the average wait for space in the queue, over every message
+	 *         queued
+	 */
+	public long getAverageEnqueueWaitNanos() {
+		return messagesEnqueued == 0 ? 0 : totalEnqueueWaitNanos
+				/ messagesEnqueued;
+	}
+
+	/**
+	 * @return the time from queueing messages to their being stored and
+	 *         passed on, in total
+	 */
+	public long getTotalFlushLatencyNanos() {
+		return totalFlushLatencyNanos;
+	}
+
+	/**
+	 * @return the longest time from queueing a message to its being stored
+	 *         and passed on
+	 */
+	public long getMaxFlushLatencyNanos() {
+		return maxFlushLatencyNanos;
+	}
+
+	/**
+	 * @return the average time from queueing a message to its being stored
+	 *         and passed on
+	 */
+	public long getAverageFlushLatencyNanos() {
+		return messagesWritten == 0 ? 0 : totalFlushLatencyNanos
+				/ messagesWritten;
+	}
+
+	@Override
+	public String toString() {
+		return "WriteBehindMetrics{depth=" + queueDepth + "/" + queueCapacity
+				+ ", enqueued=" + messagesEnqueued + ", written="
+				+ messagesWritten + ", dropped=" + messagesDropped
+				+ ", blocked=" + blockedEnqueues + ", avgWaitNs="
+				+ getAverageEnqueueWaitNanos() + ", avgFlushNs="
+				+ getAverageFlushLatencyNanos() + "}";
+	}
+}
@@ -0,0 +1,32 @@
+/*******************************************************************************
+ * Copyright (c) 1999, 2014 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution. 
+ *
+ * The Eclipse Public License is available at 
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at 
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ */
+package org.eclipse.paho.android.service;
+
+/**
+ * What the service does with an arriving message when the write-behind queue
+ * is full
+ * 
+ * @see MqttAndroidClient#setWriteBehind(int, WriteBehindPolicy)
+ */
+public enum WriteBehindPolicy {
+	/**
+	 * Wait for space in the queue. The client stops reading from the network
+	 * meanwhile, so the broker slows down rather than anything being lost.
+	 */
+	BLOCK,
+	/**
+	 * Drop a QoS 0 message, which the broker has delivered at most once
+	 * anyway; wait for space for any other message
+	 */
+	DROP_QOS0
+}
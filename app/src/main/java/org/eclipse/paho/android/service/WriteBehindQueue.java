@@ -0,0 +1,243 @@
+/*******************************************************************************
+ * Copyright (c) 1999, 2014 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution. 
+ *
+ * The Eclipse Public License is available at 
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at 
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ */
+package org.eclipse.paho.android.service;
+
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>
+ * Moves the storing of arrived messages off the thread reading from the
+ * network. Messages are queued, in a bounded queue which any number of
+ * threads may add to, and written one at a time, in the order they arrived,
+ * by a thread of its own.
+ * </p>
+ * <p>
+ * The {@link Writer} is expected to store the message, pass it on, and only
+ * then acknowledge it to the server - so a message is never acknowledged
+ * before it is durable, just as when it is stored on the network thread.
+ * </p>
+ */
+class WriteBehindQueue {
+
+	// TAG used for indentify trace data etc.
+	private static final String TAG = "WriteBehindQueue";
+
+	/**
+	 * Stores, passes on and acknowledges a message
+	 */
+	interface Writer {
+		void write(String topic, MqttMessage message) throws Exception;
+
+		/**
+		 * Called on the store thread when a message could not be written.
+		 * It has not been acknowledged, and a broker only sends it again
+		 * after a reconnect, on a persistent session - so the connection
+		 * should be dropped, as when storing fails on the network thread.
+		 * 
+		 * @param topic
+		 *            the topic the message arrived on
+		 * @param message
+		 *            the message
+		 * @param e
+		 *            why it could not be written
+		 */
+		void failed(String topic, MqttMessage message, Exception e);
+	}
+
+	// tells the store thread to stop, once everything before it is written
+	private static final PendingMessage STOP = new PendingMessage(null, null,
+			0);
+
+	private final BlockingQueue<PendingMessage> queue;
+	private final int capacity;
+	private final WriteBehindPolicy policy;
+	private final Writer writer;
+	private final MqttTraceHandler traceHandler;
+	private final Thread thread;
+	private volatile boolean stopped = false;
+
+	private final AtomicLong enqueued = new AtomicLong();
+	private final AtomicLong written = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+	private final AtomicLong blocked = new AtomicLong();
+	private final AtomicLong totalWaitNanos = new AtomicLong();
+	private final AtomicLong maxWaitNanos = new AtomicLong();
+	private final AtomicLong totalFlushNanos = new AtomicLong();
+	private final AtomicLong maxFlushNanos = new AtomicLong();
+
+	/**
+	 * @param name
+	 *            names the store thread
+	 * @param capacity
+	 *            the most messages waiting to be written
+	 * @param policy
+	 *            what to do with a message when the queue is full
+	 * @param writer
+	 *            writes each message
+	 * @param traceHandler
+	 *            a place to send trace data
+	 */
+	WriteBehindQueue(String name, int capacity, WriteBehindPolicy policy,
+			Writer writer, MqttTraceHandler traceHandler) {
+		this.queue = new ArrayBlockingQueue<>(capacity);
+		this.capacity = capacity;
+		this.policy = policy;
+		this.writer = writer;
+		this.traceHandler = traceHandler;
+		this.thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				writeQueued();
+			}
+		}, TAG + " " + name);
+		this.thread.setDaemon(true);
+	}
+
+	void start() {
+		thread.start();
+	}
+
+	/**
+	 * Queue a message to be written, waiting for space if the queue is full
+	 * and the policy says so. Once the queue has been closed, the message is
+	 * written by the caller.
+	 * 
+	 * @param topic
+	 *            the topic the message arrived on
+	 * @param message
+	 *            the message
+	 * @throws Exception
+	 *             if the message was written by the caller, and that failed
+	 */
+	void enqueue(String topic, MqttMessage message) throws Exception {
+		if (stopped) {
+			writer.write(topic, message);
+			return;
+		}
+		PendingMessage pending = new PendingMessage(topic, message,
+				System.nanoTime());
+		if (!queue.offer(pending)) {
+			if (policy == WriteBehindPolicy.DROP_QOS0 && message.getQos() == 0) {
+				dropped.incrementAndGet();
+				return;
+			}
+			queue.put(pending);
+			long wait = System.nanoTime() - pending.enqueuedAt;
+			// measured from the first attempt, so that the flush latency
+			// includes the wait
+			blocked.incrementAndGet();
+			totalWaitNanos.addAndGet(wait);
+			max(maxWaitNanos, wait);
+		}
+		enqueued.incrementAndGet();
+	}
+
+	/**
+	 * Stop the store thread once it has written everything queued, waiting
+	 * for it to do so for at most the given time. Anything queued afterwards
+	 * is written by the thread queueing it.
+	 * 
+	 * @param timeoutMs
+	 *            the longest wait
+	 */
+	void close(long timeoutMs) {
+		if (stopped) {
+			return;
+		}
+		stopped = true;
+		try {
+			if (queue.offer(STOP, timeoutMs, TimeUnit.MILLISECONDS)) {
+				thread.join(timeoutMs);
+			}
+			if (thread.isAlive()) {
+				traceHandler.traceError(TAG, "close - " + queue.size()
+						+ " messages were not written");
+				thread.interrupt();
+				return;
+			}
+			// anything queued behind STOP, by a thread which had not yet seen
+			// that the queue was stopped
+			PendingMessage pending;
+			while ((pending = queue.poll()) != null) {
+				write(pending);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * @return the current metrics
+	 */
+	WriteBehindMetrics getMetrics() {
+		return new WriteBehindMetrics(queue.size(), capacity, enqueued.get(),
+				written.get(), dropped.get(), blocked.get(),
+				totalWaitNanos.get(), maxWaitNanos.get(),
+				totalFlushNanos.get(), maxFlushNanos.get());
+	}
+
+	private void writeQueued() {
+		try {
+			while (true) {
+				PendingMessage pending = queue.take();
+				if (pending == STOP) {
+					return;
+				}
+				write(pending);
+			}
+		} catch (InterruptedException e) {
+			// closed without waiting for the rest
+		}
+	}
+
+	private void write(PendingMessage pending) {
+		try {
+			writer.write(pending.topic, pending.message);
+		} catch (Exception e) {
+			traceHandler.traceException(TAG, "write", e);
+			writer.failed(pending.topic, pending.message, e);
+			return;
+		}
+		long latency = System.nanoTime() - pending.enqueuedAt;
+		written.incrementAndGet();
+		totalFlushNanos.addAndGet(latency);
+		max(maxFlushNanos, latency);
+	}
+
+	private static void max(AtomicLong max, long value) {
+		long current = max.get();
+		while (value > current && !max.compareAndSet(current, value)) {
+			current = max.get();
+		}
+	}
+
+	/**
+	 * A message waiting to be written
+	 */
+	private static class PendingMessage {
+		private final String topic;
+		private final MqttMessage message;
+		private final long enqueuedAt;
+
+		PendingMessage(String topic, MqttMessage message, long enqueuedAt) {
+			this.topic = topic;
+			this.message = message;
+			this.enqueuedAt = enqueuedAt;
+		}
+	}
+}
@@ -0,0 +1,155 @@
+package org.eclipse.paho.android.service;
+
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Batches passed on by {@link ArrivalBatcher} when full, when their first
+ * message has waited long enough, and when the batcher is closed.
+ */
+public class ArrivalBatcherTest
+{
+
+    private final BlockingQueue<List<ArrivedMessage>> batches = new LinkedBlockingQueue<>();
+    private final List<Exception> traced = new ArrayList<>();
+    private ArrivalBatcher batcher;
+
+    @After
+    public void tearDown()
+    {
+        if (batcher != null)
+        {
+            batcher.close();
+        }
+    }
+
+    @Test
+    public void testPassesOnFullBatches() throws Exception
+    {
+        batcher = batcher(10, 60000);
+        for (int i = 0; i < 25; i++)
+        {
+            batcher.add("topic", message(i), i);
+        }
+        assertIds(0, 10, batches.poll());
+        assertIds(10, 10, batches.poll());
+        assertNull(batches.poll());
+
+        batcher.flush();
+        assertIds(20, 5, batches.poll());
+        batcher.flush();
+        assertNull(batches.poll());
+    }
+
+    @Test
+    public void testPassesOnBatchAfterDelay() throws Exception
+    {
+        batcher = batcher(100, 50);
+        long begin = System.nanoTime();
+        batcher.add("topic/1", message(0), 7);
+        batcher.add("topic/2", message(1), 8);
+
+        List<ArrivedMessage> batch = batches.poll(5, TimeUnit.SECONDS);
+        assertTrue(System.nanoTime() - begin >= TimeUnit.MILLISECONDS.toNanos(50));
+        assertIds(7, 2, batch);
+        assertEquals("topic/1", batch.get(0).getTopic());
+        assertEquals("message 1", new String(batch.get(1).getMessage().getPayload()));
+
+        // the next message starts a new wait
+        batcher.add("topic/3", message(2), 9);
+        assertIds(9, 1, batches.poll(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testCloseFlushes() throws Exception
+    {
+        batcher = batcher(100, 60000);
+        batcher.add("topic", message(0), 0);
+        batcher.add("topic", message(1), 1);
+        batcher.close();
+        assertIds(0, 2, batches.poll());
+
+        // once closed, each message is passed on by itself
+        batcher.add("topic", message(2), 2);
+        assertIds(2, 1, batches.poll());
+    }
+
+    @Test
+    public void testFailedDeliveryIsTraced() throws Exception
+    {
+        batcher = new ArrivalBatcher("test", 2, 60000, new ArrivalBatcher.Sink()
+        {
+            @Override
+            public void deliver(List<ArrivedMessage> batch)
+            {
+                throw new IllegalStateException("no application");
+            }
+        }, tracer());
+        batcher.add("topic", message(0), 0);
+        batcher.add("topic", message(1), 1);
+        assertEquals(1, traced.size());
+
+        // and the next batch is gathered as before
+        batcher.add("topic", message(2), 2);
+        batcher.add("topic", message(3), 3);
+        assertEquals(2, traced.size());
+    }
+
+    private ArrivalBatcher batcher(int maxMessages, long maxDelayMs)
+    {
+        return new ArrivalBatcher("test", maxMessages, maxDelayMs, new ArrivalBatcher.Sink()
+        {
+            @Override
+            public void deliver(List<ArrivedMessage> batch)
+            {
+                batches.add(batch);
+            }
+        }, tracer());
+    }
+
+    private MqttTraceHandler tracer()
+    {
+        return new MqttTraceHandler()
+        {
+            @Override
+            public void traceDebug(String tag, String message)
+            {
+            }
+
+            @Override
+            public void traceError(String tag, String message)
+            {
+            }
+
+            @Override
+            public void traceException(String tag, String message, Exception e)
+            {
+                traced.add(e);
+            }
+        };
+    }
+
+    private static void assertIds(long first, int count, List<ArrivedMessage> batch)
+    {
+        assertNotNull(batch);
+        assertEquals(count, batch.size());
+        for (int i = 0; i < count; i++)
+        {
+            assertEquals(first + i, batch.get(i).getMessageId());
+        }
+    }
+
+    private static MqttMessage message(int i)
+    {
+        return new MqttMessage(("message " + i).getBytes());
+    }
+}
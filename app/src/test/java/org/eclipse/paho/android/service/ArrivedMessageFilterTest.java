@@ -0,0 +1,59 @@
+package org.eclipse.paho.android.service;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ArrivedMessageFilterTest
+{
+
+    @Test
+    public void testNoFilter()
+    {
+        ArrivedMessageFilter filter = new ArrivedMessageFilter(null, 0, 0);
+        assertTrue(filter.matches("any/topic", 0));
+        assertFalse(filter.hasWildcards());
+        assertEquals("", filter.getLiteralPrefix());
+        assertFalse(filter.isLimitReached(Integer.MAX_VALUE));
+    }
+
+    @Test
+    public void testTopicWithoutWildcards()
+    {
+        ArrivedMessageFilter filter = new ArrivedMessageFilter("sensors/a", 0, 0);
+        assertFalse(filter.hasWildcards());
+        assertTrue(filter.matchesTopic("sensors/a"));
+        assertFalse(filter.matchesTopic("sensors/a/b"));
+    }
+
+    @Test
+    public void testWildcards()
+    {
+        ArrivedMessageFilter filter = new ArrivedMessageFilter("sensors/+/temperature", 0, 0);
+        assertTrue(filter.hasWildcards());
+        assertEquals("sensors/", filter.getLiteralPrefix());
+        assertTrue(filter.matchesTopic("sensors/a/temperature"));
+        assertFalse(filter.matchesTopic("sensors/a/humidity"));
+
+        filter = new ArrivedMessageFilter("sensors/#", 0, 0);
+        assertEquals("sensors/", filter.getLiteralPrefix());
+        assertTrue(filter.matchesTopic("sensors/a/b/c"));
+        assertEquals("", new ArrivedMessageFilter("+/a/#", 0, 0).getLiteralPrefix());
+    }
+
+    @Test
+    public void testSinceAndLimit()
+    {
+        ArrivedMessageFilter filter = new ArrivedMessageFilter(null, 1000, 2);
+        assertFalse(filter.matches("topic", 999));
+        assertTrue(filter.matches("topic", 1000));
+        assertFalse(filter.isLimitReached(1));
+        assertTrue(filter.isLimitReached(2));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidTopicFilter()
+    {
+        new ArrivedMessageFilter("sensors/#/temperature", 0, 0);
+    }
+}
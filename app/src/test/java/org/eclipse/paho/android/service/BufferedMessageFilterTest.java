@@ -0,0 +1,58 @@
+package org.eclipse.paho.android.service;
+
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class BufferedMessageFilterTest
+{
+
+    @Test
+    public void testNoFilter()
+    {
+        BufferedMessageFilter filter = new BufferedMessageFilter(null, 0, -1);
+        assertTrue(filter.matches("any/topic", message(2), 0));
+        assertTrue(filter.matches(null, message(0), 12345));
+    }
+
+    @Test
+    public void testTopicFilter()
+    {
+        BufferedMessageFilter filter = new BufferedMessageFilter("sensors/+/temperature", 0, -1);
+        assertTrue(filter.matches("sensors/a/temperature", message(1), 0));
+        assertFalse(filter.matches("sensors/a/humidity", message(1), 0));
+        // a message whose topic is not known is kept
+        assertFalse(filter.matches(null, message(1), 0));
+    }
+
+    @Test
+    public void testAgeAndQos()
+    {
+        BufferedMessageFilter filter = new BufferedMessageFilter(null, 1000, 0);
+        assertTrue(filter.matches("topic", message(0), 999));
+        assertFalse(filter.matches("topic", message(0), 1000));
+        assertFalse(filter.matches("topic", message(1), 999));
+        // nor is one whose age is not known
+        assertFalse(filter.matches("topic", message(0), 0));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidTopicFilter()
+    {
+        new BufferedMessageFilter("sensors/#/temperature", 0, -1);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidQos()
+    {
+        new BufferedMessageFilter(null, 0, 3);
+    }
+
+    private static MqttMessage message(int qos)
+    {
+        MqttMessage message = new MqttMessage(new byte[0]);
+        message.setQos(qos);
+        return message;
+    }
+}
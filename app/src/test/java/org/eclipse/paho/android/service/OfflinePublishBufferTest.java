@@ -0,0 +1,294 @@
+package org.eclipse.paho.android.service;
+
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Draining and recovery of {@link OfflinePublishBuffer}. A crash is simulated
+ * by opening a second buffer on the same directory without closing the first.
+ */
+public class OfflinePublishBufferTest
+{
+
+    private static final int SEGMENT_SIZE = 4096;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File directory;
+    private List<OfflinePublishBuffer> buffers = new ArrayList<>();
+
+    @Before
+    public void setUp() throws Exception
+    {
+        directory = folder.newFolder("buffer");
+    }
+
+    @After
+    public void tearDown()
+    {
+        for (OfflinePublishBuffer buffer : buffers)
+        {
+            buffer.close();
+        }
+    }
+
+    @Test
+    public void testDrainsInOrder() throws Exception
+    {
+        OfflinePublishBuffer buffer = open();
+        fill(buffer, 500);
+        assertTrue(buffer.getSegmentCount() > 2);
+        assertEquals(500, buffer.getMessageCount());
+        assertTrue(buffer.getByteCount() > 500 * "reading 0".length());
+
+        assertEquals(500, drain(buffer, 500).size());
+        assertEquals(0, buffer.getMessageCount());
+        assertEquals(0, buffer.getByteCount());
+        assertNull(buffer.peek());
+        // everything but the segment being written is deleted
+        assertEquals(1, buffer.getSegmentCount());
+
+        // and nothing is sent again after a crash
+        OfflinePublishBuffer recovered = open();
+        assertEquals(0, recovered.getMessageCount());
+        assertNull(recovered.peek());
+        assertEquals(500, recovered.append("topic", message("next"), null, null));
+    }
+
+    @Test
+    public void testRecoversUncommittedMessages() throws Exception
+    {
+        OfflinePublishBuffer buffer = open();
+        fill(buffer, 300);
+        drain(buffer, 100);
+        // sent but never completed
+        OfflinePublishBuffer.BufferedPublish sent = buffer.peek();
+        buffer.sent(sent);
+        long bytes = buffer.getByteCount();
+
+        OfflinePublishBuffer recovered = open();
+        assertEquals(200, recovered.getMessageCount());
+        assertEquals(bytes, recovered.getByteCount());
+        OfflinePublishBuffer.BufferedPublish first = recovered.peek();
+        assertEquals(100, first.getSequence());
+        assertEquals("reading 100", new String(first.getMessage().getPayload()));
+        assertEquals("reading 101", new String(recovered.getMessage(1).getPayload()));
+        assertEquals(200, drain(recovered, 300).size());
+    }
+
+    @Test
+    public void testCommitsOnlyContiguousCompletions() throws Exception
+    {
+        OfflinePublishBuffer buffer = open();
+        fill(buffer, 3);
+        List<OfflinePublishBuffer.BufferedPublish> sent = new ArrayList<>();
+        for (int i = 0; i < 3; i++)
+        {
+            OfflinePublishBuffer.BufferedPublish publish = buffer.peek();
+            buffer.sent(publish);
+            sent.add(publish);
+        }
+        assertEquals(3, buffer.getInFlightCount());
+        // the second and third are acknowledged before the first
+        buffer.complete(sent.get(1).getSequence());
+        buffer.complete(sent.get(2).getSequence());
+        assertEquals(3, buffer.getMessageCount());
+
+        assertEquals(3, open().getMessageCount());
+
+        buffer.complete(sent.get(0).getSequence());
+        assertEquals(0, buffer.getMessageCount());
+        assertEquals(0, open().getMessageCount());
+    }
+
+    @Test
+    public void testRewindSendsAgain() throws Exception
+    {
+        OfflinePublishBuffer buffer = open();
+        fill(buffer, 5);
+        drain(buffer, 2);
+        for (int i = 0; i < 2; i++)
+        {
+            buffer.sent(buffer.peek());
+        }
+        assertEquals(4, buffer.peek().getSequence());
+        buffer.rewind();
+        assertEquals(0, buffer.getInFlightCount());
+        assertEquals(2, buffer.peek().getSequence());
+        assertEquals(3, drain(buffer, 10).size());
+    }
+
+    @Test
+    public void testTokensAreOnlyKeptForThisProcess() throws Exception
+    {
+        OfflinePublishBuffer buffer = open();
+        MqttMessage message = message("retained");
+        message.setQos(2);
+        message.setRetained(true);
+        buffer.append("topic/1", message, "context", "7");
+
+        OfflinePublishBuffer.BufferedPublish publish = buffer.peek();
+        assertEquals("topic/1", publish.getTopic());
+        assertEquals(2, publish.getMessage().getQos());
+        assertTrue(publish.getMessage().isRetained());
+        assertEquals("context", publish.getInvocationContext());
+        assertEquals("7", publish.getActivityToken());
+
+        publish = open().peek();
+        assertEquals("topic/1", publish.getTopic());
+        assertNull(publish.getInvocationContext());
+        assertNull(publish.getActivityToken());
+    }
+
+    @Test
+    public void testDropOldestAndClear() throws Exception
+    {
+        OfflinePublishBuffer buffer = open();
+        fill(buffer, 4);
+        assertTrue(buffer.dropOldest());
+        assertEquals(3, buffer.getMessageCount());
+        assertEquals("reading 1", new String(buffer.peek().getMessage().getPayload()));
+
+        // a message being sent stays, and the next is dropped instead
+        buffer.sent(buffer.peek());
+        assertTrue(buffer.dropOldest());
+        assertEquals(2, buffer.getMessageCount());
+        assertEquals("reading 3", new String(buffer.peek().getMessage().getPayload()));
+
+        buffer.clear();
+        assertEquals(0, buffer.getMessageCount());
+        assertNull(buffer.peek());
+        assertEquals(0, open().getMessageCount());
+    }
+
+    @Test
+    public void testDeleteByFilter() throws Exception
+    {
+        OfflinePublishBuffer buffer = open();
+        for (int i = 0; i < 300; i++)
+        {
+            MqttMessage message = message("reading " + i);
+            message.setQos(i % 3);
+            buffer.append(i % 2 == 0 ? "sensors/temperature" : "sensors/humidity", message, null, null, 1000 + i);
+        }
+        // the first is in flight, so is not deleted
+        buffer.sent(buffer.peek());
+        long bytes = buffer.getByteCount();
+
+        assertEquals(149, buffer.delete(new BufferedMessageFilter("sensors/temperature", 0, -1)));
+        assertEquals(151, buffer.getMessageCount());
+        assertTrue(buffer.getByteCount() < bytes);
+        // humidity readings buffered before 1100 at QoS 1
+        assertEquals(17, buffer.delete(new BufferedMessageFilter("sensors/+", 1100, 1)));
+        assertEquals(134, buffer.getMessageCount());
+
+        OfflinePublishBuffer recovered = open();
+        assertEquals(134, recovered.getMessageCount());
+        assertEquals(buffer.getByteCount(), recovered.getByteCount());
+        List<OfflinePublishBuffer.BufferedPublish> drained = drain(recovered, 300);
+        assertEquals(134, drained.size());
+        assertEquals("reading 0", new String(drained.get(0).getMessage().getPayload()));
+        for (OfflinePublishBuffer.BufferedPublish publish : drained.subList(1, drained.size()))
+        {
+            assertEquals("sensors/humidity", publish.getTopic());
+            assertFalse(publish.getBufferedAt() < 1100 && publish.getMessage().getQos() == 1);
+        }
+        assertEquals(0, recovered.getMessageCount());
+        assertEquals(0, recovered.getByteCount());
+        assertEquals(1, recovered.getSegmentCount());
+    }
+
+    @Test
+    public void testForEachAndDeleteByIndex() throws Exception
+    {
+        OfflinePublishBuffer buffer = open();
+        fill(buffer, 10);
+        assertTrue(buffer.delete(3));
+        assertEquals("reading 4", new String(buffer.getMessage(3).getPayload()));
+
+        final List<String> visited = new ArrayList<>();
+        buffer.forEach(2, new OfflinePublishBuffer.Visitor()
+        {
+            @Override
+            public boolean visit(OfflinePublishBuffer.BufferedPublish publish)
+            {
+                visited.add(new String(publish.getMessage().getPayload()));
+                return visited.size() < 3;
+            }
+        });
+        assertEquals(Arrays.asList("reading 2", "reading 4", "reading 5"), visited);
+
+        // once sent, a message can no longer be deleted
+        buffer.sent(buffer.peek());
+        assertFalse(buffer.delete(0));
+        assertEquals(9, buffer.getMessageCount());
+    }
+
+    @Test
+    public void testMessageLargerThanSegment() throws Exception
+    {
+        OfflinePublishBuffer buffer = open();
+        byte[] payload = new byte[SEGMENT_SIZE * 3];
+        buffer.append("topic", new MqttMessage(payload), null, null);
+        buffer.append("topic", message("after"), null, null);
+
+        OfflinePublishBuffer recovered = open();
+        assertEquals(payload.length, recovered.peek().getMessage().getPayload().length);
+        List<OfflinePublishBuffer.BufferedPublish> drained = drain(recovered, 2);
+        assertEquals("after", new String(drained.get(1).getMessage().getPayload()));
+    }
+
+    private OfflinePublishBuffer open() throws Exception
+    {
+        OfflinePublishBuffer buffer = new OfflinePublishBuffer(directory, SEGMENT_SIZE);
+        buffer.open();
+        buffers.add(buffer);
+        return buffer;
+    }
+
+    private static void fill(OfflinePublishBuffer buffer, int count) throws Exception
+    {
+        for (int i = 0; i < count; i++)
+        {
+            assertEquals(i, buffer.append("topic", message("reading " + i), null, null));
+        }
+    }
+
+    /**
+     * Send and complete up to count messages, checking they come in order
+     */
+    private static List<OfflinePublishBuffer.BufferedPublish> drain(OfflinePublishBuffer buffer, int count)
+            throws Exception
+    {
+        List<OfflinePublishBuffer.BufferedPublish> drained = new ArrayList<>();
+        OfflinePublishBuffer.BufferedPublish publish;
+        while (drained.size() < count && (publish = buffer.peek()) != null)
+        {
+            if (!drained.isEmpty())
+            {
+                assertTrue(publish.getSequence() > drained.get(drained.size() - 1).getSequence());
+            }
+            buffer.sent(publish);
+            buffer.complete(publish.getSequence());
+            drained.add(publish);
+        }
+        return drained;
+    }
+
+    private static MqttMessage message(String payload)
+    {
+        return new MqttMessage(payload.getBytes());
+    }
+}
@@ -0,0 +1,88 @@
+package org.eclipse.paho.android.service;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class RetentionPolicyTest
+{
+
+    private static final long NOW = 1000000;
+
+    @Test
+    public void testUnlimited()
+    {
+        RetentionPolicy.Enforcement enforcement = new RetentionPolicy().enforce(NOW);
+        for (int i = 0; i < 1000; i++)
+        {
+            assertTrue(enforcement.keep("topic", 1024, 0));
+        }
+    }
+
+    @Test
+    public void testMaxMessagesKeepsNewest()
+    {
+        RetentionPolicy policy = new RetentionPolicy();
+        policy.setMaxMessages(3);
+        RetentionPolicy.Enforcement enforcement = policy.enforce(NOW);
+        // newest first
+        assertTrue(enforcement.keep("topic", 10, NOW));
+        assertTrue(enforcement.keep("topic", 10, NOW - 1));
+        assertTrue(enforcement.keep("topic", 10, NOW - 2));
+        assertFalse(enforcement.keep("topic", 10, NOW - 3));
+        assertFalse(enforcement.keep("topic", 10, NOW - 4));
+    }
+
+    @Test
+    public void testMaxPayloadBytes()
+    {
+        RetentionPolicy policy = new RetentionPolicy();
+        policy.setMaxPayloadBytes(100);
+        RetentionPolicy.Enforcement enforcement = policy.enforce(NOW);
+        assertTrue(enforcement.keep("topic", 60, NOW));
+        assertFalse(enforcement.keep("topic", 60, NOW));
+        // a smaller, older message can still fit
+        assertTrue(enforcement.keep("topic", 40, NOW));
+        assertFalse(enforcement.keep("topic", 1, NOW));
+    }
+
+    @Test
+    public void testMaxAge()
+    {
+        RetentionPolicy policy = new RetentionPolicy();
+        policy.setMaxAgeMs(500);
+        RetentionPolicy.Enforcement enforcement = policy.enforce(NOW);
+        assertTrue(enforcement.keep("topic", 10, NOW - 500));
+        assertFalse(enforcement.keep("topic", 10, NOW - 501));
+        assertEquals(500, policy.getShortestMaxAgeMs());
+    }
+
+    @Test
+    public void testTopicPolicies()
+    {
+        RetentionPolicy telemetry = new RetentionPolicy();
+        telemetry.setMaxMessages(2);
+        telemetry.setMaxAgeMs(100);
+        RetentionPolicy policy = new RetentionPolicy();
+        policy.setMaxMessages(5);
+        policy.addTopicPolicy("sensors/+/temperature", telemetry);
+        assertEquals(100, policy.getShortestMaxAgeMs());
+
+        RetentionPolicy.Enforcement enforcement = policy.enforce(NOW);
+        assertTrue(enforcement.keep("sensors/a/temperature", 10, NOW));
+        assertTrue(enforcement.keep("commands/reboot", 10, NOW - 1000));
+        assertTrue(enforcement.keep("sensors/b/temperature", 10, NOW));
+        // the topic policy is full, but other topics are not affected by it
+        assertFalse(enforcement.keep("sensors/c/temperature", 10, NOW));
+        assertTrue(enforcement.keep("commands/reboot", 10, NOW - 1000));
+        assertTrue(enforcement.keep("commands/reboot", 10, NOW - 1000));
+        // the client-wide limit of five is reached
+        assertFalse(enforcement.keep("commands/reboot", 10, NOW - 1000));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidTopicFilter()
+    {
+        new RetentionPolicy().addTopicPolicy("sensors/#/temperature", new RetentionPolicy());
+    }
+}
@@ -0,0 +1,268 @@
+package org.eclipse.paho.android.service;
+
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.eclipse.paho.android.service.RingBufferMessageStore.OverflowPolicy.*;
+import static org.junit.Assert.*;
+
+public class RingBufferMessageStoreTest
+{
+
+    @Test
+    public void testStoreAndDiscard()
+    {
+        RingBufferMessageStore store = new RingBufferMessageStore(4, DROP_OLDEST, null);
+        long id1 = store.storeArrived("client1", "topic/1", message("one"));
+        long id2 = store.storeArrived("client2", "topic/2", message("two"));
+        assertTrue(id2 > id1);
+        assertEquals(1, store.getArrivedCount("client1"));
+        assertEquals(2, store.getArrivedCount(null));
+
+        assertFalse(store.discardArrived("client2", id1));
+        assertTrue(store.discardArrived("client1", id1));
+        assertFalse(store.discardArrived("client1", id1));
+
+        List<MessageStore.StoredMessage> messages = list(store, null);
+        assertEquals(1, messages.size());
+        assertEquals(id2, messages.get(0).getMessageId());
+        assertEquals("topic/2", messages.get(0).getTopic());
+        assertEquals("two", new String(messages.get(0).getMessage().getPayload()));
+    }
+
+    @Test
+    public void testDropOldest()
+    {
+        RingBufferMessageStore store = new RingBufferMessageStore(4, DROP_OLDEST, null);
+        List<Long> ids = new ArrayList<>();
+        for (int i = 0; i < 6; i++)
+        {
+            ids.add(store.storeArrived("client", "topic", message("m" + i)));
+        }
+        assertEquals(2, store.getDroppedCount());
+        assertEquals(4, store.getArrivedCount("client"));
+        List<MessageStore.StoredMessage> messages = list(store, "client");
+        assertEquals(4, messages.size());
+        assertEquals((long) ids.get(2), messages.get(0).getMessageId());
+        assertFalse(store.discardArrived("client", ids.get(0)));
+    }
+
+    @Test
+    public void testSpill()
+    {
+        RingBufferMessageStore spill = new RingBufferMessageStore(64, DROP_OLDEST, null);
+        RingBufferMessageStore store = new RingBufferMessageStore(2, SPILL, spill);
+        List<Long> ids = new ArrayList<>();
+        for (int i = 0; i < 5; i++)
+        {
+            ids.add(store.storeArrived("client", "topic", message("m" + i)));
+        }
+        assertEquals(3, store.getSpilledCount());
+        assertEquals(5, store.getArrivedCount("client"));
+
+        List<MessageStore.StoredMessage> messages = list(store, "client");
+        assertEquals(5, messages.size());
+        for (int i = 0; i < 5; i++)
+        {
+            assertEquals("m" + i, new String(messages.get(i).getMessage().getPayload()));
+            assertEquals((long) ids.get(i), messages.get(i).getMessageId());
+            assertTrue(store.discardArrived("client", ids.get(i)));
+        }
+        assertEquals(0, store.getArrivedCount(null));
+        assertEquals(0, spill.getArrivedCount(null));
+    }
+
+    @Test
+    public void testBatchDiscard()
+    {
+        RingBufferMessageStore spill = new RingBufferMessageStore(64, DROP_OLDEST, null);
+        RingBufferMessageStore store = new RingBufferMessageStore(2, SPILL, spill);
+        List<Long> ids = new ArrayList<>();
+        for (int i = 0; i < 4; i++)
+        {
+            ids.add(store.storeArrived("client", "topic", message("m" + i)));
+        }
+        ids.add(12345L);
+
+        Map<Long, Boolean> results = store.discardArrived("client", ids);
+        assertEquals(ids, new ArrayList<>(results.keySet()));
+        for (int i = 0; i < 4; i++)
+        {
+            assertTrue(results.get(ids.get(i)));
+        }
+        assertFalse(results.get(12345L));
+        assertEquals(0, store.getArrivedCount(null));
+    }
+
+    @Test
+    public void testPaging()
+    {
+        RingBufferMessageStore spill = new RingBufferMessageStore(64, DROP_OLDEST, null);
+        RingBufferMessageStore store = new RingBufferMessageStore(4, SPILL, spill);
+        for (int i = 0; i < 10; i++)
+        {
+            store.storeArrived(i % 3 == 0 ? "other" : "client", "topic", message("m" + i));
+        }
+        List<MessageStore.StoredMessage> all = list(store, "client");
+
+        List<MessageStore.StoredMessage> paged = new ArrayList<>();
+        List<MessageStore.StoredMessage> page = store.getArrivedMessages("client", null, 3);
+        while (!page.isEmpty())
+        {
+            assertTrue(page.size() <= 3);
+            paged.addAll(page);
+            page = store.getArrivedMessages("client", page.get(page.size() - 1), 3);
+        }
+        assertEquals(all.size(), paged.size());
+        for (int i = 0; i < all.size(); i++)
+        {
+            assertEquals(all.get(i).getMessageId(), paged.get(i).getMessageId());
+        }
+    }
+
+    @Test
+    public void testCursor()
+    {
+        RingBufferMessageStore spill = new RingBufferMessageStore(64, DROP_OLDEST, null);
+        RingBufferMessageStore store = new RingBufferMessageStore(4, SPILL, spill);
+        List<Long> ids = new ArrayList<>();
+        for (int i = 0; i < 10; i++)
+        {
+            ids.add(store.storeArrived("client", i % 2 == 0 ? "even/" + i : "odd/" + i, message("m" + i)));
+        }
+
+        List<Long> even = new ArrayList<>();
+        MessageStore.StoredMessageCursor cursor = store.openArrivedMessages("client", "even/+", 0, 0);
+        try
+        {
+            while (cursor.moveToNext())
+            {
+                MessageStore.StoredMessage stored = cursor.getMessage();
+                assertTrue(stored.getTopic().startsWith("even/"));
+                assertEquals(stored.getTopic().replace("even/", "m"), new String(stored.getMessage().getPayload()));
+                even.add(stored.getMessageId());
+            }
+        }
+        finally
+        {
+            cursor.close();
+        }
+        assertEquals(5, even.size());
+        // ring and spilled messages, in order, with identifiers which can be discarded
+        for (int i = 0; i < 5; i++)
+        {
+            assertEquals(ids.get(i * 2), even.get(i));
+        }
+        assertTrue(store.discardArrived("client", even.get(0)));
+        assertTrue(store.discardArrived("client", even.get(4)));
+
+        cursor = store.openArrivedMessages("client", null, 0, 3);
+        int count = 0;
+        while (cursor.moveToNext())
+        {
+            count++;
+        }
+        assertEquals(3, count);
+        // closed at the end, and closing again has no effect
+        assertFalse(cursor.moveToNext());
+        cursor.close();
+    }
+
+    @Test
+    public void testBlockWaitsForAcknowledgement() throws Exception
+    {
+        final RingBufferMessageStore store = new RingBufferMessageStore(2, BLOCK, null);
+        long first = store.storeArrived("client", "topic", message("one"));
+        store.storeArrived("client", "topic", message("two"));
+
+        final CountDownLatch stored = new CountDownLatch(1);
+        Thread producer = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                store.storeArrived("client", "topic", message("three"));
+                stored.countDown();
+            }
+        });
+        producer.start();
+        assertFalse(stored.await(100, TimeUnit.MILLISECONDS));
+
+        assertTrue(store.discardArrived("client", first));
+        assertTrue(stored.await(5, TimeUnit.SECONDS));
+        assertEquals(2, store.getArrivedCount("client"));
+        assertEquals(0, store.getDroppedCount());
+    }
+
+    @Test
+    public void testClear()
+    {
+        RingBufferMessageStore store = new RingBufferMessageStore(8, DROP_OLDEST, null);
+        store.storeArrived("client1", "topic", message("one"));
+        long id = store.storeArrived("client2", "topic", message("two"));
+        store.clearArrivedMessages("client1");
+        assertEquals(0, store.getArrivedCount("client1"));
+        assertEquals(1, store.getArrivedCount(null));
+        store.clearArrivedMessages(null);
+        assertFalse(store.discardArrived("client2", id));
+        assertEquals(0, store.getArrivedCount(null));
+    }
+
+    @Test
+    public void testConcurrentRoundTrips() throws Exception
+    {
+        final RingBufferMessageStore store = new RingBufferMessageStore(16, BLOCK, null);
+        final int perThread = 20000;
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 4; t++)
+        {
+            final String clientHandle = "client" + t;
+            threads.add(new Thread(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    MqttMessage message = message("payload");
+                    for (int i = 0; i < perThread; i++)
+                    {
+                        long id = store.storeArrived(clientHandle, "topic", message);
+                        assertTrue(store.discardArrived(clientHandle, id));
+                    }
+                }
+            }));
+        }
+        for (Thread thread : threads)
+        {
+            thread.start();
+        }
+        for (Thread thread : threads)
+        {
+            thread.join();
+        }
+        assertEquals(0, store.getArrivedCount(null));
+        assertEquals(0, store.getDroppedCount());
+    }
+
+    private static MqttMessage message(String payload)
+    {
+        return new MqttMessage(payload.getBytes());
+    }
+
+    private static List<MessageStore.StoredMessage> list(MessageStore store, String clientHandle)
+    {
+        List<MessageStore.StoredMessage> messages = new ArrayList<>();
+        Iterator<MessageStore.StoredMessage> iterator = store.getAllArrivedMessages(clientHandle);
+        while (iterator.hasNext())
+        {
+            messages.add(iterator.next());
+        }
+        return messages;
+    }
+}
@@ -0,0 +1,57 @@
+package org.eclipse.paho.android.service;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+/**
+ * Damages the segment files of a log on disk, as a crash part way through a
+ * write would, for the tests of the logs which recover from one
+ */
+class SegmentFiles
+{
+
+    private SegmentFiles()
+    {
+    }
+
+    /**
+     * Flip a byte of the given text wherever it is found in the files under
+     * a directory, and the directories under it
+     *
+     * @param directory the directory holding the segment files
+     * @param text      the text to corrupt
+     * @throws IOException if a file cannot be rewritten
+     */
+    static void corrupt(File directory, String text) throws IOException
+    {
+        byte[] pattern = text.getBytes();
+        for (File file : directory.listFiles())
+        {
+            if (file.isDirectory())
+            {
+                corrupt(file, text);
+                continue;
+            }
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try
+            {
+                byte[] contents = new byte[(int) raf.length()];
+                raf.readFully(contents);
+                for (int i = 0; i + pattern.length <= contents.length; i++)
+                {
+                    if (Arrays.equals(pattern, Arrays.copyOfRange(contents, i, i + pattern.length)))
+                    {
+                        raf.seek(i);
+                        raf.write(~pattern[0]);
+                    }
+                }
+            }
+            finally
+            {
+                raf.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,230 @@
+package org.eclipse.paho.android.service;
+
+import org.eclipse.paho.client.mqttv3.MqttPersistable;
+import org.eclipse.paho.client.mqttv3.internal.MqttPersistentData;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Recovery of {@link SegmentLogClientPersistence} after the process is killed.
+ * A crash is simulated by opening a second persistence on the same directory
+ * without closing the first.
+ */
+public class SegmentLogClientPersistenceTest
+{
+
+    private static final int SEGMENT_SIZE = 4096;
+    private static final String CLIENT_ID = "client";
+    private static final String SERVER_URI = "tcp://localhost:1883";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File directory;
+    private List<SegmentLogClientPersistence> opened = new ArrayList<>();
+
+    @Before
+    public void setUp() throws Exception
+    {
+        directory = folder.newFolder("persistence");
+    }
+
+    @After
+    public void tearDown()
+    {
+        for (SegmentLogClientPersistence persistence : opened)
+        {
+            persistence.close();
+        }
+    }
+
+    @Test
+    public void testRecoversKeys() throws Exception
+    {
+        SegmentLogClientPersistence persistence = open();
+        for (int i = 1; i <= 5; i++)
+        {
+            persistence.put("s-" + i, publish(i, "payload " + i));
+        }
+        persistence.remove("s-2");
+        persistence.put("s-4", publish(4, "replaced"));
+        persistence.put("sc-9", new MqttPersistentData("sc-9", new byte[]{9}, 0, 1, null, 0, 0));
+        List<String> keys = keys(persistence);
+
+        SegmentLogClientPersistence recovered = open();
+        assertEquals(keys, keys(recovered));
+        assertEquals(Arrays.asList("s-1", "s-3", "s-4", "s-5", "sc-9"), keys);
+        assertFalse(recovered.containsKey("s-2"));
+        assertNull(recovered.get("s-2"));
+        assertEquals("replaced", new String(recovered.get("s-4").getPayloadBytes()));
+        MqttPersistable stored = recovered.get("s-1");
+        assertArrayEquals(publish(1, "payload 1").getHeaderBytes(), stored.getHeaderBytes());
+        assertNull(recovered.get("sc-9").getPayloadBytes());
+        assertEquals(0, recovered.get("sc-9").getPayloadLength());
+    }
+
+    @Test
+    public void testHonoursOffsets() throws Exception
+    {
+        SegmentLogClientPersistence persistence = open();
+        byte[] header = "--header--".getBytes();
+        byte[] payload = "--payload--".getBytes();
+        persistence.put("s-1", new MqttPersistentData("s-1", header, 2, 6, payload, 2, 7));
+
+        MqttPersistable stored = open().get("s-1");
+        assertEquals("header", new String(stored.getHeaderBytes(), stored.getHeaderOffset(),
+                stored.getHeaderLength()));
+        assertEquals("payload", new String(stored.getPayloadBytes(), stored.getPayloadOffset(),
+                stored.getPayloadLength()));
+    }
+
+    @Test
+    public void testTornRecordIsDropped() throws Exception
+    {
+        SegmentLogClientPersistence persistence = open();
+        persistence.put("s-1", publish(1, "complete"));
+        persistence.put("s-2", publish(2, "torn-payload"));
+
+        // as if the process died part way through writing the second record
+        SegmentFiles.corrupt(directory, "torn-payload");
+
+        SegmentLogClientPersistence recovered = open();
+        assertEquals(Collections.singletonList("s-1"), keys(recovered));
+
+        // the log is usable after the torn record
+        recovered.put("s-3", publish(3, "after"));
+        SegmentLogClientPersistence again = open();
+        assertEquals(Arrays.asList("s-1", "s-3"), keys(again));
+        assertEquals("after", new String(again.get("s-3").getPayloadBytes()));
+    }
+
+    @Test
+    public void testClearIsRecovered() throws Exception
+    {
+        SegmentLogClientPersistence persistence = open();
+        persistence.put("s-1", publish(1, "one"));
+        persistence.put("s-2", publish(2, "two"));
+        persistence.clear();
+        persistence.put("s-3", publish(3, "three"));
+
+        assertEquals(Collections.singletonList("s-3"), keys(open()));
+    }
+
+    @Test
+    public void testClientsAreKeptApart() throws Exception
+    {
+        SegmentLogClientPersistence first = open();
+        first.put("s-1", publish(1, "first"));
+        SegmentLogClientPersistence second = track(new SegmentLogClientPersistence(directory, SEGMENT_SIZE, false));
+        second.open("other", SERVER_URI);
+        assertFalse(second.keys().hasMoreElements());
+        second.put("s-1", publish(1, "second"));
+
+        assertEquals("first", new String(open().get("s-1").getPayloadBytes()));
+    }
+
+    @Test
+    public void testCompactionDeletesRemovedSegments() throws Exception
+    {
+        SegmentLogClientPersistence persistence = open();
+        fill(persistence, 200);
+        assertTrue(persistence.getSegmentCount() > 2);
+        for (int i = 0; i < 200; i++)
+        {
+            persistence.remove("s-" + i);
+        }
+        persistence.compact();
+        assertEquals(1, persistence.getSegmentCount());
+
+        assertFalse(open().keys().hasMoreElements());
+    }
+
+    @Test
+    public void testCompactionRelocatesRemainingKeys() throws Exception
+    {
+        SegmentLogClientPersistence persistence = open();
+        fill(persistence, 200);
+        int segments = persistence.getSegmentCount();
+        // everything but the oldest message is acknowledged
+        for (int i = 1; i < 200; i++)
+        {
+            persistence.remove("s-" + i);
+        }
+        persistence.compact();
+        assertTrue(persistence.getSegmentCount() < segments);
+
+        SegmentLogClientPersistence recovered = open();
+        assertEquals(Collections.singletonList("s-0"), keys(recovered));
+        assertEquals("message 0", new String(recovered.get("s-0").getPayloadBytes()));
+    }
+
+    @Test
+    public void testReopenAfterClose() throws Exception
+    {
+        SegmentLogClientPersistence persistence = open();
+        persistence.put("s-1", publish(1, "one"));
+        persistence.close();
+
+        persistence.open(CLIENT_ID, SERVER_URI);
+        assertEquals(Collections.singletonList("s-1"), keys(persistence));
+    }
+
+    @Test
+    public void testMessageLargerThanSegment() throws Exception
+    {
+        SegmentLogClientPersistence persistence = open();
+        byte[] payload = new byte[SEGMENT_SIZE * 3];
+        Arrays.fill(payload, (byte) 7);
+        persistence.put("s-1", new MqttPersistentData("s-1", new byte[]{1}, 0, 1, payload, 0, payload.length));
+
+        assertArrayEquals(payload, open().get("s-1").getPayloadBytes());
+    }
+
+    private SegmentLogClientPersistence open() throws Exception
+    {
+        SegmentLogClientPersistence persistence = track(new SegmentLogClientPersistence(directory, SEGMENT_SIZE,
+                false));
+        persistence.open(CLIENT_ID, SERVER_URI);
+        return persistence;
+    }
+
+    private SegmentLogClientPersistence track(SegmentLogClientPersistence persistence)
+    {
+        opened.add(persistence);
+        return persistence;
+    }
+
+    private static void fill(SegmentLogClientPersistence persistence, int count) throws Exception
+    {
+        for (int i = 0; i < count; i++)
+        {
+            persistence.put("s-" + i, publish(i, "message " + i));
+        }
+    }
+
+    private static List<String> keys(SegmentLogClientPersistence persistence) throws Exception
+    {
+        List<String> keys = Collections.list(persistence.keys());
+        Collections.sort(keys);
+        return keys;
+    }
+
+    private static MqttPersistentData publish(int id, String payload)
+    {
+        byte[] header = new byte[20];
+        Arrays.fill(header, (byte) id);
+        byte[] body = payload.getBytes();
+        return new MqttPersistentData("s-" + id, header, 0, header.length, body, 0, body.length);
+    }
+}
@@ -0,0 +1,250 @@
+package org.eclipse.paho.android.service;
+
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Recovery of {@link SegmentLogMessageStore} after the process is killed. A
+ * crash is simulated by opening a second store on the same directory without
+ * closing the first.
+ */
+public class SegmentLogMessageStoreTest
+{
+
+    private static final int SEGMENT_SIZE = 4096;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File directory;
+    private List<SegmentLogMessageStore> stores = new ArrayList<>();
+
+    @Before
+    public void setUp() throws Exception
+    {
+        directory = folder.newFolder("log");
+    }
+
+    @After
+    public void tearDown()
+    {
+        for (SegmentLogMessageStore store : stores)
+        {
+            store.close();
+        }
+    }
+
+    @Test
+    public void testRecoversStoredMessages()
+    {
+        SegmentLogMessageStore store = open();
+        MqttMessage first = message("first", 2);
+        first.setRetained(true);
+        long id1 = store.storeArrived("client1", "topic/1", first);
+        long id2 = store.storeArrived("client2", "topic/2", message("second", 1));
+        long id3 = store.storeArrived("client1", "topic/3", message("third", 0));
+        assertTrue(store.discardArrived("client2", id2));
+
+        SegmentLogMessageStore recovered = open();
+        List<MessageStore.StoredMessage> messages = list(recovered, null);
+        assertEquals(2, messages.size());
+        assertEquals(id1, messages.get(0).getMessageId());
+        assertEquals("client1", messages.get(0).getClientHandle());
+        assertEquals("topic/1", messages.get(0).getTopic());
+        assertEquals("first", new String(messages.get(0).getMessage().getPayload()));
+        assertEquals(2, messages.get(0).getMessage().getQos());
+        assertTrue(messages.get(0).getMessage().isRetained());
+        assertEquals(id3, messages.get(1).getMessageId());
+        assertFalse(messages.get(1).getMessage().isRetained());
+        assertEquals(2, recovered.getArrivedCount("client1"));
+        assertEquals(0, recovered.getArrivedCount("client2"));
+
+        // identifiers keep increasing, and a discarded message stays discarded
+        assertTrue(recovered.storeArrived("client1", "topic/4", message("fourth", 1)) > id3);
+        assertFalse(recovered.discardArrived("client2", id2));
+    }
+
+    @Test
+    public void testTornRecordIsDropped() throws IOException
+    {
+        SegmentLogMessageStore store = open();
+        long id1 = store.storeArrived("client", "topic", message("complete", 1));
+        store.storeArrived("client", "topic", message("torn-payload", 1));
+
+        // as if the process died part way through writing the second record
+        SegmentFiles.corrupt(directory, "torn-payload");
+
+        SegmentLogMessageStore recovered = open();
+        List<MessageStore.StoredMessage> messages = list(recovered, "client");
+        assertEquals(1, messages.size());
+        assertEquals(id1, messages.get(0).getMessageId());
+
+        // the log is usable after the torn record
+        long id3 = recovered.storeArrived("client", "topic", message("after", 1));
+        messages = list(open(), "client");
+        assertEquals(2, messages.size());
+        assertEquals(id3, messages.get(1).getMessageId());
+        assertEquals("after", new String(messages.get(1).getMessage().getPayload()));
+    }
+
+    @Test
+    public void testClearIsRecovered()
+    {
+        SegmentLogMessageStore store = open();
+        store.storeArrived("client1", "topic", message("one", 1));
+        store.storeArrived("client2", "topic", message("two", 1));
+        store.clearArrivedMessages("client1");
+        long id = store.storeArrived("client1", "topic", message("three", 1));
+
+        SegmentLogMessageStore recovered = open();
+        List<MessageStore.StoredMessage> messages = list(recovered, "client1");
+        assertEquals(1, messages.size());
+        assertEquals(id, messages.get(0).getMessageId());
+        assertEquals(1, recovered.getArrivedCount("client2"));
+
+        recovered.clearArrivedMessages(null);
+        assertEquals(0, open().getArrivedCount(null));
+    }
+
+    @Test
+    public void testCompactionDeletesAcknowledgedSegments()
+    {
+        SegmentLogMessageStore store = open();
+        List<Long> ids = fill(store, 200);
+        assertTrue(store.getSegmentCount() > 2);
+        for (long id : ids)
+        {
+            store.discardArrived("client", id);
+        }
+        store.compact();
+        assertEquals(1, store.getSegmentCount());
+
+        // identifiers are not reused, even with every message gone
+        SegmentLogMessageStore recovered = open();
+        assertEquals(0, recovered.getArrivedCount(null));
+        assertTrue(recovered.storeArrived("client", "topic", message("next", 1)) > ids.get(ids.size() - 1));
+    }
+
+    @Test
+    public void testCompactionRelocatesRemainingMessages()
+    {
+        SegmentLogMessageStore store = open();
+        List<Long> ids = fill(store, 200);
+        int segments = store.getSegmentCount();
+        // everything but the oldest message is acknowledged
+        for (long id : ids.subList(1, ids.size()))
+        {
+            store.discardArrived("client", id);
+        }
+        store.compact();
+        assertTrue(store.getSegmentCount() < segments);
+
+        SegmentLogMessageStore recovered = open();
+        List<MessageStore.StoredMessage> messages = list(recovered, "client");
+        assertEquals(1, messages.size());
+        assertEquals((long) ids.get(0), messages.get(0).getMessageId());
+        assertEquals("message 0", new String(messages.get(0).getMessage().getPayload()));
+        assertTrue(recovered.discardArrived("client", ids.get(0)));
+    }
+
+    @Test
+    public void testPaging()
+    {
+        SegmentLogMessageStore store = open();
+        List<Long> ids = fill(store, 25);
+        store.storeArrived("other", "topic", message("other", 1));
+
+        List<Long> paged = new ArrayList<>();
+        List<MessageStore.StoredMessage> page = store.getArrivedMessages("client", null, 10);
+        while (!page.isEmpty())
+        {
+            for (MessageStore.StoredMessage message : page)
+            {
+                paged.add(message.getMessageId());
+            }
+            page = store.getArrivedMessages("client", page.get(page.size() - 1), 10);
+        }
+        assertEquals(ids, paged);
+    }
+
+    @Test
+    public void testMessageLargerThanSegment()
+    {
+        SegmentLogMessageStore store = open();
+        byte[] payload = new byte[SEGMENT_SIZE * 3];
+        Arrays.fill(payload, (byte) 7);
+        long id = store.storeArrived("client", "topic", new MqttMessage(payload));
+
+        List<MessageStore.StoredMessage> messages = list(open(), "client");
+        assertEquals(1, messages.size());
+        assertEquals(id, messages.get(0).getMessageId());
+        assertArrayEquals(payload, messages.get(0).getMessage().getPayload());
+    }
+
+    private SegmentLogMessageStore open()
+    {
+        SegmentLogMessageStore store = new SegmentLogMessageStore(new NullTraceHandler(), directory,
+                SEGMENT_SIZE, false);
+        stores.add(store);
+        return store;
+    }
+
+    private List<Long> fill(SegmentLogMessageStore store, int count)
+    {
+        List<Long> ids = new ArrayList<>();
+        for (int i = 0; i < count; i++)
+        {
+            ids.add(store.storeArrived("client", "topic", message("message " + i, 1)));
+        }
+        return ids;
+    }
+
+    private static MqttMessage message(String payload, int qos)
+    {
+        MqttMessage message = new MqttMessage(payload.getBytes());
+        message.setQos(qos);
+        return message;
+    }
+
+    private static List<MessageStore.StoredMessage> list(MessageStore store, String clientHandle)
+    {
+        List<MessageStore.StoredMessage> messages = new ArrayList<>();
+        Iterator<MessageStore.StoredMessage> iterator = store.getAllArrivedMessages(clientHandle);
+        while (iterator.hasNext())
+        {
+            messages.add(iterator.next());
+        }
+        return messages;
+    }
+
+    private static class NullTraceHandler implements MqttTraceHandler
+    {
+        @Override
+        public void traceDebug(String tag, String message)
+        {
+        }
+
+        @Override
+        public void traceError(String tag, String message)
+        {
+        }
+
+        @Override
+        public void traceException(String tag, String message, Exception e)
+        {
+        }
+    }
+}
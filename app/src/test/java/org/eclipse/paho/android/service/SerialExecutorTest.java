@@ -0,0 +1,129 @@
+package org.eclipse.paho.android.service;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Ordering of the tasks run by {@link SerialExecutor} on an executor with
+ * several threads.
+ */
+public class SerialExecutorTest
+{
+
+    private final ExecutorService pool = Executors.newFixedThreadPool(8);
+
+    @After
+    public void tearDown()
+    {
+        pool.shutdownNow();
+    }
+
+    @Test
+    public void testRunsInOrder() throws Exception
+    {
+        SerialExecutor executor = new SerialExecutor(pool);
+        final List<Integer> ran = new ArrayList<>();
+        final AtomicInteger running = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(1000);
+        for (int i = 0; i < 1000; i++)
+        {
+            final int task = i;
+            executor.execute(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    assertEquals(1, running.incrementAndGet());
+                    ran.add(task);
+                    running.decrementAndGet();
+                    done.countDown();
+                }
+            });
+        }
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        for (int i = 0; i < 1000; i++)
+        {
+            assertEquals(i, (int) ran.get(i));
+        }
+    }
+
+    @Test
+    public void testContinuesAfterFailedTask() throws Exception
+    {
+        SerialExecutor executor = new SerialExecutor(pool);
+        final CountDownLatch done = new CountDownLatch(1);
+        executor.execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                throw new IllegalStateException("callback failed");
+            }
+        });
+        executor.execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                done.countDown();
+            }
+        });
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testContinuesAfterRejectedTask() throws Exception
+    {
+        final AtomicInteger rejections = new AtomicInteger(1);
+        SerialExecutor executor = new SerialExecutor(new Executor()
+        {
+            @Override
+            public void execute(Runnable task)
+            {
+                if (rejections.getAndDecrement() > 0)
+                {
+                    throw new RejectedExecutionException();
+                }
+                task.run();
+            }
+        });
+        try
+        {
+            executor.execute(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    fail();
+                }
+            });
+            fail();
+        }
+        catch (RejectedExecutionException e)
+        {
+            // expected
+        }
+        final boolean[] ran = new boolean[1];
+        executor.execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                ran[0] = true;
+            }
+        });
+        assertTrue(ran[0]);
+    }
+}
@@ -0,0 +1,210 @@
+package org.eclipse.paho.android.service;
+
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class WriteBehindQueueTest
+{
+
+    private final List<String> written = Collections.synchronizedList(new ArrayList<String>());
+    private final CountDownLatch release = new CountDownLatch(1);
+    private WriteBehindQueue queue;
+
+    @After
+    public void tearDown()
+    {
+        release.countDown();
+        if (queue != null)
+        {
+            queue.close(1000);
+        }
+    }
+
+    @Test
+    public void testWritesInOrder() throws Exception
+    {
+        queue = open(16, WriteBehindPolicy.BLOCK, false);
+        List<String> expected = new ArrayList<>();
+        for (int i = 0; i < 100; i++)
+        {
+            queue.enqueue("topic/" + i, message(1));
+            expected.add("topic/" + i);
+        }
+        queue.close(5000);
+        assertEquals(expected, written);
+
+        WriteBehindMetrics metrics = queue.getMetrics();
+        assertEquals(100, metrics.getMessagesEnqueued());
+        assertEquals(100, metrics.getMessagesWritten());
+        assertEquals(0, metrics.getQueueDepth());
+        assertEquals(16, metrics.getQueueCapacity());
+        assertTrue(metrics.getMaxFlushLatencyNanos() >= metrics.getAverageFlushLatencyNanos());
+    }
+
+    @Test
+    public void testBlockWaitsForSpace() throws Exception
+    {
+        queue = open(2, WriteBehindPolicy.BLOCK, true);
+        // one is taken by the blocked writer, two fill the queue
+        queue.enqueue("topic/0", message(1));
+        waitForDepth(0);
+        queue.enqueue("topic/1", message(1));
+        queue.enqueue("topic/2", message(1));
+        assertEquals(2, queue.getMetrics().getQueueDepth());
+
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch enqueued = new CountDownLatch(1);
+        new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    started.countDown();
+                    queue.enqueue("topic/3", message(0));
+                    enqueued.countDown();
+                }
+                catch (Exception e)
+                {
+                    fail(e.toString());
+                }
+            }
+        }).start();
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        assertFalse(enqueued.await(100, TimeUnit.MILLISECONDS));
+
+        release.countDown();
+        assertTrue(enqueued.await(5, TimeUnit.SECONDS));
+        queue.close(5000);
+        assertEquals(4, written.size());
+        WriteBehindMetrics metrics = queue.getMetrics();
+        assertEquals(1, metrics.getBlockedEnqueues());
+        // the thread blocks a moment after it starts, so allow for a little less
+        assertTrue(metrics.getMaxEnqueueWaitNanos() >= TimeUnit.MILLISECONDS.toNanos(50));
+    }
+
+    @Test
+    public void testDropQos0WhenFull() throws Exception
+    {
+        queue = open(1, WriteBehindPolicy.DROP_QOS0, true);
+        queue.enqueue("topic/0", message(1));
+        waitForDepth(0);
+        queue.enqueue("topic/1", message(1));
+        queue.enqueue("topic/2", message(0));
+        assertEquals(1, queue.getMetrics().getMessagesDropped());
+
+        release.countDown();
+        queue.close(5000);
+        assertEquals(2, written.size());
+        assertFalse(written.contains("topic/2"));
+    }
+
+    @Test
+    public void testFailedWriteIsReported() throws Exception
+    {
+        final List<String> failed = Collections.synchronizedList(new ArrayList<String>());
+        queue = new WriteBehindQueue("test", 4, WriteBehindPolicy.BLOCK, new WriteBehindQueue.Writer()
+        {
+            @Override
+            public void write(String topic, MqttMessage message) throws Exception
+            {
+                if (topic.equals("fail"))
+                {
+                    throw new Exception("write failed");
+                }
+                written.add(topic);
+            }
+
+            @Override
+            public void failed(String topic, MqttMessage message, Exception e)
+            {
+                failed.add(topic + ": " + e.getMessage());
+            }
+        }, new NullTraceHandler());
+        queue.start();
+        queue.enqueue("fail", message(1));
+        queue.enqueue("ok", message(1));
+        queue.close(5000);
+        assertEquals(Collections.singletonList("ok"), written);
+        assertEquals(Collections.singletonList("fail: write failed"), failed);
+        assertEquals(1, queue.getMetrics().getMessagesWritten());
+    }
+
+    @Test
+    public void testWritesDirectlyOnceClosed() throws Exception
+    {
+        queue = open(4, WriteBehindPolicy.BLOCK, false);
+        queue.close(5000);
+        queue.enqueue("after", message(1));
+        assertEquals(Collections.singletonList("after"), written);
+    }
+
+    private WriteBehindQueue open(int capacity, WriteBehindPolicy policy, final boolean waitForRelease)
+    {
+        WriteBehindQueue queue = new WriteBehindQueue("test", capacity, policy, new WriteBehindQueue.Writer()
+        {
+            @Override
+            public void write(String topic, MqttMessage message) throws Exception
+            {
+                if (waitForRelease)
+                {
+                    release.await();
+                }
+                written.add(topic);
+            }
+
+            @Override
+            public void failed(String topic, MqttMessage message, Exception e)
+            {
+                fail(e.toString());
+            }
+        }, new NullTraceHandler());
+        queue.start();
+        return queue;
+    }
+
+    private void waitForDepth(int depth) throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (queue.getMetrics().getQueueDepth() != depth && System.currentTimeMillis() < deadline)
+        {
+            Thread.sleep(5);
+        }
+        assertEquals(depth, queue.getMetrics().getQueueDepth());
+    }
+
+    private static MqttMessage message(int qos)
+    {
+        MqttMessage message = new MqttMessage(new byte[]{1});
+        message.setQos(qos);
+        return message;
+    }
+
+    private static class NullTraceHandler implements MqttTraceHandler
+    {
+        @Override
+        public void traceDebug(String tag, String message)
+        {
+        }
+
+        @Override
+        public void traceError(String tag, String message)
+        {
+        }
+
+        @Override
+        public void traceException(String tag, String message, Exception e)
+        {
+        }
+    }
+}